@@ -0,0 +1,11 @@
+package android.app;
+
+public class ActivityManager {
+    public android.content.pm.ConfigurationInfo getDeviceConfigurationInfo() {
+        return null;
+    }
+
+    public int getMemoryClass() {
+        return 0;
+    }
+}
@@ -0,0 +1,7 @@
+package android.content;
+
+public interface ComponentCallbacks {
+    void onConfigurationChanged(android.content.res.Configuration c);
+
+    void onLowMemory();
+}
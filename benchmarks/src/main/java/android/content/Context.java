@@ -0,0 +1,29 @@
+package android.content;
+
+public abstract class Context {
+    public static final String ACTIVITY_SERVICE = "a", WINDOW_SERVICE = "w";
+
+    public Object getSystemService(String s) {
+        return null;
+    }
+
+    public android.content.res.AssetManager getAssets() {
+        return null;
+    }
+
+    public ContentResolver getContentResolver() {
+        return null;
+    }
+
+    public Context getApplicationContext() {
+        return null;
+    }
+
+    public void registerComponentCallbacks(ComponentCallbacks c) {}
+
+    public void unregisterComponentCallbacks(ComponentCallbacks c) {}
+
+    public java.io.File getCacheDir() {
+        return null;
+    }
+}
@@ -0,0 +1,5 @@
+package android.content.pm;
+
+public class ConfigurationInfo {
+    public int reqGlEsVersion;
+}
@@ -0,0 +1,7 @@
+package android.content.res;
+
+public class AssetManager {
+    public java.io.InputStream open(String f) throws java.io.IOException {
+        return null;
+    }
+}
@@ -0,0 +1,15 @@
+package android.database;
+
+public interface Cursor {
+    int getColumnIndexOrThrow(String s);
+
+    boolean moveToFirst();
+
+    String getString(int i);
+
+    void close();
+
+    int getCount();
+
+    int getInt(int i);
+}
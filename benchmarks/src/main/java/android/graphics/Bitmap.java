@@ -0,0 +1,127 @@
+package android.graphics;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.IntBuffer;
+
+/**
+ * Heap backed stand-in for the framework Bitmap. Only ARGB_8888 pixel copies do real work, so
+ * readback paths cost what the pixel copy into a real Bitmap costs. Compressing writes the raw
+ * pixels.
+ */
+public class Bitmap {
+    public enum Config {
+        ARGB_8888,
+        RGB_565,
+        ALPHA_8,
+        ARGB_4444
+    }
+
+    public enum CompressFormat {
+        JPEG,
+        PNG,
+        WEBP
+    }
+
+    private final int mWidth;
+    private final int mHeight;
+    private final Config mConfig;
+    private int[] mPixels;
+
+    private Bitmap(int width, int height, Config config) {
+        mWidth = width;
+        mHeight = height;
+        mConfig = config;
+        mPixels = new int[width * height];
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public void recycle() {
+        mPixels = null;
+    }
+
+    public boolean isRecycled() {
+        return mPixels == null;
+    }
+
+    public int getByteCount() {
+        return getRowBytes() * mHeight;
+    }
+
+    public int getRowBytes() {
+        return mWidth * 4;
+    }
+
+    public Config getConfig() {
+        return mConfig;
+    }
+
+    public boolean hasAlpha() {
+        return true;
+    }
+
+    public static Bitmap createBitmap(int w, int h, Config c) {
+        return new Bitmap(w, h, c);
+    }
+
+    public static Bitmap createBitmap(int[] colors, int w, int h, Config c) {
+        Bitmap bitmap = new Bitmap(w, h, c);
+        System.arraycopy(colors, 0, bitmap.mPixels, 0, w * h);
+        return bitmap;
+    }
+
+    public static Bitmap createBitmap(Bitmap b, int x, int y, int w, int h) {
+        Bitmap bitmap = new Bitmap(w, h, b.mConfig);
+        for (int row = 0; row < h; row++) {
+            System.arraycopy(b.mPixels, (y + row) * b.mWidth + x, bitmap.mPixels, row * w, w);
+        }
+        return bitmap;
+    }
+
+    public static Bitmap createBitmap(Bitmap b, int x, int y, int w, int h, Matrix m, boolean f) {
+        return createBitmap(b, x, y, w, h);
+    }
+
+    public static Bitmap createScaledBitmap(Bitmap b, int w, int h, boolean f) {
+        return new Bitmap(w, h, b.mConfig);
+    }
+
+    public void copyPixelsFromBuffer(Buffer b) {
+        ((IntBuffer) b).get(mPixels, 0, Math.min(b.remaining(), mPixels.length));
+    }
+
+    public void copyPixelsToBuffer(Buffer b) {
+        ((IntBuffer) b).put(mPixels);
+    }
+
+    public boolean compress(CompressFormat f, int q, OutputStream o) {
+        if (mPixels == null) {
+            throw new IllegalStateException("Can't compress a recycled bitmap");
+        }
+        try {
+            DataOutputStream out = new DataOutputStream(o);
+            for (int pixel : mPixels) {
+                out.writeInt(pixel);
+            }
+            out.flush();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public void setPixels(int[] p, int o, int s, int x, int y, int w, int h) {
+        for (int row = 0; row < h; row++) {
+            System.arraycopy(p, o + row * s, mPixels, (y + row) * mWidth + x, w);
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package android.graphics;
+
+public class BitmapFactory {
+    public static class Options {
+        public boolean inJustDecodeBounds;
+        public int outWidth, outHeight, inSampleSize;
+        public Bitmap.Config inPreferredConfig;
+        public boolean inPurgeable;
+        public byte[] inTempStorage;
+        public boolean inMutable;
+    }
+
+    public static Bitmap decodeStream(java.io.InputStream i, Rect r, Options o) {
+        return null;
+    }
+
+    public static Bitmap decodeFile(String p, Options o) {
+        return null;
+    }
+}
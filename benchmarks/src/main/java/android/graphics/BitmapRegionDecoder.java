@@ -0,0 +1,26 @@
+package android.graphics;
+
+public class BitmapRegionDecoder {
+    public static BitmapRegionDecoder newInstance(String p, boolean s) throws java.io.IOException {
+        return null;
+    }
+
+    public static BitmapRegionDecoder newInstance(java.io.InputStream i, boolean s)
+            throws java.io.IOException {
+        return null;
+    }
+
+    public Bitmap decodeRegion(Rect r, BitmapFactory.Options o) {
+        return null;
+    }
+
+    public int getWidth() {
+        return 0;
+    }
+
+    public int getHeight() {
+        return 0;
+    }
+
+    public void recycle() {}
+}
@@ -0,0 +1,11 @@
+package android.graphics;
+
+public class Canvas {
+    public Canvas(Bitmap b) {}
+
+    public void drawARGB(int a, int r, int g, int b) {}
+
+    public void drawBitmap(Bitmap b, float l, float t, Paint p) {}
+
+    public void drawBitmap(Bitmap b, Rect s, Rect d, Paint p) {}
+}
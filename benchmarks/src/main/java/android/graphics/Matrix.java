@@ -0,0 +1,49 @@
+package android.graphics;
+
+public class Matrix {
+    public void setScale(float a, float b, float c, float d) {}
+
+    public void setScale(float a, float b) {}
+
+    public void mapPoints(float[] d, float[] s) {}
+
+    public void mapPoints(float[] p) {}
+
+    public boolean postTranslate(float a, float b) {
+        return true;
+    }
+
+    public boolean postScale(float a, float b, float c, float d) {
+        return true;
+    }
+
+    public boolean postRotate(float d) {
+        return true;
+    }
+
+    public boolean postRotate(float d, float x, float y) {
+        return true;
+    }
+
+    public void setValues(float[] v) {}
+
+    public void getValues(float[] v) {}
+
+    public boolean invert(Matrix m) {
+        return true;
+    }
+
+    public boolean setConcat(Matrix a, Matrix b) {
+        return true;
+    }
+
+    public boolean postConcat(Matrix m) {
+        return true;
+    }
+
+    public Matrix() {}
+
+    public Matrix(Matrix m) {}
+
+    public void set(Matrix m) {}
+}
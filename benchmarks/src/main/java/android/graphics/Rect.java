@@ -0,0 +1,25 @@
+package android.graphics;
+
+public class Rect {
+    public int left, top, right, bottom;
+
+    public Rect() {}
+
+    public Rect(int l, int t, int r, int b) {}
+
+    public int width() {
+        return 0;
+    }
+
+    public int height() {
+        return 0;
+    }
+
+    public boolean intersect(int l, int t, int r, int b) {
+        return true;
+    }
+
+    public boolean isEmpty() {
+        return false;
+    }
+}
@@ -0,0 +1,7 @@
+package android.hardware;
+
+public class Camera {
+    public class Size {
+        public int width, height;
+    }
+}
@@ -0,0 +1,15 @@
+package android.media;
+
+public class ExifInterface {
+    public static final String TAG_ORIENTATION = "o";
+    public static final int ORIENTATION_NORMAL = 1,
+            ORIENTATION_ROTATE_90 = 6,
+            ORIENTATION_ROTATE_180 = 3,
+            ORIENTATION_ROTATE_270 = 8;
+
+    public ExifInterface(String p) throws java.io.IOException {}
+
+    public int getAttributeInt(String t, int d) {
+        return 0;
+    }
+}
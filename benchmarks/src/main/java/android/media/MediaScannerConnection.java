@@ -0,0 +1,10 @@
+package android.media;
+
+public class MediaScannerConnection {
+    public interface OnScanCompletedListener {
+        void onScanCompleted(String p, android.net.Uri u);
+    }
+
+    public static void scanFile(
+            android.content.Context c, String[] p, String[] m, OnScanCompletedListener l) {}
+}
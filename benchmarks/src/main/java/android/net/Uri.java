@@ -0,0 +1,11 @@
+package android.net;
+
+public abstract class Uri {
+    public String getScheme() {
+        return null;
+    }
+
+    public String toString() {
+        return null;
+    }
+}
@@ -0,0 +1,201 @@
+package android.opengl;
+
+import java.nio.*;
+
+public class GLES20 {
+    public static final int GL_TEXTURE_2D = 0x0DE1,
+            GL_TEXTURE_MAG_FILTER = 0x2800,
+            GL_TEXTURE_MIN_FILTER = 0x2801,
+            GL_LINEAR = 0x2601,
+            GL_NEAREST = 0x2600,
+            GL_TEXTURE_WRAP_S = 0x2802,
+            GL_TEXTURE_WRAP_T = 0x2803,
+            GL_CLAMP_TO_EDGE = 0x812F,
+            GL_RGBA = 0x1908,
+            GL_RGB = 0x1907,
+            GL_UNSIGNED_BYTE = 0x1401,
+            GL_UNSIGNED_SHORT_5_6_5 = 0x8363,
+            GL_UNSIGNED_SHORT_4_4_4_4 = 0x8033,
+            GL_UNSIGNED_SHORT_5_5_5_1 = 0x8034,
+            GL_ALPHA = 0x1906,
+            GL_LUMINANCE = 0x1909,
+            GL_LUMINANCE_ALPHA = 0x190A,
+            GL_VERTEX_SHADER = 0x8B31,
+            GL_FRAGMENT_SHADER = 0x8B30,
+            GL_COMPILE_STATUS = 0x8B81,
+            GL_LINK_STATUS = 0x8B82,
+            GL_COLOR_BUFFER_BIT = 0x4000,
+            GL_DEPTH_BUFFER_BIT = 0x100,
+            GL_DEPTH_TEST = 0x0B71,
+            GL_SCISSOR_TEST = 0x0C11,
+            GL_BLEND = 0x0BE2,
+            GL_FRAMEBUFFER = 0x8D40,
+            GL_COLOR_ATTACHMENT0 = 0x8CE0,
+            GL_TEXTURE0 = 0x84C0,
+            GL_TEXTURE3 = 0x84C3,
+            GL_FLOAT = 0x1406,
+            GL_TRIANGLE_STRIP = 5,
+            GL_TRIANGLE_FAN = 6,
+            GL_ARRAY_BUFFER = 0x8892,
+            GL_STATIC_DRAW = 0x88E4,
+            GL_DYNAMIC_DRAW = 0x88E8,
+            GL_STREAM_DRAW = 0x88E0,
+            GL_EXTENSIONS = 0x1F03,
+            GL_VERSION = 0x1F02,
+            GL_RENDERER = 0x1F01,
+            GL_MAX_TEXTURE_SIZE = 0x0D33,
+            GL_LINEAR_MIPMAP_LINEAR = 0x2703,
+            GL_NO_ERROR = 0,
+            GL_FRAMEBUFFER_COMPLETE = 0x8CD5,
+            GL_FRAMEBUFFER_BINDING = 0x8CA6,
+            GL_VIEWPORT = 0x0BA2,
+            GL_SCISSOR_BOX = 0x0C10,
+            GL_PACK_ALIGNMENT = 0x0D05,
+            GL_UNPACK_ALIGNMENT = 0x0CF5,
+            GL_TEXTURE_BINDING_2D = 0x8069,
+            GL_CURRENT_PROGRAM = 0x8B8D;
+
+    public static void glActiveTexture(int t) {}
+
+    public static void glBindTexture(int t, int i) {}
+
+    public static void glGenTextures(int n, int[] a, int o) {}
+
+    public static void glDeleteTextures(int n, int[] a, int o) {}
+
+    public static void glTexParameterf(int a, int b, float c) {}
+
+    public static void glTexParameteri(int a, int b, int c) {}
+
+    public static void glTexImage2D(
+            int t, int l, int i, int w, int h, int b, int f, int ty, Buffer p) {}
+
+    public static void glTexSubImage2D(
+            int t, int l, int x, int y, int w, int h, int f, int ty, Buffer p) {}
+
+    public static int glCreateShader(int t) {
+        return 0;
+    }
+
+    public static void glShaderSource(int s, String c) {}
+
+    public static void glCompileShader(int s) {}
+
+    public static void glGetShaderiv(int s, int p, int[] a, int o) {}
+
+    public static String glGetShaderInfoLog(int s) {
+        return null;
+    }
+
+    public static String glGetProgramInfoLog(int s) {
+        return null;
+    }
+
+    public static int glCreateProgram() {
+        return 0;
+    }
+
+    public static void glAttachShader(int p, int s) {}
+
+    public static void glLinkProgram(int p) {}
+
+    public static void glGetProgramiv(int p, int n, int[] a, int o) {}
+
+    public static void glDeleteShader(int s) {}
+
+    public static void glDeleteProgram(int p) {}
+
+    public static void glUseProgram(int p) {}
+
+    public static int glGetAttribLocation(int p, String n) {
+        return 0;
+    }
+
+    public static int glGetUniformLocation(int p, String n) {
+        return 0;
+    }
+
+    public static void glUniform1i(int l, int v) {}
+
+    public static void glUniform1f(int l, float v) {}
+
+    public static void glUniform2f(int l, float a, float b) {}
+
+    public static void glUniform2fv(int l, int c, FloatBuffer b) {}
+
+    public static void glUniform2fv(int l, int c, float[] v, int o) {}
+
+    public static void glUniform3fv(int l, int c, FloatBuffer b) {}
+
+    public static void glUniform4fv(int l, int c, FloatBuffer b) {}
+
+    public static void glUniform1fv(int l, int c, FloatBuffer b) {}
+
+    public static void glUniformMatrix3fv(int l, int c, boolean t, float[] v, int o) {}
+
+    public static void glUniformMatrix4fv(int l, int c, boolean t, float[] v, int o) {}
+
+    public static void glVertexAttribPointer(int i, int s, int t, boolean n, int st, Buffer b) {}
+
+    public static void glVertexAttribPointer(int i, int s, int t, boolean n, int st, int off) {}
+
+    public static void glEnableVertexAttribArray(int i) {}
+
+    public static void glDisableVertexAttribArray(int i) {}
+
+    public static void glDrawArrays(int m, int f, int c) {}
+
+    public static void glClearColor(float r, float g, float b, float a) {}
+
+    public static void glClear(int m) {}
+
+    public static void glDisable(int c) {}
+
+    public static void glEnable(int c) {}
+
+    public static void glViewport(int x, int y, int w, int h) {}
+
+    public static void glScissor(int x, int y, int w, int h) {}
+
+    public static void glGenFramebuffers(int n, int[] a, int o) {}
+
+    public static void glDeleteFramebuffers(int n, int[] a, int o) {}
+
+    public static void glBindFramebuffer(int t, int f) {}
+
+    public static void glFramebufferTexture2D(int t, int a, int tt, int tex, int l) {}
+
+    public static int glCheckFramebufferStatus(int t) {
+        return 0;
+    }
+
+    public static void glGenBuffers(int n, int[] a, int o) {}
+
+    public static void glDeleteBuffers(int n, int[] a, int o) {}
+
+    public static void glBindBuffer(int t, int b) {}
+
+    public static void glBufferData(int t, int s, Buffer d, int u) {}
+
+    public static void glBufferSubData(int t, int o, int s, Buffer d) {}
+
+    public static void glReadPixels(int x, int y, int w, int h, int f, int t, Buffer b) {}
+
+    public static String glGetString(int n) {
+        return null;
+    }
+
+    public static void glGetIntegerv(int p, int[] a, int o) {}
+
+    public static void glGenerateMipmap(int t) {}
+
+    public static void glPixelStorei(int p, int v) {}
+
+    public static int glGetError() {
+        return 0;
+    }
+
+    public static void glFlush() {}
+
+    public static void glFinish() {}
+}
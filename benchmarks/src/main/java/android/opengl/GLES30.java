@@ -0,0 +1,31 @@
+package android.opengl;
+
+import java.nio.*;
+
+public class GLES30 extends GLES20 {
+    public static final int GL_PIXEL_PACK_BUFFER = 0x88EB,
+            GL_MAP_READ_BIT = 1,
+            GL_STREAM_READ = 0x88E1,
+            GL_QUERY_RESULT = 0x8866,
+            GL_QUERY_RESULT_AVAILABLE = 0x8867;
+
+    public static void glGenQueries(int n, int[] a, int o) {}
+
+    public static void glDeleteQueries(int n, int[] a, int o) {}
+
+    public static void glBeginQuery(int t, int i) {}
+
+    public static void glEndQuery(int t) {}
+
+    public static void glGetQueryObjectuiv(int i, int p, int[] a, int o) {}
+
+    public static Buffer glMapBufferRange(int t, int o, int l, int a) {
+        return null;
+    }
+
+    public static boolean glUnmapBuffer(int t) {
+        return true;
+    }
+
+    public static void glReadPixels(int x, int y, int w, int h, int f, int t, int off) {}
+}
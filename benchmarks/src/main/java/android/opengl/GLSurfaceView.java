@@ -0,0 +1,41 @@
+package android.opengl;
+
+public class GLSurfaceView extends android.view.SurfaceView {
+    public static final int RENDERMODE_WHEN_DIRTY = 0, RENDERMODE_CONTINUOUSLY = 1;
+
+    public interface Renderer {
+        void onSurfaceCreated(
+                javax.microedition.khronos.opengles.GL10 gl,
+                javax.microedition.khronos.egl.EGLConfig c);
+
+        void onSurfaceChanged(javax.microedition.khronos.opengles.GL10 gl, int w, int h);
+
+        void onDrawFrame(javax.microedition.khronos.opengles.GL10 gl);
+    }
+
+    public GLSurfaceView(android.content.Context c) {
+        super(c);
+    }
+
+    public GLSurfaceView(android.content.Context c, android.util.AttributeSet a) {
+        super(c);
+    }
+
+    public void setEGLContextClientVersion(int v) {}
+
+    public void setEGLConfigChooser(int r, int g, int b, int a, int d, int s) {}
+
+    public void setRenderer(Renderer r) {}
+
+    public void setRenderMode(int m) {}
+
+    public void requestRender() {}
+
+    public void setPreserveEGLContextOnPause(boolean b) {}
+
+    public void onPause() {}
+
+    public void onResume() {}
+
+    public void queueEvent(Runnable r) {}
+}
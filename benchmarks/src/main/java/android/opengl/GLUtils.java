@@ -0,0 +1,15 @@
+package android.opengl;
+
+public class GLUtils {
+    public static void texImage2D(int t, int l, android.graphics.Bitmap b, int bo) {}
+
+    public static void texSubImage2D(int t, int l, int x, int y, android.graphics.Bitmap b) {}
+
+    public static int getInternalFormat(android.graphics.Bitmap b) {
+        return 0;
+    }
+
+    public static int getType(android.graphics.Bitmap b) {
+        return 0;
+    }
+}
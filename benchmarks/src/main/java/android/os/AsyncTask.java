@@ -0,0 +1,17 @@
+package android.os;
+
+public abstract class AsyncTask<P, Q, R> {
+    protected abstract R doInBackground(P... p);
+
+    protected void onPostExecute(R r) {}
+
+    public final AsyncTask<P, Q, R> execute(P... p) {
+        return this;
+    }
+
+    public static final java.util.concurrent.Executor THREAD_POOL_EXECUTOR = null;
+
+    public final AsyncTask<P, Q, R> executeOnExecutor(java.util.concurrent.Executor e, P... p) {
+        return this;
+    }
+}
@@ -0,0 +1,11 @@
+package android.os;
+
+public class Build {
+    public static class VERSION {
+        public static int SDK_INT;
+    }
+
+    public static class VERSION_CODES {
+        public static final int JELLY_BEAN = 16, JELLY_BEAN_MR2 = 18, KITKAT = 19, LOLLIPOP = 21;
+    }
+}
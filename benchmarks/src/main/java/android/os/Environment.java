@@ -0,0 +1,9 @@
+package android.os;
+
+public class Environment {
+    public static String DIRECTORY_PICTURES = "p";
+
+    public static java.io.File getExternalStoragePublicDirectory(String s) {
+        return null;
+    }
+}
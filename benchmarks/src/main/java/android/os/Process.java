@@ -0,0 +1,11 @@
+package android.os;
+
+public class Process {
+    public static final int THREAD_PRIORITY_BACKGROUND = 10;
+
+    public static void setThreadPriority(int p) {}
+
+    public static int myTid() {
+        return 0;
+    }
+}
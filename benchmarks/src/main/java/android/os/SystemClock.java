@@ -0,0 +1,11 @@
+package android.os;
+
+public class SystemClock {
+    public static long elapsedRealtimeNanos() {
+        return 0;
+    }
+
+    public static long uptimeMillis() {
+        return 0;
+    }
+}
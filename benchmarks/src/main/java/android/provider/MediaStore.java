@@ -0,0 +1,13 @@
+package android.provider;
+
+public class MediaStore {
+    public static class Images {
+        public static class Media {
+            public static final String DATA = "d";
+        }
+
+        public static class ImageColumns {
+            public static final String ORIENTATION = "o";
+        }
+    }
+}
@@ -0,0 +1,6 @@
+package android.support.annotation;
+
+import java.lang.annotation.*;
+
+@Retention(RetentionPolicy.CLASS)
+public @interface WorkerThread {}
@@ -0,0 +1,11 @@
+package android.view;
+
+public class Display {
+    public int getWidth() {
+        return 0;
+    }
+
+    public int getHeight() {
+        return 0;
+    }
+}
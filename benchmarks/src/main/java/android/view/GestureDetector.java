@@ -0,0 +1,21 @@
+package android.view;
+
+public class GestureDetector {
+    public GestureDetector(android.content.Context c, OnGestureListener l) {}
+
+    public interface OnGestureListener {}
+
+    public static class SimpleOnGestureListener implements OnGestureListener {
+        public boolean onDown(MotionEvent e) {
+            return false;
+        }
+
+        public boolean onScroll(MotionEvent a, MotionEvent b, float x, float y) {
+            return false;
+        }
+    }
+
+    public boolean onTouchEvent(MotionEvent e) {
+        return true;
+    }
+}
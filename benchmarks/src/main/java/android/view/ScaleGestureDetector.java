@@ -0,0 +1,21 @@
+package android.view;
+
+public class ScaleGestureDetector {
+    public ScaleGestureDetector(android.content.Context c, OnScaleGestureListener l) {}
+
+    public interface OnScaleGestureListener {}
+
+    public static class SimpleOnScaleGestureListener implements OnScaleGestureListener {
+        public boolean onScale(ScaleGestureDetector d) {
+            return true;
+        }
+    }
+
+    public boolean onTouchEvent(MotionEvent e) {
+        return true;
+    }
+
+    public float getScaleFactor() {
+        return 1;
+    }
+}
@@ -0,0 +1,11 @@
+package android.view;
+
+public class SurfaceView extends View {
+    public SurfaceView(android.content.Context c) {
+        super(c);
+    }
+
+    public SurfaceHolder getHolder() {
+        return null;
+    }
+}
@@ -0,0 +1,17 @@
+package android.view;
+
+public class TextureView extends View {
+    public TextureView(android.content.Context c) {
+        super(c);
+    }
+
+    public boolean isAvailable() {
+        return true;
+    }
+
+    public android.graphics.Canvas lockCanvas() {
+        return null;
+    }
+
+    public void unlockCanvasAndPost(android.graphics.Canvas c) {}
+}
@@ -0,0 +1,81 @@
+package android.view;
+
+public class View {
+    public View(android.content.Context c) {}
+
+    public View(android.content.Context c, android.util.AttributeSet a) {}
+
+    public View(android.content.Context c, android.util.AttributeSet a, int d) {}
+
+    public static class MeasureSpec {
+        public static final int EXACTLY = 1;
+
+        public static int getSize(int s) {
+            return 0;
+        }
+
+        public static int makeMeasureSpec(int s, int m) {
+            return 0;
+        }
+    }
+
+    protected void onMeasure(int w, int h) {}
+
+    public void requestLayout() {}
+
+    protected void onDetachedFromWindow() {}
+
+    public android.content.Context getContext() {
+        return null;
+    }
+
+    public ViewTreeObserver getViewTreeObserver() {
+        return null;
+    }
+
+    public boolean post(Runnable r) {
+        return true;
+    }
+
+    public boolean postDelayed(Runnable r, long d) {
+        return true;
+    }
+
+    public int getMeasuredWidth() {
+        return 0;
+    }
+
+    public int getMeasuredHeight() {
+        return 0;
+    }
+
+    public int getWidth() {
+        return 0;
+    }
+
+    public int getHeight() {
+        return 0;
+    }
+
+    public boolean onTouchEvent(MotionEvent e) {
+        return false;
+    }
+
+    public void setBackgroundColor(int c) {}
+
+    public void setLayoutParams(ViewGroup.LayoutParams p) {}
+
+    public boolean isShown() {
+        return true;
+    }
+
+    public Object getTag(int k) {
+        return null;
+    }
+
+    public void setTag(int k, Object o) {}
+
+    public boolean getGlobalVisibleRect(android.graphics.Rect r) {
+        return true;
+    }
+}
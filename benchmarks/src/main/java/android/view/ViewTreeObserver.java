@@ -0,0 +1,13 @@
+package android.view;
+
+public class ViewTreeObserver {
+    public interface OnGlobalLayoutListener {
+        void onGlobalLayout();
+    }
+
+    public void addOnGlobalLayoutListener(OnGlobalLayoutListener l) {}
+
+    public void removeGlobalOnLayoutListener(OnGlobalLayoutListener l) {}
+
+    public void removeOnGlobalLayoutListener(OnGlobalLayoutListener l) {}
+}
@@ -0,0 +1,25 @@
+package android.widget;
+
+public class FrameLayout extends android.view.ViewGroup {
+    public FrameLayout(android.content.Context c) {
+        super(c);
+    }
+
+    public FrameLayout(android.content.Context c, android.util.AttributeSet a) {
+        super(c);
+    }
+
+    public FrameLayout(android.content.Context c, android.util.AttributeSet a, int d) {
+        super(c);
+    }
+
+    public static class LayoutParams extends android.view.ViewGroup.LayoutParams {
+        public LayoutParams(int w, int h) {
+            super(w, h);
+        }
+
+        public LayoutParams(int w, int h, int g) {
+            super(w, h);
+        }
+    }
+}
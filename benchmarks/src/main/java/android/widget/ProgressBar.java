@@ -0,0 +1,7 @@
+package android.widget;
+
+public class ProgressBar extends android.view.View {
+    public ProgressBar(android.content.Context c) {
+        super(c);
+    }
+}
@@ -0,0 +1,40 @@
+package javax.microedition.khronos.egl;
+
+public interface EGL10 extends EGL {
+    int EGL_ALPHA_SIZE = 1,
+            EGL_BLUE_SIZE = 2,
+            EGL_DEPTH_SIZE = 3,
+            EGL_GREEN_SIZE = 4,
+            EGL_HEIGHT = 5,
+            EGL_NONE = 6,
+            EGL_RED_SIZE = 7,
+            EGL_STENCIL_SIZE = 8,
+            EGL_WIDTH = 9,
+            EGL_RENDERABLE_TYPE = 10;
+    Object EGL_DEFAULT_DISPLAY = null;
+    EGLContext EGL_NO_CONTEXT = null;
+    EGLSurface EGL_NO_SURFACE = null;
+    EGLDisplay EGL_NO_DISPLAY = null;
+
+    EGLDisplay eglGetDisplay(Object o);
+
+    boolean eglInitialize(EGLDisplay d, int[] v);
+
+    EGLContext eglCreateContext(EGLDisplay d, EGLConfig c, EGLContext s, int[] a);
+
+    EGLSurface eglCreatePbufferSurface(EGLDisplay d, EGLConfig c, int[] a);
+
+    boolean eglMakeCurrent(EGLDisplay d, EGLSurface a, EGLSurface b, EGLContext c);
+
+    boolean eglDestroySurface(EGLDisplay d, EGLSurface s);
+
+    boolean eglDestroyContext(EGLDisplay d, EGLContext c);
+
+    boolean eglTerminate(EGLDisplay d);
+
+    boolean eglChooseConfig(EGLDisplay d, int[] a, EGLConfig[] c, int s, int[] n);
+
+    boolean eglGetConfigAttrib(EGLDisplay d, EGLConfig c, int a, int[] v);
+
+    EGLContext eglGetCurrentContext();
+}
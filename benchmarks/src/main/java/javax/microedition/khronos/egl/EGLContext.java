@@ -0,0 +1,9 @@
+package javax.microedition.khronos.egl;
+
+public abstract class EGLContext {
+    public static EGL getEGL() {
+        return null;
+    }
+
+    public abstract javax.microedition.khronos.opengles.GL getGL();
+}
@@ -0,0 +1,7 @@
+package javax.microedition.khronos.opengles;
+
+public interface GL10 {
+    int GL_RGBA = 0x1908, GL_UNSIGNED_BYTE = 0x1401;
+
+    void glReadPixels(int x, int y, int w, int h, int f, int t, java.nio.Buffer b);
+}
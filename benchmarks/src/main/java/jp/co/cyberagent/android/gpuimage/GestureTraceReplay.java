@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.support.annotation.NonNull;
+import jp.co.cyberagent.android.gpuimage.util.Histogram;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Replays {@link GestureTrace}s against the transform pipeline the renderer runs for every
+ * gesture event: the {@link ImageTransform} update and publishing the GL thread snapshot. Lives
+ * in the library package to reach {@link TransformState}. Runs on a plain JVM, e.g.
+ * <pre>
+ * java -cp target/benchmarks.jar jp.co.cyberagent.android.gpuimage.GestureTraceReplay [traces]
+ * </pre>
+ * which replays the given trace files, or the canonical traces if none are given, and prints
+ * per-event latency percentiles and allocated bytes per event.
+ */
+public class GestureTraceReplay {
+    private static final int DEFAULT_WARMUP_ITERATIONS = 50;
+    private static final int DEFAULT_ITERATIONS = 200;
+
+    // keeps the published snapshots observable, as the renderer's volatile field does
+    private static volatile TransformState sPublished;
+
+    /**
+     * Outcome of replaying one trace.
+     */
+    public static final class Result {
+        @NonNull
+        public final String name;
+        public final long events;
+        /**
+         * Latency of single events in nanoseconds, including the timer overhead.
+         */
+        @NonNull
+        public final Histogram latencyNanos;
+        /**
+         * Bytes allocated per event, or -1 where the VM cannot measure allocation.
+         */
+        public final double allocatedBytesPerEvent;
+
+        Result(@NonNull final String name, final long events,
+               @NonNull final Histogram latencyNanos, final double allocatedBytesPerEvent) {
+            this.name = name;
+            this.events = events;
+            this.latencyNanos = latencyNanos;
+            this.allocatedBytesPerEvent = allocatedBytesPerEvent;
+        }
+
+        @Override
+        public String toString() {
+            return name + ": events=" + events
+                    + " p50=" + latencyNanos.getPercentile(0.5) + "ns"
+                    + " p90=" + latencyNanos.getPercentile(0.9) + "ns"
+                    + " p99=" + latencyNanos.getPercentile(0.99) + "ns"
+                    + " max=" + latencyNanos.getMax() + "ns"
+                    + " alloc=" + (allocatedBytesPerEvent < 0 ? "n/a"
+                    : String.valueOf(Math.round(allocatedBytesPerEvent))) + "B/event";
+        }
+    }
+
+    private GestureTraceReplay() {
+    }
+
+    @NonNull
+    public static Result replay(@NonNull final GestureTrace trace) {
+        return replay(trace, DEFAULT_WARMUP_ITERATIONS, DEFAULT_ITERATIONS);
+    }
+
+    /**
+     * Replays a trace repeatedly, starting from its initial state each time.
+     *
+     * @param trace            trace to replay
+     * @param warmupIterations unmeasured replays to let the JIT settle
+     * @param iterations       measured replays
+     * @return latency and allocation of the measured replays
+     */
+    @NonNull
+    public static Result replay(@NonNull final GestureTrace trace, final int warmupIterations,
+                                final int iterations) {
+        ImageTransform transform = new ImageTransform();
+        Histogram latency = new Histogram();
+        int size = trace.size();
+        for (int i = 0; i < warmupIterations; i++) {
+            trace.prepare(transform);
+            for (int event = 0; event < size; event++) {
+                applyAndPublish(trace, event, transform);
+            }
+        }
+
+        long allocatedBefore = allocatedBytes();
+        for (int i = 0; i < iterations; i++) {
+            trace.prepare(transform);
+            for (int event = 0; event < size; event++) {
+                long start = System.nanoTime();
+                applyAndPublish(trace, event, transform);
+                latency.record(System.nanoTime() - start);
+            }
+        }
+        long allocatedAfter = allocatedBytes();
+
+        long events = (long) size * iterations;
+        double allocated = allocatedBefore < 0 || allocatedAfter < 0 || events == 0 ? -1
+                : (double) (allocatedAfter - allocatedBefore) / events;
+        return new Result(trace.getName(), events, latency, allocated);
+    }
+
+    public static void main(@NonNull final String[] args) throws IOException {
+        List<GestureTrace> traces = new ArrayList<GestureTrace>();
+        if (args.length == 0) {
+            traces.addAll(GestureTrace.canonicalTraces());
+        }
+        for (String path : args) {
+            File file = new File(path);
+            Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+            try {
+                traces.add(GestureTrace.read(file.getName(), reader));
+            } finally {
+                reader.close();
+            }
+        }
+        for (GestureTrace trace : traces) {
+            System.out.println(replay(trace));
+        }
+    }
+
+    // the same work GPUImageRenderer does per gesture event
+    private static void applyAndPublish(@NonNull final GestureTrace trace, final int event,
+                                        @NonNull final ImageTransform transform) {
+        trace.apply(event, transform);
+        sPublished = TransformState.of(transform);
+    }
+
+    // bytes allocated by this thread so far, -1 if the VM does not tell
+    private static long allocatedBytes() {
+        try {
+            Class<?> factory = Class.forName("java.lang.management.ManagementFactory");
+            Object bean = factory.getMethod("getThreadMXBean").invoke(null);
+            Class<?> beanClass = Class.forName("com.sun.management.ThreadMXBean");
+            if (!beanClass.isInstance(bean)) {
+                return -1;
+            }
+            Method method = beanClass.getMethod("getThreadAllocatedBytes", long.class);
+            return (Long) method.invoke(bean, Thread.currentThread().getId());
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+}
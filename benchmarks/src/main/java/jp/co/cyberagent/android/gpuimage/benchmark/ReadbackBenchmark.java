@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jp.co.cyberagent.android.gpuimage.benchmark;
+
+import android.graphics.Bitmap;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.IntBuffer;
+import java.util.concurrent.TimeUnit;
+
+import jp.co.cyberagent.android.gpuimage.util.PixelUtils;
+
+/**
+ * Row flipping of pixels read back from GL, as done by PixelBuffer, GPUImageView and the strip
+ * readback.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ReadbackBenchmark {
+    private static final int STRIP_ROWS = 64;
+
+    @Param({"1080", "2048"})
+    public int size;
+
+    private int[] mPixels;
+    private int[] mFlipped;
+    private IntBuffer mStrip;
+    private Bitmap mBitmap;
+
+    @Setup
+    public void setUp() {
+        mPixels = new int[size * size];
+        for (int i = 0; i < mPixels.length; i++) {
+            mPixels[i] = i;
+        }
+        mFlipped = new int[mPixels.length];
+        mStrip = IntBuffer.allocate(size * STRIP_ROWS);
+        mBitmap = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+    }
+
+    @Benchmark
+    public int[] flipRowsInPlace() {
+        PixelUtils.flipRows(mPixels, size, size);
+        return mPixels;
+    }
+
+    @Benchmark
+    public int[] flipRowsCopy() {
+        PixelUtils.flipRows(mPixels, mFlipped, size, size);
+        return mFlipped;
+    }
+
+    @Benchmark
+    public int[] flipStrips() {
+        for (int row = 0; row < size; row += STRIP_ROWS) {
+            PixelUtils.flipStrip(mStrip, mFlipped, size, size, row,
+                                 Math.min(STRIP_ROWS, size - row));
+        }
+        return mFlipped;
+    }
+
+    @Benchmark
+    public Bitmap flipIntoBitmap() {
+        // what PixelBuffer does with a finished readback
+        PixelUtils.flipRows(mPixels, size, size);
+        mBitmap.copyPixelsFromBuffer(IntBuffer.wrap(mPixels));
+        return mBitmap;
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jp.co.cyberagent.android.gpuimage.benchmark;
+
+import android.graphics.PointF;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import jp.co.cyberagent.android.gpuimage.GPUImageToneCurveFilter;
+
+/**
+ * Spline generation and lookup table packing of the tone curve filter, which runs whenever a
+ * curve is edited.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ToneCurveBenchmark {
+    private final PointF[] mComposite = {
+            new PointF(0.0f, 0.0f), new PointF(0.25f, 0.2f), new PointF(0.5f, 0.55f),
+            new PointF(0.75f, 0.8f), new PointF(1.0f, 1.0f),
+    };
+    private final PointF[] mRed = {
+            new PointF(0.0f, 0.05f), new PointF(0.5f, 0.5f), new PointF(1.0f, 0.95f),
+    };
+    private final PointF[] mGreen = {
+            new PointF(0.0f, 0.0f), new PointF(0.3f, 0.35f), new PointF(1.0f, 1.0f),
+    };
+    private final PointF[] mBlue = {
+            new PointF(0.0f, 0.1f), new PointF(0.6f, 0.55f), new PointF(1.0f, 0.9f),
+    };
+
+    private GPUImageToneCurveFilter mFilter;
+
+    @Setup
+    public void setUp() {
+        // not initialized, so edits only recompute the curve and stage the table
+        mFilter = new GPUImageToneCurveFilter();
+    }
+
+    @Benchmark
+    public byte[] createTable() {
+        return GPUImageToneCurveFilter.createToneCurveTable(mComposite, mRed, mGreen, mBlue);
+    }
+
+    @Benchmark
+    public GPUImageToneCurveFilter editCompositeCurve() {
+        mFilter.setRgbCompositeControlPoints(mComposite);
+        return mFilter;
+    }
+}
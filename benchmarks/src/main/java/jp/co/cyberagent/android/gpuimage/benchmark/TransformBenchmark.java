@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jp.co.cyberagent.android.gpuimage.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import jp.co.cyberagent.android.gpuimage.ImageTransform;
+import jp.co.cyberagent.android.gpuimage.Rotation;
+import jp.co.cyberagent.android.gpuimage.util.TextureRotationUtil;
+
+/**
+ * Texture coordinate and transform math the renderer does for every gesture event and frame.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TransformBenchmark {
+    @Param({"NORMAL", "ROTATION_90"})
+    public Rotation rotation;
+
+    private final ImageTransform mTransform = new ImageTransform();
+    private final float[] mTextureTransform = new float[9];
+    private final float[] mCropBox = new float[4];
+    private float mDirection = 1;
+
+    @Setup
+    public void setUp() {
+        mTransform.setOutputSize(1080, 1080);
+        mTransform.setImageSize(4032, 3024);
+        mTransform.setRotation(rotation);
+    }
+
+    @Benchmark
+    public float[] getRotation() {
+        return TextureRotationUtil.getRotation(rotation, true, false);
+    }
+
+    @Benchmark
+    public float[] pinchAndDrag() {
+        // alternate so the scale stays inside the allowed range
+        mTransform.setScaleFactor(mDirection > 0 ? 1.01f : 1 / 1.01f);
+        mTransform.setTranslate(3 * mDirection, -2 * mDirection);
+        mDirection = -mDirection;
+        mTransform.getTextureTransform(mTextureTransform);
+        mTransform.getCropBox(mCropBox);
+        return mTextureTransform;
+    }
+}
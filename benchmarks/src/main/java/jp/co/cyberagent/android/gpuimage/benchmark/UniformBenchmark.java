@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jp.co.cyberagent.android.gpuimage.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import jp.co.cyberagent.android.gpuimage.AndroidGLBackend;
+import jp.co.cyberagent.android.gpuimage.GLContextResources;
+import jp.co.cyberagent.android.gpuimage.GPUImageFilter;
+import jp.co.cyberagent.android.gpuimage.OpenGlUtils;
+import jp.co.cyberagent.android.gpuimage.RecordingGLBackend;
+
+/**
+ * The uniform setters of GPUImageFilter: enqueueing a change on the UI thread and applying it
+ * on the next draw, against {@link RecordingGLBackend}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class UniformBenchmark {
+    private RecordingGLBackend mGL;
+    private UniformFilter mFilter;
+    private final float[] mVec2 = {0.5f, 0.5f};
+    private float mValue;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mGL = new RecordingGLBackend();
+        OpenGlUtils.setBackend(mGL);
+        mFilter = new UniformFilter();
+        mFilter.init();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mFilter.destroy();
+        GLContextResources.releaseCurrent();
+        OpenGlUtils.setBackend(new AndroidGLBackend());
+    }
+
+    @Benchmark
+    public UniformFilter setAndApply() {
+        mValue += 0.001f;
+        mFilter.set(mValue, mVec2);
+        mFilter.apply();
+        return mFilter;
+    }
+
+    @Benchmark
+    public RecordingGLBackend.FrameStats setAndApplyFrame() {
+        // a frame also resets the recorded counters, which a CI check would read
+        setAndApply();
+        return mGL.takeFrameStats();
+    }
+
+    /**
+     * Sets uniforms through the protected setters and drains them like a draw does.
+     */
+    public static class UniformFilter extends GPUImageFilter {
+        void set(final float value, final float[] vec2) {
+            setFloat(1, value);
+            setFloatVec2(2, vec2);
+            setInteger(3, 1);
+        }
+
+        void apply() {
+            runPendingOnDrawTasks();
+        }
+    }
+}
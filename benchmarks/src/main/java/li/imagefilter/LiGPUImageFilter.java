@@ -0,0 +1,4 @@
+package li.imagefilter;
+
+/** Stand-in for the class GPUImageRenderer imports from the host app. */
+public class LiGPUImageFilter {}
@@ -0,0 +1,371 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.opengl.GLUtils;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import javax.microedition.khronos.egl.EGL10;
+import javax.microedition.khronos.egl.EGLContext;
+import java.nio.Buffer;
+import java.nio.FloatBuffer;
+
+/**
+ * {@link GLBackend} forwarding to the context current on the calling thread. This is the
+ * default backend.
+ */
+public class AndroidGLBackend implements GLBackend {
+    @Override
+    @NonNull
+    public Object getCurrentContext() {
+        return ((EGL10) EGLContext.getEGL()).eglGetCurrentContext();
+    }
+
+    @Override
+    public void glActiveTexture(final int texture) {
+        GLES20.glActiveTexture(texture);
+    }
+
+    @Override
+    public void glAttachShader(final int program, final int shader) {
+        GLES20.glAttachShader(program, shader);
+    }
+
+    @Override
+    public void glBindBuffer(final int target, final int buffer) {
+        GLES20.glBindBuffer(target, buffer);
+    }
+
+    @Override
+    public void glBindFramebuffer(final int target, final int framebuffer) {
+        GLES20.glBindFramebuffer(target, framebuffer);
+    }
+
+    @Override
+    public void glBindTexture(final int target, final int texture) {
+        GLES20.glBindTexture(target, texture);
+    }
+
+    @Override
+    public void glBufferData(final int target, final int size, @Nullable final Buffer data,
+                             final int usage) {
+        GLES20.glBufferData(target, size, data, usage);
+    }
+
+    @Override
+    public int glCheckFramebufferStatus(final int target) {
+        return GLES20.glCheckFramebufferStatus(target);
+    }
+
+    @Override
+    public void glClear(final int mask) {
+        GLES20.glClear(mask);
+    }
+
+    @Override
+    public void glClearColor(final float red, final float green, final float blue,
+                             final float alpha) {
+        GLES20.glClearColor(red, green, blue, alpha);
+    }
+
+    @Override
+    public void glCompileShader(final int shader) {
+        GLES20.glCompileShader(shader);
+    }
+
+    @Override
+    public int glCreateProgram() {
+        return GLES20.glCreateProgram();
+    }
+
+    @Override
+    public int glCreateShader(final int type) {
+        return GLES20.glCreateShader(type);
+    }
+
+    @Override
+    public void glDeleteBuffers(final int n, @NonNull final int[] buffers, final int offset) {
+        GLES20.glDeleteBuffers(n, buffers, offset);
+    }
+
+    @Override
+    public void glDeleteFramebuffers(final int n, @NonNull final int[] framebuffers,
+                                     final int offset) {
+        GLES20.glDeleteFramebuffers(n, framebuffers, offset);
+    }
+
+    @Override
+    public void glDeleteProgram(final int program) {
+        GLES20.glDeleteProgram(program);
+    }
+
+    @Override
+    public void glDeleteShader(final int shader) {
+        GLES20.glDeleteShader(shader);
+    }
+
+    @Override
+    public void glDeleteTextures(final int n, @NonNull final int[] textures, final int offset) {
+        GLES20.glDeleteTextures(n, textures, offset);
+    }
+
+    @Override
+    public void glDisable(final int cap) {
+        GLES20.glDisable(cap);
+    }
+
+    @Override
+    public void glDisableVertexAttribArray(final int index) {
+        GLES20.glDisableVertexAttribArray(index);
+    }
+
+    @Override
+    public void glDrawArrays(final int mode, final int first, final int count) {
+        GLES20.glDrawArrays(mode, first, count);
+    }
+
+    @Override
+    public void glEnable(final int cap) {
+        GLES20.glEnable(cap);
+    }
+
+    @Override
+    public void glEnableVertexAttribArray(final int index) {
+        GLES20.glEnableVertexAttribArray(index);
+    }
+
+    @Override
+    public void glFramebufferTexture2D(final int target, final int attachment, final int textarget,
+                                       final int texture, final int level) {
+        GLES20.glFramebufferTexture2D(target, attachment, textarget, texture, level);
+    }
+
+    @Override
+    public void glGenBuffers(final int n, @NonNull final int[] buffers, final int offset) {
+        GLES20.glGenBuffers(n, buffers, offset);
+    }
+
+    @Override
+    public void glGenFramebuffers(final int n, @NonNull final int[] framebuffers,
+                                  final int offset) {
+        GLES20.glGenFramebuffers(n, framebuffers, offset);
+    }
+
+    @Override
+    public void glGenerateMipmap(final int target) {
+        GLES20.glGenerateMipmap(target);
+    }
+
+    @Override
+    public void glGenTextures(final int n, @NonNull final int[] textures, final int offset) {
+        GLES20.glGenTextures(n, textures, offset);
+    }
+
+    @Override
+    public int glGetAttribLocation(final int program, @NonNull final String name) {
+        return GLES20.glGetAttribLocation(program, name);
+    }
+
+    @Override
+    public void glGetIntegerv(final int pname, @NonNull final int[] params, final int offset) {
+        GLES20.glGetIntegerv(pname, params, offset);
+    }
+
+    @Override
+    public void glGetProgramiv(final int program, final int pname, @NonNull final int[] params,
+                               final int offset) {
+        GLES20.glGetProgramiv(program, pname, params, offset);
+    }
+
+    @Override
+    @Nullable
+    public String glGetShaderInfoLog(final int shader) {
+        return GLES20.glGetShaderInfoLog(shader);
+    }
+
+    @Override
+    public void glGetShaderiv(final int shader, final int pname, @NonNull final int[] params,
+                              final int offset) {
+        GLES20.glGetShaderiv(shader, pname, params, offset);
+    }
+
+    @Override
+    @Nullable
+    public String glGetString(final int name) {
+        return GLES20.glGetString(name);
+    }
+
+    @Override
+    public int glGetUniformLocation(final int program, @NonNull final String name) {
+        return GLES20.glGetUniformLocation(program, name);
+    }
+
+    @Override
+    public void glLinkProgram(final int program) {
+        GLES20.glLinkProgram(program);
+    }
+
+    @Override
+    @TargetApi(18)
+    @Nullable
+    public Buffer glMapBufferRange(final int target, final int offset, final int length,
+                                   final int access) {
+        return GLES30.glMapBufferRange(target, offset, length, access);
+    }
+
+    @Override
+    public void glReadPixels(final int x, final int y, final int width, final int height,
+                             final int format, final int type, @NonNull final Buffer pixels) {
+        GLES20.glReadPixels(x, y, width, height, format, type, pixels);
+    }
+
+    @Override
+    @TargetApi(18)
+    public void glReadPixels(final int x, final int y, final int width, final int height,
+                             final int format, final int type, final int offset) {
+        GLES30.glReadPixels(x, y, width, height, format, type, offset);
+    }
+
+    @Override
+    public void glScissor(final int x, final int y, final int width, final int height) {
+        GLES20.glScissor(x, y, width, height);
+    }
+
+    @Override
+    public void glShaderSource(final int shader, @NonNull final String source) {
+        GLES20.glShaderSource(shader, source);
+    }
+
+    @Override
+    public void glTexImage2D(final int target, final int level, final int internalformat,
+                             final int width, final int height, final int border, final int format,
+                             final int type, @Nullable final Buffer pixels) {
+        GLES20.glTexImage2D(target, level, internalformat, width, height, border, format, type, pixels);
+    }
+
+    @Override
+    public void glTexParameterf(final int target, final int pname, final float param) {
+        GLES20.glTexParameterf(target, pname, param);
+    }
+
+    @Override
+    public void glTexParameteri(final int target, final int pname, final int param) {
+        GLES20.glTexParameteri(target, pname, param);
+    }
+
+    @Override
+    public void glTexSubImage2D(final int target, final int level, final int xoffset,
+                                final int yoffset, final int width, final int height,
+                                final int format, final int type, @NonNull final Buffer pixels) {
+        GLES20.glTexSubImage2D(target, level, xoffset, yoffset, width, height, format, type, pixels);
+    }
+
+    @Override
+    @TargetApi(18)
+    public boolean glUnmapBuffer(final int target) {
+        return GLES30.glUnmapBuffer(target);
+    }
+
+    @Override
+    public void glUniform1f(final int location, final float x) {
+        GLES20.glUniform1f(location, x);
+    }
+
+    @Override
+    public void glUniform1fv(final int location, final int count, @NonNull final FloatBuffer v) {
+        GLES20.glUniform1fv(location, count, v);
+    }
+
+    @Override
+    public void glUniform1i(final int location, final int x) {
+        GLES20.glUniform1i(location, x);
+    }
+
+    @Override
+    public void glUniform2fv(final int location, final int count, @NonNull final FloatBuffer v) {
+        GLES20.glUniform2fv(location, count, v);
+    }
+
+    @Override
+    public void glUniform2fv(final int location, final int count, @NonNull final float[] v,
+                             final int offset) {
+        GLES20.glUniform2fv(location, count, v, offset);
+    }
+
+    @Override
+    public void glUniform3fv(final int location, final int count, @NonNull final FloatBuffer v) {
+        GLES20.glUniform3fv(location, count, v);
+    }
+
+    @Override
+    public void glUniform4fv(final int location, final int count, @NonNull final FloatBuffer v) {
+        GLES20.glUniform4fv(location, count, v);
+    }
+
+    @Override
+    public void glUniformMatrix3fv(final int location, final int count, final boolean transpose,
+                                   @NonNull final float[] value, final int offset) {
+        GLES20.glUniformMatrix3fv(location, count, transpose, value, offset);
+    }
+
+    @Override
+    public void glUniformMatrix4fv(final int location, final int count, final boolean transpose,
+                                   @NonNull final float[] value, final int offset) {
+        GLES20.glUniformMatrix4fv(location, count, transpose, value, offset);
+    }
+
+    @Override
+    public void glUseProgram(final int program) {
+        GLES20.glUseProgram(program);
+    }
+
+    @Override
+    public void glVertexAttribPointer(final int index, final int size, final int type,
+                                      final boolean normalized, final int stride,
+                                      @NonNull final Buffer ptr) {
+        GLES20.glVertexAttribPointer(index, size, type, normalized, stride, ptr);
+    }
+
+    @Override
+    public void glVertexAttribPointer(final int index, final int size, final int type,
+                                      final boolean normalized, final int stride,
+                                      final int offset) {
+        GLES20.glVertexAttribPointer(index, size, type, normalized, stride, offset);
+    }
+
+    @Override
+    public void glViewport(final int x, final int y, final int width, final int height) {
+        GLES20.glViewport(x, y, width, height);
+    }
+
+    @Override
+    public void texImage2D(final int target, final int level, @NonNull final Bitmap bitmap,
+                           final int border) {
+        GLUtils.texImage2D(target, level, bitmap, border);
+    }
+
+    @Override
+    public void texSubImage2D(final int target, final int level, final int xoffset,
+                              final int yoffset, @NonNull final Bitmap bitmap) {
+        GLUtils.texSubImage2D(target, level, xoffset, yoffset, bitmap);
+    }
+}
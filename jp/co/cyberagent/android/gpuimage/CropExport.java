@@ -0,0 +1,328 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.PointF;
+import android.graphics.Rect;
+import android.opengl.GLES20;
+import android.opengl.GLSurfaceView;
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+import javax.microedition.khronos.egl.EGLConfig;
+import javax.microedition.khronos.opengles.GL10;
+
+import jp.co.cyberagent.android.gpuimage.util.PixelUtils;
+import jp.co.cyberagent.android.gpuimage.util.TextureClipUtil;
+import jp.co.cyberagent.android.gpuimage.util.Tracer;
+
+/**
+ * Renders the crop of a {@link SourceImage} through a filter at the resolution of the
+ * original. The output is rendered tile by tile, and for each tile only the part of the
+ * original under it is region decoded and uploaded, so neither the whole original nor a
+ * texture of the output size is ever held.
+ * <br>
+ * Tiles are drawn with a margin that is cut off again, so filters sampling neighbouring
+ * pixels see image content rather than a tile edge. Filters whose reach exceeds the margin
+ * may show seams. Where the crop reaches past the original the tiles are clipped to it, as
+ * the preview is, and show the background color. Creates its own offscreen context on the calling thread and initializes the
+ * filter in it, so the filter must not be initialized in another context meanwhile.
+ */
+final class CropExport {
+    // output pixels per tile side; with margin and a rotated crop the decoded region stays
+    // below 2048 pixels, the texture size virtually all devices support
+    private static final int TILE_SIZE = 1024;
+    private static final int TILE_MARGIN = 16;
+
+    private final SourceImage mSource;
+    private final GPUImageFilter mFilter;
+    // crop corners in pixels of the original as stored
+    private final float[] mTopLeft = new float[2];
+    private final float[] mTopRight = new float[2];
+    private final float[] mBottomLeft = new float[2];
+    private final int mWidth;
+    private final int mHeight;
+    private final float[] mBackground;
+
+    // only touched while rendering
+    private final FloatBuffer mCubeBuffer;
+    private final FloatBuffer mTextureBuffer;
+    private final float[] mCorners = new float[8];
+    private final float[] mTileTransform = new float[9];
+    private final float[] mClipped = new float[TextureClipUtil.MAX_VERTICES * 2];
+    private final float[] mVertices = new float[TextureClipUtil.MAX_VERTICES * 2];
+    private GLBackend mGL;
+    private GLStateCache mGLState;
+    private IntBuffer mStrip;
+    private int[] mPixels;
+    private int mTileWidth;
+    private int mTileHeight;
+
+    /**
+     * @param topLeft    top left corner of the crop in texture coordinates of the preview
+     * @param topRight   top right corner
+     * @param bottomLeft bottom left corner, the bottom right one follows from the others
+     * @param background red, green and blue value shown where the crop is outside the original
+     */
+    CropExport(@NonNull final SourceImage source, @NonNull final GPUImageFilter filter,
+               @NonNull final PointF topLeft, @NonNull final PointF topRight,
+               @NonNull final PointF bottomLeft, @NonNull final float[] background) {
+        mSource = source;
+        mFilter = filter;
+        mBackground = background;
+        source.textureToSource(topLeft.x, topLeft.y, mTopLeft);
+        source.textureToSource(topRight.x, topRight.y, mTopRight);
+        source.textureToSource(bottomLeft.x, bottomLeft.y, mBottomLeft);
+        // one output pixel per pixel of the original along the crop edges
+        mWidth = Math.max(1, Math.round(distance(mTopLeft, mTopRight)));
+        mHeight = Math.max(1, Math.round(distance(mTopLeft, mBottomLeft)));
+        mCubeBuffer = ByteBuffer.allocateDirect(TextureClipUtil.MAX_VERTICES * 2 * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        mTextureBuffer = ByteBuffer.allocateDirect(TextureClipUtil.MAX_VERTICES * 2 * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+    }
+
+    int getWidth() {
+        return mWidth;
+    }
+
+    int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Renders the crop. Must not be called on a thread with a current GL context.
+     *
+     * @return the filtered crop, getWidth() x getHeight()
+     * @throws IOException if the original cannot be decoded
+     */
+    @NonNull
+    Bitmap render() throws IOException {
+        GPUImageMemoryManager.getInstance().makeRoom((long) mWidth * mHeight * 4);
+        BitmapRegionDecoder decoder = mSource.newDecoder();
+        Bitmap output = null;
+        PixelBuffer buffer = null;
+        boolean rendered = false;
+        try {
+            output = Bitmap.createBitmap(mWidth, mHeight, Bitmap.Config.ARGB_8888);
+            int bufferSize = TILE_SIZE + 2 * TILE_MARGIN;
+            buffer = new PixelBuffer(bufferSize, bufferSize);
+            buffer.setRenderer(new TileContext());
+            mStrip = IntBuffer.allocate(TILE_SIZE * TILE_SIZE);
+            mPixels = new int[TILE_SIZE * TILE_SIZE];
+            Canvas canvas = new Canvas(output);
+            for (int top = 0; top < mHeight; top += TILE_SIZE) {
+                for (int left = 0; left < mWidth; left += TILE_SIZE) {
+                    renderTile(decoder, canvas, left, top, Math.min(TILE_SIZE, mWidth - left),
+                               Math.min(TILE_SIZE, mHeight - top));
+                }
+            }
+            rendered = true;
+        } finally {
+            mFilter.destroy();
+            if (buffer != null) {
+                buffer.destroy();
+            }
+            decoder.recycle();
+            mStrip = null;
+            mPixels = null;
+            if (!rendered && output != null) {
+                output.recycle();
+            }
+        }
+        return output;
+    }
+
+    private void renderTile(@NonNull final BitmapRegionDecoder decoder,
+                            @NonNull final Canvas canvas, final int left, final int top,
+                            final int width, final int height) throws IOException {
+        Tracer.beginSection("renderTile");
+        int paddedWidth = width + 2 * TILE_MARGIN;
+        int paddedHeight = height + 2 * TILE_MARGIN;
+        float x0 = left - TILE_MARGIN;
+        float y0 = top - TILE_MARGIN;
+        float x1 = left + width + TILE_MARGIN;
+        float y1 = top + height + TILE_MARGIN;
+        // in the vertex order of the cube: bottom left, bottom right, top left, top right
+        float[] corners = mCorners;
+        outputToSource(x0, y1, corners, 0);
+        outputToSource(x1, y1, corners, 2);
+        outputToSource(x0, y0, corners, 4);
+        outputToSource(x1, y0, corners, 6);
+        // tile coordinates to normalized coordinates of the original, clipped like the preview
+        setTileTransform(corners, 0, 0, mSource.getWidth(), mSource.getHeight());
+        int vertexCount = TextureClipUtil.clipOutput(mTileTransform, mClipped);
+        Rect region = boundsOf(corners);
+        boolean visible = vertexCount > 0
+                && region.intersect(0, 0, mSource.getWidth(), mSource.getHeight());
+
+        if (paddedWidth != mTileWidth || paddedHeight != mTileHeight) {
+            mTileWidth = paddedWidth;
+            mTileHeight = paddedHeight;
+            mGL.glViewport(0, 0, paddedWidth, paddedHeight);
+            mGLState.useProgram(mFilter.getProgram());
+            mFilter.onOutputSizeChanged(paddedWidth, paddedHeight);
+        }
+        mGLState.bindFramebuffer(0);
+        mGL.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+        if (visible && !drawRegion(decoder, region, vertexCount)) {
+            Tracer.endSection();
+            throw new IOException("Cannot decode " + region);
+        }
+
+        // only the inside of the margin
+        mStrip.clear();
+        mGL.glReadPixels(TILE_MARGIN, TILE_MARGIN, width, height, GLES20.GL_RGBA,
+                         GLES20.GL_UNSIGNED_BYTE, mStrip);
+        PixelUtils.flipStrip(mStrip.array(), mPixels, width, height, 0, height);
+        Bitmap tile = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        tile.copyPixelsFromBuffer(IntBuffer.wrap(mPixels, 0, width * height));
+        canvas.drawBitmap(tile, left, top, null);
+        tile.recycle();
+        Tracer.endSection();
+    }
+
+    /**
+     * Draws the clipped tile from the decoded region of the original under it.
+     *
+     * @return false if the region cannot be decoded
+     */
+    private boolean drawRegion(@NonNull final BitmapRegionDecoder decoder,
+                               @NonNull final Rect region, final int vertexCount) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        Tracer.beginSection("decodeRegion");
+        Bitmap decoded = decoder.decodeRegion(region, options);
+        Tracer.endSection();
+        if (decoded == null) {
+            return false;
+        }
+        int texture = OpenGlUtils.loadTexture(decoded, OpenGlUtils.NO_TEXTURE, true);
+        int length = vertexCount * 2;
+        TextureClipUtil.toPositions(mClipped, mVertices, vertexCount);
+        mCubeBuffer.clear();
+        mCubeBuffer.put(mVertices, 0, length).flip();
+        // same clipped vertices, now in texture coordinates of the region
+        setTileTransform(mCorners, region.left, region.top, region.width(), region.height());
+        TextureClipUtil.transform(mTileTransform, mClipped, mVertices, vertexCount);
+        mTextureBuffer.clear();
+        mTextureBuffer.put(mVertices, 0, length).flip();
+
+        if (mFilter.hasTextureTransform()) {
+            mFilter.setTextureTransform(GPUImageFilter.IDENTITY_TEXTURE_TRANSFORM);
+        }
+        mFilter.onDraw(texture, mCubeBuffer, mTextureBuffer);
+        mGLState.deleteTextures(1, new int[]{texture}, 0);
+        return true;
+    }
+
+    /**
+     * Sets the column-major transform from tile texture coordinates, top left origin, to the
+     * given rectangle of the original normalized to [0,1].
+     *
+     * @param corners tile corners in pixels of the original, in the vertex order of the cube
+     */
+    private void setTileTransform(@NonNull final float[] corners, final float left,
+                                  final float top, final float width, final float height) {
+        float[] t = mTileTransform;
+        t[0] = (corners[6] - corners[4]) / width;
+        t[1] = (corners[7] - corners[5]) / height;
+        t[2] = 0;
+        t[3] = (corners[0] - corners[4]) / width;
+        t[4] = (corners[1] - corners[5]) / height;
+        t[5] = 0;
+        t[6] = (corners[4] - left) / width;
+        t[7] = (corners[5] - top) / height;
+        t[8] = 1;
+    }
+
+    /**
+     * Maps output pixel coordinates to pixel coordinates of the original.
+     */
+    private void outputToSource(final float x, final float y, @NonNull final float[] out,
+                                final int offset) {
+        float fractionX = x / mWidth;
+        float fractionY = y / mHeight;
+        out[offset] = mTopLeft[0] + fractionX * (mTopRight[0] - mTopLeft[0])
+                + fractionY * (mBottomLeft[0] - mTopLeft[0]);
+        out[offset + 1] = mTopLeft[1] + fractionX * (mTopRight[1] - mTopLeft[1])
+                + fractionY * (mBottomLeft[1] - mTopLeft[1]);
+    }
+
+    /**
+     * Gets the pixels covering the points, one wider on each side for linear filtering.
+     */
+    @NonNull
+    private static Rect boundsOf(@NonNull final float[] points) {
+        float left = points[0];
+        float top = points[1];
+        float right = points[0];
+        float bottom = points[1];
+        for (int i = 2; i < points.length; i += 2) {
+            left = Math.min(left, points[i]);
+            top = Math.min(top, points[i + 1]);
+            right = Math.max(right, points[i]);
+            bottom = Math.max(bottom, points[i + 1]);
+        }
+        return new Rect((int) Math.floor(left) - 1, (int) Math.floor(top) - 1,
+                        (int) Math.ceil(right) + 1, (int) Math.ceil(bottom) + 1);
+    }
+
+    private static float distance(@NonNull final float[] a, @NonNull final float[] b) {
+        float dx = b[0] - a[0];
+        float dy = b[1] - a[1];
+        return (float) Math.sqrt(dx * dx + dy * dy);
+    }
+
+    /**
+     * Sets up the offscreen context; tiles are drawn directly rather than per frame.
+     */
+    private class TileContext implements GLSurfaceView.Renderer {
+        @Override
+        public void onSurfaceCreated(@NonNull final GL10 unused, @NonNull final EGLConfig config) {
+            GLContextResources resources = GLContextResources.current();
+            mGL = resources.getBackend();
+            mGLState = resources.getStateCache();
+            mGL.glClearColor(mBackground[0], mBackground[1], mBackground[2], 1);
+            mGL.glDisable(GLES20.GL_DEPTH_TEST);
+            mFilter.init();
+        }
+
+        @Override
+        public void onSurfaceChanged(@NonNull final GL10 unused, final int width,
+                                     final int height) {
+            mTileWidth = 0;
+            mTileHeight = 0;
+        }
+
+        @Override
+        public void onDrawFrame(@NonNull final GL10 unused) {
+            // PixelBuffer draws when destroyed, there is nothing to draw then
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.graphics.Bitmap;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.nio.Buffer;
+import java.nio.FloatBuffer;
+
+/**
+ * The GLES 2.0 calls the library makes. The renderer, filters, filter groups and OpenGlUtils
+ * call through the backend returned by {@link OpenGlUtils#getBackend()} instead of GLES20, so
+ * a {@link RecordingGLBackend} can stand in for a real context, e.g. to run the renderer
+ * headless in tests. Methods mirror android.opengl.GLES20 and GLUtils.
+ */
+public interface GLBackend {
+    /**
+     * Gets an identity for the context current on the calling thread, used to key per-context
+     * resources.
+     *
+     * @return context identity, never null; the EGL no-context object if none is current
+     */
+    @NonNull
+    Object getCurrentContext();
+
+    void glActiveTexture(int texture);
+
+    void glAttachShader(int program, int shader);
+
+    void glBindBuffer(int target, int buffer);
+
+    void glBindFramebuffer(int target, int framebuffer);
+
+    void glBindTexture(int target, int texture);
+
+    void glBufferData(int target, int size, @Nullable Buffer data, int usage);
+
+    int glCheckFramebufferStatus(int target);
+
+    void glClear(int mask);
+
+    void glClearColor(float red, float green, float blue, float alpha);
+
+    void glCompileShader(int shader);
+
+    int glCreateProgram();
+
+    int glCreateShader(int type);
+
+    void glDeleteBuffers(int n, @NonNull int[] buffers, int offset);
+
+    void glDeleteFramebuffers(int n, @NonNull int[] framebuffers, int offset);
+
+    void glDeleteProgram(int program);
+
+    void glDeleteShader(int shader);
+
+    void glDeleteTextures(int n, @NonNull int[] textures, int offset);
+
+    void glDisable(int cap);
+
+    void glDisableVertexAttribArray(int index);
+
+    void glDrawArrays(int mode, int first, int count);
+
+    void glEnable(int cap);
+
+    void glEnableVertexAttribArray(int index);
+
+    void glFramebufferTexture2D(int target, int attachment, int textarget, int texture, int level);
+
+    void glGenBuffers(int n, @NonNull int[] buffers, int offset);
+
+    void glGenFramebuffers(int n, @NonNull int[] framebuffers, int offset);
+
+    void glGenerateMipmap(int target);
+
+    void glGenTextures(int n, @NonNull int[] textures, int offset);
+
+    int glGetAttribLocation(int program, @NonNull String name);
+
+    void glGetIntegerv(int pname, @NonNull int[] params, int offset);
+
+    void glGetProgramiv(int program, int pname, @NonNull int[] params, int offset);
+
+    @Nullable
+    String glGetShaderInfoLog(int shader);
+
+    void glGetShaderiv(int shader, int pname, @NonNull int[] params, int offset);
+
+    @Nullable
+    String glGetString(int name);
+
+    int glGetUniformLocation(int program, @NonNull String name);
+
+    void glLinkProgram(int program);
+
+    /**
+     * Maps a range of the bound buffer like GLES30.glMapBufferRange. GLES 3 only.
+     */
+    @Nullable
+    Buffer glMapBufferRange(int target, int offset, int length, int access);
+
+    void glReadPixels(int x, int y, int width, int height, int format, int type,
+                      @NonNull Buffer pixels);
+
+    /**
+     * Reads pixels into the bound pixel pack buffer like GLES30.glReadPixels. GLES 3 only.
+     */
+    void glReadPixels(int x, int y, int width, int height, int format, int type, int offset);
+
+    void glScissor(int x, int y, int width, int height);
+
+    void glShaderSource(int shader, @NonNull String source);
+
+    void glTexImage2D(int target, int level, int internalformat, int width, int height, int border,
+                      int format, int type, @Nullable Buffer pixels);
+
+    void glTexParameterf(int target, int pname, float param);
+
+    void glTexParameteri(int target, int pname, int param);
+
+    void glTexSubImage2D(int target, int level, int xoffset, int yoffset, int width, int height,
+                         int format, int type, @NonNull Buffer pixels);
+
+    /**
+     * Unmaps the bound buffer like GLES30.glUnmapBuffer. GLES 3 only.
+     */
+    boolean glUnmapBuffer(int target);
+
+    void glUniform1f(int location, float x);
+
+    void glUniform1fv(int location, int count, @NonNull FloatBuffer v);
+
+    void glUniform1i(int location, int x);
+
+    void glUniform2fv(int location, int count, @NonNull FloatBuffer v);
+
+    void glUniform2fv(int location, int count, @NonNull float[] v, int offset);
+
+    void glUniform3fv(int location, int count, @NonNull FloatBuffer v);
+
+    void glUniform4fv(int location, int count, @NonNull FloatBuffer v);
+
+    void glUniformMatrix3fv(int location, int count, boolean transpose, @NonNull float[] value,
+                            int offset);
+
+    void glUniformMatrix4fv(int location, int count, boolean transpose, @NonNull float[] value,
+                            int offset);
+
+    void glUseProgram(int program);
+
+    void glVertexAttribPointer(int index, int size, int type, boolean normalized, int stride,
+                               @NonNull Buffer ptr);
+
+    void glVertexAttribPointer(int index, int size, int type, boolean normalized, int stride,
+                               int offset);
+
+    void glViewport(int x, int y, int width, int height);
+
+    /**
+     * Uploads a bitmap like GLUtils.texImage2D.
+     */
+    void texImage2D(int target, int level, @NonNull Bitmap bitmap, int border);
+
+    /**
+     * Updates a texture from a bitmap like GLUtils.texSubImage2D.
+     */
+    void texSubImage2D(int target, int level, int xoffset, int yoffset, @NonNull Bitmap bitmap);
+}
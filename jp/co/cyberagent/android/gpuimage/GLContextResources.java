@@ -0,0 +1,336 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.opengl.GLES20;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import jp.co.cyberagent.android.gpuimage.util.TextureRotationUtil;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import static jp.co.cyberagent.android.gpuimage.GPUImageRenderer.CUBE;
+
+/**
+ * GL objects shared by all filters rendering into the same EGL context. Must only be used on
+ * the thread the context is current on.
+ */
+public class GLContextResources {
+    private static final int TEXTURE_BUFFER_COUNT = Rotation.values().length * 4;
+
+    private static final Map<Object, GLContextResources> sResources =
+            new HashMap<Object, GLContextResources>();
+
+    private final GLBackend mGL;
+    private final GLStateCache mStateCache;
+    private int mCubeBuffer = OpenGlUtils.NO_TEXTURE;
+    private final int[] mTextureBuffers = new int[TEXTURE_BUFFER_COUNT];
+    private GPUTimer mGPUTimer;
+    private RendererStats mStats;
+    private boolean mGPUTimerChecked;
+    private final Map<Integer, GPUImageMemoryManager.Allocation> mTextureAllocations =
+            new HashMap<Integer, GPUImageMemoryManager.Allocation>();
+    private int mNpotMipmaps = -1;
+    private int mPixelPackBuffers = -1;
+    private int mMaxTextureSize;
+
+    private GLContextResources(@NonNull final GLBackend gl) {
+        mGL = gl;
+        mStateCache = new GLStateCache(gl, this);
+    }
+
+    /**
+     * Retrieves the resources of the EGL context current on the calling thread.
+     *
+     * @return resources of the current context
+     */
+    @NonNull
+    public static GLContextResources current() {
+        GLBackend gl = OpenGlUtils.getBackend();
+        Object context = gl.getCurrentContext();
+        synchronized (sResources) {
+            GLContextResources resources = sResources.get(context);
+            if (resources == null) {
+                GLResourceRegistry registry = GLResourceRegistry.getInstance();
+                if (registry.isEnabled()) {
+                    gl = new TrackingGLBackend(gl, context, registry);
+                }
+                resources = new GLContextResources(gl);
+                sResources.put(context, resources);
+            }
+            return resources;
+        }
+    }
+
+    /**
+     * Drops the resources of the current context without deleting GL objects, e.g. because the
+     * context was just (re)created and any previous object names are meaningless.
+     */
+    public static void forgetCurrent() {
+        forget(OpenGlUtils.getBackend().getCurrentContext());
+    }
+
+    /**
+     * Drops the resources of a context that was lost without deleting GL objects, releasing
+     * the memory reported for them.
+     *
+     * @param context key of the context, as returned by {@link GLBackend#getCurrentContext()}
+     */
+    public static void forget(@NonNull final Object context) {
+        GLContextResources resources;
+        synchronized (sResources) {
+            resources = sResources.remove(context);
+        }
+        if (resources != null) {
+            // the objects went away with the old context
+            resources.releaseAllocations();
+        }
+        GLResourceRegistry.getInstance().onContextLost(context);
+    }
+
+    /**
+     * Deletes the GL objects of the current context and drops its resources. Call this before
+     * destroying a context.
+     */
+    public static void releaseCurrent() {
+        Object context = OpenGlUtils.getBackend().getCurrentContext();
+        GLContextResources resources;
+        synchronized (sResources) {
+            resources = sResources.remove(context);
+        }
+        if (resources != null) {
+            resources.release();
+        }
+        // whatever the owners did not delete dies with the context
+        GLResourceRegistry.getInstance().onContextReleased(context);
+    }
+
+    /**
+     * Gets the backend all GL calls for this context go through.
+     *
+     * @return backend
+     */
+    @NonNull
+    public GLBackend getBackend() {
+        return mGL;
+    }
+
+    /**
+     * Gets the binding state cache of this context.
+     *
+     * @return state cache
+     */
+    @NonNull
+    public GLStateCache getStateCache() {
+        return mStateCache;
+    }
+
+    /**
+     * Gets the vertex buffer object holding {@link GPUImageRenderer#CUBE}.
+     *
+     * @return buffer name
+     */
+    public int getCubeBuffer() {
+        if (mCubeBuffer == OpenGlUtils.NO_TEXTURE) {
+            createVertexBuffers();
+        }
+        return mCubeBuffer;
+    }
+
+    /**
+     * Gets the vertex buffer object holding the texture coordinates returned by
+     * {@link TextureRotationUtil#getRotation(Rotation, boolean, boolean)}.
+     *
+     * @return buffer name
+     */
+    public int getTextureBuffer(@NonNull final Rotation rotation,
+                                final boolean flipHorizontal,
+                                final boolean flipVertical) {
+        if (mCubeBuffer == OpenGlUtils.NO_TEXTURE) {
+            createVertexBuffers();
+        }
+        return mTextureBuffers[rotation.ordinal() * 4 + (flipHorizontal ? 2 : 0) + (flipVertical ? 1 : 0)];
+    }
+
+    /**
+     * Sets the statistics that uploads and readbacks in this context are recorded into.
+     *
+     * @param stats statistics of the renderer drawing into this context, or null
+     */
+    void setStats(@Nullable final RendererStats stats) {
+        mStats = stats;
+    }
+
+    /**
+     * Records a texture upload of the given size.
+     */
+    public void recordUpload(final long bytes) {
+        if (mStats != null) {
+            mStats.recordUpload(bytes);
+        }
+    }
+
+    /**
+     * Records a pixel readback of the given size.
+     */
+    public void recordReadback(final long bytes) {
+        if (mStats != null) {
+            mStats.recordReadback(bytes);
+        }
+    }
+
+    /**
+     * Reports the memory of a texture to the {@link GPUImageMemoryManager} until it is deleted
+     * through {@link GLStateCache#deleteTextures(int, int[], int)} or the context goes away.
+     * Tracking a texture again replaces its previous size.
+     *
+     * @param texture texture name
+     * @param kind    what the texture is used for
+     * @param bytes   size of the texture including mipmaps
+     */
+    public void trackTexture(final int texture, @NonNull final GPUImageMemoryManager.Kind kind,
+                             final long bytes) {
+        GPUImageMemoryManager.Allocation previous = mTextureAllocations.put(
+                texture, GPUImageMemoryManager.getInstance().track(kind, bytes));
+        if (previous != null) {
+            previous.release();
+        }
+    }
+
+    void onTexturesDeleted(final int count, @NonNull final int[] textures, final int offset) {
+        if (mTextureAllocations.isEmpty()) {
+            return;
+        }
+        for (int i = offset; i < offset + count; i++) {
+            GPUImageMemoryManager.Allocation allocation = mTextureAllocations.remove(textures[i]);
+            if (allocation != null) {
+                allocation.release();
+            }
+        }
+    }
+
+    private void releaseAllocations() {
+        for (GPUImageMemoryManager.Allocation allocation : mTextureAllocations.values()) {
+            allocation.release();
+        }
+        mTextureAllocations.clear();
+    }
+
+    /**
+     * Whether mipmaps can be generated for textures whose sides are not powers of two, which
+     * needs GLES 3 or GL_OES_texture_npot.
+     *
+     * @return true if glGenerateMipmap works on any texture size
+     */
+    public boolean supportsNpotMipmaps() {
+        if (mNpotMipmaps == -1) {
+            String version = mGL.glGetString(GLES20.GL_VERSION);
+            String extensions = mGL.glGetString(GLES20.GL_EXTENSIONS);
+            boolean supported = (version != null && version.startsWith("OpenGL ES 3"))
+                    || (extensions != null && extensions.contains("GL_OES_texture_npot"));
+            mNpotMipmaps = supported ? 1 : 0;
+        }
+        return mNpotMipmaps == 1;
+    }
+
+    /**
+     * Whether glReadPixels can write into pixel pack buffers, which needs GLES 3.
+     *
+     * @return true if reads can complete asynchronously through a buffer
+     */
+    public boolean supportsPixelPackBuffers() {
+        if (mPixelPackBuffers == -1) {
+            String version = mGL.glGetString(GLES20.GL_VERSION);
+            mPixelPackBuffers = version != null && version.startsWith("OpenGL ES 3") ? 1 : 0;
+        }
+        return mPixelPackBuffers == 1;
+    }
+
+    /**
+     * Gets the largest texture side this context supports.
+     *
+     * @return GL_MAX_TEXTURE_SIZE
+     */
+    public int getMaxTextureSize() {
+        if (mMaxTextureSize == 0) {
+            int[] size = new int[1];
+            mGL.glGetIntegerv(GLES20.GL_MAX_TEXTURE_SIZE, size, 0);
+            // GLES 2.0 guarantees at least 64, a broken query must not disable textures
+            mMaxTextureSize = Math.max(size[0], 64);
+        }
+        return mMaxTextureSize;
+    }
+
+    /**
+     * Gets the GPU timer of this context, created on first use.
+     *
+     * @return timer, or null if the context does not support timer queries
+     */
+    @Nullable
+    GPUTimer getGPUTimer() {
+        if (!mGPUTimerChecked) {
+            mGPUTimer = GPUTimer.create(mGL);
+            mGPUTimerChecked = true;
+        }
+        return mGPUTimer;
+    }
+
+    private void createVertexBuffers() {
+        int[] buffers = new int[TEXTURE_BUFFER_COUNT + 1];
+        mGL.glGenBuffers(buffers.length, buffers, 0);
+        FloatBuffer data = ByteBuffer.allocateDirect(CUBE.length * 4)
+                                     .order(ByteOrder.nativeOrder())
+                                     .asFloatBuffer();
+        mCubeBuffer = buffers[0];
+        uploadVertexBuffer(mCubeBuffer, data, CUBE);
+        for (Rotation rotation : Rotation.values()) {
+            for (int flip = 0; flip < 4; flip++) {
+                int index = rotation.ordinal() * 4 + flip;
+                mTextureBuffers[index] = buffers[index + 1];
+                uploadVertexBuffer(mTextureBuffers[index], data,
+                                   TextureRotationUtil.getRotation(rotation, (flip & 2) != 0, (flip & 1) != 0));
+            }
+        }
+    }
+
+    private void uploadVertexBuffer(final int buffer, @NonNull final FloatBuffer data,
+                                    @NonNull final float[] values) {
+        data.clear();
+        data.put(values).position(0);
+        mStateCache.bindArrayBuffer(buffer);
+        mGL.glBufferData(GLES20.GL_ARRAY_BUFFER, values.length * 4, data, GLES20.GL_STATIC_DRAW);
+    }
+
+    private void release() {
+        if (mCubeBuffer != OpenGlUtils.NO_TEXTURE) {
+            int[] buffers = new int[TEXTURE_BUFFER_COUNT + 1];
+            buffers[0] = mCubeBuffer;
+            System.arraycopy(mTextureBuffers, 0, buffers, 1, TEXTURE_BUFFER_COUNT);
+            mStateCache.deleteBuffers(buffers.length, buffers, 0);
+            mCubeBuffer = OpenGlUtils.NO_TEXTURE;
+        }
+        if (mGPUTimer != null) {
+            mGPUTimer.release();
+            mGPUTimer = null;
+        }
+        releaseAllocations();
+    }
+}
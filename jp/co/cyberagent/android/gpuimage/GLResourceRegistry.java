@@ -0,0 +1,350 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Debugging aid tracking every program, shader, texture, framebuffer and buffer the library
+ * creates, with its owner and optionally its creation site. Objects still alive after their
+ * owning filter was destroyed, or when their context is released, are reported as leaks to
+ * the {@link LeakListener}, which logs them by default.
+ * <br>
+ * Disabled by default. Enable it with {@link #setEnabled(boolean)} before any renderer or
+ * PixelBuffer creates its context; contexts created while enabled route their GL calls
+ * through a tracking wrapper of the backend. Thread safe.
+ */
+public class GLResourceRegistry {
+    private static final String TAG = "GLResourceRegistry";
+
+    private static final GLResourceRegistry sInstance = new GLResourceRegistry();
+
+    public enum Type { PROGRAM, SHADER, TEXTURE, FRAMEBUFFER, BUFFER }
+
+    /**
+     * Receives leaked objects.
+     */
+    public interface LeakListener {
+        /**
+         * @param resource the leaked object
+         * @param reason   what should have deleted it
+         */
+        void onLeak(@NonNull Resource resource, @NonNull String reason);
+    }
+
+    /**
+     * A live GL object.
+     */
+    public static final class Resource {
+        private final Object mContext;
+        private final Type mType;
+        private final int mName;
+        private final WeakReference<Object> mOwner;
+        private final String mOwnerName;
+        private final Throwable mCreationSite;
+        private long mBytes;
+        private boolean mMipmapped;
+
+        Resource(@NonNull final Object context, @NonNull final Type type, final int name,
+                 @Nullable final Object owner, @Nullable final Throwable creationSite) {
+            mContext = context;
+            mType = type;
+            mName = name;
+            mOwner = owner != null ? new WeakReference<Object>(owner) : null;
+            mOwnerName = owner != null
+                    ? owner.getClass().getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(owner))
+                    : "context";
+            mCreationSite = creationSite;
+        }
+
+        @NonNull
+        public Type getType() {
+            return mType;
+        }
+
+        public int getName() {
+            return mName;
+        }
+
+        /**
+         * Gets a description of the owner, its class and identity hash, or "context" for
+         * objects created outside of any owner.
+         */
+        @NonNull
+        public String getOwnerName() {
+            return mOwnerName;
+        }
+
+        /**
+         * Gets the stack at creation, if {@link #setCaptureCreationSites(boolean)} was on.
+         */
+        @Nullable
+        public Throwable getCreationSite() {
+            return mCreationSite;
+        }
+
+        /**
+         * Gets the size of the texture or buffer storage, including mipmaps.
+         */
+        public long getBytes() {
+            return mMipmapped ? mBytes + mBytes / 3 : mBytes;
+        }
+
+        @Override
+        public String toString() {
+            return mType + " " + mName + " (" + getBytes() + " bytes) owned by " + mOwnerName;
+        }
+    }
+
+    private static final LeakListener LOG_LEAKS = new LeakListener() {
+        @Override
+        public void onLeak(@NonNull final Resource resource, @NonNull final String reason) {
+            Log.w(TAG, "Leaked " + resource + ": " + reason, resource.getCreationSite());
+        }
+    };
+
+    private final Map<Object, Map<Long, Resource>> mResources = new HashMap<Object, Map<Long, Resource>>();
+    private final ThreadLocal<ArrayList<Object>> mOwners = new ThreadLocal<ArrayList<Object>>() {
+        @Override
+        protected ArrayList<Object> initialValue() {
+            return new ArrayList<Object>();
+        }
+    };
+    private volatile boolean mEnabled;
+    private volatile boolean mCaptureCreationSites;
+    private volatile LeakListener mLeakListener = LOG_LEAKS;
+
+    GLResourceRegistry() {
+    }
+
+    @NonNull
+    public static GLResourceRegistry getInstance() {
+        return sInstance;
+    }
+
+    public void setEnabled(final boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * Records a stack trace for every object created, which is slow but shows where leaks
+     * come from.
+     */
+    public void setCaptureCreationSites(final boolean capture) {
+        mCaptureCreationSites = capture;
+    }
+
+    /**
+     * Sets who is told about leaks, e.g. to fail a test.
+     *
+     * @param listener listener, or null to log leaks as warnings
+     */
+    public void setLeakListener(@Nullable final LeakListener listener) {
+        mLeakListener = listener != null ? listener : LOG_LEAKS;
+    }
+
+    /**
+     * Makes the given object the owner of everything created on this thread until the matching
+     * {@link #popOwner()}. Owners nest.
+     */
+    public void pushOwner(@NonNull final Object owner) {
+        if (mEnabled) {
+            mOwners.get().add(owner);
+        }
+    }
+
+    public void popOwner() {
+        if (mEnabled) {
+            ArrayList<Object> owners = mOwners.get();
+            if (!owners.isEmpty()) {
+                owners.remove(owners.size() - 1);
+            }
+        }
+    }
+
+    public int getLiveCount(@NonNull final Type type) {
+        synchronized (mResources) {
+            int count = 0;
+            for (Map<Long, Resource> resources : mResources.values()) {
+                for (Resource resource : resources.values()) {
+                    if (resource.mType == type) {
+                        count++;
+                    }
+                }
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Gets the storage of all live textures and buffers.
+     */
+    public long getLiveBytes() {
+        synchronized (mResources) {
+            long bytes = 0;
+            for (Map<Long, Resource> resources : mResources.values()) {
+                for (Resource resource : resources.values()) {
+                    bytes += resource.getBytes();
+                }
+            }
+            return bytes;
+        }
+    }
+
+    @NonNull
+    public List<Resource> getLiveResources() {
+        synchronized (mResources) {
+            List<Resource> live = new ArrayList<Resource>();
+            for (Map<Long, Resource> resources : mResources.values()) {
+                live.addAll(resources.values());
+            }
+            return live;
+        }
+    }
+
+    /**
+     * Reports everything the given owner created that is still alive. Called by owners once
+     * they are destroyed.
+     *
+     * @return number of leaked objects
+     */
+    public int checkReleased(@NonNull final Object owner) {
+        if (!mEnabled) {
+            return 0;
+        }
+        List<Resource> leaked = new ArrayList<Resource>();
+        synchronized (mResources) {
+            for (Map<Long, Resource> resources : mResources.values()) {
+                for (Resource resource : resources.values()) {
+                    if (resource.mOwner != null && resource.mOwner.get() == owner) {
+                        leaked.add(resource);
+                    }
+                }
+            }
+        }
+        report(leaked, "alive after its owner was destroyed");
+        return leaked.size();
+    }
+
+    /**
+     * Reports everything still alive in a context that is about to be destroyed and forgets
+     * it.
+     */
+    void onContextReleased(@NonNull final Object context) {
+        List<Resource> leaked;
+        synchronized (mResources) {
+            Map<Long, Resource> resources = mResources.remove(context);
+            if (resources == null) {
+                return;
+            }
+            leaked = new ArrayList<Resource>(resources.values());
+        }
+        report(leaked, "alive when its context was released");
+    }
+
+    /**
+     * Forgets a context that went away on its own, e.g. a GLSurfaceView that lost its
+     * surface, where the objects were freed with it.
+     */
+    void onContextLost(@NonNull final Object context) {
+        synchronized (mResources) {
+            mResources.remove(context);
+        }
+    }
+
+    void onCreated(@NonNull final Object context, @NonNull final Type type, final int name) {
+        ArrayList<Object> owners = mOwners.get();
+        Object owner = owners.isEmpty() ? null : owners.get(owners.size() - 1);
+        Throwable site = mCaptureCreationSites ? new Throwable("created here") : null;
+        Resource resource = new Resource(context, type, name, owner, site);
+        synchronized (mResources) {
+            Map<Long, Resource> resources = mResources.get(context);
+            if (resources == null) {
+                resources = new HashMap<Long, Resource>();
+                mResources.put(context, resources);
+            }
+            resources.put(key(type, name), resource);
+        }
+    }
+
+    void onDeleted(@NonNull final Object context, @NonNull final Type type, final int name) {
+        synchronized (mResources) {
+            Map<Long, Resource> resources = mResources.get(context);
+            if (resources != null) {
+                resources.remove(key(type, name));
+            }
+        }
+    }
+
+    /**
+     * Records the storage of a texture level or a buffer. Level 0 replaces the size, other
+     * levels add to it.
+     */
+    void onStorage(@NonNull final Object context, @NonNull final Type type, final int name,
+                   final int level, final long bytes) {
+        synchronized (mResources) {
+            Resource resource = find(context, type, name);
+            if (resource != null) {
+                if (level == 0) {
+                    resource.mBytes = bytes;
+                    resource.mMipmapped = false;
+                } else {
+                    resource.mBytes += bytes;
+                }
+            }
+        }
+    }
+
+    void onMipmapsGenerated(@NonNull final Object context, final int texture) {
+        synchronized (mResources) {
+            Resource resource = find(context, Type.TEXTURE, texture);
+            if (resource != null) {
+                resource.mMipmapped = true;
+            }
+        }
+    }
+
+    @Nullable
+    private Resource find(@NonNull final Object context, @NonNull final Type type, final int name) {
+        Map<Long, Resource> resources = mResources.get(context);
+        return resources != null ? resources.get(key(type, name)) : null;
+    }
+
+    private void report(@NonNull final List<Resource> leaked, @NonNull final String reason) {
+        LeakListener listener = mLeakListener;
+        for (Resource resource : leaked) {
+            listener.onLeak(resource, reason);
+        }
+    }
+
+    private static long key(@NonNull final Type type, final int name) {
+        return ((long) type.ordinal() << 32) | (name & 0xffffffffL);
+    }
+}
@@ -0,0 +1,347 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.opengl.GLES20;
+import android.support.annotation.NonNull;
+
+/**
+ * Shadows the binding state of one GL context and skips calls that would not change it.
+ * All library code binds programs, buffers, textures and framebuffers and toggles the scissor
+ * test through this class, so code issuing such calls directly must call
+ * {@link #invalidate()} afterwards.
+ * Must only be used on the thread the context is current on.
+ */
+public class GLStateCache {
+    private static final int UNKNOWN = Integer.MIN_VALUE;
+    private static final int DISABLED = 0;
+    private static final int ENABLED = 1;
+    // GLES 2.0 guarantees at least 8 vertex attributes and 8 texture units
+    private static final int MAX_TRACKED_ATTRIBS = 8;
+    private static final int MAX_TRACKED_TEXTURE_UNITS = 8;
+
+    private final GLBackend mGL;
+    private final GLContextResources mResources;
+    private int mProgram;
+    private int mArrayBuffer;
+    private int mFramebuffer;
+    private int mActiveTexture;
+    private final int[] mBoundTextures = new int[MAX_TRACKED_TEXTURE_UNITS];
+    private int mEnabledAttribs;
+    private int mKnownAttribs;
+    private int mScissorTest;
+    private final int[] mScissorBox = new int[4];
+
+    // sampler uniform values, keyed by program and location
+    private int[] mUniformPrograms = new int[16];
+    private int[] mUniformLocations = new int[16];
+    private int[] mUniformValues = new int[16];
+    private int mUniformCount;
+
+    private int mIssuedCalls;
+    private int mElidedCalls;
+    private volatile int mLastFrameIssuedCalls;
+    private volatile int mLastFrameElidedCalls;
+
+    GLStateCache(@NonNull final GLBackend gl, @NonNull final GLContextResources resources) {
+        mGL = gl;
+        mResources = resources;
+        invalidate();
+    }
+
+    /**
+     * Forgets all cached state, so the next call of each kind is issued.
+     */
+    public void invalidate() {
+        mProgram = UNKNOWN;
+        mArrayBuffer = UNKNOWN;
+        mFramebuffer = UNKNOWN;
+        mActiveTexture = UNKNOWN;
+        for (int i = 0; i < MAX_TRACKED_TEXTURE_UNITS; i++) {
+            mBoundTextures[i] = UNKNOWN;
+        }
+        mEnabledAttribs = 0;
+        mKnownAttribs = 0;
+        mScissorTest = UNKNOWN;
+        mScissorBox[2] = UNKNOWN;
+        mUniformCount = 0;
+    }
+
+    /**
+     * Marks the start of a frame. The counters of the previous frame become available through
+     * {@link #getLastFrameIssuedCalls()} and {@link #getLastFrameElidedCalls()}. All cached
+     * state is forgotten, since code outside the library, e.g. a filter subclass or the
+     * application, may have changed it between frames; calls are only elided within a frame.
+     */
+    public void beginFrame() {
+        mLastFrameIssuedCalls = mIssuedCalls;
+        mLastFrameElidedCalls = mElidedCalls;
+        mIssuedCalls = 0;
+        mElidedCalls = 0;
+        invalidate();
+    }
+
+    public int getLastFrameIssuedCalls() {
+        return mLastFrameIssuedCalls;
+    }
+
+    public int getLastFrameElidedCalls() {
+        return mLastFrameElidedCalls;
+    }
+
+    public void useProgram(final int program) {
+        if (mProgram == program) {
+            mElidedCalls++;
+            return;
+        }
+        mGL.glUseProgram(program);
+        mProgram = program;
+        mIssuedCalls++;
+    }
+
+    public void deleteProgram(final int program) {
+        mGL.glDeleteProgram(program);
+        if (mProgram == program) {
+            mProgram = UNKNOWN;
+        }
+        int count = 0;
+        for (int i = 0; i < mUniformCount; i++) {
+            if (mUniformPrograms[i] != program) {
+                mUniformPrograms[count] = mUniformPrograms[i];
+                mUniformLocations[count] = mUniformLocations[i];
+                mUniformValues[count] = mUniformValues[i];
+                count++;
+            }
+        }
+        mUniformCount = count;
+    }
+
+    /**
+     * Sets an integer uniform, typically a sampler, of the current program.
+     */
+    public void uniform1i(final int location, final int value) {
+        if (location == -1) {
+            return;
+        }
+        for (int i = 0; i < mUniformCount; i++) {
+            if (mUniformPrograms[i] == mProgram && mUniformLocations[i] == location) {
+                if (mUniformValues[i] == value) {
+                    mElidedCalls++;
+                    return;
+                }
+                mGL.glUniform1i(location, value);
+                mUniformValues[i] = value;
+                mIssuedCalls++;
+                return;
+            }
+        }
+        mGL.glUniform1i(location, value);
+        mIssuedCalls++;
+        if (mProgram == UNKNOWN) {
+            return;
+        }
+        if (mUniformCount == mUniformPrograms.length) {
+            mUniformPrograms = grow(mUniformPrograms);
+            mUniformLocations = grow(mUniformLocations);
+            mUniformValues = grow(mUniformValues);
+        }
+        mUniformPrograms[mUniformCount] = mProgram;
+        mUniformLocations[mUniformCount] = location;
+        mUniformValues[mUniformCount] = value;
+        mUniformCount++;
+    }
+
+    public void bindArrayBuffer(final int buffer) {
+        if (mArrayBuffer == buffer) {
+            mElidedCalls++;
+            return;
+        }
+        mGL.glBindBuffer(GLES20.GL_ARRAY_BUFFER, buffer);
+        mArrayBuffer = buffer;
+        mIssuedCalls++;
+    }
+
+    public void deleteBuffers(final int count, @NonNull final int[] buffers, final int offset) {
+        mGL.glDeleteBuffers(count, buffers, offset);
+        for (int i = offset; i < offset + count; i++) {
+            if (mArrayBuffer == buffers[i]) {
+                mArrayBuffer = UNKNOWN;
+            }
+        }
+    }
+
+    /**
+     * Enables exactly the given vertex attribute arrays and disables all others. Negative
+     * locations, i.e. attributes not used by the program, are ignored.
+     */
+    public void setVertexAttribArrays(final int first, final int second) {
+        int wanted = 0;
+        if (first >= 0 && first < MAX_TRACKED_ATTRIBS) {
+            wanted |= 1 << first;
+        }
+        if (second >= 0 && second < MAX_TRACKED_ATTRIBS) {
+            wanted |= 1 << second;
+        }
+        for (int i = 0; i < MAX_TRACKED_ATTRIBS; i++) {
+            int bit = 1 << i;
+            boolean enable = (wanted & bit) != 0;
+            if ((mKnownAttribs & bit) != 0 && ((mEnabledAttribs & bit) != 0) == enable) {
+                if (enable) {
+                    mElidedCalls++;
+                }
+                continue;
+            }
+            if (enable) {
+                mGL.glEnableVertexAttribArray(i);
+                mEnabledAttribs |= bit;
+            } else {
+                mGL.glDisableVertexAttribArray(i);
+                mEnabledAttribs &= ~bit;
+            }
+            mKnownAttribs |= bit;
+            mIssuedCalls++;
+        }
+    }
+
+    public void activeTexture(final int unit) {
+        if (mActiveTexture == unit) {
+            mElidedCalls++;
+            return;
+        }
+        mGL.glActiveTexture(unit);
+        mActiveTexture = unit;
+        mIssuedCalls++;
+    }
+
+    /**
+     * Binds a GL_TEXTURE_2D texture to the active texture unit.
+     */
+    public void bindTexture(final int texture) {
+        int unit = mActiveTexture - GLES20.GL_TEXTURE0;
+        boolean tracked = unit >= 0 && unit < MAX_TRACKED_TEXTURE_UNITS;
+        if (tracked && mBoundTextures[unit] == texture) {
+            mElidedCalls++;
+            return;
+        }
+        mGL.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
+        if (tracked) {
+            mBoundTextures[unit] = texture;
+        }
+        mIssuedCalls++;
+    }
+
+    public void deleteTextures(final int count, @NonNull final int[] textures, final int offset) {
+        mGL.glDeleteTextures(count, textures, offset);
+        mResources.onTexturesDeleted(count, textures, offset);
+        for (int i = offset; i < offset + count; i++) {
+            for (int unit = 0; unit < MAX_TRACKED_TEXTURE_UNITS; unit++) {
+                if (mBoundTextures[unit] == textures[i]) {
+                    mBoundTextures[unit] = UNKNOWN;
+                }
+            }
+        }
+    }
+
+    public void bindFramebuffer(final int framebuffer) {
+        if (mFramebuffer == framebuffer) {
+            mElidedCalls++;
+            return;
+        }
+        mGL.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffer);
+        mFramebuffer = framebuffer;
+        mIssuedCalls++;
+    }
+
+    /**
+     * Gets the bound framebuffer, asking the driver only if it is not known.
+     */
+    public int getFramebuffer() {
+        if (mFramebuffer == UNKNOWN) {
+            int[] binding = new int[1];
+            mGL.glGetIntegerv(GLES20.GL_FRAMEBUFFER_BINDING, binding, 0);
+            mFramebuffer = binding[0];
+            mIssuedCalls++;
+        }
+        return mFramebuffer;
+    }
+
+    public void deleteFramebuffers(final int count, @NonNull final int[] framebuffers, final int offset) {
+        mGL.glDeleteFramebuffers(count, framebuffers, offset);
+        for (int i = offset; i < offset + count; i++) {
+            if (mFramebuffer == framebuffers[i]) {
+                mFramebuffer = UNKNOWN;
+            }
+        }
+    }
+
+    /**
+     * Enables the scissor test with the given box, in window coordinates of the bound target.
+     */
+    public void enableScissor(final int x, final int y, final int width, final int height) {
+        if (mScissorTest == ENABLED) {
+            mElidedCalls++;
+        } else {
+            mGL.glEnable(GLES20.GL_SCISSOR_TEST);
+            mScissorTest = ENABLED;
+            mIssuedCalls++;
+        }
+        if (mScissorBox[0] == x && mScissorBox[1] == y
+                && mScissorBox[2] == width && mScissorBox[3] == height) {
+            mElidedCalls++;
+            return;
+        }
+        mGL.glScissor(x, y, width, height);
+        mScissorBox[0] = x;
+        mScissorBox[1] = y;
+        mScissorBox[2] = width;
+        mScissorBox[3] = height;
+        mIssuedCalls++;
+    }
+
+    public void disableScissor() {
+        if (mScissorTest == DISABLED) {
+            mElidedCalls++;
+            return;
+        }
+        mGL.glDisable(GLES20.GL_SCISSOR_TEST);
+        mScissorTest = DISABLED;
+        mIssuedCalls++;
+    }
+
+    /**
+     * Whether the scissor test is known to be enabled.
+     */
+    public boolean isScissorEnabled() {
+        return mScissorTest == ENABLED;
+    }
+
+    /**
+     * Copies the scissor box last set through {@link #enableScissor(int, int, int, int)}.
+     *
+     * @param box receives x, y, width and height
+     */
+    public void getScissorBox(@NonNull final int[] box) {
+        System.arraycopy(mScissorBox, 0, box, 0, 4);
+    }
+
+    @NonNull
+    private static int[] grow(@NonNull final int[] array) {
+        int[] grown = new int[array.length * 2];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+}
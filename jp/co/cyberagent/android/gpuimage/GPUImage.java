@@ -44,8 +44,13 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.ref.WeakReference;
 import java.net.URL;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Semaphore;
+
+import jp.co.cyberagent.android.gpuimage.util.Tracer;
 
 /**
  * The main accessor for GPUImage functionality. This class helps to do common
@@ -57,6 +62,10 @@ public class GPUImage {
     private GLSurfaceView mGlSurfaceView;
     private GPUImageFilter mFilter;
     private Bitmap mCurrentBitmap;
+    private GPUImageMemoryManager.Allocation mCurrentBitmapAllocation;
+    // the original of the current bitmap, if it was loaded from a file or uri
+    private volatile SourceImage mSourceImage;
+    private TrimIntermediates mTrimIntermediates;
     private ScaleType mScaleType = ScaleType.CENTER_CROP;
 
     /**
@@ -72,6 +81,7 @@ public class GPUImage {
         mContext = context;
         mFilter = new GPUImageFilter();
         mRenderer = new GPUImageRenderer(mFilter);
+        GPUImageMemoryManager.getInstance().registerComponentCallbacks(context);
     }
 
     /**
@@ -101,6 +111,21 @@ public class GPUImage {
         mGlSurfaceView.setRenderer(mRenderer);
         mGlSurfaceView.setRenderMode(GLSurfaceView.RENDERMODE_WHEN_DIRTY);
         mGlSurfaceView.requestRender();
+        if (mTrimIntermediates == null) {
+            mTrimIntermediates = new TrimIntermediates(this);
+            GPUImageMemoryManager.getInstance().addEvictable(
+                    mTrimIntermediates, GPUImageMemoryManager.PRIORITY_INTERMEDIATES);
+        }
+    }
+
+    /**
+     * Releases what the preview's GL context holds, once the GLSurfaceView stopped its GL
+     * thread for good, e.g. after it was detached from its window. Without this the context's
+     * resources and the memory reported for them outlive the view. Attaching the view again
+     * starts over.
+     */
+    public void releaseGLResources() {
+        mRenderer.releaseGLResources();
     }
 
     /**
@@ -114,6 +139,160 @@ public class GPUImage {
         mRenderer.setBackgroundColor(red, green, blue);
     }
 
+    /**
+     * Restricts rendering to the crop region set by
+     * {@link #setTransformOffsetLimit(float, float, float, float, float, float)}, leaving the
+     * rest of the view in the background color.
+     *
+     * @param enabled true to only render the crop region
+     */
+    public void setCropScissorEnabled(boolean enabled) {
+        mRenderer.setCropScissorEnabled(enabled);
+        requestRender();
+    }
+
+    /**
+     * Generates mipmaps for the image and samples them trilinearly, which reduces texture
+     * bandwidth and aliasing when a large image is shown zoomed out. Re-uploads the current
+     * image.
+     *
+     * @param enabled true to mipmap the image
+     */
+    public void setMipmapsEnabled(boolean enabled) {
+        mRenderer.setMipmapsEnabled(enabled);
+        if (mCurrentBitmap != null) {
+            mRenderer.setImageBitmap(mCurrentBitmap, false);
+        }
+        requestRender();
+    }
+
+    /**
+     * Gets the always-on statistics of the preview renderer.
+     *
+     * @return statistics, updated while rendering
+     */
+    @NonNull
+    public RendererStats getRendererStats() {
+        return mRenderer.getStats();
+    }
+
+    /**
+     * Renders the current image with the filter and transform of the preview into an offscreen
+     * target of the given size and waits for the result. The GLSurfaceView is neither resized
+     * nor redrawn, and keeps rendering while the result is read back over several frames.
+     * Must not be called on the UI thread or the GL thread.
+     *
+     * @param width  width of the result
+     * @param height height of the result
+     * @return the rendered image, or null if the GL context was lost meanwhile
+     * @throws InterruptedException if interrupted while waiting for the GL thread
+     */
+    @Nullable
+    public Bitmap capture(final int width, final int height) throws InterruptedException {
+        return capture(width, height, 0, 0, width, height);
+    }
+
+    /**
+     * Like {@link #capture(int, int)}, but only returns a region of the rendered image.
+     *
+     * @param width        width to render at
+     * @param height       height to render at
+     * @param left         left of the region
+     * @param top          top of the region
+     * @param regionWidth  width of the region and the result
+     * @param regionHeight height of the region and the result
+     * @return the region, or null if the GL context was lost meanwhile
+     * @throws InterruptedException if interrupted while waiting for the GL thread
+     */
+    @Nullable
+    public Bitmap capture(final int width, final int height, final int left, final int top,
+                          final int regionWidth, final int regionHeight)
+            throws InterruptedException {
+        if (mGlSurfaceView == null) {
+            throw new IllegalStateException("No GLSurfaceView set");
+        }
+        final Bitmap[] result = new Bitmap[1];
+        final Semaphore waiter = new Semaphore(0);
+        mRenderer.captureInStrips(width, height, left, top, regionWidth, regionHeight,
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        requestRender();
+                    }
+                },
+                new ResponseListener<Bitmap>() {
+                    @Override
+                    public void response(final Bitmap item) {
+                        result[0] = item;
+                        waiter.release();
+                    }
+                });
+        requestRender();
+        waiter.acquire();
+        return result[0];
+    }
+
+    /**
+     * Renders the current image once and returns it at several sizes, e.g. a thumbnail, a
+     * feed size and the full size, without running the filter chain for each. The image is
+     * rendered at the largest width and height, the smaller sizes are downsampled from it on
+     * the GPU and all are read back in one batch. Must not be called on the UI thread or the
+     * GL thread.
+     *
+     * @param widths  widths of the results
+     * @param heights heights of the results, as many as widths
+     * @return the images in the given order, or null if the GL context was lost meanwhile or
+     * the sizes do not fit into one texture together
+     * @throws InterruptedException if interrupted while waiting for the GL thread
+     */
+    @Nullable
+    public Bitmap[] captureSizes(@NonNull final int[] widths, @NonNull final int[] heights)
+            throws InterruptedException {
+        if (mGlSurfaceView == null) {
+            throw new IllegalStateException("No GLSurfaceView set");
+        }
+        final Bitmap[][] result = new Bitmap[1][];
+        final Semaphore waiter = new Semaphore(0);
+        mRenderer.captureSizesInStrips(widths, heights,
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        requestRender();
+                    }
+                },
+                new ResponseListener<Bitmap[]>() {
+                    @Override
+                    public void response(final Bitmap[] items) {
+                        result[0] = items;
+                        waiter.release();
+                    }
+                });
+        requestRender();
+        waiter.acquire();
+        return result[0];
+    }
+
+    /**
+     * Computes histograms of the current image on the GPU, e.g. to suggest parameters with
+     * {@link ImageStatistics#suggestToneCurve()} and {@link ImageStatistics#suggestContrast()}.
+     * The listener is called on the GL thread before the next frame is drawn.
+     *
+     * @param listener receives the statistics of the unfiltered image
+     */
+    public void computeStatistics(@NonNull ResponseListener<ImageStatistics> listener) {
+        mRenderer.computeStatistics(listener);
+        requestRender();
+    }
+
+    /**
+     * Sets a listener receiving frame and per-filter timing of the preview.
+     *
+     * @param listener listener, e.g. a {@link RenderMetricsRecorder}, or null to stop timing
+     */
+    public void setMetricsListener(@Nullable RenderMetricsListener listener) {
+        mRenderer.setMetricsListener(listener);
+    }
+
     /**
      * Request the preview to be rendered again.
      */
@@ -141,7 +320,7 @@ public class GPUImage {
      * @param bitmap the new image
      */
     public void setImage(@NonNull final Bitmap bitmap) {
-        mCurrentBitmap = bitmap;
+        setCurrentBitmap(bitmap);
         mRenderer.setImageBitmap(bitmap, false);
         requestRender();
     }
@@ -156,7 +335,7 @@ public class GPUImage {
         mScaleType = scaleType;
         mRenderer.setScaleType(scaleType);
         mRenderer.deleteImage();
-        mCurrentBitmap = null;
+        setCurrentBitmap(null);
         requestRender();
     }
 
@@ -229,7 +408,7 @@ public class GPUImage {
      */
     public void deleteImage() {
         mRenderer.deleteImage();
-        mCurrentBitmap = null;
+        setCurrentBitmap(null);
         requestRender();
     }
 
@@ -287,36 +466,23 @@ public class GPUImage {
     public Bitmap getBitmapWithFilterApplied(@NonNull final Bitmap bitmap) {
         if (mGlSurfaceView != null) {
             mRenderer.deleteImage();
-            mRenderer.runOnDraw(new Runnable() {
-
-                @Override
-                public void run() {
-                    synchronized(mFilter) {
-                        mFilter.destroy();
-                        mFilter.notify();
-                    }
-                }
-            });
-            synchronized(mFilter) {
-                requestRender();
-                try {
-                    mFilter.wait();
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-            }
+            releaseFilterFromPreview();
         }
 
         GPUImageRenderer renderer = new GPUImageRenderer(mFilter);
         renderer.setRotation(Rotation.NORMAL);
         renderer.setScaleType(mScaleType);
         PixelBuffer buffer = new PixelBuffer(bitmap.getWidth(), bitmap.getHeight());
-        buffer.setRenderer(renderer);
-        renderer.setImageBitmap(bitmap, false);
-        Bitmap result = buffer.getBitmap();
-        mFilter.destroy();
-        renderer.deleteImage();
-        buffer.destroy();
+        Bitmap result;
+        try {
+            buffer.setRenderer(renderer);
+            renderer.setImageBitmap(bitmap, false);
+            result = buffer.getBitmap();
+        } finally {
+            mFilter.destroy();
+            renderer.deleteImage();
+            buffer.destroy();
+        }
 
         mRenderer.setFilter(mFilter);
         if (mCurrentBitmap != null) {
@@ -327,6 +493,85 @@ public class GPUImage {
         return result;
     }
 
+    /**
+     * Gets the crop of the image at the full resolution of the file or uri it was loaded from,
+     * with the current filter applied. The crop corners are mapped back to the original and
+     * only the part under the crop is decoded, in tiles, so this needs far less memory than
+     * decoding the whole original. The filter is lent to the export while it renders, so the
+     * preview only shows its background color until this returns. Must not be called on the UI
+     * thread or the GL thread.
+     *
+     * @return the filtered crop, one pixel per pixel of the original along the crop edges
+     * @throws IOException           if the original cannot be decoded
+     * @throws IllegalStateException if the image was not set from a file or uri, or no crop
+     *                               is set
+     */
+    @NonNull
+    public Bitmap getFullResolutionCrop() throws IOException {
+        SourceImage source = mSourceImage;
+        if (source == null) {
+            throw new IllegalStateException("The image was not loaded from a file or uri");
+        }
+        CropExport export = new CropExport(source, mFilter, mRenderer.getCropTopLeft(),
+                mRenderer.getCropTopRight(), mRenderer.getCropBottomLeft(),
+                mRenderer.getBackgroundColor());
+        if (export.getWidth() <= 1 && export.getHeight() <= 1) {
+            throw new IllegalStateException("No crop is set, see setTransformOffsetLimit");
+        }
+        if (mGlSurfaceView != null) {
+            releaseFilterFromPreview();
+        }
+        try {
+            return export.render();
+        } finally {
+            mRenderer.setFilter(mFilter);
+            requestRender();
+        }
+    }
+
+    /**
+     * Saves {@link #getFullResolutionCrop()} through the shared {@link ImageSaver}. As the filter
+     * is lent to the export, the preview only shows its background color until the crop is
+     * rendered.
+     *
+     * @param file     target file
+     * @param format   JPEG, PNG or WEBP
+     * @param quality  0 - 100, ignored by lossless formats
+     * @param listener listener, or null
+     * @throws IllegalStateException if the image was not set from a file or uri
+     */
+    public void saveFullResolutionCrop(@NonNull final File file,
+                                       @NonNull final CompressFormat format, final int quality,
+                                       @Nullable final ImageSaver.Listener listener) {
+        if (mSourceImage == null) {
+            throw new IllegalStateException("The image was not loaded from a file or uri");
+        }
+        ImageSaver.getInstance().save(mContext, new Callable<Bitmap>() {
+            @Override
+            public Bitmap call() throws IOException {
+                return getFullResolutionCrop();
+            }
+        }, file, format, quality, listener);
+    }
+
+    /**
+     * Destroys the filter on the GL thread of the preview, so another context can initialize
+     * it, and waits for that. The preview does not touch the filter until setting it on the
+     * renderer again moves it back.
+     */
+    private void releaseFilterFromPreview() {
+        final Semaphore released = new Semaphore(0);
+        mRenderer.releaseFilter(new Runnable() {
+
+            @Override
+            public void run() {
+                released.release();
+            }
+        });
+        requestRender();
+        released.acquireUninterruptibly();
+    }
+
     /**
      * Gets the images for multiple filters on a image. This can be used to
      * quickly get thumbnail images for filters. <br>
@@ -349,13 +594,19 @@ public class GPUImage {
         PixelBuffer buffer = new PixelBuffer(bitmap.getWidth(), bitmap.getHeight());
         buffer.setRenderer(renderer);
 
-        for (GPUImageFilter filter : filters) {
-            renderer.setFilter(filter);
-            listener.response(buffer.getBitmap());
-            filter.destroy();
+        try {
+            for (GPUImageFilter filter : filters) {
+                renderer.setFilter(filter);
+                try {
+                    listener.response(buffer.getBitmap());
+                } finally {
+                    filter.destroy();
+                }
+            }
+        } finally {
+            renderer.deleteImage();
+            buffer.destroy();
         }
-        renderer.deleteImage();
-        buffer.destroy();
     }
 
     /**
@@ -418,6 +669,13 @@ public class GPUImage {
             return null;
         }
 
+        @Override
+        @NonNull
+        protected SourceImage createSource(final int width, final int height,
+                                           final int orientation, @NonNull final float[] bounds) {
+            return new SourceImage(mContext, null, mUri, width, height, orientation, bounds);
+        }
+
         @Override
         protected int getImageOrientation() throws IOException {
             Cursor cursor = mContext.getContentResolver().query(mUri,
@@ -449,6 +707,13 @@ public class GPUImage {
             return BitmapFactory.decodeFile(mImageFile.getAbsolutePath(), options);
         }
 
+        @Override
+        @NonNull
+        protected SourceImage createSource(final int width, final int height,
+                                           final int orientation, @NonNull final float[] bounds) {
+            return new SourceImage(mContext, mImageFile, null, width, height, orientation, bounds);
+        }
+
         @Override
         protected int getImageOrientation() throws IOException {
             ExifInterface exif = new ExifInterface(mImageFile.getAbsolutePath());
@@ -473,6 +738,11 @@ public class GPUImage {
         private final GPUImage mGPUImage;
         private int mOutputWidth;
         private int mOutputHeight;
+        private int mSourceWidth;
+        private int mSourceHeight;
+        private int mOrientation;
+        // part of the rotated original the loaded bitmap shows: left, top, right, bottom
+        private final float[] mSourceBounds = {0, 0, 1, 1};
 
         @SuppressWarnings("deprecation")
         public LoadImageTask(@NonNull final GPUImage gpuImage) {
@@ -501,16 +771,26 @@ public class GPUImage {
             super.onPostExecute(bitmap);
             mGPUImage.deleteImage();
             mGPUImage.setImage(bitmap);
+            if (bitmap != null && mSourceWidth > 0 && mSourceHeight > 0) {
+                mGPUImage.mSourceImage = createSource(mSourceWidth, mSourceHeight, mOrientation,
+                                                      mSourceBounds);
+            }
         }
 
         @Nullable
         protected abstract Bitmap decode(BitmapFactory.Options options);
 
+        @NonNull
+        protected abstract SourceImage createSource(int width, int height, int orientation,
+                                                    @NonNull float[] bounds);
+
         @Nullable
         private Bitmap loadResizedImage() {
             BitmapFactory.Options options = new BitmapFactory.Options();
             options.inJustDecodeBounds = true;
             decode(options);
+            mSourceWidth = options.outWidth;
+            mSourceHeight = options.outHeight;
             int scale = 1;
             while (checkSize(options.outWidth / scale > mOutputWidth, options.outHeight / scale > mOutputHeight)) {
                 scale++;
@@ -520,17 +800,26 @@ public class GPUImage {
             if (scale < 1) {
                 scale = 1;
             }
+            // decoded as RGB 565 below
+            long decodedBytes = (long) (options.outWidth / scale) * (options.outHeight / scale) * 2;
             options = new BitmapFactory.Options();
             options.inSampleSize = scale;
             options.inPreferredConfig = Bitmap.Config.RGB_565;
             options.inPurgeable = true;
             options.inTempStorage = new byte[32 * 1024];
+            GPUImageMemoryManager.getInstance().makeRoom(decodedBytes);
+            Tracer.beginSection("decodeImage");
             Bitmap bitmap = decode(options);
+            Tracer.endSection();
             if (bitmap == null) {
                 return null;
             }
+            Tracer.beginSection("rotateImage");
             bitmap = rotateImage(bitmap);
+            Tracer.endSection();
+            Tracer.beginSection("scaleImage");
             bitmap = scaleBitmap(bitmap);
+            Tracer.endSection();
             return bitmap;
         }
 
@@ -557,6 +846,10 @@ public class GPUImage {
                     bitmap.recycle();
                     bitmap = workBitmap;
                 }
+                mSourceBounds[0] = (float) (diffWidth / 2) / newSize[0];
+                mSourceBounds[1] = (float) (diffHeight / 2) / newSize[1];
+                mSourceBounds[2] = (float) (diffWidth / 2 + newSize[0] - diffWidth) / newSize[0];
+                mSourceBounds[3] = (float) (diffHeight / 2 + newSize[1] - diffHeight) / newSize[1];
             }
 
             return bitmap;
@@ -604,6 +897,7 @@ public class GPUImage {
             Bitmap rotatedBitmap = bitmap;
             try {
                 int orientation = getImageOrientation();
+                mOrientation = orientation;
                 if (orientation != 0) {
                     Matrix matrix = new Matrix();
                     matrix.postRotate(orientation);
@@ -620,6 +914,52 @@ public class GPUImage {
         protected abstract int getImageOrientation() throws IOException;
     }
 
+    private void setCurrentBitmap(@Nullable final Bitmap bitmap) {
+        if (mCurrentBitmapAllocation != null) {
+            mCurrentBitmapAllocation.release();
+            mCurrentBitmapAllocation = null;
+        }
+        mCurrentBitmap = bitmap;
+        mSourceImage = null;
+        if (bitmap != null) {
+            mCurrentBitmapAllocation = GPUImageMemoryManager.getInstance().track(
+                    GPUImageMemoryManager.Kind.BITMAP, (long) bitmap.getRowBytes() * bitmap.getHeight());
+        }
+    }
+
+    /**
+     * Releases the intermediates of the preview on its GL thread. Holds the GPUImage weakly so
+     * the registration with the memory manager does not keep it alive.
+     */
+    private static class TrimIntermediates implements GPUImageMemoryManager.Evictable {
+        private final WeakReference<GPUImage> mGPUImage;
+
+        TrimIntermediates(@NonNull final GPUImage gpuImage) {
+            mGPUImage = new WeakReference<GPUImage>(gpuImage);
+        }
+
+        @Override
+        public long evict() {
+            GPUImage gpuImage = mGPUImage.get();
+            if (gpuImage == null) {
+                GPUImageMemoryManager.getInstance().removeEvictable(this);
+                return 0;
+            }
+            final GPUImageRenderer renderer = gpuImage.mRenderer;
+            long bytes = renderer.getTrimmableBytes();
+            if (bytes > 0 && gpuImage.mGlSurfaceView != null) {
+                gpuImage.mGlSurfaceView.queueEvent(new Runnable() {
+                    @Override
+                    public void run() {
+                        renderer.trimMemory();
+                    }
+                });
+                return bytes;
+            }
+            return 0;
+        }
+    }
+
     public interface ResponseListener<T> {
         void response(T item);
     }
@@ -50,7 +50,7 @@ public class GPUImageBrightnessFilter extends GPUImageFilter {
     @Override
     public void onInit() {
         super.onInit();
-        mBrightnessLocation = GLES20.glGetUniformLocation(getProgram(), "brightness");
+        mBrightnessLocation = mGL.glGetUniformLocation(getProgram(), "brightness");
     }
 
     @Override
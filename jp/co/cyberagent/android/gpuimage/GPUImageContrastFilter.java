@@ -52,7 +52,7 @@ public class GPUImageContrastFilter extends GPUImageFilter {
     @Override
     public void onInit() {
         super.onInit();
-        mContrastLocation = GLES20.glGetUniformLocation(getProgram(), "contrast");
+        mContrastLocation = mGL.glGetUniformLocation(getProgram(), "contrast");
     }
 
     @Override
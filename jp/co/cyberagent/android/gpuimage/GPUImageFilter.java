@@ -27,17 +27,20 @@ import java.io.InputStream;
 import java.nio.FloatBuffer;
 import java.util.LinkedList;
 
+import jp.co.cyberagent.android.gpuimage.util.Tracer;
+
 public class GPUImageFilter {
     public static final String NO_FILTER_VERTEX_SHADER = "" +
             "attribute vec4 position;\n" +
             "attribute vec4 inputTextureCoordinate;\n" +
+            "uniform mat3 textureTransform;\n" +
             " \n" +
             "varying vec2 textureCoordinate;\n" +
             " \n" +
             "void main()\n" +
             "{\n" +
             "    gl_Position = position;\n" +
-            "    textureCoordinate = inputTextureCoordinate.xy;\n" +
+            "    textureCoordinate = (textureTransform * vec3(inputTextureCoordinate.xy, 1.0)).xy;\n" +
             "}";
     public static final String NO_FILTER_FRAGMENT_SHADER = "" +
             "varying highp vec2 textureCoordinate;\n" +
@@ -46,14 +49,18 @@ public class GPUImageFilter {
             " \n" +
             "void main()\n" +
             "{\n" +
-            "     if (any(lessThan(textureCoordinate, vec2(0.0,0.0))) || any(greaterThan(textureCoordinate, vec2(1.0,1.0)))) {\n" +
-            "         // apply clamp to border \n" +
-            "         gl_FragColor = vec4(0.0, 0.0, 0.0, 1.0);\n" +
-            "     } else {\n" +
-            "         gl_FragColor = texture2D(inputImageTexture, textureCoordinate);\n" +
-            "     }\n" +
+            "     gl_FragColor = texture2D(inputImageTexture, textureCoordinate);\n" +
             "}";
 
+    /**
+     * Column-major identity matrix for the textureTransform uniform.
+     */
+    static final float[] IDENTITY_TEXTURE_TRANSFORM = {
+            1.0f, 0.0f, 0.0f,
+            0.0f, 1.0f, 0.0f,
+            0.0f, 0.0f, 1.0f,
+    };
+
     private final LinkedList<Runnable> mRunOnDraw;
     private final String mVertexShader;
     private final String mFragmentShader;
@@ -61,9 +68,16 @@ public class GPUImageFilter {
     protected int mGLAttribPosition;
     protected int mGLUniformTexture;
     protected int mGLAttribTextureCoordinate;
+    protected int mGLUniformTextureTransform;
+    protected float[] mTextureTransform = IDENTITY_TEXTURE_TRANSFORM;
     protected int mOutputWidth;
     protected int mOutputHeight;
+    protected GLStateCache mGLState;
+    protected GLBackend mGL;
     private boolean mIsInitialized;
+    private IntermediateFormat mIntermediateFormat = IntermediateFormat.FULL;
+    // built once, tracing must not allocate per frame
+    final String mTraceSection = getClass().getSimpleName() + ".onDraw";
 
     public GPUImageFilter() {
         this(NO_FILTER_VERTEX_SHADER, NO_FILTER_FRAGMENT_SHADER);
@@ -77,17 +91,27 @@ public class GPUImageFilter {
     }
 
     public final void init() {
-        onInit();
-        mIsInitialized = true;
-        onInitialized();
+        GLContextResources resources = GLContextResources.current();
+        mGLState = resources.getStateCache();
+        mGL = resources.getBackend();
+        GLResourceRegistry registry = GLResourceRegistry.getInstance();
+        registry.pushOwner(this);
+        try {
+            onInit();
+            mIsInitialized = true;
+            onInitialized();
+        } finally {
+            registry.popOwner();
+        }
     }
 
     public void onInit() {
         mGLProgId = OpenGlUtils.loadProgram(mVertexShader, mFragmentShader);
-        mGLAttribPosition = GLES20.glGetAttribLocation(mGLProgId, "position");
-        mGLUniformTexture = GLES20.glGetUniformLocation(mGLProgId, "inputImageTexture");
-        mGLAttribTextureCoordinate = GLES20.glGetAttribLocation(mGLProgId,
+        mGLAttribPosition = mGL.glGetAttribLocation(mGLProgId, "position");
+        mGLUniformTexture = mGL.glGetUniformLocation(mGLProgId, "inputImageTexture");
+        mGLAttribTextureCoordinate = mGL.glGetAttribLocation(mGLProgId,
                                                                 "inputTextureCoordinate");
+        mGLUniformTextureTransform = mGL.glGetUniformLocation(mGLProgId, "textureTransform");
         mIsInitialized = true;
     }
 
@@ -95,9 +119,14 @@ public class GPUImageFilter {
     }
 
     public final void destroy() {
+        if (!mIsInitialized) {
+            // never initialized or already destroyed, e.g. by getBitmapWithFilterApplied
+            return;
+        }
         mIsInitialized = false;
-        GLES20.glDeleteProgram(mGLProgId);
+        mGLState.deleteProgram(mGLProgId);
         onDestroy();
+        GLResourceRegistry.getInstance().checkReleased(this);
     }
 
     public void onDestroy() {
@@ -111,35 +140,76 @@ public class GPUImageFilter {
     public void onDraw(final int textureId,
                        @NonNull final FloatBuffer cubeBuffer,
                        @NonNull final FloatBuffer textureBuffer) {
-        GLES20.glUseProgram(mGLProgId);
+        Tracer.beginSection(mTraceSection);
+        mGLState.useProgram(mGLProgId);
         runPendingOnDrawTasks();
         if (!mIsInitialized) {
+            Tracer.endSection();
             return;
         }
 
+        // client side arrays are only read while no array buffer is bound
+        mGLState.bindArrayBuffer(0);
         cubeBuffer.position(0);
-        GLES20.glVertexAttribPointer(mGLAttribPosition, 2, GLES20.GL_FLOAT, false, 0, cubeBuffer);
-        GLES20.glEnableVertexAttribArray(mGLAttribPosition);
+        mGL.glVertexAttribPointer(mGLAttribPosition, 2, GLES20.GL_FLOAT, false, 0, cubeBuffer);
         textureBuffer.position(0);
-        GLES20.glVertexAttribPointer(mGLAttribTextureCoordinate, 2, GLES20.GL_FLOAT, false, 0,
+        mGL.glVertexAttribPointer(mGLAttribTextureCoordinate, 2, GLES20.GL_FLOAT, false, 0,
                                      textureBuffer);
-        GLES20.glEnableVertexAttribArray(mGLAttribTextureCoordinate);
+        // the geometry may be clipped to fewer or more vertices than a quad
+        drawQuad(textureId, cubeBuffer.limit() / 2);
+        Tracer.endSection();
+    }
+
+    /**
+     * Draws the filter reading vertex positions and texture coordinates from vertex buffer
+     * objects, e.g. the shared ones from {@link GLContextResources}.
+     *
+     * @param textureId       input texture
+     * @param cubeBufferId    vertex buffer object with the vertex positions
+     * @param textureBufferId vertex buffer object with the texture coordinates
+     */
+    public void onDraw(final int textureId, final int cubeBufferId, final int textureBufferId) {
+        Tracer.beginSection(mTraceSection);
+        mGLState.useProgram(mGLProgId);
+        runPendingOnDrawTasks();
+        if (!mIsInitialized) {
+            Tracer.endSection();
+            return;
+        }
+
+        mGLState.bindArrayBuffer(cubeBufferId);
+        mGL.glVertexAttribPointer(mGLAttribPosition, 2, GLES20.GL_FLOAT, false, 0, 0);
+        mGLState.bindArrayBuffer(textureBufferId);
+        mGL.glVertexAttribPointer(mGLAttribTextureCoordinate, 2, GLES20.GL_FLOAT, false, 0, 0);
+        drawQuad(textureId, 4);
+        Tracer.endSection();
+    }
+
+    private void drawQuad(final int textureId, final int vertexCount) {
+        mGLState.setVertexAttribArrays(mGLAttribPosition, mGLAttribTextureCoordinate);
+        if (mGLUniformTextureTransform != -1) {
+            mGL.glUniformMatrix3fv(mGLUniformTextureTransform, 1, false, mTextureTransform, 0);
+        }
         if (textureId != OpenGlUtils.NO_TEXTURE) {
-            GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureId);
-            GLES20.glUniform1i(mGLUniformTexture, 0);
+            mGLState.activeTexture(GLES20.GL_TEXTURE0);
+            mGLState.bindTexture(textureId);
+            mGLState.uniform1i(mGLUniformTexture, 0);
         }
         onDrawArraysPre();
-        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
-        GLES20.glDisableVertexAttribArray(mGLAttribPosition);
-        GLES20.glDisableVertexAttribArray(mGLAttribTextureCoordinate);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        if (vertexCount > 0) {
+            mGL.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, vertexCount);
+        }
     }
 
     protected void onDrawArraysPre() {}
 
     protected void runPendingOnDrawTasks() {
         synchronized (mRunOnDraw) {
+            if (!mRunOnDraw.isEmpty() && mIsInitialized) {
+                // uniform setters apply to the current program, which a timed draw has not
+                // switched to yet
+                mGLState.useProgram(mGLProgId);
+            }
             while (!mRunOnDraw.isEmpty()) {
                 mRunOnDraw.removeFirst().run();
             }
@@ -174,11 +244,49 @@ public class GPUImageFilter {
         return mGLUniformTexture;
     }
 
+    /**
+     * Whether the vertex shader of this filter declares the textureTransform uniform, i.e. it
+     * was built on {@link #NO_FILTER_VERTEX_SHADER} and applies
+     * {@link #setTextureTransform(float[])} to its texture coordinates.
+     *
+     * @return true if the texture transform is applied on the GPU
+     */
+    public boolean hasTextureTransform() {
+        return isInitialized() && mGLUniformTextureTransform != -1;
+    }
+
+    /**
+     * Sets the 3x3 column-major matrix applied to the texture coordinates of the next draw.
+     * Must be called on the GL thread.
+     *
+     * @param matrix column-major 3x3 matrix
+     */
+    public void setTextureTransform(@NonNull final float[] matrix) {
+        mTextureTransform = matrix;
+    }
+
+    /**
+     * Sets the cheapest format the output of this filter may be stored in when it is an
+     * intermediate of a {@link GPUImageFilterGroup}. Takes effect when the group allocates its
+     * intermediates, i.e. on the next output size change.
+     *
+     * @param format format the output tolerates, {@link IntermediateFormat#FULL} by default
+     */
+    public void setIntermediateFormat(@NonNull final IntermediateFormat format) {
+        mIntermediateFormat = format;
+    }
+
+    @NonNull
+    public IntermediateFormat getIntermediateFormat() {
+        return mIntermediateFormat;
+    }
+
     protected void setInteger(final int location, final int intValue) {
         runOnDraw(new Runnable() {
             @Override
             public void run() {
-                GLES20.glUniform1i(location, intValue);
+                // often a sampler, whose value the state cache tracks
+                mGLState.uniform1i(location, intValue);
             }
         });
     }
@@ -187,7 +295,7 @@ public class GPUImageFilter {
         runOnDraw(new Runnable() {
             @Override
             public void run() {
-                GLES20.glUniform1f(location, floatValue);
+                mGL.glUniform1f(location, floatValue);
             }
         });
     }
@@ -196,7 +304,7 @@ public class GPUImageFilter {
         runOnDraw(new Runnable() {
             @Override
             public void run() {
-                GLES20.glUniform2fv(location, 1, FloatBuffer.wrap(arrayValue));
+                mGL.glUniform2fv(location, 1, FloatBuffer.wrap(arrayValue));
             }
         });
     }
@@ -205,7 +313,7 @@ public class GPUImageFilter {
         runOnDraw(new Runnable() {
             @Override
             public void run() {
-                GLES20.glUniform3fv(location, 1, FloatBuffer.wrap(arrayValue));
+                mGL.glUniform3fv(location, 1, FloatBuffer.wrap(arrayValue));
             }
         });
     }
@@ -214,7 +322,7 @@ public class GPUImageFilter {
         runOnDraw(new Runnable() {
             @Override
             public void run() {
-                GLES20.glUniform4fv(location, 1, FloatBuffer.wrap(arrayValue));
+                mGL.glUniform4fv(location, 1, FloatBuffer.wrap(arrayValue));
             }
         });
     }
@@ -223,7 +331,7 @@ public class GPUImageFilter {
         runOnDraw(new Runnable() {
             @Override
             public void run() {
-                GLES20.glUniform1fv(location, arrayValue.length, FloatBuffer.wrap(arrayValue));
+                mGL.glUniform1fv(location, arrayValue.length, FloatBuffer.wrap(arrayValue));
             }
         });
     }
@@ -236,7 +344,7 @@ public class GPUImageFilter {
                 float[] vec2 = new float[2];
                 vec2[0] = point.x;
                 vec2[1] = point.y;
-                GLES20.glUniform2fv(location, 1, vec2, 0);
+                mGL.glUniform2fv(location, 1, vec2, 0);
             }
         });
     }
@@ -246,7 +354,7 @@ public class GPUImageFilter {
 
             @Override
             public void run() {
-                GLES20.glUniformMatrix3fv(location, 1, false, matrix, 0);
+                mGL.glUniformMatrix3fv(location, 1, false, matrix, 0);
             }
         });
     }
@@ -256,7 +364,7 @@ public class GPUImageFilter {
 
             @Override
             public void run() {
-                GLES20.glUniformMatrix4fv(location, 1, false, matrix, 0);
+                mGL.glUniformMatrix4fv(location, 1, false, matrix, 0);
             }
         });
     }
@@ -20,16 +20,12 @@ import android.annotation.SuppressLint;
 import android.opengl.GLES20;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
-import jp.co.cyberagent.android.gpuimage.util.TextureRotationUtil;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
-import static jp.co.cyberagent.android.gpuimage.GPUImageRenderer.CUBE;
-import static jp.co.cyberagent.android.gpuimage.util.TextureRotationUtil.TEXTURE_NO_ROTATION;
+import jp.co.cyberagent.android.gpuimage.util.Tracer;
 
 /**
  * Resembles a filter that consists of multiple filters applied after each
@@ -41,10 +37,29 @@ public class GPUImageFilterGroup extends GPUImageFilter {
     protected List<GPUImageFilter> mMergedFilters;
     private int[] mFrameBuffers;
     private int[] mFrameBufferTextures;
-
-    private final FloatBuffer mGLCubeBuffer;
-    private final FloatBuffer mGLTextureBuffer;
-    private final FloatBuffer mGLTextureFlipBuffer;
+    private IntermediateFormat[] mFrameBufferFormats;
+    private IntermediateFormat mIntermediatePolicy = IntermediateFormat.RGB_565_HALF_SIZE;
+    private final int[] mScissorBox = new int[4];
+    private GLContextResources mGLResources;
+    private volatile RenderMetricsListener mMetricsListener;
+    private volatile long mIntermediateBytes;
+    // GPUImageMemoryManager frame the intermediates were created in
+    private volatile long mIntermediatesFrame;
+    // output size the intermediates were created for
+    private int mIntermediatesWidth;
+    private int mIntermediatesHeight;
+    // The other set of intermediates: those of the output size during an offscreen draw, those
+    // of the last offscreen size otherwise, kept for the next offscreen draw of that size.
+    // swapIntermediates() exchanges the sets.
+    private int[] mSpareFrameBuffers;
+    private int[] mSpareFrameBufferTextures;
+    private IntermediateFormat[] mSpareFrameBufferFormats;
+    private volatile long mSpareIntermediateBytes;
+    private volatile long mSpareIntermediatesFrame;
+    private int mSpareWidth;
+    private int mSpareHeight;
+    private int mOnscreenWidth;
+    private int mOnscreenHeight;
 
     /**
      * Instantiates a new GPUImageFilterGroup with no filters.
@@ -65,22 +80,6 @@ public class GPUImageFilterGroup extends GPUImageFilter {
         } else {
             updateMergedFilters();
         }
-
-        mGLCubeBuffer = ByteBuffer.allocateDirect(CUBE.length * 4)
-                                  .order(ByteOrder.nativeOrder())
-                                  .asFloatBuffer();
-        mGLCubeBuffer.put(CUBE).position(0);
-
-        mGLTextureBuffer = ByteBuffer.allocateDirect(TEXTURE_NO_ROTATION.length * 4)
-                                     .order(ByteOrder.nativeOrder())
-                                     .asFloatBuffer();
-        mGLTextureBuffer.put(TEXTURE_NO_ROTATION).position(0);
-
-        float[] flipTexture = TextureRotationUtil.getRotation(Rotation.NORMAL, false, true);
-        mGLTextureFlipBuffer = ByteBuffer.allocateDirect(flipTexture.length * 4)
-                                         .order(ByteOrder.nativeOrder())
-                                         .asFloatBuffer();
-        mGLTextureFlipBuffer.put(flipTexture).position(0);
     }
 
     public void addFilter(@Nullable GPUImageFilter aFilter) {
@@ -98,6 +97,7 @@ public class GPUImageFilterGroup extends GPUImageFilter {
     @Override
     public void onInit() {
         super.onInit();
+        mGLResources = GLContextResources.current();
         for (GPUImageFilter filter : mFilters) {
             filter.init();
         }
@@ -110,6 +110,7 @@ public class GPUImageFilterGroup extends GPUImageFilter {
     @Override
     public void onDestroy() {
         destroyFramebuffers();
+        destroySpareFramebuffers();
         for (GPUImageFilter filter : mFilters) {
             filter.destroy();
         }
@@ -118,13 +119,44 @@ public class GPUImageFilterGroup extends GPUImageFilter {
 
     private void destroyFramebuffers() {
         if (mFrameBufferTextures != null) {
-            GLES20.glDeleteTextures(mFrameBufferTextures.length, mFrameBufferTextures, 0);
+            mGLState.deleteTextures(mFrameBufferTextures.length, mFrameBufferTextures, 0);
             mFrameBufferTextures = null;
         }
         if (mFrameBuffers != null) {
-            GLES20.glDeleteFramebuffers(mFrameBuffers.length, mFrameBuffers, 0);
+            mGLState.deleteFramebuffers(mFrameBuffers.length, mFrameBuffers, 0);
             mFrameBuffers = null;
         }
+        mIntermediateBytes = 0;
+    }
+
+    private void destroySpareFramebuffers() {
+        swapIntermediates();
+        destroyFramebuffers();
+        swapIntermediates();
+    }
+
+    private void swapIntermediates() {
+        int[] frameBuffers = mFrameBuffers;
+        mFrameBuffers = mSpareFrameBuffers;
+        mSpareFrameBuffers = frameBuffers;
+        int[] textures = mFrameBufferTextures;
+        mFrameBufferTextures = mSpareFrameBufferTextures;
+        mSpareFrameBufferTextures = textures;
+        IntermediateFormat[] formats = mFrameBufferFormats;
+        mFrameBufferFormats = mSpareFrameBufferFormats;
+        mSpareFrameBufferFormats = formats;
+        long bytes = mIntermediateBytes;
+        mIntermediateBytes = mSpareIntermediateBytes;
+        mSpareIntermediateBytes = bytes;
+        long frame = mIntermediatesFrame;
+        mIntermediatesFrame = mSpareIntermediatesFrame;
+        mSpareIntermediatesFrame = frame;
+        int width = mIntermediatesWidth;
+        mIntermediatesWidth = mSpareWidth;
+        mSpareWidth = width;
+        int height = mIntermediatesHeight;
+        mIntermediatesHeight = mSpareHeight;
+        mSpareHeight = height;
     }
 
     /*
@@ -139,40 +171,237 @@ public class GPUImageFilterGroup extends GPUImageFilter {
         if (mFrameBuffers != null) {
             destroyFramebuffers();
         }
+        // may have been created with another policy, see setIntermediatePolicy
+        destroySpareFramebuffers();
 
         int size = mFilters.size();
         for (int i = 0; i < size; i++) {
             mFilters.get(i).onOutputSizeChanged(width, height);
         }
 
+        createFramebuffers(width, height);
+    }
+
+    private void createFramebuffers(final int width, final int height) {
         if (mMergedFilters != null && mMergedFilters.size() > 0) {
-            size = mMergedFilters.size();
+            int size = mMergedFilters.size();
             mFrameBuffers = new int[size - 1];
             mFrameBufferTextures = new int[size - 1];
 
-            for (int i = 0; i < size - 1; i++) {
-                GLES20.glGenFramebuffers(1, mFrameBuffers, i);
-                GLES20.glGenTextures(1, mFrameBufferTextures, i);
-                GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mFrameBufferTextures[i]);
-                GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0,
-                                    GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
-                GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
-                                       GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
-                GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
-                                       GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
-                GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
-                                       GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
-                GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
-                                       GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
-
-                GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFrameBuffers[i]);
-                GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
-                                              GLES20.GL_TEXTURE_2D, mFrameBufferTextures[i], 0);
-
-                GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
-                GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+            mFrameBufferFormats = new IntermediateFormat[size - 1];
+
+            long bytes = 0;
+            GLResourceRegistry registry = GLResourceRegistry.getInstance();
+            registry.pushOwner(this);
+            try {
+                for (int i = 0; i < size - 1; i++) {
+                    IntermediateFormat format = mIntermediatePolicy.intersect(
+                            mMergedFilters.get(i).getIntermediateFormat());
+                    mFrameBufferFormats[i] = createFramebuffer(i, format, width, height);
+                    bytes += intermediateBytes(mFrameBufferFormats[i], width, height);
+                }
+            } finally {
+                registry.popOwner();
+            }
+            mIntermediateBytes = bytes;
+            mIntermediatesFrame = GPUImageMemoryManager.getInstance().getFrame();
+            mIntermediatesWidth = width;
+            mIntermediatesHeight = height;
+        }
+    }
+
+    /**
+     * Switches this group and nested groups to drawing at the given size, e.g. into an
+     * offscreen capture, until {@link #endOffscreenDraw()}. The intermediates of the output
+     * size are kept aside instead of being deleted, and those of the given size are kept
+     * afterwards, so a later offscreen draw of the same size allocates nothing. Must be called
+     * on the GL thread.
+     *
+     * @param width  width to draw at
+     * @param height height to draw at
+     */
+    public void beginOffscreenDraw(final int width, final int height) {
+        mOnscreenWidth = mOutputWidth;
+        mOnscreenHeight = mOutputHeight;
+        swapIntermediates();
+        super.onOutputSizeChanged(width, height);
+        for (GPUImageFilter filter : mFilters) {
+            if (filter instanceof GPUImageFilterGroup) {
+                ((GPUImageFilterGroup) filter).beginOffscreenDraw(width, height);
+            } else {
+                filter.onOutputSizeChanged(width, height);
+            }
+        }
+        if (mFrameBuffers != null && !fits(mFrameBuffers, mIntermediatesWidth,
+                                           mIntermediatesHeight, width, height)) {
+            destroyFramebuffers();
+        }
+        if (mFrameBuffers == null) {
+            createFramebuffers(width, height);
+        }
+    }
+
+    /**
+     * Switches back to the output size after {@link #beginOffscreenDraw(int, int)}. Must be
+     * called on the GL thread.
+     */
+    public void endOffscreenDraw() {
+        super.onOutputSizeChanged(mOnscreenWidth, mOnscreenHeight);
+        for (GPUImageFilter filter : mFilters) {
+            if (filter instanceof GPUImageFilterGroup) {
+                ((GPUImageFilterGroup) filter).endOffscreenDraw();
+            } else {
+                filter.onOutputSizeChanged(mOnscreenWidth, mOnscreenHeight);
             }
         }
+        swapIntermediates();
+    }
+
+    /**
+     * Gets the memory {@link #beginOffscreenDraw(int, int)} allocates for the intermediates of
+     * this group and nested groups at the given size, assuming every reduced format is
+     * supported. Must be called on the GL thread.
+     *
+     * @return bytes, 0 where the intermediates of that size are kept from an earlier
+     * offscreen draw
+     */
+    public long getOffscreenIntermediateBytes(final int width, final int height) {
+        long bytes = 0;
+        if (!fits(mSpareFrameBuffers, mSpareWidth, mSpareHeight, width, height)
+                && mMergedFilters != null) {
+            for (int i = 0; i < mMergedFilters.size() - 1; i++) {
+                bytes += intermediateBytes(mIntermediatePolicy.intersect(
+                        mMergedFilters.get(i).getIntermediateFormat()), width, height);
+            }
+        }
+        for (GPUImageFilter filter : mFilters) {
+            if (filter instanceof GPUImageFilterGroup) {
+                bytes += ((GPUImageFilterGroup) filter).getOffscreenIntermediateBytes(width, height);
+            }
+        }
+        return bytes;
+    }
+
+    // whether intermediates created for one size can be drawn with at another
+    private boolean fits(@Nullable final int[] frameBuffers, final int createdWidth,
+                         final int createdHeight, final int width, final int height) {
+        return frameBuffers != null && createdWidth == width && createdHeight == height
+                && mMergedFilters != null && frameBuffers.length == mMergedFilters.size() - 1;
+    }
+
+    /**
+     * Deletes the intermediate framebuffers of this group and of nested groups to save memory.
+     * They are created again on the next draw. Must be called on the GL thread.
+     */
+    public void releaseIntermediates() {
+        destroyFramebuffers();
+        destroySpareFramebuffers();
+        for (GPUImageFilter filter : mFilters) {
+            if (filter instanceof GPUImageFilterGroup) {
+                ((GPUImageFilterGroup) filter).releaseIntermediates();
+            }
+        }
+    }
+
+    /**
+     * Gets the memory held by the intermediates of this group and of nested groups, including
+     * those kept for offscreen draws. Can be called on any thread.
+     *
+     * @return bytes, 0 after {@link #releaseIntermediates()}
+     */
+    public long getIntermediateBytes() {
+        long bytes = mIntermediateBytes + mSpareIntermediateBytes;
+        for (GPUImageFilter filter : mFilters) {
+            if (filter instanceof GPUImageFilterGroup) {
+                bytes += ((GPUImageFilterGroup) filter).getIntermediateBytes();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Gets the memory held by intermediates of this group and of nested groups that were
+     * created before the current frame of the {@link GPUImageMemoryManager}. Intermediates
+     * created during the frame are in use, releasing them would only recreate them on the
+     * next draw. Can be called on any thread.
+     *
+     * @return bytes
+     */
+    public long getEvictableIntermediateBytes() {
+        long frame = GPUImageMemoryManager.getInstance().getFrame();
+        long bytes = mIntermediatesFrame < frame ? mIntermediateBytes : 0;
+        if (mSpareIntermediatesFrame < frame) {
+            bytes += mSpareIntermediateBytes;
+        }
+        for (GPUImageFilter filter : mFilters) {
+            if (filter instanceof GPUImageFilterGroup) {
+                bytes += ((GPUImageFilterGroup) filter).getEvictableIntermediateBytes();
+            }
+        }
+        return bytes;
+    }
+
+    private static long intermediateBytes(@NonNull final IntermediateFormat format,
+                                          final int width, final int height) {
+        long pixels = format.isHalfSize()
+                ? (long) halfSize(width) * halfSize(height) : (long) width * height;
+        return pixels * (format.isRgb565() ? 2 : 4);
+    }
+
+    /**
+     * Creates intermediate i in the given format, or in RGBA 8888 if the driver cannot render
+     * into RGB 565 textures, which GLES 2.0 does not require.
+     *
+     * @return the format actually used
+     */
+    @NonNull
+    private IntermediateFormat createFramebuffer(final int i, @NonNull final IntermediateFormat format,
+                                                 final int width, final int height) {
+        int targetWidth = format.isHalfSize() ? halfSize(width) : width;
+        int targetHeight = format.isHalfSize() ? halfSize(height) : height;
+        int previousFramebuffer = mGLState.getFramebuffer();
+        mGL.glGenFramebuffers(1, mFrameBuffers, i);
+        mGL.glGenTextures(1, mFrameBufferTextures, i);
+        mGLState.bindTexture(mFrameBufferTextures[i]);
+        allocateIntermediate(format.isRgb565(), targetWidth, targetHeight);
+        mGL.glTexParameterf(GLES20.GL_TEXTURE_2D,
+                            GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        mGL.glTexParameterf(GLES20.GL_TEXTURE_2D,
+                            GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        mGL.glTexParameterf(GLES20.GL_TEXTURE_2D,
+                            GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        mGL.glTexParameterf(GLES20.GL_TEXTURE_2D,
+                            GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+
+        mGLState.bindFramebuffer(mFrameBuffers[i]);
+        mGL.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                                   GLES20.GL_TEXTURE_2D, mFrameBufferTextures[i], 0);
+        IntermediateFormat used = format;
+        if (format.isRgb565()
+                && mGL.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER) != GLES20.GL_FRAMEBUFFER_COMPLETE) {
+            // redefining the attached texture keeps the attachment
+            allocateIntermediate(false, targetWidth, targetHeight);
+            used = IntermediateFormat.of(false, format.isHalfSize());
+        }
+        mGLResources.trackTexture(mFrameBufferTextures[i], GPUImageMemoryManager.Kind.FRAMEBUFFER,
+                                  intermediateBytes(used, width, height));
+
+        mGLState.bindFramebuffer(previousFramebuffer);
+        return used;
+    }
+
+    private void allocateIntermediate(final boolean rgb565, final int width, final int height) {
+        if (rgb565) {
+            mGL.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGB, width, height, 0,
+                             GLES20.GL_RGB, GLES20.GL_UNSIGNED_SHORT_5_6_5, null);
+        } else {
+            mGL.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0,
+                             GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+        }
+    }
+
+    private static int halfSize(final int size) {
+        return Math.max(1, (size + 1) / 2);
     }
 
     /*
@@ -180,41 +409,176 @@ public class GPUImageFilterGroup extends GPUImageFilter {
      * @see jp.co.cyberagent.android.jp.co.cyberagent.android.gpuimage.GPUImageFilter#onDraw(int,
      * java.nio.FloatBuffer, java.nio.FloatBuffer)
      */
-    @SuppressLint("WrongCall")
     @Override
     public void onDraw(final int textureId,
                        @NonNull final FloatBuffer cubeBuffer,
                        @NonNull final FloatBuffer textureBuffer) {
+        drawFilters(textureId, cubeBuffer, textureBuffer, 0, 0);
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see jp.co.cyberagent.android.jp.co.cyberagent.android.gpuimage.GPUImageFilter#onDraw(int,
+     * int, int)
+     */
+    @Override
+    public void onDraw(final int textureId, final int cubeBufferId, final int textureBufferId) {
+        drawFilters(textureId, null, null, cubeBufferId, textureBufferId);
+    }
+
+    /**
+     * Runs the merged filters. The first one draws with the given geometry, either the client
+     * side buffers or, if those are null, the given vertex buffer objects. All later passes use
+     * the shared vertex buffer objects of the context.
+     */
+    @SuppressLint("WrongCall")
+    private void drawFilters(final int textureId,
+                             @Nullable final FloatBuffer cubeBuffer,
+                             @Nullable final FloatBuffer textureBuffer,
+                             final int cubeBufferId,
+                             final int textureBufferId) {
+        Tracer.beginSection(mTraceSection);
         runPendingOnDrawTasks();
+        if (isInitialized() && mFrameBuffers == null && mOutputWidth > 0 && mOutputHeight > 0) {
+            // released by releaseIntermediates()
+            createFramebuffers(mOutputWidth, mOutputHeight);
+        }
         if (!isInitialized() || mFrameBuffers == null || mFrameBufferTextures == null) {
+            Tracer.endSection();
             return;
         }
         if (mMergedFilters != null) {
+            final RenderMetricsListener listener = mMetricsListener;
+            // the last pass draws into whatever the caller bound, e.g. an offscreen capture
+            final int outputFramebuffer = mGLState.getFramebuffer();
             int size = mMergedFilters.size();
             int previousTexture = textureId;
+            boolean reduced = false;
             for (int i = 0; i < size; i++) {
                 GPUImageFilter filter = mMergedFilters.get(i);
                 boolean isNotLast = i < size - 1;
+                boolean halfSize = isNotLast && mFrameBufferFormats[i].isHalfSize();
+                if (halfSize != reduced) {
+                    setReducedViewport(halfSize);
+                    reduced = halfSize;
+                }
                 if (isNotLast) {
-                    GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFrameBuffers[i]);
-                    GLES20.glClearColor(0, 0, 0, 0);
+                    mGLState.bindFramebuffer(mFrameBuffers[i]);
+                    if (i == 0) {
+                        // the first pass may only cover part of the target when the geometry is
+                        // clipped to the image, the rest shows the clear color as border
+                        mGL.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+                    }
                 }
 
+                long startNanos = 0;
+                long drawStartNanos = 0;
+                GPUTimer timer = null;
+                if (listener != null) {
+                    // run queued tasks up front so they are timed separately from the draw
+                    startNanos = System.nanoTime();
+                    filter.runPendingOnDrawTasks();
+                    drawStartNanos = System.nanoTime();
+                    timer = mGLResources.getGPUTimer();
+                    if (timer != null && !timer.begin(i, filter)) {
+                        timer = null;
+                    }
+                }
+
+                // Only the first pass samples the source image, later passes read intermediates
+                filter.setTextureTransform(i == 0 ? mTextureTransform : IDENTITY_TEXTURE_TRANSFORM);
                 if (i == 0) {
-                    filter.onDraw(previousTexture, cubeBuffer, textureBuffer);
-                } else if (i == size - 1) {
-                    filter.onDraw(previousTexture, mGLCubeBuffer, (size % 2 == 0) ? mGLTextureFlipBuffer : mGLTextureBuffer);
+                    if (cubeBuffer != null && textureBuffer != null) {
+                        filter.onDraw(previousTexture, cubeBuffer, textureBuffer);
+                    } else {
+                        filter.onDraw(previousTexture, cubeBufferId, textureBufferId);
+                    }
                 } else {
-                    filter.onDraw(previousTexture, mGLCubeBuffer, mGLTextureBuffer);
+                    filter.onDraw(previousTexture, mGLResources.getCubeBuffer(),
+                                  mGLResources.getTextureBuffer(Rotation.NORMAL, false,
+                                                                i == size - 1 && size % 2 == 0));
+                }
+
+                if (listener != null) {
+                    if (timer != null) {
+                        timer.end();
+                    }
+                    listener.onFilterCpuTimed(i, filter, drawStartNanos - startNanos,
+                                              System.nanoTime() - drawStartNanos);
                 }
 
                 if (isNotLast) {
-                    GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+                    mGLState.bindFramebuffer(outputFramebuffer);
                     previousTexture = mFrameBufferTextures[i];
                 }
             }
+            if (listener != null) {
+                GPUTimer timer = mGLResources.getGPUTimer();
+                if (timer != null) {
+                    timer.collect(listener);
+                }
+            }
+        }
+        Tracer.endSection();
+    }
+
+    /**
+     * Switches the viewport, and the scissor box if the scissor test is on, between the output
+     * size and the size of half-size intermediates.
+     */
+    private void setReducedViewport(final boolean reduced) {
+        if (reduced) {
+            mGL.glViewport(0, 0, halfSize(mOutputWidth), halfSize(mOutputHeight));
+            if (mGLState.isScissorEnabled()) {
+                mGLState.getScissorBox(mScissorBox);
+                int left = mScissorBox[0] / 2;
+                int bottom = mScissorBox[1] / 2;
+                mGLState.enableScissor(left, bottom,
+                                       (mScissorBox[0] + mScissorBox[2] + 1) / 2 - left,
+                                       (mScissorBox[1] + mScissorBox[3] + 1) / 2 - bottom);
+            }
+        } else {
+            mGL.glViewport(0, 0, mOutputWidth, mOutputHeight);
+            if (mGLState.isScissorEnabled()) {
+                mGLState.enableScissor(mScissorBox[0], mScissorBox[1], mScissorBox[2], mScissorBox[3]);
+            }
         }
-     }
+    }
+
+    /**
+     * Sets the cheapest intermediate format this group allows. Each intermediate uses the
+     * cheapest format allowed by both this policy and the filter writing it, see
+     * {@link GPUImageFilter#setIntermediateFormat(IntermediateFormat)}. Takes effect on the
+     * next output size change.
+     *
+     * @param policy allowed reductions, {@link IntermediateFormat#RGB_565_HALF_SIZE} by
+     *               default so filters decide, {@link IntermediateFormat#FULL} to disable
+     */
+    public void setIntermediatePolicy(@NonNull final IntermediateFormat policy) {
+        mIntermediatePolicy = policy;
+    }
+
+    @NonNull
+    public IntermediateFormat getIntermediatePolicy() {
+        return mIntermediatePolicy;
+    }
+
+    /**
+     * Sets a listener receiving the CPU and, where supported, GPU time of every merged filter.
+     * {@link GPUImageRenderer#setMetricsListener(RenderMetricsListener)} sets it on its filter
+     * group. Without a listener no timing is done at all.
+     *
+     * @param listener listener, or null to stop timing
+     */
+    public void setMetricsListener(@Nullable final RenderMetricsListener listener) {
+        mMetricsListener = listener;
+    }
+
+    @Override
+    public boolean hasTextureTransform() {
+        return mMergedFilters != null && !mMergedFilters.isEmpty()
+                && mMergedFilters.get(0).hasTextureTransform();
+    }
 
     /**
      * Gets the filters.
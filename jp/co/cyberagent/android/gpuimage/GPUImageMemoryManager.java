@@ -0,0 +1,324 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Accounts the GPU and heap memory held by the library against a budget. Allocation sites
+ * report what they hold with {@link #track(Kind, long)} and release it through the returned
+ * {@link Allocation}. Caches and pools register as {@link Evictable}s, which are asked to
+ * give memory back in priority order when the budget is exceeded or the system reports memory
+ * pressure through {@link ComponentCallbacks2}.
+ * <br>
+ * Exceeding the budget does not evict right away, the memory just allocated is usually needed
+ * by the frame being drawn. Renderers call {@link #onFrameEnd()} after each frame, which then
+ * evicts down to {@link #LOW_WATER_PERCENT} of the budget. Evictables should keep what they
+ * allocated during the current frame, see {@link #getFrame()}.
+ * <br>
+ * Thread safe. Evictables are called on the thread that ended the frame or, for memory
+ * pressure, the main thread, so they must hand GL work to their own thread.
+ */
+public class GPUImageMemoryManager implements ComponentCallbacks2 {
+    /**
+     * Evictables with lower priority values are asked first.
+     */
+    public static final int PRIORITY_CACHE = 0;
+    public static final int PRIORITY_INTERMEDIATES = 10;
+
+    public static final long DEFAULT_BUDGET = 256L * 1024 * 1024;
+
+    /**
+     * Share of the budget an eviction caused by exceeding it goes down to, so that the next
+     * allocations fit without evicting again.
+     */
+    public static final int LOW_WATER_PERCENT = 75;
+
+    private static final GPUImageMemoryManager sInstance = new GPUImageMemoryManager();
+
+    public enum Kind { TEXTURE, FRAMEBUFFER, PBUFFER, BITMAP, READBACK }
+
+    /**
+     * Something that can give memory back, e.g. a cache or the intermediates of an idle view.
+     */
+    public interface Evictable {
+        /**
+         * Releases as much as possible, possibly later on another thread.
+         *
+         * @return bytes expected to be released
+         */
+        long evict();
+    }
+
+    /**
+     * Memory reported by one allocation site.
+     */
+    public final class Allocation {
+        private final Kind mKind;
+        private final long mBytes;
+        private boolean mReleased;
+
+        Allocation(@NonNull final Kind kind, final long bytes) {
+            mKind = kind;
+            mBytes = bytes;
+        }
+
+        public long getBytes() {
+            return mBytes;
+        }
+
+        /**
+         * Reports the memory as freed. Further calls do nothing.
+         */
+        public void release() {
+            synchronized (mLock) {
+                if (mReleased) {
+                    return;
+                }
+                mReleased = true;
+                mUsedBytes[mKind.ordinal()] -= mBytes;
+            }
+        }
+    }
+
+    private static final class Entry {
+        final Evictable mEvictable;
+        final int mPriority;
+
+        Entry(@NonNull final Evictable evictable, final int priority) {
+            mEvictable = evictable;
+            mPriority = priority;
+        }
+    }
+
+    private final Object mLock = new Object();
+    private final long[] mUsedBytes = new long[Kind.values().length];
+    // sorted by priority, registration order within a priority
+    private final List<Entry> mEvictables = new ArrayList<Entry>();
+    private long mBudget = DEFAULT_BUDGET;
+    private boolean mCallbacksRegistered;
+    private long mFrame;
+    private boolean mOverBudget;
+
+    GPUImageMemoryManager() {
+    }
+
+    @NonNull
+    public static GPUImageMemoryManager getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Registers for memory pressure callbacks of the application. Further calls do nothing.
+     */
+    public void registerComponentCallbacks(@NonNull final Context context) {
+        synchronized (mLock) {
+            if (mCallbacksRegistered) {
+                return;
+            }
+            mCallbacksRegistered = true;
+        }
+        context.getApplicationContext().registerComponentCallbacks(this);
+    }
+
+    /**
+     * Sets the budget. Evicts right away if more is in use.
+     *
+     * @param bytes budget in bytes
+     */
+    public void setBudget(final long bytes) {
+        synchronized (mLock) {
+            mBudget = bytes;
+        }
+        evictOverBudget();
+    }
+
+    public long getBudget() {
+        synchronized (mLock) {
+            return mBudget;
+        }
+    }
+
+    public long getUsedBytes() {
+        synchronized (mLock) {
+            long used = 0;
+            for (long bytes : mUsedBytes) {
+                used += bytes;
+            }
+            return used;
+        }
+    }
+
+    public long getUsedBytes(@NonNull final Kind kind) {
+        synchronized (mLock) {
+            return mUsedBytes[kind.ordinal()];
+        }
+    }
+
+    /**
+     * Reports memory held by an allocation site. If this exceeds the budget, the next
+     * {@link #onFrameEnd()} evicts.
+     *
+     * @return handle to call {@link Allocation#release()} on once the memory is freed
+     */
+    @NonNull
+    public Allocation track(@NonNull final Kind kind, final long bytes) {
+        Allocation allocation = new Allocation(kind, bytes);
+        synchronized (mLock) {
+            mUsedBytes[kind.ordinal()] += bytes;
+            if (getUsedBytes() > mBudget) {
+                mOverBudget = true;
+            }
+        }
+        return allocation;
+    }
+
+    /**
+     * Ends the current frame. If an allocation exceeded the budget since the previous call
+     * and more than the budget is still in use, evicts down to {@link #LOW_WATER_PERCENT} of
+     * it. Called by the renderers after each frame, on their GL thread.
+     */
+    public void onFrameEnd() {
+        boolean evict;
+        long target;
+        synchronized (mLock) {
+            evict = mOverBudget && getUsedBytes() > mBudget;
+            mOverBudget = false;
+            target = mBudget / 100 * LOW_WATER_PERCENT;
+        }
+        if (evict) {
+            evictTo(target);
+        }
+        synchronized (mLock) {
+            mFrame++;
+        }
+    }
+
+    /**
+     * Gets the number of the current frame, which {@link #onFrameEnd()} advances. Evictables
+     * compare it with the frame they allocated in to keep memory the frame still uses.
+     *
+     * @return frame number
+     */
+    public long getFrame() {
+        synchronized (mLock) {
+            return mFrame;
+        }
+    }
+
+    /**
+     * Evicts ahead of a large allocation so that it fits into the budget, e.g. before decoding
+     * an image. The allocation itself is tracked afterwards with {@link #track(Kind, long)}.
+     *
+     * @param bytes size of the upcoming allocation
+     */
+    public void makeRoom(final long bytes) {
+        long budget;
+        long used;
+        synchronized (mLock) {
+            budget = mBudget;
+            used = getUsedBytes();
+        }
+        if (used + bytes > budget) {
+            evictTo(Math.max(0, budget - bytes));
+        }
+    }
+
+    /**
+     * Registers a cache or pool to be evicted under pressure.
+     *
+     * @param priority {@link #PRIORITY_CACHE}, {@link #PRIORITY_INTERMEDIATES} or any other
+     *                 value, lower values are evicted first
+     */
+    public void addEvictable(@NonNull final Evictable evictable, final int priority) {
+        synchronized (mLock) {
+            int index = 0;
+            while (index < mEvictables.size() && mEvictables.get(index).mPriority <= priority) {
+                index++;
+            }
+            mEvictables.add(index, new Entry(evictable, priority));
+        }
+    }
+
+    public void removeEvictable(@NonNull final Evictable evictable) {
+        synchronized (mLock) {
+            for (int i = 0; i < mEvictables.size(); i++) {
+                if (mEvictables.get(i).mEvictable == evictable) {
+                    mEvictables.remove(i);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Evicts in priority order until the expected usage is at most the given number of bytes.
+     *
+     * @return bytes expected to be released
+     */
+    public long evictTo(final long targetBytes) {
+        Entry[] entries;
+        long excess;
+        synchronized (mLock) {
+            entries = mEvictables.toArray(new Entry[mEvictables.size()]);
+            excess = getUsedBytes() - targetBytes;
+        }
+        long released = 0;
+        // evictables are called without the lock, they may track or release memory themselves
+        for (int i = 0; i < entries.length && released < excess; i++) {
+            released += entries[i].mEvictable.evict();
+        }
+        return released;
+    }
+
+    private void evictOverBudget() {
+        long budget;
+        long used;
+        synchronized (mLock) {
+            budget = mBudget;
+            used = getUsedBytes();
+        }
+        if (used > budget) {
+            evictTo(budget);
+        }
+    }
+
+    @Override
+    public void onTrimMemory(final int level) {
+        if (level >= TRIM_MEMORY_RUNNING_CRITICAL) {
+            // includes the UI hidden and background levels, nothing needs the memory right now
+            evictTo(0);
+        } else if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            evictTo(getBudget() / 2);
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        evictTo(0);
+    }
+
+    @Override
+    public void onConfigurationChanged(@NonNull final Configuration newConfig) {
+    }
+}
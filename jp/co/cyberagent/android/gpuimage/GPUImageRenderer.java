@@ -19,13 +19,13 @@ package jp.co.cyberagent.android.gpuimage;
 import android.annotation.TargetApi;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
-import android.graphics.Matrix;
 import android.graphics.PointF;
 import android.graphics.SurfaceTexture;
 import android.opengl.GLES20;
 import android.opengl.GLSurfaceView.Renderer;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.util.Log;
 import li.imagefilter.LiGPUImageFilter;
 
 import javax.microedition.khronos.egl.EGLConfig;
@@ -33,14 +33,22 @@ import javax.microedition.khronos.opengles.GL10;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Queue;
 
-import static jp.co.cyberagent.android.gpuimage.util.TextureRotationUtil.TEXTURE_NO_ROTATION;
+import jp.co.cyberagent.android.gpuimage.util.TextureClipUtil;
+import jp.co.cyberagent.android.gpuimage.util.Tracer;
+
 
 @TargetApi(11)
 public class GPUImageRenderer implements Renderer {
     public static final int NO_IMAGE = -1;
+    private static final String TAG = "GPUImageRenderer";
+    private static final int CROP_SCISSOR_MARGIN = 4;
     static final float CUBE[] = {
         -1.0f, -1.0f,
         1.0f, -1.0f,
@@ -49,6 +57,8 @@ public class GPUImageRenderer implements Renderer {
     };
 
     private GPUImageFilter mFilter;
+    // set while the filter is lent to another context, see releaseFilter(Runnable)
+    private volatile boolean mFilterReleased;
 
     public final Object mSurfaceChangedWaiter = new Object();
 
@@ -56,58 +66,106 @@ public class GPUImageRenderer implements Renderer {
     private SurfaceTexture mSurfaceTexture = null;
     private final FloatBuffer mGLCubeBuffer;
     private final FloatBuffer mGLTextureBuffer;
+    // for downsampling passes, the clip buffers above are only refilled on transform changes
+    private final FloatBuffer mRegionCubeBuffer;
+    private final FloatBuffer mRegionTextureBuffer;
+    private GLContextResources mGLResources;
+    // key of the context mGLResources belong to, null once released
+    private volatile Object mGLContext;
+    private GLBackend mGL;
+    private GPUImageStatistics mStatistics;
 
     private int mOutputWidth;
     private int mOutputHeight;
-    private int mImageWidth;
-    private int mImageHeight;
 
     private final Queue<Runnable> mRunOnDraw = new LinkedList<>();
     private final Queue<Runnable> mRunOnDrawEnd = new LinkedList<>();
-    private float mScaleRatio = 1;
-    private Rotation mRotation = Rotation.NORMAL;
-    private float mRotationAngle;
-    private Matrix transformMatrix = new Matrix();
-    private float[] transformCenter = new float[2];
+
+    // mTransform is guarded by mTransformLock and only touched by writers. Every change
+    // publishes an immutable TransformState which the GL thread picks up without locking.
+    private final Object mTransformLock = new Object();
+    private final ImageTransform mTransform = new ImageTransform();
+    private volatile TransformState mTransformState =
+            new TransformState(GPUImageFilter.IDENTITY_TEXTURE_TRANSFORM, new float[]{0, 0, 1, 1});
+    private TransformState mAppliedTransformState;
+    private boolean mAppliedTextureTransform;
     private GPUImage.ScaleType mScaleType = GPUImage.ScaleType.CENTER_CROP;
 
     private float mBackgroundRed = 0;
     private float mBackgroundGreen = 0;
     private float mBackgroundBlue = 0;
 
-    private float mCircleRadius = 0;
-    private float mTransformCenterCords[] = new float[] {.5f, .5f};
+    private volatile boolean mCropScissorEnabled;
+    private volatile boolean mMipmapsEnabled;
+    private boolean mGLTextureMipmapped;
+    // size of the image texture and of the image in it, without the padding of odd widths
+    private int mGLTextureWidth;
+    private int mGLImageWidth;
+    private int mGLImageHeight;
+    private volatile RenderMetricsListener mMetricsListener;
+    private final RendererStats mStats = new RendererStats();
+    // only touched on the GL thread
+    private final Queue<PendingCapture> mCaptures = new LinkedList<>();
 
-    private float baseScaleRatioWidth = 1f;
-    private float baseScaleRatioHeight = 1f;
 
     public GPUImageRenderer(@Nullable final GPUImageFilter filter) {
         mFilter = filter;
-        mGLCubeBuffer = ByteBuffer.allocateDirect(CUBE.length * 4)
+        mGLCubeBuffer = ByteBuffer.allocateDirect(TextureClipUtil.MAX_VERTICES * 2 * 4)
                                   .order(ByteOrder.nativeOrder())
                                   .asFloatBuffer();
-        mGLCubeBuffer.put(CUBE).position(0);
-        mGLTextureBuffer = ByteBuffer.allocateDirect(TEXTURE_NO_ROTATION.length * 4)
+        mGLTextureBuffer = ByteBuffer.allocateDirect(TextureClipUtil.MAX_VERTICES * 2 * 4)
                                      .order(ByteOrder.nativeOrder())
                                      .asFloatBuffer();
+        mRegionCubeBuffer = ByteBuffer.allocateDirect(CUBE.length * 4)
+                                      .order(ByteOrder.nativeOrder())
+                                      .asFloatBuffer();
+        mRegionCubeBuffer.put(CUBE).position(0);
+        mRegionTextureBuffer = ByteBuffer.allocateDirect(CUBE.length * 4)
+                                         .order(ByteOrder.nativeOrder())
+                                         .asFloatBuffer();
     }
 
     @Override
     public void onSurfaceCreated(@NonNull final GL10 unused, @NonNull final EGLConfig config) {
-        GLES20.glClearColor(mBackgroundRed, mBackgroundGreen, mBackgroundBlue, 1);
-        GLES20.glDisable(GLES20.GL_DEPTH_TEST);
-        mFilter.init();
+        // a new context was created, object names cached for a previous one are stale
+        Object context = OpenGlUtils.getBackend().getCurrentContext();
+        if (mGLContext != null && mGLContext != context) {
+            // the previous context was lost with its objects, nothing else releases them
+            GLContextResources.forget(mGLContext);
+        }
+        GLContextResources.forget(context);
+        mGLContext = context;
+        mGLResources = GLContextResources.current();
+        mGLResources.setStats(mStats);
+        mGL = mGLResources.getBackend();
+        mStatistics = null;
+        // the framebuffers of pending captures went away with the old context
+        while (!mCaptures.isEmpty()) {
+            PendingCapture capture = mCaptures.poll();
+            capture.readback.abandon();
+            capture.listener.response(null);
+        }
+        mGL.glClearColor(mBackgroundRed, mBackgroundGreen, mBackgroundBlue, 1);
+        mGL.glDisable(GLES20.GL_DEPTH_TEST);
+        if (!mFilterReleased) {
+            mFilter.init();
+            applyMetricsListener();
+        }
     }
 
     @Override
     public void onSurfaceChanged(@NonNull final GL10 gl, final int width, final int height) {
-        mOutputWidth = width;
-        mOutputHeight = height;
-        GLES20.glViewport(0, 0, width, height);
-        GLES20.glUseProgram(mFilter.getProgram());
-        mFilter.onOutputSizeChanged(width, height);
-        initilizeTransformMatrix();
-        adjustImageTransform();
+        synchronized (mTransformLock) {
+            mOutputWidth = width;
+            mOutputHeight = height;
+            mTransform.setOutputSize(width, height);
+            publishTransformState();
+        }
+        mGL.glViewport(0, 0, width, height);
+        if (!mFilterReleased) {
+            mGLResources.getStateCache().useProgram(mFilter.getProgram());
+            mFilter.onOutputSizeChanged(width, height);
+        }
         synchronized (mSurfaceChangedWaiter) {
             mSurfaceChangedWaiter.notifyAll();
         }
@@ -115,12 +173,720 @@ public class GPUImageRenderer implements Renderer {
 
     @Override
     public void onDrawFrame(@NonNull final GL10 gl) {
-        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
-        runAll(mRunOnDraw);
-        mFilter.onDraw(mGLTextureId, mGLCubeBuffer, mGLTextureBuffer);
-        runAll(mRunOnDrawEnd);
+        final RenderMetricsListener listener = mMetricsListener;
+        final long frameStartNanos = System.nanoTime();
+        final GLStateCache glState = mGLResources.getStateCache();
+        glState.beginFrame();
+        // the image texture and anything else queued belongs to the renderer
+        GLResourceRegistry registry = GLResourceRegistry.getInstance();
+        registry.pushOwner(this);
+        int tasksDrained;
+        try {
+            tasksDrained = runAll(mRunOnDraw);
+        } finally {
+            registry.popOwner();
+        }
+        final long runOnDrawNanos = listener != null ? System.nanoTime() - frameStartNanos : 0;
+        final TransformState transformState = mTransformState;
+        // the whole surface is cleared, the filters only shade the crop region when enabled
+        glState.disableScissor();
+        mGL.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
+        if (mCropScissorEnabled) {
+            applyCropScissor(glState, transformState.cropBox);
+        }
+        // a released filter is drawn by another context, only the background is shown
+        if (!mFilterReleased) {
+            if (listener != null && !(mFilter instanceof GPUImageFilterGroup)) {
+                // groups time each of their filters themselves
+                drawFilterTimed(listener, transformState);
+            } else {
+                drawFilter(transformState);
+            }
+        }
+        tasksDrained += runAll(mRunOnDrawEnd);
+        stepCaptures();
         if (mSurfaceTexture != null) {
             mSurfaceTexture.updateTexImage();
+            // binds the external texture behind the cache's back
+            glState.invalidate();
+        }
+        // evicts what went over the budget during the frame, after it was drawn
+        GPUImageMemoryManager.getInstance().onFrameEnd();
+        final long frameNanos = System.nanoTime() - frameStartNanos;
+        mStats.recordFrame(frameNanos, tasksDrained);
+        if (listener != null) {
+            listener.onFrameTimed(frameNanos, runOnDrawNanos);
+        }
+    }
+
+    private void drawFilter(@NonNull final TransformState transformState) {
+        final boolean hasTextureTransform = mFilter.hasTextureTransform();
+        if (hasTextureTransform) {
+            mFilter.setTextureTransform(transformState.textureTransform);
+        }
+        if (hasTextureTransform && transformState.coversOutput) {
+            // the vertex shader applies the transform, geometry stays static
+            mFilter.onDraw(mGLTextureId, mGLResources.getCubeBuffer(),
+                           mGLResources.getTextureBuffer(Rotation.NORMAL, false, false));
+        } else {
+            // only draw where the image is, the cleared background is the border
+            updateClipBuffers(transformState, hasTextureTransform);
+            mFilter.onDraw(mGLTextureId, mGLCubeBuffer, mGLTextureBuffer);
+        }
+    }
+
+    private void drawFilterTimed(@NonNull final RenderMetricsListener listener,
+                                 @NonNull final TransformState transformState) {
+        final long startNanos = System.nanoTime();
+        mFilter.runPendingOnDrawTasks();
+        final long drawStartNanos = System.nanoTime();
+        GPUTimer timer = mGLResources.getGPUTimer();
+        boolean gpuTimed = timer != null && timer.begin(0, mFilter);
+        drawFilter(transformState);
+        if (gpuTimed) {
+            timer.end();
+        }
+        listener.onFilterCpuTimed(0, mFilter, drawStartNanos - startNanos,
+                                  System.nanoTime() - drawStartNanos);
+        if (timer != null) {
+            timer.collect(listener);
+        }
+    }
+
+    /**
+     * Gets the always-on statistics of this renderer.
+     *
+     * @return statistics, updated while rendering
+     */
+    @NonNull
+    public RendererStats getStats() {
+        return mStats;
+    }
+
+    /**
+     * Releases memory that is recreated on demand: the intermediates of a filter group and the
+     * statistics stage. Must be called on the GL thread.
+     */
+    public void trimMemory() {
+        if (!mFilterReleased && mFilter instanceof GPUImageFilterGroup) {
+            ((GPUImageFilterGroup) mFilter).releaseIntermediates();
+        }
+        if (mStatistics != null) {
+            mStatistics.destroy();
+            mStatistics = null;
+        }
+    }
+
+    /**
+     * Gets the memory {@link #trimMemory()} would release, not counting intermediates created
+     * during the current frame of the {@link GPUImageMemoryManager}, which are still in use.
+     * Can be called on any thread.
+     *
+     * @return bytes, 0 if trimming now would only recreate what is released
+     */
+    public long getTrimmableBytes() {
+        GPUImageFilter filter = mFilter;
+        return !mFilterReleased && filter instanceof GPUImageFilterGroup
+                ? ((GPUImageFilterGroup) filter).getEvictableIntermediateBytes() : 0;
+    }
+
+    /**
+     * Drops the {@link GLContextResources} of the context this renderer draws into and the
+     * memory reported for its objects, once that context is destroyed for good, e.g. because
+     * its GLSurfaceView was detached from the window. Call it after the GL thread stopped; a
+     * later surface starts over in {@link #onSurfaceCreated(GL10, EGLConfig)}.
+     */
+    public void releaseGLResources() {
+        Object context = mGLContext;
+        mGLContext = null;
+        if (context != null) {
+            // the objects went away with the context
+            GLContextResources.forget(context);
+        }
+    }
+
+    /**
+     * Destroys the filter on the GL thread and stops using it, so that another context can
+     * initialize and draw it, e.g. for an export. Until {@link #setFilter(GPUImageFilter)}
+     * hands a filter back, frames only show the background and captures fail.
+     *
+     * @param released called on the GL thread once the filter is destroyed
+     */
+    public void releaseFilter(@NonNull final Runnable released) {
+        runOnDraw(new Runnable() {
+            @Override
+            public void run() {
+                if (!mFilterReleased) {
+                    mFilter.destroy();
+                }
+                mFilterReleased = true;
+                released.run();
+            }
+        });
+    }
+
+    /**
+     * Renders the current image with the current filter and transform into an offscreen
+     * framebuffer of the given size, leaving the surface and its size untouched, and reads a
+     * region of it back over the following frames, one strip per frame, so the preview keeps
+     * rendering during large captures. The transform is normalized to the output, so the
+     * result shows what the surface shows, scaled to the given size. The image is rendered on
+     * the next frame; later changes do not affect it. Can be called on any thread.
+     *
+     * @param width        width to render at
+     * @param height       height to render at
+     * @param left         left of the region to read
+     * @param top          top of the region to read, counted from the top
+     * @param regionWidth  width of the region
+     * @param regionHeight height of the region
+     * @param requestFrame called whenever another frame is needed, e.g. to request a render
+     *                     of a GLSurfaceView in RENDERMODE_WHEN_DIRTY
+     * @param listener     receives the region on the GL thread, or null if the readback
+     *                     failed, the context was lost meanwhile or the filter is released
+     */
+    public void captureInStrips(final int width, final int height, final int left, final int top,
+                                final int regionWidth, final int regionHeight,
+                                @NonNull final Runnable requestFrame,
+                                @NonNull final GPUImage.ResponseListener<Bitmap> listener) {
+        runOnDraw(new Runnable() {
+            @Override
+            public void run() {
+                if (mFilterReleased) {
+                    listener.response(null);
+                    return;
+                }
+                Tracer.beginSection("captureOffscreen");
+                StripReadback readback = renderOffscreen(width, height, left,
+                        height - top - regionHeight, regionWidth, regionHeight);
+                Tracer.endSection();
+                int[] regions = {0, 0, regionWidth, regionHeight};
+                mCaptures.add(new PendingCapture(readback, regions, requestFrame,
+                        new GPUImage.ResponseListener<Bitmap[]>() {
+                            @Override
+                            public void response(final Bitmap[] items) {
+                                listener.response(items != null ? items[0] : null);
+                            }
+                        }));
+                requestFrame.run();
+            }
+        });
+    }
+
+    /**
+     * Like {@link #captureInStrips(int, int, int, int, int, int, Runnable,
+     * GPUImage.ResponseListener)}, but captures the whole image at several sizes. The filter
+     * chain runs once, at the largest width and height; each smaller size is derived from that
+     * on the GPU by halving each side as often as it stays at least that size, then
+     * resampling it linearly. All sizes are packed into one framebuffer and read back together.
+     *
+     * @param widths       widths of the results
+     * @param heights      heights of the results
+     * @param requestFrame called whenever another frame is needed
+     * @param listener     receives the results in the given order on the GL thread, or null
+     *                     if the sizes do not fit into one texture together, the readback
+     *                     failed or the filter is released
+     */
+    public void captureSizesInStrips(@NonNull final int[] widths, @NonNull final int[] heights,
+                                     @NonNull final Runnable requestFrame,
+                                     @NonNull final GPUImage.ResponseListener<Bitmap[]> listener) {
+        if (widths.length == 0 || widths.length != heights.length) {
+            throw new IllegalArgumentException("Expected as many widths as heights");
+        }
+        final int[] sizeWidths = widths.clone();
+        final int[] sizeHeights = heights.clone();
+        runOnDraw(new Runnable() {
+            @Override
+            public void run() {
+                if (mFilterReleased) {
+                    listener.response(null);
+                    return;
+                }
+                int[] layout = packSizes(sizeWidths, sizeHeights,
+                                         mGLResources.getMaxTextureSize());
+                if (layout == null) {
+                    listener.response(null);
+                    return;
+                }
+                StripReadback readback = renderSizes(sizeWidths, sizeHeights, layout);
+                int count = sizeWidths.length;
+                int atlasHeight = layout[count * 4 + 1];
+                // the readback is top-down
+                int[] regions = new int[count * 4];
+                for (int i = 0; i < count; i++) {
+                    regions[i * 4] = layout[i * 4];
+                    regions[i * 4 + 1] = atlasHeight - layout[i * 4 + 1] - layout[i * 4 + 3];
+                    regions[i * 4 + 2] = layout[i * 4 + 2];
+                    regions[i * 4 + 3] = layout[i * 4 + 3];
+                }
+                mCaptures.add(new PendingCapture(readback, regions, requestFrame, listener));
+                requestFrame.run();
+            }
+        });
+    }
+
+    /**
+     * Packs the sizes into one framebuffer: the largest width and height, which is rendered, at
+     * the origin and all others in rows above it or in columns beside it, whichever fits in
+     * less space. Sizes equal to the rendered one or to each other share a region.
+     *
+     * @return x, y from the bottom, width and height of each size, followed by the width and
+     * height of the framebuffer, or null if it would exceed maxSize
+     */
+    @Nullable
+    static int[] packSizes(@NonNull final int[] widths, @NonNull final int[] heights,
+                           final int maxSize) {
+        int[] rows = packRows(widths, heights, maxSize);
+        int[] columns = packRows(heights, widths, maxSize);
+        if (columns != null) {
+            // transpose back
+            for (int i = 0; i < columns.length; i += 2) {
+                int swap = columns[i];
+                columns[i] = columns[i + 1];
+                columns[i + 1] = swap;
+            }
+        }
+        if (rows == null || columns == null) {
+            return rows != null ? rows : columns;
+        }
+        int count = widths.length;
+        long rowsArea = (long) rows[count * 4] * rows[count * 4 + 1];
+        long columnsArea = (long) columns[count * 4] * columns[count * 4 + 1];
+        return columnsArea < rowsArea ? columns : rows;
+    }
+
+    @Nullable
+    private static int[] packRows(@NonNull final int[] widths, @NonNull final int[] heights,
+                                  final int maxSize) {
+        int count = widths.length;
+        int renderWidth = 0;
+        int renderHeight = 0;
+        for (int i = 0; i < count; i++) {
+            renderWidth = Math.max(renderWidth, widths[i]);
+            renderHeight = Math.max(renderHeight, heights[i]);
+        }
+        if (renderWidth > maxSize || renderHeight > maxSize) {
+            return null;
+        }
+        // tallest first, so each row wastes little height
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(final Integer lhs, final Integer rhs) {
+                return heights[rhs] - heights[lhs];
+            }
+        });
+        int[] layout = new int[count * 4 + 2];
+        int x = 0;
+        int y = renderHeight;
+        int rowHeight = 0;
+        int atlasWidth = renderWidth;
+        for (int n = 0; n < count; n++) {
+            int i = order[n];
+            int width = widths[i];
+            int height = heights[i];
+            layout[i * 4 + 2] = width;
+            layout[i * 4 + 3] = height;
+            if (width == renderWidth && height == renderHeight) {
+                continue;
+            }
+            int same = -1;
+            for (int m = 0; m < n && same == -1; m++) {
+                int j = order[m];
+                if (widths[j] == width && heights[j] == height) {
+                    same = j;
+                }
+            }
+            if (same != -1) {
+                layout[i * 4] = layout[same * 4];
+                layout[i * 4 + 1] = layout[same * 4 + 1];
+                continue;
+            }
+            if (x > 0 && x + width > maxSize) {
+                y += rowHeight;
+                x = 0;
+                rowHeight = 0;
+            }
+            layout[i * 4] = x;
+            layout[i * 4 + 1] = y;
+            x += width;
+            rowHeight = Math.max(rowHeight, height);
+            atlasWidth = Math.max(atlasWidth, x);
+        }
+        int atlasHeight = y + rowHeight;
+        if (atlasHeight > maxSize) {
+            return null;
+        }
+        layout[count * 4] = atlasWidth;
+        layout[count * 4 + 1] = atlasHeight;
+        return layout;
+    }
+
+    /**
+     * Reads the next strip of every pending capture, after the frame was drawn.
+     */
+    private void stepCaptures() {
+        Iterator<PendingCapture> iterator = mCaptures.iterator();
+        while (iterator.hasNext()) {
+            PendingCapture capture = iterator.next();
+            boolean done;
+            try {
+                done = capture.readback.step();
+            } catch (RuntimeException e) {
+                // the caller may be waiting for the result, give up on this capture only
+                Log.e(TAG, "Capture readback failed", e);
+                iterator.remove();
+                capture.readback.release();
+                capture.listener.response(null);
+                continue;
+            }
+            if (done) {
+                iterator.remove();
+                capture.readback.release();
+                int[] regions = capture.regions;
+                Bitmap[] bitmaps = new Bitmap[regions.length / 4];
+                for (int i = 0; i < bitmaps.length; i++) {
+                    bitmaps[i] = createBitmap(capture.readback, regions[i * 4],
+                                              regions[i * 4 + 1], regions[i * 4 + 2],
+                                              regions[i * 4 + 3]);
+                }
+                capture.listener.response(bitmaps);
+            }
+        }
+        for (PendingCapture capture : mCaptures) {
+            capture.requestFrame.run();
+        }
+    }
+
+    /**
+     * Draws into a new framebuffer of the given size and restores the previous framebuffer,
+     * viewport and output size.
+     *
+     * @return a readback of the given region, in framebuffer coordinates, owning the
+     * framebuffer
+     */
+    @NonNull
+    private StripReadback renderOffscreen(final int width, final int height, final int x,
+                                          final int y, final int regionWidth,
+                                          final int regionHeight) {
+        // target, readback, bitmap and the filter's intermediates at that size
+        GPUImageMemoryManager.getInstance().makeRoom(
+                (long) width * height * 4 * 3 + getOffscreenIntermediateBytes(width, height));
+        int[] framebuffer = new int[1];
+        int[] texture = new int[1];
+        renderInto(width, height, width, height, framebuffer, texture);
+        return new StripReadback(mGLResources, framebuffer[0], texture[0], x, y,
+                                 regionWidth, regionHeight);
+    }
+
+    /**
+     * Renders the image once at the largest size into a framebuffer laid out by
+     * {@link #packSizes(int[], int[], int)} and fills the region of every other size by
+     * downsampling it.
+     *
+     * @return a readback of the whole framebuffer, owning it
+     */
+    @NonNull
+    private StripReadback renderSizes(@NonNull final int[] widths, @NonNull final int[] heights,
+                                      @NonNull final int[] layout) {
+        final GLStateCache glState = mGLResources.getStateCache();
+        int count = widths.length;
+        int atlasWidth = layout[count * 4];
+        int atlasHeight = layout[count * 4 + 1];
+        int renderWidth = 0;
+        int renderHeight = 0;
+        for (int i = 0; i < count; i++) {
+            renderWidth = Math.max(renderWidth, widths[i]);
+            renderHeight = Math.max(renderHeight, heights[i]);
+        }
+        // target, readback and bitmaps, the halved levels add at most a third of the render,
+        // and the filter's intermediates at the render size
+        long atlasBytes = (long) atlasWidth * atlasHeight * 4;
+        GPUImageMemoryManager.getInstance().makeRoom(
+                atlasBytes * 3 + (long) renderWidth * renderHeight * 4 / 3
+                        + getOffscreenIntermediateBytes(renderWidth, renderHeight));
+        int[] atlas = new int[1];
+        int[] atlasTexture = new int[1];
+        renderInto(atlasWidth, atlasHeight, renderWidth, renderHeight, atlas, atlasTexture);
+
+        // largest first, so each size is derived from the smallest level above it
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(final Integer lhs, final Integer rhs) {
+                long lhsArea = (long) widths[lhs] * heights[lhs];
+                long rhsArea = (long) widths[rhs] * heights[rhs];
+                return lhsArea > rhsArea ? -1 : (lhsArea == rhsArea ? 0 : 1);
+            }
+        });
+        int previousFramebuffer = glState.getFramebuffer();
+        GPUImageFilter copy = new GPUImageFilter();
+        int[] level = new int[1];
+        int[] levelTexture = new int[1];
+        try {
+            copy.init();
+            glState.disableScissor();
+            int source = atlasTexture[0];
+            int sourceWidth = renderWidth;
+            int sourceHeight = renderHeight;
+            boolean sourceIsAtlas = true;
+            boolean[] done = new boolean[count];
+            for (int n = 0; n < count; n++) {
+                int i = order[n];
+                int width = widths[i];
+                int height = heights[i];
+                int x = layout[i * 4];
+                int y = layout[i * 4 + 1];
+                if ((x == 0 && y == 0) || isFilled(layout, done, i)) {
+                    done[i] = true;
+                    continue;
+                }
+                if (!sourceIsAtlas && (sourceWidth < width || sourceHeight < height)) {
+                    // a differently shaped size before, start over from the render
+                    deleteTarget(level, levelTexture);
+                    source = atlasTexture[0];
+                    sourceWidth = renderWidth;
+                    sourceHeight = renderHeight;
+                    sourceIsAtlas = true;
+                }
+                // each axis is halved while it stays at least the size, so every pass is a
+                // 2:1 box filter and the final one scales by less than two. A framebuffer must
+                // not sample its own texture, so the render is always copied out first.
+                while (true) {
+                    boolean halveWidth = sourceWidth / 2 >= width;
+                    boolean halveHeight = sourceHeight / 2 >= height;
+                    if (!halveWidth && !halveHeight && !sourceIsAtlas) {
+                        break;
+                    }
+                    boolean halve = halveWidth || halveHeight;
+                    int levelWidth = halveWidth ? sourceWidth / 2 : (halve ? sourceWidth : width);
+                    int levelHeight = halveHeight ? sourceHeight / 2
+                                                  : (halve ? sourceHeight : height);
+                    int[] next = new int[1];
+                    int[] nextTexture = new int[1];
+                    createTarget(levelWidth, levelHeight, next, nextTexture);
+                    drawRegion(copy, source, sourceIsAtlas ? atlasWidth : sourceWidth,
+                               sourceIsAtlas ? atlasHeight : sourceHeight, sourceWidth,
+                               sourceHeight, next[0], 0, 0, levelWidth, levelHeight);
+                    deleteTarget(level, levelTexture);
+                    level[0] = next[0];
+                    levelTexture[0] = nextTexture[0];
+                    source = levelTexture[0];
+                    sourceWidth = levelWidth;
+                    sourceHeight = levelHeight;
+                    sourceIsAtlas = false;
+                }
+                drawRegion(copy, source, sourceWidth, sourceHeight, sourceWidth, sourceHeight,
+                           atlas[0], x, y, width, height);
+                done[i] = true;
+            }
+        } finally {
+            deleteTarget(level, levelTexture);
+            copy.destroy();
+            glState.bindFramebuffer(previousFramebuffer);
+            mGL.glViewport(0, 0, mOutputWidth, mOutputHeight);
+        }
+        return new StripReadback(mGLResources, atlas[0], atlasTexture[0], 0, 0, atlasWidth,
+                                 atlasHeight);
+    }
+
+    // whether a size sharing the region of size i was drawn already
+    private static boolean isFilled(@NonNull final int[] layout, @NonNull final boolean[] done,
+                                    final int i) {
+        for (int j = 0; j < done.length; j++) {
+            if (done[j] && layout[j * 4] == layout[i * 4]
+                    && layout[j * 4 + 1] == layout[i * 4 + 1]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Draws the lower left part of a texture into a region of a framebuffer, linearly
+     * filtered.
+     */
+    private void drawRegion(@NonNull final GPUImageFilter copy, final int texture,
+                            final int textureWidth, final int textureHeight,
+                            final int sourceWidth, final int sourceHeight,
+                            final int framebuffer, final int x, final int y,
+                            final int width, final int height) {
+        float right = (float) sourceWidth / textureWidth;
+        float top = (float) sourceHeight / textureHeight;
+        // both are bottom-up, so unlike bitmaps nothing is flipped
+        mRegionTextureBuffer.clear();
+        mRegionTextureBuffer.put(new float[]{0, 0, right, 0, 0, top, right, top}).position(0);
+        mGLResources.getStateCache().bindFramebuffer(framebuffer);
+        mGL.glViewport(x, y, width, height);
+        copy.onDraw(texture, mRegionCubeBuffer, mRegionTextureBuffer);
+    }
+
+    /**
+     * Renders the image with the current filter and transform into a new framebuffer of the
+     * given size, at its lower left, and restores the previous framebuffer, viewport and
+     * output size. Only called from tasks drained by {@link #onDrawFrame(GL10)}, so everything
+     * queued before the task has been applied and nothing queued after it is.
+     *
+     * @param framebuffer receives the framebuffer
+     * @param texture     receives its texture
+     */
+    private void renderInto(final int targetWidth, final int targetHeight, final int width,
+                            final int height, @NonNull final int[] framebuffer,
+                            @NonNull final int[] texture) {
+        final GLStateCache glState = mGLResources.getStateCache();
+        int previousFramebuffer = glState.getFramebuffer();
+        createTarget(targetWidth, targetHeight, framebuffer, texture);
+        boolean drawn = false;
+        try {
+            mGL.glViewport(0, 0, width, height);
+            beginOffscreenDraw(width, height);
+            // the crop scissor is in surface coordinates, the next frame sets it again
+            glState.disableScissor();
+            mGL.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+            drawFilter(mTransformState);
+            drawn = true;
+        } finally {
+            glState.bindFramebuffer(previousFramebuffer);
+            mGL.glViewport(0, 0, mOutputWidth, mOutputHeight);
+            endOffscreenDraw();
+            if (!drawn) {
+                deleteTarget(framebuffer, texture);
+            }
+        }
+    }
+
+    /**
+     * Switches the filter to the given size. A group keeps its intermediates of the output size
+     * for {@link #endOffscreenDraw()} instead of recreating them at both switches.
+     */
+    private void beginOffscreenDraw(final int width, final int height) {
+        if (mFilter instanceof GPUImageFilterGroup) {
+            ((GPUImageFilterGroup) mFilter).beginOffscreenDraw(width, height);
+        } else {
+            mFilter.onOutputSizeChanged(width, height);
+        }
+    }
+
+    private void endOffscreenDraw() {
+        if (mFilter instanceof GPUImageFilterGroup) {
+            ((GPUImageFilterGroup) mFilter).endOffscreenDraw();
+        } else {
+            mFilter.onOutputSizeChanged(mOutputWidth, mOutputHeight);
+        }
+    }
+
+    private long getOffscreenIntermediateBytes(final int width, final int height) {
+        return mFilter instanceof GPUImageFilterGroup
+                ? ((GPUImageFilterGroup) mFilter).getOffscreenIntermediateBytes(width, height) : 0;
+    }
+
+    /**
+     * Creates a framebuffer with a linearly filtered texture of the given size and leaves it
+     * bound.
+     */
+    private void createTarget(final int width, final int height,
+                              @NonNull final int[] framebuffer, @NonNull final int[] texture) {
+        final GLStateCache glState = mGLResources.getStateCache();
+        mGL.glGenFramebuffers(1, framebuffer, 0);
+        mGL.glGenTextures(1, texture, 0);
+        glState.bindTexture(texture[0]);
+        mGL.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0,
+                         GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+        mGL.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        mGL.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        mGL.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S,
+                            GLES20.GL_CLAMP_TO_EDGE);
+        mGL.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T,
+                            GLES20.GL_CLAMP_TO_EDGE);
+        mGLResources.trackTexture(texture[0], GPUImageMemoryManager.Kind.FRAMEBUFFER,
+                                  (long) width * height * 4);
+        glState.bindFramebuffer(framebuffer[0]);
+        mGL.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                                   GLES20.GL_TEXTURE_2D, texture[0], 0);
+    }
+
+    private void deleteTarget(@NonNull final int[] framebuffer, @NonNull final int[] texture) {
+        if (framebuffer[0] == 0) {
+            return;
+        }
+        final GLStateCache glState = mGLResources.getStateCache();
+        glState.deleteFramebuffers(1, framebuffer, 0);
+        glState.deleteTextures(1, texture, 0);
+        framebuffer[0] = 0;
+        texture[0] = 0;
+    }
+
+    /**
+     * Copies a region of a readback into a new bitmap.
+     *
+     * @param top top of the region, counted from the top
+     */
+    @NonNull
+    private static Bitmap createBitmap(@NonNull final StripReadback readback, final int left,
+                                       final int top, final int width, final int height) {
+        int[] pixels = readback.getPixels();
+        int offset = top * width;
+        if (width != readback.getWidth()) {
+            int[] region = new int[width * height];
+            for (int row = 0; row < height; row++) {
+                System.arraycopy(pixels, (top + row) * readback.getWidth() + left, region,
+                                 row * width, width);
+            }
+            pixels = region;
+            offset = 0;
+        }
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        bitmap.copyPixelsFromBuffer(IntBuffer.wrap(pixels, offset, width * height));
+        return bitmap;
+    }
+
+    /**
+     * Computes histograms of the current image on the GPU before the next frame is drawn. The
+     * listener is called on the GL thread, and not at all if no image is set.
+     *
+     * @param listener receives the statistics of the unfiltered image
+     */
+    public void computeStatistics(@NonNull final GPUImage.ResponseListener<ImageStatistics> listener) {
+        runOnDraw(new Runnable() {
+            @Override
+            public void run() {
+                if (mGLTextureId == NO_IMAGE) {
+                    return;
+                }
+                if (mStatistics == null) {
+                    mStatistics = new GPUImageStatistics();
+                }
+                listener.response(mStatistics.compute(mGLTextureId, mGLTextureWidth,
+                                                      mGLImageHeight, mGLImageWidth,
+                                                      mGLImageHeight));
+            }
+        });
+    }
+
+    /**
+     * Sets a listener receiving frame and per-filter timing, including the merged filters of a
+     * {@link GPUImageFilterGroup}. Without a listener no timing is done at all.
+     *
+     * @param listener listener, or null to stop timing
+     */
+    public void setMetricsListener(@Nullable final RenderMetricsListener listener) {
+        mMetricsListener = listener;
+        runOnDraw(new Runnable() {
+            @Override
+            public void run() {
+                applyMetricsListener();
+            }
+        });
+    }
+
+    private void applyMetricsListener() {
+        if (mFilter instanceof GPUImageFilterGroup) {
+            ((GPUImageFilterGroup) mFilter).setMetricsListener(mMetricsListener);
         }
     }
 
@@ -131,18 +897,103 @@ public class GPUImageRenderer implements Renderer {
      * @param green green color value
      * @param blue  red color value
      */
-    public void setBackgroundColor(float red, float green, float blue) {
+    public void setBackgroundColor(final float red, final float green, final float blue) {
         mBackgroundRed = red;
         mBackgroundGreen = green;
         mBackgroundBlue = blue;
+        runOnDraw(new Runnable() {
+            @Override
+            public void run() {
+                mGL.glClearColor(red, green, blue, 1);
+            }
+        });
     }
 
-    private void runAll(@NonNull Queue<Runnable> queue) {
+    /**
+     * Gets the color drawn where the image does not cover the output.
+     *
+     * @return red, green and blue value
+     */
+    @NonNull
+    float[] getBackgroundColor() {
+        return new float[]{mBackgroundRed, mBackgroundGreen, mBackgroundBlue};
+    }
+
+    /**
+     * Restricts all filter passes, including the intermediate framebuffers of filter groups, to
+     * the crop region set by {@link #setTransformOffsetLimit}. The area outside the crop keeps
+     * the background color, so this is meant for UIs which cover it anyway.
+     *
+     * @param enabled true to only render the crop region
+     */
+    public void setCropScissorEnabled(final boolean enabled) {
+        mCropScissorEnabled = enabled;
+    }
+
+    public boolean isCropScissorEnabled() {
+        return mCropScissorEnabled;
+    }
+
+    /**
+     * Generates mipmaps for images set afterwards and samples them trilinearly, which reduces
+     * texture bandwidth and aliasing when a large image is shown zoomed out.
+     *
+     * @param enabled true to mipmap images
+     * @see OpenGlUtils#loadTexture(Bitmap, int, boolean, boolean)
+     */
+    public void setMipmapsEnabled(final boolean enabled) {
+        mMipmapsEnabled = enabled;
+    }
+
+    public boolean isMipmapsEnabled() {
+        return mMipmapsEnabled;
+    }
+
+    private void applyCropScissor(@NonNull final GLStateCache glState, @NonNull final float[] cropBox) {
+        // grow the box a little so filters sampling neighbouring texels see rendered content
+        int left = Math.max(0, (int) Math.floor(cropBox[0] * mOutputWidth) - CROP_SCISSOR_MARGIN);
+        int top = Math.max(0, (int) Math.floor(cropBox[1] * mOutputHeight) - CROP_SCISSOR_MARGIN);
+        int right = Math.min(mOutputWidth,
+                             (int) Math.ceil(cropBox[2] * mOutputWidth) + CROP_SCISSOR_MARGIN);
+        int bottom = Math.min(mOutputHeight,
+                              (int) Math.ceil(cropBox[3] * mOutputHeight) + CROP_SCISSOR_MARGIN);
+        if (right <= left || bottom <= top) {
+            return;
+        }
+        // window coordinates start at the bottom left
+        glState.enableScissor(left, mOutputHeight - bottom, right - left, bottom - top);
+    }
+
+    /**
+     * Copies the clipped geometry into the client-side buffers. Runs on the GL thread only, so
+     * the buffers are never written while a draw call reads them.
+     */
+    private void updateClipBuffers(@NonNull final TransformState transformState,
+                                   final boolean hasTextureTransform) {
+        if (transformState == mAppliedTransformState
+                && hasTextureTransform == mAppliedTextureTransform) {
+            return;
+        }
+        int length = transformState.clipVertexCount * 2;
+        mGLCubeBuffer.clear();
+        mGLCubeBuffer.put(transformState.clipPositions, 0, length).flip();
+        mGLTextureBuffer.clear();
+        mGLTextureBuffer.put(hasTextureTransform ? transformState.clipTextureCoords
+                                                 : transformState.clipTransformedCoords,
+                             0, length).flip();
+        mAppliedTransformState = transformState;
+        mAppliedTextureTransform = hasTextureTransform;
+    }
+
+    private int runAll(@NonNull Queue<Runnable> queue) {
+        int count = 0;
         synchronized (queue) {
             while (!queue.isEmpty()) {
                 queue.poll().run();
+                count++;
             }
         }
+        return count;
     }
 
     public void setFilter(@NonNull final GPUImageFilter filter) {
@@ -152,11 +1003,14 @@ public class GPUImageRenderer implements Renderer {
             public void run() {
                 final GPUImageFilter oldFilter = mFilter;
                 mFilter = filter;
-                if (oldFilter != null) {
+                if (oldFilter != null && !mFilterReleased) {
                     oldFilter.destroy();
                 }
+                // a released filter belongs to another context until it is handed back
+                mFilterReleased = false;
                 mFilter.init();
-                GLES20.glUseProgram(mFilter.getProgram());
+                applyMetricsListener();
+                mGLResources.getStateCache().useProgram(mFilter.getProgram());
                 mFilter.onOutputSizeChanged(mOutputWidth, mOutputHeight);
             }
         });
@@ -167,7 +1021,7 @@ public class GPUImageRenderer implements Renderer {
 
             @Override
             public void run() {
-                GLES20.glDeleteTextures(1, new int[]{
+                mGLResources.getStateCache().deleteTextures(1, new int[]{
                     mGLTextureId
                 }, 0);
                 mGLTextureId = NO_IMAGE;
@@ -193,15 +1047,26 @@ public class GPUImageRenderer implements Renderer {
                     can.drawBitmap(bitmap, 0, 0, null);
                 }
 
+                boolean mipmap = mMipmapsEnabled;
+                if (mGLTextureId != NO_IMAGE && mipmap != mGLTextureMipmapped) {
+                    // the texture is updated in place, which needs the same filtering and size
+                    mGLResources.getStateCache().deleteTextures(1, new int[]{mGLTextureId}, 0);
+                    mGLTextureId = NO_IMAGE;
+                }
                 mGLTextureId = OpenGlUtils.loadTexture(
-                    resizedBitmap != null ? resizedBitmap : bitmap, mGLTextureId, recycle);
+                    resizedBitmap != null ? resizedBitmap : bitmap, mGLTextureId, recycle, mipmap);
+                mGLTextureMipmapped = mipmap;
+                mGLTextureWidth = resizedBitmap != null ? resizedBitmap.getWidth()
+                                                        : bitmap.getWidth();
+                mGLImageWidth = bitmap.getWidth();
+                mGLImageHeight = bitmap.getHeight();
                 if (resizedBitmap != null) {
                     resizedBitmap.recycle();
                 }
-                mImageWidth = bitmap.getWidth();
-                mImageHeight = bitmap.getHeight();
-                initilizeTransformMatrix();
-                adjustImageTransform();
+                synchronized (mTransformLock) {
+                    mTransform.setImageSize(bitmap.getWidth(), bitmap.getHeight());
+                    publishTransformState();
+                }
             }
         });
     }
@@ -210,6 +1075,17 @@ public class GPUImageRenderer implements Renderer {
         mScaleType = scaleType;
     }
 
+    /**
+     * Gets the GL state cache of the context this renderer draws into, which also counts the
+     * issued and elided state changes of the last frame.
+     *
+     * @return the state cache, or null before the surface was created
+     */
+    @Nullable
+    public GLStateCache getGLStateCache() {
+        return mGLResources != null ? mGLResources.getStateCache() : null;
+    }
+
     protected int getFrameWidth() {
         return mOutputWidth;
     }
@@ -218,104 +1094,46 @@ public class GPUImageRenderer implements Renderer {
         return mOutputHeight;
     }
 
-    private void initilizeTransformMatrix() {
-        if (mCircleRadius == 0) {
-            mCircleRadius = Math.min(mOutputWidth, mOutputHeight) / 2f;
-        }
-
-        // by default, the texture cords are mapped to output surface as [0,1] on both dimensions
-        float ratio1 = mImageWidth / (float) mOutputWidth;
-        float ratio2 = mImageHeight / (float) mOutputHeight;
-
-        if (mImageWidth >= mImageHeight) {
-            baseScaleRatioHeight = (float) mOutputHeight / (mCircleRadius * 2);
-            baseScaleRatioWidth = baseScaleRatioHeight * ratio2 / ratio1;
-        } else {
-            baseScaleRatioWidth = (float) mOutputWidth / (mCircleRadius * 2);
-            baseScaleRatioHeight = baseScaleRatioWidth * ratio1 / ratio2;
-        }
-
-        mRotationAngle = 0f;
-        mRotation = Rotation.NORMAL;
-        mScaleRatio = 1f;
-        transformMatrix = new Matrix();
-        transformMatrix.setScale(baseScaleRatioWidth, baseScaleRatioHeight, .5f, .5f);
-    }
-
-    private boolean adjustImageTransform() {
-        float[] cube = CUBE;
-        float[] textureCords = new float[8];
-        float[] transformCenter = new float[2];
-
-        transformMatrix.mapPoints(textureCords, TEXTURE_NO_ROTATION);
-        transformMatrix.mapPoints(transformCenter, mTransformCenterCords);
-
-        // edge detection, adjust boundaries to keep the whole image within circle
-        float imageWidthInPixel = mOutputWidth / baseScaleRatioWidth / mScaleRatio;
-        float imageHeightInPixel = mOutputHeight / baseScaleRatioHeight / mScaleRatio;
-        if(transformCenter[0] < mCircleRadius / imageWidthInPixel ) {
-            transformMatrix.postTranslate(mCircleRadius / imageWidthInPixel - transformCenter[0], 0);
-        } else if (1 - transformCenter[0] < mCircleRadius / imageWidthInPixel) {
-            transformMatrix.postTranslate(1 - transformCenter[0] - mCircleRadius / imageWidthInPixel, 0);
-        }
-
-        if(transformCenter[1] < mCircleRadius / imageHeightInPixel) {
-            transformMatrix.postTranslate(0, mCircleRadius / imageHeightInPixel - transformCenter[1]);
-        } else if (1 - transformCenter[1] < mCircleRadius / imageHeightInPixel) {
-            transformMatrix.postTranslate(0, 1 - transformCenter[1] - mCircleRadius / imageHeightInPixel);
-        }
-
-        // re-map the texture cords after boundary adjustments
-        transformMatrix.mapPoints(textureCords, TEXTURE_NO_ROTATION);
-        transformMatrix.mapPoints(transformCenter, mTransformCenterCords);
-
-        this.transformCenter = transformCenter;
-
-        mGLCubeBuffer.clear();
-        mGLCubeBuffer.put(cube).position(0);
-        mGLTextureBuffer.clear();
-        mGLTextureBuffer.put(textureCords).position(0);
-        return true;
+    private void publishTransformState() {
+        mTransformState = TransformState.of(mTransform);
     }
 
     public void setScaleFactor(float scaleFactor) {
-        float newScaleRatio = mScaleRatio / scaleFactor;
-        if (newScaleRatio >= 0.1 && newScaleRatio <= 1) {
-            transformMatrix.postScale(1f/scaleFactor, 1f/scaleFactor, transformCenter[0], transformCenter[1]);
-            mScaleRatio = newScaleRatio;
-            adjustImageTransform();
+        synchronized (mTransformLock) {
+            mTransform.setScaleFactor(scaleFactor);
+            publishTransformState();
         }
     }
 
     public void setTranslate(float x, float y) {
-        float[] transformedTranslate = new float[]{x / mOutputWidth * mScaleRatio, y / mOutputHeight * mScaleRatio};
-        Matrix matrix = new Matrix();
-        matrix.postRotate(mRotation.asInt() + mRotationAngle);
-        matrix.mapPoints(transformedTranslate);
-        transformMatrix.postTranslate(transformedTranslate[0], transformedTranslate[1]);
-        adjustImageTransform();
+        synchronized (mTransformLock) {
+            mTransform.setTranslate(x, y);
+            publishTransformState();
+        }
     }
 
     public PointF getCropTopLeft() {
-        return getCenterCoordinatesWithOffset(-mCircleRadius, -mCircleRadius);
+        return getCenterCoordinatesWithOffset(-1, -1);
     }
 
     public PointF getCropTopRight() {
-        return getCenterCoordinatesWithOffset(mCircleRadius, -mCircleRadius);
+        return getCenterCoordinatesWithOffset(1, -1);
     }
 
     public PointF getCropBottomLeft() {
-        return getCenterCoordinatesWithOffset(-mCircleRadius, mCircleRadius);
+        return getCenterCoordinatesWithOffset(-1, 1);
     }
 
     public PointF getCropBottomRight() {
-        return getCenterCoordinatesWithOffset(mCircleRadius, mCircleRadius);
+        return getCenterCoordinatesWithOffset(1, 1);
     }
 
-    // get the coordinates of a point with (offsetX, offsetY) from the transformCenter
-    private PointF getCenterCoordinatesWithOffset(float offsetX, float offsetY) {
-        float[] coords = new float[]{mTransformCenterCords[0] + offsetX / mOutputWidth, mTransformCenterCords[1] + offsetY / mOutputHeight};
-        transformMatrix.mapPoints(coords);
+    // get the coordinates of a point with (signX * radius, signY * radius) from the transformCenter
+    private PointF getCenterCoordinatesWithOffset(float signX, float signY) {
+        float[] coords = new float[2];
+        synchronized (mTransformLock) {
+            mTransform.getCropCorner(signX, signY, coords);
+        }
         return new PointF(coords[0], coords[1]);
     }
 
@@ -323,85 +1141,46 @@ public class GPUImageRenderer implements Renderer {
                                  @NonNull PointF topRight,
                                  @NonNull PointF bottomLeft,
                                  @NonNull PointF bottomRight) {
-        Matrix pointsOriginal = new Matrix();
-        pointsOriginal.setValues(new float[]{
-            mTransformCenterCords[0] - mCircleRadius / mOutputWidth,
-            mTransformCenterCords[0] + mCircleRadius / mOutputWidth,
-            mTransformCenterCords[0] - mCircleRadius / mOutputWidth,
-            mTransformCenterCords[1] - mCircleRadius / mOutputHeight,
-            mTransformCenterCords[1] - mCircleRadius / mOutputHeight,
-            mTransformCenterCords[1] + mCircleRadius / mOutputHeight,
-            1, 1, 1});
-        pointsOriginal.invert(pointsOriginal);
-        Matrix pointsAfterTransform = new Matrix();
-        pointsAfterTransform.setValues(new float[]{
-            topLeft.x, topRight.x, bottomLeft.x,
-            topLeft.y, topRight.y, bottomLeft.y,
-            1, 1, 1});
-        transformMatrix.setConcat(pointsAfterTransform, pointsOriginal);
-
-        float[] p1 = new float[]{0, 0};
-        float[] p2 = new float[]{1, 0};
-        transformMatrix.mapPoints(p1);
-        transformMatrix.mapPoints(p2);
-        float diffX = (p2[1] - p1[1])*mOutputHeight/baseScaleRatioHeight;
-        float diffY = (p2[0] - p1[0])*mOutputWidth/baseScaleRatioWidth;
-        float angle = (float) Math.toDegrees(Math.atan2(diffX, diffY));
-        mRotationAngle = ( angle + 225 ) % 90 - 45;
-        switch ((((int)angle + 405)/ 90) % 4) {
-            case 1:
-                mRotation = Rotation.ROTATION_90;
-                break;
-            case 2:
-                mRotation = Rotation.ROTATION_180;
-                break;
-            case 3:
-                mRotation = Rotation.ROTATION_270;
-                break;
-            case 0:
-            default:
-                mRotation = Rotation.NORMAL;
-                break;
-        }
-        mScaleRatio = (float) Math.sqrt(diffX * diffX + diffY * diffY) / mOutputWidth;
-        adjustImageTransform();
+        synchronized (mTransformLock) {
+            mTransform.setCropRectangle(topLeft.x, topLeft.y, topRight.x, topRight.y,
+                                        bottomLeft.x, bottomLeft.y);
+            publishTransformState();
+        }
     }
 
     public void setTransformOffsetLimit(float leftOffset, float rightOffset, float topOffset, float bottomOffset, float outputWidth, float outputHeight) {
-        mTransformCenterCords[0] = .5f + .5f * (leftOffset - rightOffset) / outputWidth;
-        mTransformCenterCords[1] = .5f + .5f * (topOffset - bottomOffset) / outputHeight;
-
-        mCircleRadius = (outputWidth - leftOffset - rightOffset) / 2;
+        synchronized (mTransformLock) {
+            mTransform.setTransformOffsetLimit(leftOffset, rightOffset, topOffset, bottomOffset,
+                                               outputWidth, outputHeight);
+            publishTransformState();
+        }
     }
 
     public void setRotationAngle(final float rotationAngle) {
-        Matrix matrix = new Matrix();
-        matrix.setScale(1f, mImageHeight/(float)mImageWidth, transformCenter[0], transformCenter[1]);
-        matrix.postRotate(rotationAngle - mRotationAngle, transformCenter[0], transformCenter[1]);
-        matrix.postScale(1f, mImageWidth/(float)mImageHeight, transformCenter[0], transformCenter[1]);
-
-        transformMatrix.postConcat(matrix);
-        adjustImageTransform();
-        mRotationAngle = rotationAngle;
+        synchronized (mTransformLock) {
+            mTransform.setRotationAngle(rotationAngle);
+            publishTransformState();
+        }
     }
 
     public float getRotationAngle() {
-        return mRotationAngle;
+        synchronized (mTransformLock) {
+            return mTransform.getRotationAngle();
+        }
     }
 
     public void rotate(boolean clockwise) {
-        setRotation(clockwise ? mRotation.clockwiseNext() : mRotation.counterClockwiseNext());
+        synchronized (mTransformLock) {
+            mTransform.rotate(clockwise);
+            publishTransformState();
+        }
     }
 
     public void setRotation(final Rotation rotation) {
-        Matrix matrix = new Matrix();
-        matrix.setScale(1f, mImageHeight/(float)mImageWidth, transformCenter[0], transformCenter[1]);
-        matrix.postRotate(rotation.asInt() - mRotation.asInt(), transformCenter[0], transformCenter[1]);
-        matrix.postScale(1f, mImageWidth/(float)mImageHeight, transformCenter[0], transformCenter[1]);
-
-        transformMatrix.postConcat(matrix);
-        adjustImageTransform();
-        mRotation = rotation;
+        synchronized (mTransformLock) {
+            mTransform.setRotation(rotation);
+            publishTransformState();
+        }
     }
 
     protected void runOnDraw(@NonNull final Runnable runnable) {
@@ -415,4 +1194,21 @@ public class GPUImageRenderer implements Renderer {
             mRunOnDrawEnd.add(runnable);
         }
     }
+
+    private static final class PendingCapture {
+        final StripReadback readback;
+        // left, top, width and height of each result in the readback
+        final int[] regions;
+        final Runnable requestFrame;
+        final GPUImage.ResponseListener<Bitmap[]> listener;
+
+        PendingCapture(@NonNull final StripReadback readback, @NonNull final int[] regions,
+                       @NonNull final Runnable requestFrame,
+                       @NonNull final GPUImage.ResponseListener<Bitmap[]> listener) {
+            this.readback = readback;
+            this.regions = regions;
+            this.requestFrame = requestFrame;
+            this.listener = listener;
+        }
+    }
 }
@@ -56,7 +56,7 @@ public class GPUImageSaturationFilter extends GPUImageFilter {
     @Override
     public void onInit() {
         super.onInit();
-        mSaturationLocation = GLES20.glGetUniformLocation(getProgram(), "saturation");
+        mSaturationLocation = mGL.glGetUniformLocation(getProgram(), "saturation");
     }
 
     @Override
@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.opengl.GLES20;
+import android.support.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import jp.co.cyberagent.android.gpuimage.util.Tracer;
+
+/**
+ * Computes {@link ImageStatistics} of a texture on the GPU. The image is point sampled on a
+ * {@link #SAMPLE_SIZE} squared grid of single texels, then every fragment of a
+ * {@link ImageStatistics#BIN_COUNT} x 2 target counts the samples falling into its bin for
+ * red, green, blue and luminance, split into a high and a low byte row. Only those 512 bytes
+ * are read back.
+ * All methods must be called on the GL thread.
+ */
+public class GPUImageStatistics {
+    public static final int SAMPLE_SIZE = 32;
+
+    private static final int BIN_COUNT = ImageStatistics.BIN_COUNT;
+
+    // one texel per sample, at the center of the texel under the grid point, so the histogram
+    // sees the real spread of levels; the bias keeps minification from picking a mipmap level
+    private static final String SAMPLE_FRAGMENT_SHADER = "" +
+            "varying highp vec2 textureCoordinate;\n" +
+            " \n" +
+            "uniform sampler2D inputImageTexture;\n" +
+            "uniform highp vec2 imageSize;\n" +
+            "uniform highp vec2 texelSize;\n" +
+            " \n" +
+            "void main()\n" +
+            "{\n" +
+            "    highp vec2 texel = floor(textureCoordinate * imageSize) + 0.5;\n" +
+            "    gl_FragColor = texture2D(inputImageTexture, texel * texelSize, -16.0);\n" +
+            "}";
+
+    private static final String HISTOGRAM_FRAGMENT_SHADER = "" +
+            "precision mediump float;\n" +
+            " \n" +
+            "uniform sampler2D inputImageTexture;\n" +
+            " \n" +
+            "const vec3 W = vec3(0.2125, 0.7154, 0.0721);\n" +
+            " \n" +
+            "void main()\n" +
+            "{\n" +
+            "    vec4 bin = vec4(floor(gl_FragCoord.x));\n" +
+            "    vec4 counts = vec4(0.0);\n" +
+            "    for (int y = 0; y < " + SAMPLE_SIZE + "; y++) {\n" +
+            "        for (int x = 0; x < " + SAMPLE_SIZE + "; x++) {\n" +
+            "            vec2 position = (vec2(float(x), float(y)) + 0.5) / " + SAMPLE_SIZE + ".0;\n" +
+            "            vec3 color = texture2D(inputImageTexture, position).rgb;\n" +
+            "            vec4 level = vec4(color, dot(color, W));\n" +
+            "            vec4 sampleBin = min(floor(level * " + BIN_COUNT + ".0), " + (BIN_COUNT - 1) + ".0);\n" +
+            "            counts += vec4(equal(sampleBin, bin));\n" +
+            "        }\n" +
+            "    }\n" +
+            "    // counts go up to " + (SAMPLE_SIZE * SAMPLE_SIZE) + ", row 0 holds the high, row 1 the low byte\n" +
+            "    vec4 high = floor(counts / 256.0);\n" +
+            "    vec4 value = gl_FragCoord.y < 1.0 ? high : counts - high * 256.0;\n" +
+            "    gl_FragColor = value / 255.0;\n" +
+            "}";
+
+    private final SampleFilter mSampleFilter = new SampleFilter();
+    private final GPUImageFilter mHistogramFilter =
+            new GPUImageFilter(GPUImageFilter.NO_FILTER_VERTEX_SHADER, HISTOGRAM_FRAGMENT_SHADER);
+    private final int[] mFramebuffers = new int[2];
+    private final int[] mTextures = new int[2];
+    private final int[] mViewport = new int[4];
+    private final ByteBuffer mResult = ByteBuffer.allocateDirect(BIN_COUNT * 2 * 4)
+                                                 .order(ByteOrder.nativeOrder());
+    private GLContextResources mGLResources;
+    private GLBackend mGL;
+    private boolean mInitialized;
+
+    /**
+     * Creates the programs and targets in the current context.
+     */
+    public void init() {
+        if (mInitialized) {
+            return;
+        }
+        mGLResources = GLContextResources.current();
+        mGL = mGLResources.getBackend();
+        mSampleFilter.init();
+        mHistogramFilter.init();
+        GLResourceRegistry registry = GLResourceRegistry.getInstance();
+        registry.pushOwner(this);
+        try {
+            mGL.glGenFramebuffers(2, mFramebuffers, 0);
+            mGL.glGenTextures(2, mTextures, 0);
+            createTarget(0, SAMPLE_SIZE, SAMPLE_SIZE);
+            createTarget(1, BIN_COUNT, 2);
+        } finally {
+            registry.popOwner();
+        }
+        mInitialized = true;
+    }
+
+    private void createTarget(final int index, final int width, final int height) {
+        GLStateCache state = mGLResources.getStateCache();
+        state.bindTexture(mTextures[index]);
+        mGL.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0,
+                         GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+        // the histogram pass reads single samples, filtering would mix neighbours
+        mGL.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
+        mGL.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
+        mGL.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        mGL.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+        state.bindFramebuffer(mFramebuffers[index]);
+        mGL.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                                   GLES20.GL_TEXTURE_2D, mTextures[index], 0);
+        state.bindFramebuffer(0);
+    }
+
+    /**
+     * Deletes the programs and targets.
+     */
+    public void destroy() {
+        if (!mInitialized) {
+            return;
+        }
+        mInitialized = false;
+        mSampleFilter.destroy();
+        mHistogramFilter.destroy();
+        GLStateCache state = mGLResources.getStateCache();
+        state.deleteTextures(2, mTextures, 0);
+        state.deleteFramebuffers(2, mFramebuffers, 0);
+        GLResourceRegistry.getInstance().checkReleased(this);
+    }
+
+    public boolean isInitialized() {
+        return mInitialized;
+    }
+
+    /**
+     * Computes the statistics of an image in a texture. Leaves the default framebuffer bound
+     * and restores the viewport.
+     *
+     * @param textureId     GL_TEXTURE_2D texture to analyse
+     * @param textureWidth  width of the texture in texels
+     * @param textureHeight height of the texture in texels
+     * @param imageWidth    width of the image, which starts at the first texel; texels right
+     *                      of it, e.g. padding, are not sampled
+     * @param imageHeight   height of the image, texels below it are not sampled
+     * @return statistics of the image
+     */
+    @NonNull
+    public ImageStatistics compute(final int textureId, final int textureWidth,
+                                   final int textureHeight, final int imageWidth,
+                                   final int imageHeight) {
+        init();
+        Tracer.beginSection("computeStatistics");
+        GLStateCache state = mGLResources.getStateCache();
+        int cubeBuffer = mGLResources.getCubeBuffer();
+        int textureBuffer = mGLResources.getTextureBuffer(Rotation.NORMAL, false, false);
+        mGL.glGetIntegerv(GLES20.GL_VIEWPORT, mViewport, 0);
+        state.disableScissor();
+
+        state.bindFramebuffer(mFramebuffers[0]);
+        mGL.glViewport(0, 0, SAMPLE_SIZE, SAMPLE_SIZE);
+        mSampleFilter.setGrid(imageWidth, imageHeight, textureWidth, textureHeight);
+        mSampleFilter.onDraw(textureId, cubeBuffer, textureBuffer);
+
+        state.bindFramebuffer(mFramebuffers[1]);
+        mGL.glViewport(0, 0, BIN_COUNT, 2);
+        mHistogramFilter.onDraw(mTextures[0], cubeBuffer, textureBuffer);
+
+        mResult.clear();
+        mGL.glReadPixels(0, 0, BIN_COUNT, 2, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, mResult);
+        mGLResources.recordReadback(mResult.capacity());
+
+        state.bindFramebuffer(0);
+        mGL.glViewport(mViewport[0], mViewport[1], mViewport[2], mViewport[3]);
+        Tracer.endSection();
+
+        int channels = ImageStatistics.Channel.values().length;
+        int[][] histograms = new int[channels][BIN_COUNT];
+        int lowRow = BIN_COUNT * 4;
+        for (int bin = 0; bin < BIN_COUNT; bin++) {
+            for (int channel = 0; channel < channels; channel++) {
+                int high = mResult.get(bin * 4 + channel) & 0xff;
+                int low = mResult.get(lowRow + bin * 4 + channel) & 0xff;
+                histograms[channel][bin] = (high << 8) | low;
+            }
+        }
+        return new ImageStatistics(histograms, SAMPLE_SIZE * SAMPLE_SIZE);
+    }
+
+    private static class SampleFilter extends GPUImageFilter {
+        // image width and height, then the size of a texel
+        private final float[] mGrid = new float[4];
+        private int mImageSizeLocation;
+        private int mTexelSizeLocation;
+
+        SampleFilter() {
+            super(NO_FILTER_VERTEX_SHADER, SAMPLE_FRAGMENT_SHADER);
+        }
+
+        @Override
+        public void onInit() {
+            super.onInit();
+            mImageSizeLocation = mGL.glGetUniformLocation(getProgram(), "imageSize");
+            mTexelSizeLocation = mGL.glGetUniformLocation(getProgram(), "texelSize");
+        }
+
+        void setGrid(final int imageWidth, final int imageHeight, final int textureWidth,
+                     final int textureHeight) {
+            mGrid[0] = imageWidth;
+            mGrid[1] = imageHeight;
+            mGrid[2] = 1.0f / textureWidth;
+            mGrid[3] = 1.0f / textureHeight;
+        }
+
+        @Override
+        protected void onDrawArraysPre() {
+            mGL.glUniform2fv(mImageSizeLocation, 1, mGrid, 0);
+            mGL.glUniform2fv(mTexelSizeLocation, 1, mGrid, 2);
+        }
+    }
+}
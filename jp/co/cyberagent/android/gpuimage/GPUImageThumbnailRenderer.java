@@ -0,0 +1,484 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.opengl.GLES20;
+import android.opengl.GLSurfaceView;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.MainThread;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import android.view.TextureView;
+import android.widget.ImageView;
+
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.microedition.khronos.egl.EGLConfig;
+import javax.microedition.khronos.opengles.GL10;
+
+/**
+ * Renders filtered thumbnails for many lightweight views from one background GL thread and one
+ * offscreen context, instead of one GLSurfaceView and context per view. Programs are shared
+ * by keeping the filters initialized between requests, and the source bitmap is uploaded once
+ * for all requests using it.
+ * <br>
+ * Requests of visible targets are rendered first, in request order. A new request for a
+ * target equal to a pending one replaces it, so recycled grid cells only render what they
+ * show now. Filters passed here belong to this renderer until {@link #release()} and must not
+ * be used with another GPUImage or view.
+ */
+public class GPUImageThumbnailRenderer {
+    private static final String TAG = "GPUImageThumbnails";
+    // programs kept alive, beyond that the least recently used filter is destroyed
+    private static final int MAX_CACHED_FILTERS = 16;
+    private static final AtomicInteger sThreadCount = new AtomicInteger();
+
+    /**
+     * Receives thumbnails on the main thread.
+     */
+    public interface Target {
+        @MainThread
+        void onThumbnail(@NonNull Bitmap thumbnail);
+    }
+
+    /**
+     * A pending thumbnail.
+     */
+    public final class Request {
+        private final Bitmap mSource;
+        private final GPUImageFilter mFilter;
+        private final Target mTarget;
+        private final long mSequence;
+        private boolean mVisible = true;
+        private volatile boolean mCancelled;
+
+        Request(@NonNull final Bitmap source, @NonNull final GPUImageFilter filter,
+                @NonNull final Target target, final long sequence) {
+            mSource = source;
+            mFilter = filter;
+            mTarget = target;
+            mSequence = sequence;
+        }
+
+        /**
+         * Moves the request behind all visible ones, or back in front, e.g. when its cell
+         * scrolls out of or into view.
+         */
+        public void setVisible(final boolean visible) {
+            synchronized (mQueue) {
+                if (mVisible != visible && mQueue.remove(this)) {
+                    mVisible = visible;
+                    mQueue.add(this);
+                } else {
+                    mVisible = visible;
+                }
+            }
+        }
+
+        /**
+         * Drops the request. The target is not called, even if rendering already started.
+         */
+        public void cancel() {
+            mCancelled = true;
+            synchronized (mQueue) {
+                mQueue.remove(this);
+            }
+        }
+
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+    }
+
+    private static final Comparator<Request> ORDER = new Comparator<Request>() {
+        @Override
+        public int compare(final Request lhs, final Request rhs) {
+            if (lhs.mVisible != rhs.mVisible) {
+                return lhs.mVisible ? -1 : 1;
+            }
+            return lhs.mSequence < rhs.mSequence ? -1 : (lhs.mSequence == rhs.mSequence ? 0 : 1);
+        }
+    };
+
+    private final int mWidth;
+    private final int mHeight;
+    private final PriorityQueue<Request> mQueue = new PriorityQueue<Request>(16, ORDER);
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final TrimCache mTrimCache = new TrimCache(this);
+    private long mSequence;
+    private Thread mThread;
+    private boolean mQuit;
+    private boolean mTrimRequested;
+
+    // only touched on the GL thread
+    private final LinkedHashMap<GPUImageFilter, Boolean> mFilters =
+            new LinkedHashMap<GPUImageFilter, Boolean>(16, 0.75f, true);
+    private final FloatBuffer mCubeBuffer;
+    private final FloatBuffer mTextureBuffer;
+    private final float[] mTextureCoordinates = new float[8];
+    private GLStateCache mGLState;
+    private Bitmap mSource;
+    private int mSourceTexture = OpenGlUtils.NO_TEXTURE;
+    private volatile long mSourceBytes;
+    // GPUImageMemoryManager frame the source was loaded in
+    private volatile long mSourceFrame;
+    private Request mDrawing;
+
+    /**
+     * @param width  width of the thumbnails
+     * @param height height of the thumbnails
+     */
+    public GPUImageThumbnailRenderer(final int width, final int height) {
+        mWidth = width;
+        mHeight = height;
+        mCubeBuffer = ByteBuffer.allocateDirect(GPUImageRenderer.CUBE.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        mCubeBuffer.put(GPUImageRenderer.CUBE).position(0);
+        mTextureBuffer = ByteBuffer.allocateDirect(mTextureCoordinates.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        GPUImageMemoryManager.getInstance().addEvictable(mTrimCache,
+                GPUImageMemoryManager.PRIORITY_CACHE);
+    }
+
+    /**
+     * Queues a thumbnail of the source with the filter applied, scaled to fill the thumbnail
+     * and cropped at the center.
+     *
+     * @param source source bitmap, which must not be recycled while requests use it
+     * @param filter filter to apply
+     * @param target receives the thumbnail
+     * @return the request, to cancel it or change its visibility
+     */
+    @NonNull
+    public Request request(@NonNull final Bitmap source, @NonNull final GPUImageFilter filter,
+                           @NonNull final Target target) {
+        synchronized (mQueue) {
+            if (mQuit) {
+                throw new IllegalStateException("Renderer was released");
+            }
+            Iterator<Request> pending = mQueue.iterator();
+            while (pending.hasNext()) {
+                Request request = pending.next();
+                if (request.mTarget.equals(target)) {
+                    request.mCancelled = true;
+                    pending.remove();
+                }
+            }
+            Request request = new Request(source, filter, target, mSequence++);
+            mQueue.add(request);
+            if (mThread == null) {
+                mThread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        renderLoop();
+                    }
+                }, TAG + "-" + sThreadCount.incrementAndGet());
+                mThread.start();
+            }
+            mQueue.notifyAll();
+            return request;
+        }
+    }
+
+    /**
+     * Drops all pending requests and destroys the filters, the source texture and the
+     * context once the request being rendered is done.
+     */
+    public void release() {
+        synchronized (mQueue) {
+            for (Request request : mQueue) {
+                request.mCancelled = true;
+            }
+            mQueue.clear();
+            mQuit = true;
+            mQueue.notifyAll();
+        }
+        GPUImageMemoryManager.getInstance().removeEvictable(mTrimCache);
+    }
+
+    /**
+     * Targets an ImageView. Requests for the same view replace each other.
+     */
+    @NonNull
+    public static Target into(@NonNull final ImageView view) {
+        return new ImageViewTarget(view);
+    }
+
+    /**
+     * Targets a TextureView, drawing the thumbnail over its whole area. Requests for the same
+     * view replace each other.
+     */
+    @NonNull
+    public static Target into(@NonNull final TextureView view) {
+        return new TextureViewTarget(view);
+    }
+
+    private void renderLoop() {
+        PixelBuffer buffer = new PixelBuffer(mWidth, mHeight);
+        buffer.setRenderer(new ThumbnailDrawer());
+        try {
+            while (true) {
+                Request request;
+                boolean trim;
+                synchronized (mQueue) {
+                    while (mQueue.isEmpty() && !mQuit && !mTrimRequested) {
+                        try {
+                            mQueue.wait();
+                        } catch (InterruptedException e) {
+                            Log.w(TAG, "Interrupted, releasing", e);
+                            mQuit = true;
+                        }
+                    }
+                    if (mQuit) {
+                        break;
+                    }
+                    trim = mTrimRequested;
+                    mTrimRequested = false;
+                    request = mQueue.poll();
+                }
+                if (trim) {
+                    trimCache();
+                }
+                if (request != null && !request.mCancelled) {
+                    render(buffer, request);
+                    GPUImageMemoryManager.getInstance().onFrameEnd();
+                }
+            }
+        } finally {
+            trimCache();
+            buffer.destroy();
+        }
+    }
+
+    private void render(@NonNull final PixelBuffer buffer, @NonNull final Request request) {
+        if (request.mSource.isRecycled()) {
+            Log.w(TAG, "Source bitmap was recycled, dropping request");
+            return;
+        }
+        if (request.mSource != mSource) {
+            deleteSource();
+            mSourceTexture = OpenGlUtils.loadTexture(request.mSource, OpenGlUtils.NO_TEXTURE,
+                    false, true);
+            mSource = request.mSource;
+            // mipmaps add a third
+            mSourceBytes = (long) mSource.getRowBytes() * mSource.getHeight() * 4 / 3;
+            mSourceFrame = GPUImageMemoryManager.getInstance().getFrame();
+            updateTextureCoordinates(mSource.getWidth(), mSource.getHeight());
+        }
+        if (mFilters.get(request.mFilter) == null) {
+            request.mFilter.init();
+            mGLState.useProgram(request.mFilter.getProgram());
+            request.mFilter.onOutputSizeChanged(mWidth, mHeight);
+            mFilters.put(request.mFilter, Boolean.TRUE);
+            destroyEldestFilters(MAX_CACHED_FILTERS);
+        }
+        mDrawing = request;
+        final Bitmap thumbnail = buffer.getBitmap();
+        mDrawing = null;
+        if (thumbnail == null) {
+            return;
+        }
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!request.mCancelled) {
+                    request.mTarget.onThumbnail(thumbnail);
+                }
+            }
+        });
+    }
+
+    /**
+     * Crops the source at the center to the aspect ratio of the thumbnails.
+     */
+    private void updateTextureCoordinates(final int sourceWidth, final int sourceHeight) {
+        float sourceAspect = (float) sourceWidth / sourceHeight;
+        float thumbnailAspect = (float) mWidth / mHeight;
+        float insetX = 0;
+        float insetY = 0;
+        if (sourceAspect > thumbnailAspect) {
+            insetX = (1 - thumbnailAspect / sourceAspect) / 2;
+        } else {
+            insetY = (1 - sourceAspect / thumbnailAspect) / 2;
+        }
+        // same orientation as TextureRotationUtil.TEXTURE_NO_ROTATION
+        float[] coordinates = mTextureCoordinates;
+        coordinates[0] = insetX;
+        coordinates[1] = 1 - insetY;
+        coordinates[2] = 1 - insetX;
+        coordinates[3] = 1 - insetY;
+        coordinates[4] = insetX;
+        coordinates[5] = insetY;
+        coordinates[6] = 1 - insetX;
+        coordinates[7] = insetY;
+        mTextureBuffer.clear();
+        mTextureBuffer.put(coordinates).position(0);
+    }
+
+    private void destroyEldestFilters(final int keep) {
+        Iterator<GPUImageFilter> filters = mFilters.keySet().iterator();
+        while (mFilters.size() > keep && filters.hasNext()) {
+            GPUImageFilter filter = filters.next();
+            filters.remove();
+            filter.destroy();
+        }
+    }
+
+    private void deleteSource() {
+        if (mSourceTexture != OpenGlUtils.NO_TEXTURE) {
+            mGLState.deleteTextures(1, new int[]{mSourceTexture}, 0);
+            mSourceTexture = OpenGlUtils.NO_TEXTURE;
+        }
+        mSource = null;
+        mSourceBytes = 0;
+    }
+
+    private void trimCache() {
+        destroyEldestFilters(0);
+        deleteSource();
+    }
+
+    private class ThumbnailDrawer implements GLSurfaceView.Renderer {
+        @Override
+        public void onSurfaceCreated(@NonNull final GL10 unused, @NonNull final EGLConfig config) {
+            GLContextResources resources = GLContextResources.current();
+            mGLState = resources.getStateCache();
+            GLBackend gl = resources.getBackend();
+            gl.glClearColor(0, 0, 0, 1);
+            gl.glDisable(GLES20.GL_DEPTH_TEST);
+        }
+
+        @Override
+        public void onSurfaceChanged(@NonNull final GL10 unused, final int width,
+                                     final int height) {
+            GLContextResources.current().getBackend().glViewport(0, 0, width, height);
+        }
+
+        @Override
+        public void onDrawFrame(@NonNull final GL10 unused) {
+            // PixelBuffer draws twice per bitmap, once is enough here
+            Request request = mDrawing;
+            if (request == null) {
+                return;
+            }
+            mDrawing = null;
+            mGLState.beginFrame();
+            mGLState.bindFramebuffer(0);
+            request.mFilter.onDraw(mSourceTexture, mCubeBuffer, mTextureBuffer);
+        }
+    }
+
+    private static class TrimCache implements GPUImageMemoryManager.Evictable {
+        private final WeakReference<GPUImageThumbnailRenderer> mRenderer;
+
+        TrimCache(@NonNull final GPUImageThumbnailRenderer renderer) {
+            mRenderer = new WeakReference<GPUImageThumbnailRenderer>(renderer);
+        }
+
+        @Override
+        public long evict() {
+            GPUImageThumbnailRenderer renderer = mRenderer.get();
+            if (renderer == null) {
+                GPUImageMemoryManager.getInstance().removeEvictable(this);
+                return 0;
+            }
+            synchronized (renderer.mQueue) {
+                if (renderer.mThread == null || renderer.mQuit
+                        || renderer.mSourceFrame >= GPUImageMemoryManager.getInstance().getFrame()) {
+                    // the source loaded for the thumbnail being drawn is still needed
+                    return 0;
+                }
+                renderer.mTrimRequested = true;
+                renderer.mQueue.notifyAll();
+            }
+            return renderer.mSourceBytes;
+        }
+    }
+
+    private static class ImageViewTarget implements Target {
+        private final ImageView mView;
+
+        ImageViewTarget(@NonNull final ImageView view) {
+            mView = view;
+        }
+
+        @Override
+        public void onThumbnail(@NonNull final Bitmap thumbnail) {
+            mView.setImageBitmap(thumbnail);
+        }
+
+        @Override
+        public boolean equals(@Nullable final Object o) {
+            return o instanceof ImageViewTarget && ((ImageViewTarget) o).mView == mView;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(mView);
+        }
+    }
+
+    private static class TextureViewTarget implements Target {
+        private final TextureView mView;
+
+        TextureViewTarget(@NonNull final TextureView view) {
+            mView = view;
+        }
+
+        @Override
+        public void onThumbnail(@NonNull final Bitmap thumbnail) {
+            if (!mView.isAvailable()) {
+                return;
+            }
+            Canvas canvas = mView.lockCanvas();
+            if (canvas == null) {
+                return;
+            }
+            try {
+                Rect bounds = new Rect(0, 0, mView.getWidth(), mView.getHeight());
+                canvas.drawBitmap(thumbnail, null, bounds, null);
+            } finally {
+                mView.unlockCanvasAndPost(canvas);
+            }
+        }
+
+        @Override
+        public boolean equals(@Nullable final Object o) {
+            return o instanceof TextureViewTarget && ((TextureViewTarget) o).mView == mView;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(mView);
+        }
+    }
+}
@@ -16,307 +16,409 @@
 
 package jp.co.cyberagent.android.gpuimage;
 
-import android.graphics.Point;
 import android.graphics.PointF;
 import android.opengl.GLES20;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Comparator;
 
+/**
+ * Maps every channel through a curve given by control points, or blends between two
+ * precomputed curves. Both curves live in the two rows of one 256x2 lookup texture and the
+ * blend is done by linear filtering between the rows, so animating between presets with
+ * {@link #setToneCurveMix(float)} only changes one uniform.
+ */
 public class GPUImageToneCurveFilter extends GPUImageFilter {
     public static final String TONE_CURVE_FRAGMENT_SHADER = "" +
             " varying highp vec2 textureCoordinate;\n" +
             " uniform sampler2D inputImageTexture;\n" +
             " uniform sampler2D toneCurveTexture;\n" +
+            " uniform lowp float toneCurveMix;\n" +
             "\n" +
             " void main()\n" +
             " {\n" +
-
-            "     if (any(lessThan(textureCoordinate, vec2(0.0,0.0))) || any(greaterThan(textureCoordinate, vec2(1.0,1.0)))) {\n" +
-            "         // apply clamp to border \n" +
-            "         gl_FragColor = vec4(0.0, 0.0, 0.0, 1.0);\n" +
-            "     } else {\n" +
-            "         lowp vec4 textureColor = texture2D(inputImageTexture, textureCoordinate);\n" +
-            "         lowp float redCurveValue = texture2D(toneCurveTexture, vec2(textureColor.r, 0.0)).r;\n" +
-            "         lowp float greenCurveValue = texture2D(toneCurveTexture, vec2(textureColor.g, 0.0)).g;\n" +
-            "         lowp float blueCurveValue = texture2D(toneCurveTexture, vec2(textureColor.b, 0.0)).b;\n" +
-            "         gl_FragColor = vec4(redCurveValue, greenCurveValue, blueCurveValue, textureColor.a);\n" +
-            "     }\n" +
+            "     lowp vec4 textureColor = texture2D(inputImageTexture, textureCoordinate);\n" +
+            "     // row centers are at 0.25 and 0.75, filtering between them blends the curves\n" +
+            "     mediump float row = 0.25 + 0.5 * toneCurveMix;\n" +
+            "     lowp float redCurveValue = texture2D(toneCurveTexture, vec2(textureColor.r, row)).r;\n" +
+            "     lowp float greenCurveValue = texture2D(toneCurveTexture, vec2(textureColor.g, row)).g;\n" +
+            "     lowp float blueCurveValue = texture2D(toneCurveTexture, vec2(textureColor.b, row)).b;\n" +
+            "     gl_FragColor = vec4(redCurveValue, greenCurveValue, blueCurveValue, textureColor.a);\n" +
             " }";
 
-    private int[] mToneCurveTexture = new int[]{OpenGlUtils.NO_TEXTURE};
-    private int mToneCurveTextureUniformLocation;
+    private static final int CURVE_SIZE = 256;
 
-    private PointF[] mRgbCompositeControlPoints;
-    private PointF[] mRedControlPoints;
-    private PointF[] mGreenControlPoints;
-    private PointF[] mBlueControlPoints;
+    /**
+     * Size in bytes of a table returned by
+     * {@link #createToneCurveTable(PointF[], PointF[], PointF[], PointF[])}.
+     */
+    public static final int TONE_CURVE_TABLE_SIZE = CURVE_SIZE * 4;
 
-    private ArrayList<Float> mRgbCompositeCurve;
-    private ArrayList<Float> mRedCurve;
-    private ArrayList<Float> mGreenCurve;
-    private ArrayList<Float> mBlueCurve;
+    private int[] mToneCurveTexture = new int[]{OpenGlUtils.NO_TEXTURE};
+    private int mToneCurveTextureUniformLocation;
+    private int mToneCurveMixUniformLocation;
+    private boolean mToneCurveTextureAllocated;
+    private volatile float mMix;
+    private float mAppliedMix;
+
+    // Curves hold the offset of the output from the input level, per input level. They, the
+    // solver, the staged texture rows and mUploadPending are guarded by mCurveLock.
+    private final Object mCurveLock = new Object();
+    private final int[] mRgbCompositeCurve = new int[CURVE_SIZE];
+    private final int[] mRedCurve = new int[CURVE_SIZE];
+    private final int[] mGreenCurve = new int[CURVE_SIZE];
+    private final int[] mBlueCurve = new int[CURVE_SIZE];
+    private final SplineSolver mSolver = new SplineSolver();
+    private final byte[] mToneCurveBytes = new byte[TONE_CURVE_TABLE_SIZE * 2];
+    private final ByteBuffer mToneCurveBuffer = ByteBuffer.wrap(mToneCurveBytes);
+    private boolean mUploadPending;
+
+    private final Runnable mUploadToneCurve = new Runnable() {
+        @Override
+        public void run() {
+            uploadToneCurveTexture();
+        }
+    };
 
 
     public GPUImageToneCurveFilter() {
         super(NO_FILTER_VERTEX_SHADER, TONE_CURVE_FRAGMENT_SHADER);
 
         PointF[] defaultCurvePoints = new PointF[]{new PointF(0.0f, 0.0f), new PointF(0.5f, 0.5f), new PointF(1.0f, 1.0f)};
-        mRgbCompositeControlPoints = defaultCurvePoints;
-        mRedControlPoints = defaultCurvePoints;
-        mGreenControlPoints = defaultCurvePoints;
-        mBlueControlPoints = defaultCurvePoints;
+        updateCurve(defaultCurvePoints, mRgbCompositeCurve);
+        updateCurve(defaultCurvePoints, mRedCurve);
+        updateCurve(defaultCurvePoints, mGreenCurve);
+        updateCurve(defaultCurvePoints, mBlueCurve);
     }
 
     @Override
     public void onInit() {
         super.onInit();
-        mToneCurveTextureUniformLocation = GLES20.glGetUniformLocation(getProgram(), "toneCurveTexture");
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE3);
-        GLES20.glGenTextures(1, mToneCurveTexture, 0);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mToneCurveTexture[0]);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
-        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+        mToneCurveTextureUniformLocation = mGL.glGetUniformLocation(getProgram(), "toneCurveTexture");
+        mToneCurveMixUniformLocation = mGL.glGetUniformLocation(getProgram(), "toneCurveMix");
+        mGLState.activeTexture(GLES20.GL_TEXTURE3);
+        mGL.glGenTextures(1, mToneCurveTexture, 0);
+        mGLState.bindTexture(mToneCurveTexture[0]);
+        mGL.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        mGL.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        mGL.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        mGL.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+        mToneCurveTextureAllocated = false;
+        // a new program starts with the uniform at 0
+        mAppliedMix = 0;
+        // the staged rows hold the latest curves or keyframes, whichever was set last
+        uploadToneCurveTexture();
     }
 
     @Override
-    public void onInitialized() {
-        super.onInitialized();
-        setRgbCompositeControlPoints(mRgbCompositeControlPoints);
-        setRedControlPoints(mRedControlPoints);
-        setGreenControlPoints(mGreenControlPoints);
-        setBlueControlPoints(mBlueControlPoints);
+    public void onDestroy() {
+        if (mToneCurveTexture[0] != OpenGlUtils.NO_TEXTURE) {
+            mGLState.deleteTextures(1, mToneCurveTexture, 0);
+            mToneCurveTexture[0] = OpenGlUtils.NO_TEXTURE;
+        }
+        mToneCurveTextureAllocated = false;
+        super.onDestroy();
     }
 
     @Override
     protected void onDrawArraysPre() {
         if (mToneCurveTexture[0] != OpenGlUtils.NO_TEXTURE) {
-            GLES20.glActiveTexture(GLES20.GL_TEXTURE3);
-            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mToneCurveTexture[0]);
-            GLES20.glUniform1i(mToneCurveTextureUniformLocation, 3);
+            mGLState.activeTexture(GLES20.GL_TEXTURE3);
+            mGLState.bindTexture(mToneCurveTexture[0]);
+            mGLState.uniform1i(mToneCurveTextureUniformLocation, 3);
+        }
+        float mix = mMix;
+        if (mix != mAppliedMix) {
+            mGL.glUniform1f(mToneCurveMixUniformLocation, mix);
+            mAppliedMix = mix;
         }
     }
 
     public void setRgbCompositeControlPoints(@Nullable PointF[] points) {
-        mRgbCompositeControlPoints = points;
-        mRgbCompositeCurve = createSplineCurve(mRgbCompositeControlPoints);
-        updateToneCurveTexture();
+        updateCurve(points, mRgbCompositeCurve);
     }
 
     public void setRedControlPoints(@Nullable PointF[] points) {
-        mRedControlPoints = points;
-        mRedCurve = createSplineCurve(mRedControlPoints);
-        updateToneCurveTexture();
+        updateCurve(points, mRedCurve);
     }
 
     public void setGreenControlPoints(@Nullable PointF[] points) {
-        mGreenControlPoints = points;
-        mGreenCurve = createSplineCurve(mGreenControlPoints);
-        updateToneCurveTexture();
+        updateCurve(points, mGreenCurve);
     }
 
     public void setBlueControlPoints(@Nullable PointF[] points) {
-        mBlueControlPoints = points;
-        mBlueCurve = createSplineCurve(mBlueControlPoints);
-        updateToneCurveTexture();
+        updateCurve(points, mBlueCurve);
     }
 
-    private void updateToneCurveTexture() {
-        runOnDraw(new Runnable() {
-            @Override
-            public void run() {
-                GLES20.glActiveTexture(GLES20.GL_TEXTURE3);
-                GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mToneCurveTexture[0]);
-
-                if ((mRedCurve.size() >= 256) && (mGreenCurve.size() >= 256) && (mBlueCurve.size() >= 256) && (mRgbCompositeCurve.size() >= 256)) {
-                    byte[] toneCurveByteArray = new byte[256 * 4];
-                    for (int currentCurveIndex = 0; currentCurveIndex < 256; currentCurveIndex++) {
-                        // BGRA for upload to texture
-                        toneCurveByteArray[currentCurveIndex * 4 + 2] = (byte) ((int) Math.min(Math.max(currentCurveIndex + mBlueCurve.get(currentCurveIndex) + mRgbCompositeCurve.get(currentCurveIndex), 0), 255) & 0xff);
-                        toneCurveByteArray[currentCurveIndex * 4 + 1] = (byte) ((int) Math.min(Math.max(currentCurveIndex + mGreenCurve.get(currentCurveIndex) + mRgbCompositeCurve.get(currentCurveIndex), 0), 255) & 0xff);
-                        toneCurveByteArray[currentCurveIndex * 4] = (byte) ((int) Math.min(Math.max(currentCurveIndex + mRedCurve.get(currentCurveIndex) + mRgbCompositeCurve.get(currentCurveIndex), 0), 255) & 0xff);
-                        toneCurveByteArray[currentCurveIndex * 4 + 3] = (byte) (255 & 0xff);
-                    }
+    /**
+     * Sets the two curves {@link #setToneCurveMix(float)} blends between, e.g. two presets
+     * precomputed with {@link #createToneCurveTable(PointF[], PointF[], PointF[], PointF[])}.
+     * Setting control points afterwards replaces both with the resulting curve. The keyframes
+     * are kept when the filter is initialized again, and may be set before it is initialized.
+     *
+     * @param from table shown at mix 0
+     * @param to   table shown at mix 1
+     */
+    public void setToneCurveKeyframes(@NonNull final byte[] from, @NonNull final byte[] to) {
+        if (from.length != TONE_CURVE_TABLE_SIZE || to.length != TONE_CURVE_TABLE_SIZE) {
+            throw new IllegalArgumentException("tone curve tables must have "
+                                                       + TONE_CURVE_TABLE_SIZE + " bytes");
+        }
+        synchronized (mCurveLock) {
+            System.arraycopy(from, 0, mToneCurveBytes, 0, TONE_CURVE_TABLE_SIZE);
+            System.arraycopy(to, 0, mToneCurveBytes, TONE_CURVE_TABLE_SIZE, TONE_CURVE_TABLE_SIZE);
+        }
+        scheduleUpload();
+    }
 
-                    GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, 256 /*width*/, 1 /*height*/, 0, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, ByteBuffer
-                        .wrap(toneCurveByteArray));
-                }
-            }
-        });
+    /**
+     * Sets how far to blend from the first to the second keyframe curve. Only updates a
+     * uniform on the next draw, so it is cheap enough to call every animation frame.
+     *
+     * @param mix 0 for the first curve, 1 for the second, clamped to that range
+     */
+    public void setToneCurveMix(final float mix) {
+        mMix = mix < 0 ? 0 : mix > 1 ? 1 : mix;
     }
 
-    @Nullable
-    private ArrayList<Float> createSplineCurve(@Nullable PointF[] points) {
-        if (points == null || points.length <= 0) {
-            return null;
-        }
+    public float getToneCurveMix() {
+        return mMix;
+    }
 
-        // Sort the array
-        PointF[] pointsSorted = points.clone();
-        Arrays.sort(pointsSorted, new Comparator<PointF>() {
-            @Override
-            public int compare(PointF point1, PointF point2) {
-                if (point1.x < point2.x) {
-                    return -1;
-                } else if (point1.x > point2.x) {
-                    return 1;
-                } else {
-                    return 0;
-                }
-            }
-        });
+    /**
+     * Computes the lookup table for the given control points, like the filter does for
+     * {@link #setRgbCompositeControlPoints(PointF[])} and the per-channel setters. Can be
+     * called on any thread, e.g. to precompute presets for
+     * {@link #setToneCurveKeyframes(byte[], byte[])}.
+     *
+     * @return RGBA table of {@link #TONE_CURVE_TABLE_SIZE} bytes
+     */
+    @NonNull
+    public static byte[] createToneCurveTable(@Nullable final PointF[] rgbComposite,
+                                              @Nullable final PointF[] red,
+                                              @Nullable final PointF[] green,
+                                              @Nullable final PointF[] blue) {
+        SplineSolver solver = new SplineSolver();
+        int[] compositeCurve = new int[CURVE_SIZE];
+        int[] redCurve = new int[CURVE_SIZE];
+        int[] greenCurve = new int[CURVE_SIZE];
+        int[] blueCurve = new int[CURVE_SIZE];
+        solver.createSplineCurve(rgbComposite, compositeCurve);
+        solver.createSplineCurve(red, redCurve);
+        solver.createSplineCurve(green, greenCurve);
+        solver.createSplineCurve(blue, blueCurve);
+        byte[] table = new byte[TONE_CURVE_TABLE_SIZE];
+        fillTable(table, 0, compositeCurve, redCurve, greenCurve, blueCurve);
+        return table;
+    }
 
-        // Convert from (0, 1) to (0, 255).
-        Point[] convertedPoints = new Point[pointsSorted.length];
-        for (int i = 0; i < points.length; i++) {
-            PointF point = pointsSorted[i];
-            convertedPoints[i] = new Point((int) (point.x * 255), (int) (point.y * 255));
+    /**
+     * Recomputes one curve and stages it in both keyframe rows.
+     */
+    private void updateCurve(@Nullable final PointF[] points, @NonNull final int[] curve) {
+        synchronized (mCurveLock) {
+            mSolver.createSplineCurve(points, curve);
+            fillTable(mToneCurveBytes, 0, mRgbCompositeCurve, mRedCurve, mGreenCurve, mBlueCurve);
+            System.arraycopy(mToneCurveBytes, 0, mToneCurveBytes, TONE_CURVE_TABLE_SIZE,
+                             TONE_CURVE_TABLE_SIZE);
         }
+        scheduleUpload();
+    }
 
-        ArrayList<Point> splinePoints = createSplineCurve2(convertedPoints);
-
-        // If we have a first point like (0.3, 0) we'll be missing some points at the beginning
-        // that should be 0.
-        Point firstSplinePoint = splinePoints.get(0);
-        if (firstSplinePoint.x > 0) {
-            for (int i = firstSplinePoint.x; i >= 0; i--) {
-                splinePoints.add(0, new Point(i, 0));
+    /**
+     * Schedules a texture upload, unless one is already pending. All changes made before the
+     * next frame go out in a single upload.
+     */
+    private void scheduleUpload() {
+        boolean schedule;
+        synchronized (mCurveLock) {
+            // before init there is no texture yet, onInit uploads the staged rows
+            schedule = isInitialized() && !mUploadPending;
+            if (schedule) {
+                mUploadPending = true;
             }
         }
-
-        // Insert points similarly at the end, if necessary.
-        Point lastSplinePoint = splinePoints.get(splinePoints.size() - 1);
-        if (lastSplinePoint.x < 255) {
-            for (int i = lastSplinePoint.x + 1; i <= 255; i++) {
-                splinePoints.add(new Point(i, 255));
-            }
+        if (schedule) {
+            runOnDraw(mUploadToneCurve);
         }
+    }
 
-        // Prepare the spline points.
-        ArrayList<Float> preparedSplinePoints = new ArrayList<Float>(splinePoints.size());
-        for (Point newPoint : splinePoints) {
-            Point origPoint = new Point(newPoint.x, newPoint.x);
-
-            float distance = (float) Math.sqrt(Math.pow((origPoint.x - newPoint.x), 2.0) + Math.pow((origPoint.y - newPoint.y), 2.0));
-
-            if (origPoint.y > newPoint.y) {
-                distance = -distance;
+    private void uploadToneCurveTexture() {
+        synchronized (mCurveLock) {
+            mUploadPending = false;
+            if (mToneCurveTexture[0] == OpenGlUtils.NO_TEXTURE) {
+                return;
+            }
+            mGLState.activeTexture(GLES20.GL_TEXTURE3);
+            mGLState.bindTexture(mToneCurveTexture[0]);
+            mToneCurveBuffer.position(0);
+            if (mToneCurveTextureAllocated) {
+                mGL.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, CURVE_SIZE, 2,
+                                    GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, mToneCurveBuffer);
+            } else {
+                mGL.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, CURVE_SIZE, 2, 0,
+                                 GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, mToneCurveBuffer);
+                mToneCurveTextureAllocated = true;
             }
-
-            preparedSplinePoints.add(distance);
         }
-
-        return preparedSplinePoints;
+        GLContextResources.current().recordUpload(mToneCurveBytes.length);
     }
 
-    @Nullable
-    private ArrayList<Point> createSplineCurve2(@Nullable Point[] points) {
-        ArrayList<Double> sdA = createSecondDerivative(points);
-
-        // Is [points count] equal to [sdA count]?
-//    int n = [points count];
-        int n = sdA.size();
-        if (n < 1) {
-            return null;
-        }
-        double sd[] = new double[n];
-
-        // From NSMutableArray to sd[n];
-        for (int i = 0; i < n; i++) {
-            sd[i] = sdA.get(i);
+    private static void fillTable(@NonNull final byte[] table, final int offset,
+                                  @NonNull final int[] compositeCurve, @NonNull final int[] redCurve,
+                                  @NonNull final int[] greenCurve, @NonNull final int[] blueCurve) {
+        for (int i = 0; i < CURVE_SIZE; i++) {
+            int composite = compositeCurve[i];
+            int index = offset + i * 4;
+            table[index] = (byte) clampLevel(i + redCurve[i] + composite);
+            table[index + 1] = (byte) clampLevel(i + greenCurve[i] + composite);
+            table[index + 2] = (byte) clampLevel(i + blueCurve[i] + composite);
+            table[index + 3] = (byte) 255;
         }
+    }
 
+    private static int clampLevel(final int level) {
+        return level < 0 ? 0 : level > 255 ? 255 : level;
+    }
 
-        ArrayList<Point> output = new ArrayList<Point>(n + 1);
-
-        for (int i = 0; i < n - 1; i++) {
-            Point cur = points[i];
-            Point next = points[i + 1];
-
-            for (int x = cur.x; x < next.x; x++) {
-                double t = (double) (x - cur.x) / (next.x - cur.x);
-
-                double a = 1 - t;
-                double b = t;
-                double h = next.x - cur.x;
-
-                double y = a * cur.y + b * next.y + (h * h / 6) * ((a * a * a - a) * sd[i] + (b * b * b - b) * sd[i + 1]);
+    /**
+     * Natural cubic spline solver reusing its scratch arrays between curves. Not thread safe.
+     */
+    private static final class SplineSolver {
+        private int[] mPointX = new int[0];
+        private int[] mPointY = new int[0];
+        private double[] mLower = new double[0];
+        private double[] mDiagonal = new double[0];
+        private double[] mUpper = new double[0];
+        private double[] mSecondDerivative = new double[0];
+
+        /**
+         * Evaluates the natural cubic spline through the given points at every level and stores
+         * the offset of the output from the input level in curve. Levels below the first point map
+         * to 0, levels above the last one to 255. No points leave the levels unchanged.
+         */
+        void createSplineCurve(@Nullable final PointF[] points, @NonNull final int[] curve) {
+            if (points == null || points.length <= 0) {
+                Arrays.fill(curve, 0);
+                return;
+            }
 
-                if (y > 255.0) {
-                    y = 255.0;
-                } else if (y < 0.0) {
-                    y = 0.0;
+            // Convert from (0, 1) to (0, 255) and sort by x, the stable insertion sort is plenty
+            // for a handful of control points
+            int n = points.length;
+            ensureCapacity(n);
+            int[] px = mPointX;
+            int[] py = mPointY;
+            for (int i = 0; i < n; i++) {
+                int x = (int) (points[i].x * 255);
+                int y = (int) (points[i].y * 255);
+                int j = i;
+                while (j > 0 && px[j - 1] > x) {
+                    px[j] = px[j - 1];
+                    py[j] = py[j - 1];
+                    j--;
                 }
+                px[j] = x;
+                py[j] = y;
+            }
 
-                output.add(new Point(x, (int) Math.round(y)));
+            double[] sd = mSecondDerivative;
+            createSecondDerivative(px, py, n, sd);
+
+            int first = px[0];
+            int last = px[n - 1];
+            int segment = 0;
+            for (int x = 0; x < CURVE_SIZE; x++) {
+                int y;
+                if (x < first) {
+                    y = 0;
+                } else if (x > last) {
+                    y = 255;
+                } else if (x == last) {
+                    y = py[n - 1];
+                } else {
+                    while (x >= px[segment + 1]) {
+                        segment++;
+                    }
+                    int curX = px[segment];
+                    int nextX = px[segment + 1];
+                    double t = (double) (x - curX) / (nextX - curX);
+                    double a = 1 - t;
+                    double b = t;
+                    double h = nextX - curX;
+                    double value = a * py[segment] + b * py[segment + 1]
+                            + (h * h / 6) * ((a * a * a - a) * sd[segment] + (b * b * b - b) * sd[segment + 1]);
+                    y = (int) Math.round(Math.min(Math.max(value, 0.0), 255.0));
+                }
+                curve[x] = y - x;
             }
         }
 
-        // If the last point is (255, 255) it doesn't get added.
-        if (output.size() == 255) {
-            output.add(points[points.length - 1]);
-        }
-        return output;
-    }
+        /**
+         * Solves the tridiagonal system for the second derivatives of a natural cubic spline.
+         */
+        private void createSecondDerivative(@NonNull final int[] px, @NonNull final int[] py,
+                                            final int n, @NonNull final double[] output) {
+            if (n <= 1) {
+                output[0] = 0;
+                return;
+            }
 
-    @Nullable
-    private ArrayList<Double> createSecondDerivative(@Nullable Point[] points) {
-        int n = points.length;
-        if (n <= 1) {
-            return null;
-        }
+            double[] lower = mLower;
+            double[] diagonal = mDiagonal;
+            double[] upper = mUpper;
+            double[] result = output;
+            // natural spline, the second derivative is 0 at both ends
+            lower[0] = 0;
+            diagonal[0] = 1;
+            upper[0] = 0;
+            result[0] = 0;
+
+            for (int i = 1; i < n - 1; i++) {
+                lower[i] = (double) (px[i] - px[i - 1]) / 6;
+                diagonal[i] = (double) (px[i + 1] - px[i - 1]) / 3;
+                upper[i] = (double) (px[i + 1] - px[i]) / 6;
+                result[i] = (double) (py[i + 1] - py[i]) / (px[i + 1] - px[i])
+                        - (double) (py[i] - py[i - 1]) / (px[i] - px[i - 1]);
+            }
 
-        double matrix[][] = new double[n][3];
-        double result[] = new double[n];
-        matrix[0][1] = 1;
-        // What about matrix[0][1] and matrix[0][0]? Assuming 0 for now (Brad L.)
-        matrix[0][0] = 0;
-        matrix[0][2] = 0;
-
-        for (int i = 1; i < n - 1; i++) {
-            Point P1 = points[i - 1];
-            Point P2 = points[i];
-            Point P3 = points[i + 1];
-
-            matrix[i][0] = (double) (P2.x - P1.x) / 6;
-            matrix[i][1] = (double) (P3.x - P1.x) / 3;
-            matrix[i][2] = (double) (P3.x - P2.x) / 6;
-            result[i] = (double) (P3.y - P2.y) / (P3.x - P2.x) - (double) (P2.y - P1.y) / (P2.x - P1.x);
-        }
+            lower[n - 1] = 0;
+            diagonal[n - 1] = 1;
+            upper[n - 1] = 0;
+            result[n - 1] = 0;
+
+            // solving pass1 (up->down)
+            for (int i = 1; i < n; i++) {
+                double k = lower[i] / diagonal[i - 1];
+                diagonal[i] -= k * upper[i - 1];
+                lower[i] = 0;
+                result[i] -= k * result[i - 1];
+            }
+            // solving pass2 (down->up)
+            for (int i = n - 2; i >= 0; i--) {
+                double k = upper[i] / diagonal[i + 1];
+                diagonal[i] -= k * lower[i + 1];
+                upper[i] = 0;
+                result[i] -= k * result[i + 1];
+            }
 
-        // What about result[0] and result[n-1]? Assuming 0 for now (Brad L.)
-        result[0] = 0;
-        result[n - 1] = 0;
-
-        matrix[n - 1][1] = 1;
-        // What about matrix[n-1][0] and matrix[n-1][2]? For now, assuming they are 0 (Brad L.)
-        matrix[n - 1][0] = 0;
-        matrix[n - 1][2] = 0;
-
-        // solving pass1 (up->down)
-        for (int i = 1; i < n; i++) {
-            double k = matrix[i][0] / matrix[i - 1][1];
-            matrix[i][1] -= k * matrix[i - 1][2];
-            matrix[i][0] = 0;
-            result[i] -= k * result[i - 1];
-        }
-        // solving pass2 (down->up)
-        for (int i = n - 2; i >= 0; i--) {
-            double k = matrix[i][2] / matrix[i + 1][1];
-            matrix[i][1] -= k * matrix[i + 1][0];
-            matrix[i][2] = 0;
-            result[i] -= k * result[i + 1];
+            for (int i = 0; i < n; i++) {
+                result[i] /= diagonal[i];
+            }
         }
 
-        ArrayList<Double> output = new ArrayList<Double>(n);
-        for (int i = 0; i < n; i++) output.add(result[i] / matrix[i][1]);
-
-        return output;
+        private void ensureCapacity(final int n) {
+            if (mPointX.length >= n) {
+                return;
+            }
+            mPointX = new int[n];
+            mPointY = new int[n];
+            mLower = new double[n];
+            mDiagonal = new double[n];
+            mUpper = new double[n];
+            mSecondDerivative = new double[n];
+        }
     }
 }
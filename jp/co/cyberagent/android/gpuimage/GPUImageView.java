@@ -18,47 +18,34 @@ package jp.co.cyberagent.android.gpuimage;
 
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.Color;
 import android.graphics.PointF;
-import android.media.MediaScannerConnection;
 import android.net.Uri;
-import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
-import android.os.AsyncTask;
-import android.os.Build;
 import android.os.Environment;
-import android.os.Handler;
 import android.os.Looper;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.util.AttributeSet;
-import android.util.Log;
 import android.view.GestureDetector;
-import android.view.Gravity;
 import android.view.MotionEvent;
 import android.view.ScaleGestureDetector;
 import android.view.View;
-import android.view.ViewTreeObserver;
 import android.widget.FrameLayout;
-import android.widget.ProgressBar;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.nio.IntBuffer;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.Callable;
 
 public class GPUImageView extends FrameLayout {
 
     private GLSurfaceView mGLSurfaceView;
     private GPUImage mGPUImage;
     private GPUImageFilter mFilter;
-    public Size mForceSize = null;
     private float mRatio = 0.0f;
 
     private ScaleGestureDetector mScaleDetector;
     private GestureDetector mDragDetector;
     private boolean mEditMode;
+    private volatile GestureTrace mGestureTrace;
 
     public GPUImageView(@NonNull Context context) {
         super(context);
@@ -71,7 +58,7 @@ public class GPUImageView extends FrameLayout {
     }
 
     private void init(@NonNull Context context, @Nullable AttributeSet attrs) {
-        mGLSurfaceView = new GPUImageGLSurfaceView(context, attrs);
+        mGLSurfaceView = new GLSurfaceView(context, attrs);
         mGLSurfaceView.setPreserveEGLContextOnPause(true);
         addView(mGLSurfaceView);
         mGPUImage = new GPUImage(getContext());
@@ -157,6 +144,10 @@ public class GPUImageView extends FrameLayout {
     }
 
     public void setRotationAngle(float angle) {
+        GestureTrace trace = mGestureTrace;
+        if (trace != null) {
+            trace.rotationAngle(angle);
+        }
         mGPUImage.setRotationAngle(angle);
         requestRender();
     }
@@ -169,6 +160,11 @@ public class GPUImageView extends FrameLayout {
                                  @NonNull PointF topRight,
                                  @NonNull PointF bottomLeft,
                                  @NonNull PointF bottomRight) {
+        GestureTrace trace = mGestureTrace;
+        if (trace != null) {
+            trace.cropRectangle(topLeft.x, topLeft.y, topRight.x, topRight.y,
+                                bottomLeft.x, bottomLeft.y);
+        }
         mGPUImage.setCropRectangle(topLeft, topRight, bottomLeft, bottomRight);
         requestRender();
     }
@@ -231,17 +227,54 @@ public class GPUImageView extends FrameLayout {
     }
 
     public void setScaleFactor(float scaleFactor) {
+        GestureTrace trace = mGestureTrace;
+        if (trace != null) {
+            trace.scale(scaleFactor);
+        }
         mGPUImage.setScaleFactor(scaleFactor);
     }
 
     public void setTransform(float x, float y) {
+        GestureTrace trace = mGestureTrace;
+        if (trace != null) {
+            trace.translate(x, y);
+        }
         mGPUImage.setTransform(x, y);
     }
 
+    /**
+     * Records all following transform gestures into the given trace, for replay by
+     * GestureTraceReplay in the benchmarks module.
+     *
+     * @param trace trace to append to, or null to stop recording
+     */
+    public void setGestureTrace(@Nullable GestureTrace trace) {
+        mGestureTrace = trace;
+    }
+
     public void setTransformOffsetLimit(float leftOffset, float rightOffset, float topOffset, float bottomOffset, float width, float height) {
         mGPUImage.setTransformOffsetLimit(leftOffset, rightOffset, topOffset, bottomOffset, width, height);
     }
 
+    /**
+     * Only renders the crop region set by setTransformOffsetLimit, for layouts that cover the
+     * area outside the crop with an overlay anyway.
+     *
+     * @param enabled true to only render the crop region
+     */
+    public void setCropScissorEnabled(boolean enabled) {
+        mGPUImage.setCropScissorEnabled(enabled);
+    }
+
+    /**
+     * Mipmaps the image, for smoother and cheaper rendering while zoomed out.
+     *
+     * @param enabled true to mipmap the image
+     */
+    public void setMipmapsEnabled(boolean enabled) {
+        mGPUImage.setMipmapsEnabled(enabled);
+    }
+
     @NonNull
     public PointF getCropTopLeft() {
         return mGPUImage.getCropTopLeft();
@@ -280,7 +313,7 @@ public class GPUImageView extends FrameLayout {
     public void saveToPictures(@NonNull final String folderName,
                                @NonNull final String fileName,
                                @Nullable final OnPictureSavedListener listener) {
-        new SaveTask(folderName, fileName, listener).execute();
+        saveToPictures(folderName, fileName, 0, 0, listener);
     }
 
     /**
@@ -300,7 +333,47 @@ public class GPUImageView extends FrameLayout {
                                @NonNull final String fileName,
                                int width, int height,
                                @Nullable final OnPictureSavedListener listener) {
-        new SaveTask(folderName, fileName, width, height, listener).execute();
+        saveToPictures(folderName, fileName, width, height, Bitmap.CompressFormat.JPEG, 80,
+                       listener);
+    }
+
+    /**
+     * Save current image with applied filter to Pictures in the given format. Saves run
+     * through the shared {@link ImageSaver}, so batches encode in parallel.
+     *
+     * @param folderName the folder name
+     * @param fileName   the file name
+     * @param width      requested output width, or 0 for the size of the view
+     * @param height     requested output height, or 0 for the size of the view
+     * @param format     JPEG, PNG or WEBP
+     * @param quality    0 - 100, ignored by lossless formats
+     * @param listener   the listener, only called on success
+     */
+    public void saveToPictures(@NonNull final String folderName,
+                               @NonNull final String fileName,
+                               final int width, final int height,
+                               @NonNull final Bitmap.CompressFormat format, final int quality,
+                               @Nullable final OnPictureSavedListener listener) {
+        File path = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES);
+        File file = new File(path, folderName + "/" + fileName);
+        ImageSaver.getInstance().save(getContext(), new Callable<Bitmap>() {
+            @Override
+            public Bitmap call() throws InterruptedException {
+                return width != 0 ? capture(width, height) : capture();
+            }
+        }, file, format, quality, new ImageSaver.Listener() {
+            @Override
+            public void onSaved(@NonNull final File file, @Nullable final Uri uri) {
+                if (listener != null && uri != null) {
+                    listener.onPictureSaved(uri);
+                }
+            }
+
+            @Override
+            public void onError(@NonNull final File file, @NonNull final Exception error) {
+                // logged by ImageSaver
+            }
+        });
     }
 
     /**
@@ -313,68 +386,11 @@ public class GPUImageView extends FrameLayout {
      */
     @Nullable
     public Bitmap capture(final int width, final int height) throws InterruptedException {
-        // This method needs to run on a background thread because it will take a longer time
+        // This method needs to run on a background thread because it waits for the GL thread
         if (Looper.myLooper() == Looper.getMainLooper()) {
             throw new IllegalStateException("Do not call this method from the UI thread!");
         }
-
-        mForceSize = new Size(width, height);
-
-        final Semaphore waiter = new Semaphore(0);
-
-        // Layout with new size
-        getViewTreeObserver().addOnGlobalLayoutListener(new ViewTreeObserver.OnGlobalLayoutListener() {
-            @Override
-            public void onGlobalLayout() {
-                if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
-                    getViewTreeObserver().removeGlobalOnLayoutListener(this);
-                } else {
-                    getViewTreeObserver().removeOnGlobalLayoutListener(this);
-                }
-                waiter.release();
-            }
-        });
-        post(new Runnable() {
-            @Override
-            public void run() {
-                // Show loading
-                addView(new LoadingView(getContext()));
-
-                mGLSurfaceView.requestLayout();
-            }
-        });
-        waiter.acquire();
-
-        // Run one render pass
-        mGPUImage.runOnGLThread(new Runnable() {
-            @Override
-            public void run() {
-                waiter.release();
-            }
-        });
-        requestRender();
-        waiter.acquire();
-        Bitmap bitmap = capture();
-
-
-        mForceSize = null;
-        post(new Runnable() {
-            @Override
-            public void run() {
-                mGLSurfaceView.requestLayout();
-            }
-        });
-        requestRender();
-
-        postDelayed(new Runnable() {
-            @Override
-            public void run() {
-                // Remove loading view
-                removeViewAt(1);
-            }
-        }, 300);
-
-        return bitmap;
+        return mGPUImage.capture(width, height);
     }
 
     /**
@@ -384,76 +400,22 @@ public class GPUImageView extends FrameLayout {
      */
     @Nullable
     public Bitmap capture() throws InterruptedException {
-        final Semaphore waiter = new Semaphore(0);
-
-        final int width = mGLSurfaceView.getMeasuredWidth();
-        final int height = mGLSurfaceView.getMeasuredHeight();
-
-        // Take picture on OpenGL thread
-        final int[] pixelMirroredArray = new int[width * height];
-        mGPUImage.runOnGLThread(new Runnable() {
-            @Override
-            public void run() {
-                final IntBuffer pixelBuffer = IntBuffer.allocate(width * height);
-                GLES20.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, pixelBuffer);
-                int[] pixelArray = pixelBuffer.array();
-
-                // Convert upside down mirror-reversed image to right-side up normal image.
-                for (int i = 0; i < height; i++) {
-                    for (int j = 0; j < width; j++) {
-                        pixelMirroredArray[(height - i - 1) * width + j] = pixelArray[i * width + j];
-                    }
-                }
-                waiter.release();
-            }
-        });
-        requestRender();
-        waiter.acquire();
-
-        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-        bitmap.copyPixelsFromBuffer(IntBuffer.wrap(pixelMirroredArray));
-        return bitmap;
+        return mGPUImage.capture(mGLSurfaceView.getMeasuredWidth(),
+                                 mGLSurfaceView.getMeasuredHeight());
     }
 
     /**
-     * Capture the current image with the size as it is displayed and retrieve it as Bitmap.
-     * @return current output as Bitmap
+     * Capture a square of the current image, as wide as the view without the horizontal
+     * padding, below the top padding, and retrieve it as Bitmap.
+     * @return the square as Bitmap
      * @throws InterruptedException
      */
     @Nullable
     public Bitmap captureCroppedWithPadding(final int paddingLeft, final int paddingTop) throws InterruptedException {
-        final Semaphore waiter = new Semaphore(0);
-
-        final int width = mGLSurfaceView.getMeasuredWidth() - paddingLeft*2;
-        final int height = width;
-        final int cropStartX = paddingLeft;
-        final int cropStartY = getHeight() - (paddingTop + height);
-
-        // Take picture on OpenGL thread
-        final int[] pixelMirroredArray = new int[width * height];
-        mGPUImage.runOnGLThread(new Runnable() {
-            @Override
-            public void run() {
-                final IntBuffer pixelBuffer = IntBuffer.allocate(width * height);
-                GLES20.glReadPixels(cropStartX, cropStartY, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, pixelBuffer);
-                int[] pixelArray = pixelBuffer.array();
-
-                // Convert upside down mirror-reversed image to right-side up normal image.
-                for (int i = 0; i < height; i++) {
-                    for (int j = 0; j < width; j++) {
-                        pixelMirroredArray[(height - i - 1) * width + j] = pixelArray[i * width + j];
-                    }
-                }
-                waiter.release();
-            }
-        });
-        requestRender();
-        Log.e("GPUImageView", "Semaphore acquire");
-        waiter.acquire();
-
-        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-        bitmap.copyPixelsFromBuffer(IntBuffer.wrap(pixelMirroredArray));
-        return bitmap;
+        final int viewWidth = mGLSurfaceView.getMeasuredWidth();
+        final int viewHeight = mGLSurfaceView.getMeasuredHeight();
+        final int width = viewWidth - paddingLeft * 2;
+        return mGPUImage.capture(viewWidth, viewHeight, paddingLeft, paddingTop, width, width);
     }
 
     /**
@@ -470,6 +432,14 @@ public class GPUImageView extends FrameLayout {
         mGLSurfaceView.onResume();
     }
 
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        // the GLSurfaceView was detached first, which stopped its GL thread and destroyed the
+        // context with all its objects
+        mGPUImage.releaseGLResources();
+    }
+
     public static class Size {
         int width;
         int height;
@@ -480,119 +450,6 @@ public class GPUImageView extends FrameLayout {
         }
     }
 
-    private class GPUImageGLSurfaceView extends GLSurfaceView {
-        public GPUImageGLSurfaceView(@NonNull Context context) {
-            super(context);
-        }
-
-        public GPUImageGLSurfaceView(@NonNull Context context, @Nullable AttributeSet attrs) {
-            super(context, attrs);
-        }
-
-        @Override
-        protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
-            if (mForceSize != null) {
-                super.onMeasure(MeasureSpec.makeMeasureSpec(mForceSize.width, MeasureSpec.EXACTLY),
-                                MeasureSpec.makeMeasureSpec(mForceSize.height, MeasureSpec.EXACTLY));
-            } else {
-                super.onMeasure(widthMeasureSpec, heightMeasureSpec);
-            }
-        }
-    }
-
-    private class LoadingView extends FrameLayout {
-        public LoadingView(@NonNull Context context) {
-            super(context);
-            init();
-        }
-
-        public LoadingView(@NonNull Context context, @Nullable AttributeSet attrs) {
-            super(context, attrs);
-            init();
-        }
-
-        public LoadingView(@NonNull Context context, @Nullable AttributeSet attrs, int defStyle) {
-            super(context, attrs, defStyle);
-            init();
-        }
-
-        private void init() {
-            ProgressBar view = new ProgressBar(getContext());
-            view.setLayoutParams(
-                    new LayoutParams(LayoutParams.WRAP_CONTENT, LayoutParams.WRAP_CONTENT, Gravity.CENTER));
-            addView(view);
-            setBackgroundColor(Color.BLACK);
-        }
-    }
-
-    private class SaveTask extends AsyncTask<Void, Void, Void> {
-        private final String mFolderName;
-        private final String mFileName;
-        private final int mWidth;
-        private final int mHeight;
-        private final OnPictureSavedListener mListener;
-        private final Handler mHandler;
-
-        public SaveTask(@NonNull final String folderName,
-                        @NonNull final String fileName,
-                        @Nullable final OnPictureSavedListener listener) {
-            this(folderName, fileName, 0, 0, listener);
-        }
-
-        public SaveTask(@NonNull final String folderName,
-                        @NonNull final String fileName, int width, int height,
-                        @Nullable final OnPictureSavedListener listener) {
-            mFolderName = folderName;
-            mFileName = fileName;
-            mWidth = width;
-            mHeight = height;
-            mListener = listener;
-            mHandler = new Handler();
-        }
-
-        @Override
-        @Nullable
-        protected Void doInBackground(@Nullable final Void... params) {
-            try {
-                Bitmap result = mWidth != 0 ? capture(mWidth, mHeight) : capture();
-                saveImage(mFolderName, mFileName, result);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-            return null;
-        }
-
-        private void saveImage(@NonNull final String folderName, @NonNull final String fileName, @NonNull final Bitmap image) {
-            File path = Environment
-                    .getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES);
-            File file = new File(path, folderName + "/" + fileName);
-            try {
-                file.getParentFile().mkdirs();
-                image.compress(Bitmap.CompressFormat.JPEG, 80, new FileOutputStream(file));
-                MediaScannerConnection.scanFile(getContext(),
-                                                new String[]{
-                                file.toString()
-                        }, null,
-                                                new MediaScannerConnection.OnScanCompletedListener() {
-                            @Override
-                            public void onScanCompleted(final String path, final Uri uri) {
-                                if (mListener != null) {
-                                    mHandler.post(new Runnable() {
-
-                                        @Override
-                                        public void run() {
-                                            mListener.onPictureSaved(uri);
-                                        }
-                                    });
-                                }
-                            }
-                        });
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
-            }
-        }
-    }
-
     public interface OnPictureSavedListener {
         void onPictureSaved(@NonNull Uri uri);
     }
@@ -75,11 +75,11 @@ public class GPUImageVignetteFilter extends GPUImageFilter {
     @Override
     public void onInit() {
         super.onInit();
-        mVignetteCenterLocation = GLES20.glGetUniformLocation(getProgram(), "vignetteCenter");
-        mVignetteColorLocation = GLES20.glGetUniformLocation(getProgram(), "vignetteColor");
-        mVignetteStartLocation = GLES20.glGetUniformLocation(getProgram(), "vignetteStart");
-        mVignetteEndLocation = GLES20.glGetUniformLocation(getProgram(), "vignetteEnd");
-        mVignetteWidthLocation = GLES20.glGetUniformLocation(getProgram(), "vignetteWidth");
+        mVignetteCenterLocation = mGL.glGetUniformLocation(getProgram(), "vignetteCenter");
+        mVignetteColorLocation = mGL.glGetUniformLocation(getProgram(), "vignetteColor");
+        mVignetteStartLocation = mGL.glGetUniformLocation(getProgram(), "vignetteStart");
+        mVignetteEndLocation = mGL.glGetUniformLocation(getProgram(), "vignetteEnd");
+        mVignetteWidthLocation = mGL.glGetUniformLocation(getProgram(), "vignetteWidth");
 
         setVignetteCenter(mVignetteCenter);
         setVignetteColor(mVignetteColor);
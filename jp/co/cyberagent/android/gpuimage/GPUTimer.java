@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.annotation.TargetApi;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * Measures the GPU time of filter passes with GL_EXT_disjoint_timer_query. Results are read
+ * back without stalling, a few frames after the pass was drawn. Must only be used on the
+ * thread the context is current on; obtain it through {@link GLContextResources#getGPUTimer()}.
+ */
+@TargetApi(18)
+final class GPUTimer {
+    private static final int GL_TIME_ELAPSED_EXT = 0x88BF;
+    private static final int GL_GPU_DISJOINT_EXT = 0x8FBB;
+    // enough for a long filter chain over the frames a driver typically queues
+    private static final int MAX_PENDING = 64;
+
+    private final int[] mQueries = new int[MAX_PENDING];
+    private final GPUImageFilter[] mFilters = new GPUImageFilter[MAX_PENDING];
+    private final int[] mIndices = new int[MAX_PENDING];
+    private final int[] mResult = new int[1];
+    private int mHead;
+    private int mCount;
+    private boolean mActive;
+
+    private GPUTimer() {
+        GLES30.glGenQueries(MAX_PENDING, mQueries, 0);
+    }
+
+    /**
+     * Creates a timer if the current context supports timer queries. The queries themselves
+     * are issued through GLES30 directly, so a backend that does not report the extension,
+     * like {@link RecordingGLBackend}, never gets a timer.
+     *
+     * @param gl backend of the current context
+     * @return timer, or null if unsupported
+     */
+    @Nullable
+    static GPUTimer create(@NonNull final GLBackend gl) {
+        if (Build.VERSION.SDK_INT < 18) {
+            return null;
+        }
+        String version = gl.glGetString(GLES20.GL_VERSION);
+        String extensions = gl.glGetString(GLES20.GL_EXTENSIONS);
+        if (version == null || !version.startsWith("OpenGL ES 3") || extensions == null
+                || !extensions.contains("GL_EXT_disjoint_timer_query")) {
+            return null;
+        }
+        return new GPUTimer();
+    }
+
+    /**
+     * Starts timing a pass. Does nothing if too many results are still pending.
+     *
+     * @return true if {@link #end()} must be called after the pass
+     */
+    boolean begin(final int index, @NonNull final GPUImageFilter filter) {
+        if (mActive || mCount == MAX_PENDING) {
+            return false;
+        }
+        int slot = (mHead + mCount) % MAX_PENDING;
+        mFilters[slot] = filter;
+        mIndices[slot] = index;
+        GLES30.glBeginQuery(GL_TIME_ELAPSED_EXT, mQueries[slot]);
+        mActive = true;
+        return true;
+    }
+
+    void end() {
+        GLES30.glEndQuery(GL_TIME_ELAPSED_EXT);
+        mActive = false;
+        mCount++;
+    }
+
+    /**
+     * Reports all results the driver has available, oldest first.
+     */
+    void collect(@NonNull final RenderMetricsListener listener) {
+        GLES20.glGetIntegerv(GL_GPU_DISJOINT_EXT, mResult, 0);
+        boolean disjoint = mResult[0] != 0;
+        while (mCount > 0) {
+            int query = mQueries[mHead];
+            GLES30.glGetQueryObjectuiv(query, GLES30.GL_QUERY_RESULT_AVAILABLE, mResult, 0);
+            if (mResult[0] == 0) {
+                break;
+            }
+            GLES30.glGetQueryObjectuiv(query, GLES30.GL_QUERY_RESULT, mResult, 0);
+            // results overlapping a disjoint event, e.g. a frequency change, are meaningless
+            if (!disjoint) {
+                listener.onFilterGpuTimed(mIndices[mHead], mFilters[mHead],
+                                          mResult[0] & 0xFFFFFFFFL);
+            }
+            mFilters[mHead] = null;
+            mHead = (mHead + 1) % MAX_PENDING;
+            mCount--;
+        }
+    }
+
+    void release() {
+        GLES30.glDeleteQueries(MAX_PENDING, mQueries, 0);
+        mCount = 0;
+        for (int i = 0; i < MAX_PENDING; i++) {
+            mFilters[i] = null;
+        }
+    }
+}
@@ -0,0 +1,343 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.support.annotation.NonNull;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A recorded sequence of transform gestures, as GPUImageView's scale and drag listeners issue
+ * them, for replay by GestureTraceReplay in the benchmarks module. Record one from a live view
+ * with {@link GPUImageView#setGestureTrace(GestureTrace)} and save it with
+ * {@link #write(Writer)}.
+ * <br>
+ * The text format has one command per line, '#' starts a comment:
+ * <pre>
+ * output 1080 1920
+ * image 3024 4032
+ * offsets 40 40 460 460 1080 1920
+ * scale 1.02
+ * translate -12.5 3.0
+ * angle 1.5
+ * crop 0.1 0.2 0.8 0.2 0.1 0.7
+ * </pre>
+ */
+public class GestureTrace {
+    public static final int SCALE = 0;
+    public static final int TRANSLATE = 1;
+    public static final int ROTATION_ANGLE = 2;
+    public static final int CROP_RECTANGLE = 3;
+
+    private static final int ARGS_PER_EVENT = 6;
+
+    @NonNull
+    private final String mName;
+    private int mOutputWidth;
+    private int mOutputHeight;
+    private int mImageWidth;
+    private int mImageHeight;
+    private float[] mOffsetLimit;
+    private int[] mTypes = new int[64];
+    private float[] mArgs = new float[64 * ARGS_PER_EVENT];
+    private int mCount;
+
+    public GestureTrace(@NonNull final String name, final int outputWidth, final int outputHeight,
+                        final int imageWidth, final int imageHeight) {
+        mName = name;
+        mOutputWidth = outputWidth;
+        mOutputHeight = outputHeight;
+        mImageWidth = imageWidth;
+        mImageHeight = imageHeight;
+    }
+
+    @NonNull
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Gets the number of recorded gesture events.
+     */
+    public synchronized int size() {
+        return mCount;
+    }
+
+    public synchronized void setTransformOffsetLimit(final float leftOffset, final float rightOffset,
+                                                     final float topOffset, final float bottomOffset,
+                                                     final float width, final float height) {
+        mOffsetLimit = new float[]{leftOffset, rightOffset, topOffset, bottomOffset, width, height};
+    }
+
+    public void scale(final float scaleFactor) {
+        add(SCALE, scaleFactor, 0, 0, 0, 0, 0);
+    }
+
+    public void translate(final float x, final float y) {
+        add(TRANSLATE, x, y, 0, 0, 0, 0);
+    }
+
+    public void rotationAngle(final float angle) {
+        add(ROTATION_ANGLE, angle, 0, 0, 0, 0, 0);
+    }
+
+    public void cropRectangle(final float topLeftX, final float topLeftY,
+                              final float topRightX, final float topRightY,
+                              final float bottomLeftX, final float bottomLeftY) {
+        add(CROP_RECTANGLE, topLeftX, topLeftY, topRightX, topRightY, bottomLeftX, bottomLeftY);
+    }
+
+    /**
+     * Resets a transform to the state the trace was recorded from.
+     */
+    public synchronized void prepare(@NonNull final ImageTransform transform) {
+        if (mOffsetLimit != null) {
+            transform.setTransformOffsetLimit(mOffsetLimit[0], mOffsetLimit[1], mOffsetLimit[2],
+                                              mOffsetLimit[3], mOffsetLimit[4], mOffsetLimit[5]);
+        }
+        transform.setOutputSize(mOutputWidth, mOutputHeight);
+        transform.setImageSize(mImageWidth, mImageHeight);
+    }
+
+    /**
+     * Applies one recorded event to a transform.
+     */
+    public synchronized void apply(final int index, @NonNull final ImageTransform transform) {
+        int offset = index * ARGS_PER_EVENT;
+        float[] args = mArgs;
+        switch (mTypes[index]) {
+            case SCALE:
+                transform.setScaleFactor(args[offset]);
+                break;
+            case TRANSLATE:
+                transform.setTranslate(args[offset], args[offset + 1]);
+                break;
+            case ROTATION_ANGLE:
+                transform.setRotationAngle(args[offset]);
+                break;
+            case CROP_RECTANGLE:
+                transform.setCropRectangle(args[offset], args[offset + 1], args[offset + 2],
+                                           args[offset + 3], args[offset + 4], args[offset + 5]);
+                break;
+            default:
+                throw new IllegalStateException("Unknown event type " + mTypes[index]);
+        }
+    }
+
+    /**
+     * Reads a trace in the text format described above.
+     *
+     * @throws IOException if reading fails or the input is malformed
+     */
+    @NonNull
+    public static GestureTrace read(@NonNull final String name, @NonNull final Reader reader)
+            throws IOException {
+        BufferedReader lines = new BufferedReader(reader);
+        GestureTrace trace = new GestureTrace(name, 0, 0, 0, 0);
+        String line;
+        int lineNumber = 0;
+        while ((line = lines.readLine()) != null) {
+            lineNumber++;
+            int comment = line.indexOf('#');
+            if (comment >= 0) {
+                line = line.substring(0, comment);
+            }
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            String[] parts = line.split("\\s+");
+            float[] values = new float[parts.length - 1];
+            try {
+                for (int i = 1; i < parts.length; i++) {
+                    values[i - 1] = Float.parseFloat(parts[i]);
+                }
+            } catch (NumberFormatException e) {
+                throw new IOException("Line " + lineNumber + ": " + e.getMessage());
+            }
+            String command = parts[0];
+            if (command.equals("output") && values.length == 2) {
+                trace.mOutputWidth = (int) values[0];
+                trace.mOutputHeight = (int) values[1];
+            } else if (command.equals("image") && values.length == 2) {
+                trace.mImageWidth = (int) values[0];
+                trace.mImageHeight = (int) values[1];
+            } else if (command.equals("offsets") && values.length == 6) {
+                trace.setTransformOffsetLimit(values[0], values[1], values[2], values[3],
+                                              values[4], values[5]);
+            } else if (command.equals("scale") && values.length == 1) {
+                trace.scale(values[0]);
+            } else if (command.equals("translate") && values.length == 2) {
+                trace.translate(values[0], values[1]);
+            } else if (command.equals("angle") && values.length == 1) {
+                trace.rotationAngle(values[0]);
+            } else if (command.equals("crop") && values.length == 6) {
+                trace.cropRectangle(values[0], values[1], values[2], values[3], values[4],
+                                    values[5]);
+            } else {
+                throw new IOException("Line " + lineNumber + ": cannot parse '" + line + "'");
+            }
+        }
+        return trace;
+    }
+
+    /**
+     * Writes the trace in the text format described above.
+     */
+    public synchronized void write(@NonNull final Writer writer) throws IOException {
+        writer.write("# " + mName + "\n");
+        writer.write("output " + mOutputWidth + " " + mOutputHeight + "\n");
+        writer.write("image " + mImageWidth + " " + mImageHeight + "\n");
+        if (mOffsetLimit != null) {
+            writer.write("offsets" + format(mOffsetLimit, 0, 6) + "\n");
+        }
+        for (int i = 0; i < mCount; i++) {
+            int offset = i * ARGS_PER_EVENT;
+            switch (mTypes[i]) {
+                case SCALE:
+                    writer.write("scale" + format(mArgs, offset, 1) + "\n");
+                    break;
+                case TRANSLATE:
+                    writer.write("translate" + format(mArgs, offset, 2) + "\n");
+                    break;
+                case ROTATION_ANGLE:
+                    writer.write("angle" + format(mArgs, offset, 1) + "\n");
+                    break;
+                case CROP_RECTANGLE:
+                    writer.write("crop" + format(mArgs, offset, 6) + "\n");
+                    break;
+                default:
+                    break;
+            }
+        }
+        writer.flush();
+    }
+
+    /**
+     * Gets the canonical traces: a fast pinch, a fling pan and a fine rotation on a 12MP
+     * portrait photo in a 1080x1920 view with a full-width crop square.
+     */
+    @NonNull
+    public static List<GestureTrace> canonicalTraces() {
+        return Arrays.asList(fastPinch(), flingPan(), fineRotation());
+    }
+
+    /**
+     * Pinches in and out quickly, with scale factors as large as ScaleGestureDetector reports
+     * for fast two-finger gestures, including steps that hit the zoom limits.
+     */
+    @NonNull
+    public static GestureTrace fastPinch() {
+        GestureTrace trace = canonical("fast-pinch");
+        for (int repeat = 0; repeat < 4; repeat++) {
+            for (int i = 0; i < 60; i++) {
+                trace.scale(1.08f);
+            }
+            for (int i = 0; i < 60; i++) {
+                trace.scale(1 / 1.08f);
+            }
+        }
+        return trace;
+    }
+
+    /**
+     * Drags across the image with decelerating steps as a fling produces, hitting the borders.
+     */
+    @NonNull
+    public static GestureTrace flingPan() {
+        GestureTrace trace = canonical("fling-pan");
+        // zoom in first so there is room to pan
+        for (int i = 0; i < 20; i++) {
+            trace.scale(1.1f);
+        }
+        for (int repeat = 0; repeat < 8; repeat++) {
+            float velocity = 90;
+            float directionX = repeat % 2 == 0 ? 1 : -1;
+            float directionY = repeat % 4 < 2 ? 0.6f : -0.6f;
+            for (int i = 0; i < 60; i++) {
+                trace.translate(directionX * velocity, directionY * velocity);
+                velocity *= 0.94f;
+            }
+        }
+        return trace;
+    }
+
+    /**
+     * Turns the straighten dial in small steps back and forth, slightly zoomed in.
+     */
+    @NonNull
+    public static GestureTrace fineRotation() {
+        GestureTrace trace = canonical("fine-rotation");
+        for (int i = 0; i < 5; i++) {
+            trace.scale(1.05f);
+        }
+        float angle = 0;
+        for (int repeat = 0; repeat < 4; repeat++) {
+            for (int i = 0; i < 90; i++) {
+                angle += 0.5f;
+                trace.rotationAngle(angle);
+            }
+            for (int i = 0; i < 180; i++) {
+                angle -= 0.5f;
+                trace.rotationAngle(angle);
+            }
+            for (int i = 0; i < 90; i++) {
+                angle += 0.5f;
+                trace.rotationAngle(angle);
+            }
+        }
+        return trace;
+    }
+
+    @NonNull
+    private static GestureTrace canonical(@NonNull final String name) {
+        GestureTrace trace = new GestureTrace(name, 1080, 1920, 3024, 4032);
+        trace.setTransformOffsetLimit(0, 0, 420, 420, 1080, 1920);
+        return trace;
+    }
+
+    private synchronized void add(final int type, final float a0, final float a1, final float a2,
+                                  final float a3, final float a4, final float a5) {
+        if (mCount == mTypes.length) {
+            mTypes = Arrays.copyOf(mTypes, mCount * 2);
+            mArgs = Arrays.copyOf(mArgs, mCount * 2 * ARGS_PER_EVENT);
+        }
+        int offset = mCount * ARGS_PER_EVENT;
+        mTypes[mCount] = type;
+        mArgs[offset] = a0;
+        mArgs[offset + 1] = a1;
+        mArgs[offset + 2] = a2;
+        mArgs[offset + 3] = a3;
+        mArgs[offset + 4] = a4;
+        mArgs[offset + 5] = a5;
+        mCount++;
+    }
+
+    @NonNull
+    private static String format(@NonNull final float[] values, final int offset, final int count) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = offset; i < offset + count; i++) {
+            builder.append(' ').append(values[i]);
+        }
+        return builder.toString();
+    }
+}
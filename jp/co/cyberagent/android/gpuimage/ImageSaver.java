@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.media.MediaScannerConnection;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.support.annotation.MainThread;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jp.co.cyberagent.android.gpuimage.util.Tracer;
+
+/**
+ * Saves rendered images off the main thread. Captures run one at a time on a capture thread,
+ * since they share the GL thread anyway, and hand their bitmaps to a small pool of encoder
+ * threads, so readback of the next image overlaps encoding of the previous ones. At most
+ * {@link #MAX_PENDING_ENCODES} bitmaps wait for an encoder; further captures wait for one to
+ * finish, which bounds the memory a batch of saves holds.
+ * <br>
+ * Files are written to a temporary file next to the target, synced and renamed, so a crash
+ * never leaves a truncated image behind under the final name.
+ */
+public class ImageSaver {
+    private static final String TAG = "ImageSaver";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int ENCODER_THREADS =
+            Math.max(1, Math.min(3, Runtime.getRuntime().availableProcessors() - 1));
+    public static final int MAX_PENDING_ENCODES = ENCODER_THREADS * 2;
+
+    private static final ImageSaver sInstance = new ImageSaver();
+
+    /**
+     * Receives the outcome of a save on the main thread.
+     */
+    public interface Listener {
+        /**
+         * @param file the saved file
+         * @param uri  content uri from the media scanner, or null if it did not provide one
+         */
+        @MainThread
+        void onSaved(@NonNull File file, @Nullable Uri uri);
+
+        @MainThread
+        void onError(@NonNull File file, @NonNull Exception error);
+    }
+
+    private final ExecutorService mCaptureExecutor;
+    private final ExecutorService mEncodeExecutor;
+    private final Semaphore mEncodePermits = new Semaphore(MAX_PENDING_ENCODES);
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    ImageSaver() {
+        mCaptureExecutor = newExecutor(1, "GPUImageCapture");
+        mEncodeExecutor = newExecutor(ENCODER_THREADS, "GPUImageEncode");
+    }
+
+    @NonNull
+    public static ImageSaver getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Captures an image and saves it.
+     *
+     * @param context  context for the media scanner, or null not to scan the file
+     * @param capture  produces the bitmap on the capture thread, e.g. by calling
+     *                 {@link GPUImage#capture(int, int)}; the bitmap is recycled after saving
+     * @param file     target file, its directory is created if needed
+     * @param format   encoding
+     * @param quality  0 - 100, ignored by lossless formats
+     * @param listener listener, or null
+     */
+    public void save(@Nullable final Context context, @NonNull final Callable<Bitmap> capture,
+                     @NonNull final File file, @NonNull final Bitmap.CompressFormat format,
+                     final int quality, @Nullable final Listener listener) {
+        final Context appContext = context != null ? context.getApplicationContext() : null;
+        mCaptureExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Bitmap bitmap;
+                try {
+                    // wait for an encoder before holding another image
+                    mEncodePermits.acquire();
+                } catch (InterruptedException e) {
+                    notifyError(listener, file, e);
+                    return;
+                }
+                try {
+                    bitmap = capture.call();
+                    if (bitmap == null) {
+                        throw new IOException("Nothing was captured");
+                    }
+                } catch (Exception e) {
+                    mEncodePermits.release();
+                    notifyError(listener, file, e);
+                    return;
+                }
+                encode(appContext, bitmap, file, format, quality, listener);
+            }
+        });
+    }
+
+    /**
+     * Saves a bitmap that is already in memory and recycles it afterwards.
+     *
+     * @see #save(Context, Callable, File, Bitmap.CompressFormat, int, Listener)
+     */
+    public void save(@Nullable final Context context, @NonNull final Bitmap bitmap,
+                     @NonNull final File file, @NonNull final Bitmap.CompressFormat format,
+                     final int quality, @Nullable final Listener listener) {
+        save(context, new Callable<Bitmap>() {
+            @Override
+            public Bitmap call() {
+                return bitmap;
+            }
+        }, file, format, quality, listener);
+    }
+
+    private void encode(@Nullable final Context context, @NonNull final Bitmap bitmap,
+                        @NonNull final File file, @NonNull final Bitmap.CompressFormat format,
+                        final int quality, @Nullable final Listener listener) {
+        final GPUImageMemoryManager.Allocation allocation = GPUImageMemoryManager.getInstance()
+                .track(GPUImageMemoryManager.Kind.BITMAP,
+                       (long) bitmap.getRowBytes() * bitmap.getHeight());
+        mEncodeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writeBitmap(bitmap, file, format, quality);
+                } catch (Exception e) {
+                    // including runtime exceptions of the encoder, the caller is waiting
+                    notifyError(listener, file, e);
+                    return;
+                } finally {
+                    bitmap.recycle();
+                    allocation.release();
+                    mEncodePermits.release();
+                }
+                if (context != null) {
+                    scan(context, file, listener);
+                } else {
+                    notifySaved(listener, file, null);
+                }
+            }
+        });
+    }
+
+    /**
+     * Encodes a bitmap through a buffered stream into a temporary file of its own, syncs it to
+     * storage and renames it to the target, replacing any file of that name.
+     *
+     * @param bitmap  bitmap to encode
+     * @param file    target file, its directory is created if needed
+     * @param format  encoding
+     * @param quality 0 - 100, ignored by lossless formats
+     * @throws IOException if encoding or writing failed; the target is left untouched then
+     */
+    @WorkerThread
+    public static void writeBitmap(@NonNull final Bitmap bitmap, @NonNull final File file,
+                                   @NonNull final Bitmap.CompressFormat format, final int quality)
+            throws IOException {
+        File directory = file.getAbsoluteFile().getParentFile();
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        // unique, saves to the same target may run on different encoder threads
+        File temp = File.createTempFile("." + file.getName() + ".", ".tmp", directory);
+        Tracer.beginSection("compressImage");
+        boolean written = false;
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            FileChannel channel = out.getChannel();
+            OutputStream stream = new BufferedOutputStream(Channels.newOutputStream(channel),
+                                                           BUFFER_SIZE);
+            if (!bitmap.compress(format, quality, stream)) {
+                throw new IOException("Encoding " + format + " failed");
+            }
+            stream.flush();
+            channel.force(false);
+            written = true;
+        } finally {
+            out.close();
+            Tracer.endSection();
+            if (!written && !temp.delete()) {
+                Log.w(TAG, "Cannot delete " + temp);
+            }
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Cannot rename " + temp + " to " + file);
+        }
+    }
+
+    private void scan(@NonNull final Context context, @NonNull final File file,
+                      @Nullable final Listener listener) {
+        MediaScannerConnection.scanFile(context, new String[]{file.toString()}, null,
+                new MediaScannerConnection.OnScanCompletedListener() {
+                    @Override
+                    public void onScanCompleted(final String path, final Uri uri) {
+                        notifySaved(listener, file, uri);
+                    }
+                });
+    }
+
+    private void notifySaved(@Nullable final Listener listener, @NonNull final File file,
+                             @Nullable final Uri uri) {
+        if (listener == null) {
+            return;
+        }
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onSaved(file, uri);
+            }
+        });
+    }
+
+    private void notifyError(@Nullable final Listener listener, @NonNull final File file,
+                             @NonNull final Exception error) {
+        Log.e(TAG, "Saving " + file + " failed", error);
+        if (listener == null) {
+            return;
+        }
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onError(file, error);
+            }
+        });
+    }
+
+    @NonNull
+    private static ExecutorService newExecutor(final int threads, @NonNull final String name) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(@NonNull final Runnable runnable) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                runnable.run();
+                            }
+                        }, name + "-" + mCount.incrementAndGet());
+                    }
+                });
+        // idle savers must not keep threads around
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+}
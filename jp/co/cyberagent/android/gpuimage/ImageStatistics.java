@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.graphics.PointF;
+import android.support.annotation.NonNull;
+
+/**
+ * Histograms of an image as computed by {@link GPUImageStatistics}, with helpers turning them
+ * into parameters for {@link GPUImageToneCurveFilter} and {@link GPUImageContrastFilter}.
+ * Levels are given in the range 0 to 1.
+ */
+public class ImageStatistics {
+    public static final int BIN_COUNT = 64;
+
+    // fraction of samples clipped at either end when stretching levels
+    private static final float CLIP_FRACTION = 0.005f;
+    private static final float TARGET_SPREAD = 0.8f;
+    private static final float MIN_SPREAD = 0.02f;
+
+    public enum Channel { RED, GREEN, BLUE, LUMINANCE }
+
+    private final int[][] mHistograms;
+    private final int mSampleCount;
+
+    /**
+     * @param histograms  {@link #BIN_COUNT} bins per {@link Channel}, in ordinal order
+     * @param sampleCount number of samples counted into every histogram
+     */
+    public ImageStatistics(@NonNull final int[][] histograms, final int sampleCount) {
+        if (histograms.length != Channel.values().length) {
+            throw new IllegalArgumentException("expected one histogram per channel");
+        }
+        for (int[] histogram : histograms) {
+            if (histogram.length != BIN_COUNT) {
+                throw new IllegalArgumentException("expected " + BIN_COUNT + " bins");
+            }
+        }
+        mHistograms = histograms;
+        mSampleCount = sampleCount;
+    }
+
+    public int getSampleCount() {
+        return mSampleCount;
+    }
+
+    /**
+     * Gets the histogram of a channel. Bin i counts the samples with levels in
+     * [i / BIN_COUNT, (i + 1) / BIN_COUNT).
+     *
+     * @return the bins, not a copy
+     */
+    @NonNull
+    public int[] getHistogram(@NonNull final Channel channel) {
+        return mHistograms[channel.ordinal()];
+    }
+
+    /**
+     * Gets the mean level of a channel, taking every sample at the center of its bin.
+     */
+    public float getMean(@NonNull final Channel channel) {
+        if (mSampleCount == 0) {
+            return 0;
+        }
+        int[] histogram = mHistograms[channel.ordinal()];
+        double sum = 0;
+        for (int i = 0; i < BIN_COUNT; i++) {
+            sum += histogram[i] * (i + 0.5);
+        }
+        return (float) (sum / mSampleCount / BIN_COUNT);
+    }
+
+    /**
+     * Gets the level below which the given fraction of samples lies, interpolating linearly
+     * within a bin.
+     *
+     * @param fraction fraction between 0 and 1, e.g. 0.5 for the median
+     */
+    public float getPercentile(@NonNull final Channel channel, final float fraction) {
+        if (mSampleCount == 0) {
+            return 0;
+        }
+        int[] histogram = mHistograms[channel.ordinal()];
+        float target = Math.min(Math.max(fraction, 0), 1) * mSampleCount;
+        int below = 0;
+        for (int i = 0; i < BIN_COUNT; i++) {
+            int count = histogram[i];
+            if (count > 0 && below + count >= target) {
+                return (i + (target - below) / count) / BIN_COUNT;
+            }
+            below += count;
+        }
+        return 1;
+    }
+
+    /**
+     * Suggests RGB composite control points for {@link GPUImageToneCurveFilter} that stretch
+     * the luminance to the full range, clipping 0.5% of the samples at
+     * either end, and move the median half way towards mid gray.
+     *
+     * @return control points, the identity curve if the image is nearly flat
+     */
+    @NonNull
+    public PointF[] suggestToneCurve() {
+        float black = getPercentile(Channel.LUMINANCE, CLIP_FRACTION);
+        float white = getPercentile(Channel.LUMINANCE, 1 - CLIP_FRACTION);
+        if (white - black < MIN_SPREAD) {
+            return new PointF[]{new PointF(0, 0), new PointF(0.5f, 0.5f), new PointF(1, 1)};
+        }
+        float median = getPercentile(Channel.LUMINANCE, 0.5f);
+        float stretchedMedian = (median - black) / (white - black);
+        float target = (stretchedMedian + 0.5f) / 2;
+        if (median <= black || median >= white) {
+            return new PointF[]{new PointF(black, 0), new PointF(white, 1)};
+        }
+        return new PointF[]{new PointF(black, 0), new PointF(median, target), new PointF(white, 1)};
+    }
+
+    /**
+     * Suggests a contrast for {@link GPUImageContrastFilter} that spreads the central 90% of
+     * the luminance samples over 80% of the range.
+     *
+     * @return contrast between 0.5 and 2, 1 for no change
+     */
+    public float suggestContrast() {
+        float spread = getPercentile(Channel.LUMINANCE, 0.95f)
+                - getPercentile(Channel.LUMINANCE, 0.05f);
+        if (spread < MIN_SPREAD) {
+            return 1;
+        }
+        return Math.min(Math.max(TARGET_SPREAD / spread, 0.5f), 2);
+    }
+}
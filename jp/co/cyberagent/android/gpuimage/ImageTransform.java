@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.support.annotation.NonNull;
+import jp.co.cyberagent.android.gpuimage.util.TransformMatrix;
+
+/**
+ * Maps the output to image coordinates from the user's scale, translate, rotate and crop
+ * gestures, keeping the crop square covered by the image. Plain Java, so it can be driven on a
+ * JVM, e.g. by the gesture trace replay in the benchmarks module. Not thread safe,
+ * {@link GPUImageRenderer} guards it with a lock.
+ * <br>
+ * Coordinates are fractions of the output, (0,0) at the top left. The crop square is
+ * centered at {@link #setTransformOffsetLimit} and sized by its offsets, in output pixels.
+ */
+public class ImageTransform {
+    private int mOutputWidth;
+    private int mOutputHeight;
+    private int mImageWidth;
+    private int mImageHeight;
+
+    private float mScaleRatio = 1;
+    private Rotation mRotation = Rotation.NORMAL;
+    private float mRotationAngle;
+    private final TransformMatrix mTransformMatrix = new TransformMatrix();
+    private final float[] mTransformCenter = new float[2];
+
+    private float mCircleRadius = 0;
+    private final float[] mTransformCenterCords = new float[]{.5f, .5f};
+
+    private float mBaseScaleRatioWidth = 1f;
+    private float mBaseScaleRatioHeight = 1f;
+
+    // scratch objects, gestures arrive at input rate and must not allocate
+    private final TransformMatrix mScratchMatrix = new TransformMatrix();
+    private final TransformMatrix mScratchMatrix2 = new TransformMatrix();
+    private final float[] mScratchValues = new float[9];
+    private final float[] mScratchPoint = new float[2];
+    private final float[] mScratchPoint2 = new float[2];
+
+    public void setOutputSize(final int width, final int height) {
+        mOutputWidth = width;
+        mOutputHeight = height;
+        initializeTransformMatrix();
+        adjustImageTransform();
+    }
+
+    public void setImageSize(final int width, final int height) {
+        mImageWidth = width;
+        mImageHeight = height;
+        initializeTransformMatrix();
+        adjustImageTransform();
+    }
+
+    public int getOutputWidth() {
+        return mOutputWidth;
+    }
+
+    public int getOutputHeight() {
+        return mOutputHeight;
+    }
+
+    public void setScaleFactor(final float scaleFactor) {
+        float newScaleRatio = mScaleRatio / scaleFactor;
+        if (newScaleRatio >= 0.1 && newScaleRatio <= 1) {
+            mTransformMatrix.postScale(1f / scaleFactor, 1f / scaleFactor,
+                                       mTransformCenter[0], mTransformCenter[1]);
+            mScaleRatio = newScaleRatio;
+            adjustImageTransform();
+        }
+    }
+
+    /**
+     * Moves the image by a drag distance in output pixels.
+     */
+    public void setTranslate(final float x, final float y) {
+        float[] translate = mScratchPoint;
+        translate[0] = x / mOutputWidth * mScaleRatio;
+        translate[1] = y / mOutputHeight * mScaleRatio;
+        mScratchMatrix.reset();
+        mScratchMatrix.postRotate(mRotation.asInt() + mRotationAngle);
+        mScratchMatrix.mapPoints(translate);
+        mTransformMatrix.postTranslate(translate[0], translate[1]);
+        adjustImageTransform();
+    }
+
+    /**
+     * Gets a corner of the crop square in image coordinates.
+     *
+     * @param signX -1 for the left, 1 for the right corners
+     * @param signY -1 for the top, 1 for the bottom corners
+     * @param out   receives x and y
+     */
+    public void getCropCorner(final float signX, final float signY, @NonNull final float[] out) {
+        out[0] = mTransformCenterCords[0] + signX * mCircleRadius / mOutputWidth;
+        out[1] = mTransformCenterCords[1] + signY * mCircleRadius / mOutputHeight;
+        mTransformMatrix.mapPoints(out);
+    }
+
+    /**
+     * Restores a transform from the image coordinates of three crop corners, as returned by
+     * {@link #getCropCorner(float, float, float[])}. The bottom right corner follows from the
+     * other three.
+     */
+    public void setCropRectangle(final float topLeftX, final float topLeftY,
+                                 final float topRightX, final float topRightY,
+                                 final float bottomLeftX, final float bottomLeftY) {
+        float[] values = mScratchValues;
+        values[0] = mTransformCenterCords[0] - mCircleRadius / mOutputWidth;
+        values[1] = mTransformCenterCords[0] + mCircleRadius / mOutputWidth;
+        values[2] = mTransformCenterCords[0] - mCircleRadius / mOutputWidth;
+        values[3] = mTransformCenterCords[1] - mCircleRadius / mOutputHeight;
+        values[4] = mTransformCenterCords[1] - mCircleRadius / mOutputHeight;
+        values[5] = mTransformCenterCords[1] + mCircleRadius / mOutputHeight;
+        values[6] = 1;
+        values[7] = 1;
+        values[8] = 1;
+        TransformMatrix pointsOriginal = mScratchMatrix;
+        pointsOriginal.setValues(values);
+        pointsOriginal.invert(pointsOriginal);
+        values[0] = topLeftX;
+        values[1] = topRightX;
+        values[2] = bottomLeftX;
+        values[3] = topLeftY;
+        values[4] = topRightY;
+        values[5] = bottomLeftY;
+        TransformMatrix pointsAfterTransform = mScratchMatrix2;
+        pointsAfterTransform.setValues(values);
+        mTransformMatrix.setConcat(pointsAfterTransform, pointsOriginal);
+
+        float[] p1 = mScratchPoint;
+        float[] p2 = mScratchPoint2;
+        p1[0] = 0;
+        p1[1] = 0;
+        p2[0] = 1;
+        p2[1] = 0;
+        mTransformMatrix.mapPoints(p1);
+        mTransformMatrix.mapPoints(p2);
+        float diffX = (p2[1] - p1[1]) * mOutputHeight / mBaseScaleRatioHeight;
+        float diffY = (p2[0] - p1[0]) * mOutputWidth / mBaseScaleRatioWidth;
+        float angle = (float) Math.toDegrees(Math.atan2(diffX, diffY));
+        mRotationAngle = (angle + 225) % 90 - 45;
+        switch ((((int) angle + 405) / 90) % 4) {
+            case 1:
+                mRotation = Rotation.ROTATION_90;
+                break;
+            case 2:
+                mRotation = Rotation.ROTATION_180;
+                break;
+            case 3:
+                mRotation = Rotation.ROTATION_270;
+                break;
+            case 0:
+            default:
+                mRotation = Rotation.NORMAL;
+                break;
+        }
+        mScaleRatio = (float) Math.sqrt(diffX * diffX + diffY * diffY) / mOutputWidth;
+        adjustImageTransform();
+    }
+
+    public void setTransformOffsetLimit(final float leftOffset, final float rightOffset,
+                                        final float topOffset, final float bottomOffset,
+                                        final float outputWidth, final float outputHeight) {
+        mTransformCenterCords[0] = .5f + .5f * (leftOffset - rightOffset) / outputWidth;
+        mTransformCenterCords[1] = .5f + .5f * (topOffset - bottomOffset) / outputHeight;
+        mCircleRadius = (outputWidth - leftOffset - rightOffset) / 2;
+    }
+
+    public void setRotationAngle(final float rotationAngle) {
+        rotateAroundCenter(rotationAngle - mRotationAngle);
+        mRotationAngle = rotationAngle;
+    }
+
+    public float getRotationAngle() {
+        return mRotationAngle;
+    }
+
+    @NonNull
+    public Rotation getRotation() {
+        return mRotation;
+    }
+
+    public void rotate(final boolean clockwise) {
+        setRotation(clockwise ? mRotation.clockwiseNext() : mRotation.counterClockwiseNext());
+    }
+
+    public void setRotation(@NonNull final Rotation rotation) {
+        rotateAroundCenter(rotation.asInt() - mRotation.asInt());
+        mRotation = rotation;
+    }
+
+    /**
+     * Gets the transform as a column-major 3x3 matrix for the textureTransform uniform.
+     *
+     * @param out receives 9 values
+     */
+    public void getTextureTransform(@NonNull final float[] out) {
+        float[] values = mScratchValues;
+        mTransformMatrix.getValues(values);
+        out[0] = values[0];
+        out[1] = values[3];
+        out[2] = values[6];
+        out[3] = values[1];
+        out[4] = values[4];
+        out[5] = values[7];
+        out[6] = values[2];
+        out[7] = values[5];
+        out[8] = values[8];
+    }
+
+    /**
+     * Gets the crop square as fractions of the output.
+     *
+     * @param out receives left, top, right, bottom; the whole output if no crop is known yet
+     */
+    public void getCropBox(@NonNull final float[] out) {
+        if (mCircleRadius > 0 && mOutputWidth > 0 && mOutputHeight > 0) {
+            out[0] = mTransformCenterCords[0] - mCircleRadius / mOutputWidth;
+            out[1] = mTransformCenterCords[1] - mCircleRadius / mOutputHeight;
+            out[2] = mTransformCenterCords[0] + mCircleRadius / mOutputWidth;
+            out[3] = mTransformCenterCords[1] + mCircleRadius / mOutputHeight;
+        } else {
+            out[0] = 0;
+            out[1] = 0;
+            out[2] = 1;
+            out[3] = 1;
+        }
+    }
+
+    // rotates around the crop center, correcting for the image aspect ratio
+    private void rotateAroundCenter(final float degrees) {
+        float centerX = mTransformCenter[0];
+        float centerY = mTransformCenter[1];
+        TransformMatrix matrix = mScratchMatrix;
+        matrix.setScale(1f, mImageHeight / (float) mImageWidth, centerX, centerY);
+        matrix.postRotate(degrees, centerX, centerY);
+        matrix.postScale(1f, mImageWidth / (float) mImageHeight, centerX, centerY);
+        mTransformMatrix.postConcat(matrix);
+        adjustImageTransform();
+    }
+
+    private void initializeTransformMatrix() {
+        if (mCircleRadius == 0) {
+            mCircleRadius = Math.min(mOutputWidth, mOutputHeight) / 2f;
+        }
+
+        // by default, the texture cords are mapped to output surface as [0,1] on both dimensions
+        float ratio1 = mImageWidth / (float) mOutputWidth;
+        float ratio2 = mImageHeight / (float) mOutputHeight;
+
+        if (mImageWidth >= mImageHeight) {
+            mBaseScaleRatioHeight = (float) mOutputHeight / (mCircleRadius * 2);
+            mBaseScaleRatioWidth = mBaseScaleRatioHeight * ratio2 / ratio1;
+        } else {
+            mBaseScaleRatioWidth = (float) mOutputWidth / (mCircleRadius * 2);
+            mBaseScaleRatioHeight = mBaseScaleRatioWidth * ratio1 / ratio2;
+        }
+
+        mRotationAngle = 0f;
+        mRotation = Rotation.NORMAL;
+        mScaleRatio = 1f;
+        mTransformMatrix.setScale(mBaseScaleRatioWidth, mBaseScaleRatioHeight, .5f, .5f);
+    }
+
+    private void adjustImageTransform() {
+        float[] transformCenter = mTransformCenter;
+        mTransformMatrix.mapPoints(transformCenter, mTransformCenterCords);
+
+        // edge detection, adjust boundaries to keep the whole image within circle
+        float imageWidthInPixel = mOutputWidth / mBaseScaleRatioWidth / mScaleRatio;
+        float imageHeightInPixel = mOutputHeight / mBaseScaleRatioHeight / mScaleRatio;
+        if (transformCenter[0] < mCircleRadius / imageWidthInPixel) {
+            mTransformMatrix.postTranslate(mCircleRadius / imageWidthInPixel - transformCenter[0], 0);
+        } else if (1 - transformCenter[0] < mCircleRadius / imageWidthInPixel) {
+            mTransformMatrix.postTranslate(1 - transformCenter[0] - mCircleRadius / imageWidthInPixel, 0);
+        }
+
+        if (transformCenter[1] < mCircleRadius / imageHeightInPixel) {
+            mTransformMatrix.postTranslate(0, mCircleRadius / imageHeightInPixel - transformCenter[1]);
+        } else if (1 - transformCenter[1] < mCircleRadius / imageHeightInPixel) {
+            mTransformMatrix.postTranslate(0, 1 - transformCenter[1] - mCircleRadius / imageHeightInPixel);
+        }
+
+        // re-map the center after boundary adjustments
+        mTransformMatrix.mapPoints(transformCenter, mTransformCenterCords);
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.support.annotation.NonNull;
+
+/**
+ * How the output of a filter may be stored when it is an intermediate of a
+ * {@link GPUImageFilterGroup}. Cheaper formats save memory bandwidth for the following pass
+ * but lose information, so a filter should only allow what its output tolerates.
+ */
+public enum IntermediateFormat {
+    /**
+     * RGBA 8888 at the output size, always safe.
+     */
+    FULL(false, false),
+    /**
+     * RGB 565 at the output size, for color adjustments of opaque images that tolerate 5 to 6
+     * bits per channel. Drops alpha.
+     */
+    RGB_565(true, false),
+    /**
+     * RGBA 8888 at half the output width and height, for low-frequency output like blurs.
+     */
+    HALF_SIZE(false, true),
+    /**
+     * RGB 565 at half the output width and height.
+     */
+    RGB_565_HALF_SIZE(true, true);
+
+    private final boolean mRgb565;
+    private final boolean mHalfSize;
+
+    IntermediateFormat(final boolean rgb565, final boolean halfSize) {
+        mRgb565 = rgb565;
+        mHalfSize = halfSize;
+    }
+
+    public boolean isRgb565() {
+        return mRgb565;
+    }
+
+    public boolean isHalfSize() {
+        return mHalfSize;
+    }
+
+    /**
+     * Gets the cheapest format that both allow.
+     *
+     * @return format with only the reductions both formats allow
+     */
+    @NonNull
+    public IntermediateFormat intersect(@NonNull final IntermediateFormat other) {
+        return of(mRgb565 && other.mRgb565, mHalfSize && other.mHalfSize);
+    }
+
+    @NonNull
+    static IntermediateFormat of(final boolean rgb565, final boolean halfSize) {
+        if (rgb565) {
+            return halfSize ? RGB_565_HALF_SIZE : RGB_565;
+        }
+        return halfSize ? HALF_SIZE : FULL;
+    }
+}
@@ -20,67 +20,156 @@ import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
 import android.hardware.Camera.Size;
 import android.opengl.GLES20;
-import android.opengl.GLUtils;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.util.Log;
 
 import java.nio.IntBuffer;
 
+import jp.co.cyberagent.android.gpuimage.util.Tracer;
+
 public class OpenGlUtils {
     public static final int NO_TEXTURE = -1;
 
+    private static volatile GLBackend sBackend = new AndroidGLBackend();
+
+    /**
+     * Gets the backend GL calls of the library go through.
+     *
+     * @return backend, {@link AndroidGLBackend} unless replaced
+     */
+    @NonNull
+    public static GLBackend getBackend() {
+        return sBackend;
+    }
+
+    /**
+     * Replaces the backend GL calls of the library go through, e.g. with a
+     * {@link RecordingGLBackend} to run filters without a GPU. Contexts whose resources were
+     * already created keep the backend they were created with, so set this before any
+     * renderer or filter is initialized.
+     *
+     * @param backend backend to use
+     */
+    public static void setBackend(@NonNull final GLBackend backend) {
+        sBackend = backend;
+    }
+
     public static int loadTexture(@NonNull final Bitmap img, final int usedTexId) {
         return loadTexture(img, usedTexId, true);
     }
 
     public static int loadTexture(@NonNull final Bitmap img, final int usedTexId, final boolean recycle) {
+        return loadTexture(img, usedTexId, recycle, false);
+    }
+
+    /**
+     * Uploads a bitmap into a new or an existing texture.
+     * <br>
+     * With mipmap set, a mip chain is generated and sampled trilinearly, so drawing the texture
+     * much smaller than its size reads only a small level. Where the context cannot build
+     * mipmaps for sides that are not powers of two, the bitmap is first scaled to the nearest
+     * power of two per side; texture coordinates are unaffected because they are normalized.
+     *
+     * @param img       bitmap to upload
+     * @param usedTexId texture to update, which must have been loaded with the same size and
+     *                  mipmap setting, or {@link #NO_TEXTURE} to create one
+     * @param recycle   whether to recycle img afterwards
+     * @param mipmap    whether to generate mipmaps
+     * @return the texture
+     */
+    public static int loadTexture(@NonNull final Bitmap img, final int usedTexId, final boolean recycle,
+                                  final boolean mipmap) {
+        Tracer.beginSection("loadTexture");
+        GLContextResources resources = GLContextResources.current();
+        GLBackend gl = resources.getBackend();
+        Bitmap upload = img;
+        if (mipmap && !resources.supportsNpotMipmaps()) {
+            int width = nearestPowerOfTwo(img.getWidth(), resources.getMaxTextureSize());
+            int height = nearestPowerOfTwo(img.getHeight(), resources.getMaxTextureSize());
+            if (width != img.getWidth() || height != img.getHeight()) {
+                upload = Bitmap.createScaledBitmap(img, width, height, true);
+            }
+        }
+        resources.recordUpload((long) upload.getRowBytes() * upload.getHeight());
         int textures[] = new int[1];
         if (usedTexId == NO_TEXTURE) {
-            GLES20.glGenTextures(1, textures, 0);
-            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[0]);
-            GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
-                                   GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
-            GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
-                                   GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
-            GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
-                                   GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
-            GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
-                                   GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
-
-            GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, img, 0);
+            gl.glGenTextures(1, textures, 0);
+            resources.getStateCache().bindTexture(textures[0]);
+            gl.glTexParameterf(GLES20.GL_TEXTURE_2D,
+                               GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+            gl.glTexParameterf(GLES20.GL_TEXTURE_2D,
+                               GLES20.GL_TEXTURE_MIN_FILTER,
+                               mipmap ? GLES20.GL_LINEAR_MIPMAP_LINEAR : GLES20.GL_LINEAR);
+            gl.glTexParameterf(GLES20.GL_TEXTURE_2D,
+                               GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+            gl.glTexParameterf(GLES20.GL_TEXTURE_2D,
+                               GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+
+            gl.texImage2D(GLES20.GL_TEXTURE_2D, 0, upload, 0);
         } else {
-            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, usedTexId);
-            GLUtils.texSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, img);
+            resources.getStateCache().bindTexture(usedTexId);
+            gl.texSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, upload);
             textures[0] = usedTexId;
         }
+        long bytes = (long) upload.getRowBytes() * upload.getHeight();
+        if (mipmap) {
+            gl.glGenerateMipmap(GLES20.GL_TEXTURE_2D);
+            // the mip chain adds a third
+            bytes += bytes / 3;
+        }
+        resources.trackTexture(textures[0], GPUImageMemoryManager.Kind.TEXTURE, bytes);
+        if (upload != img) {
+            upload.recycle();
+        }
         if (recycle) {
             img.recycle();
         }
+        Tracer.endSection();
         return textures[0];
     }
 
+    /**
+     * Rounds a size to the closest power of two, at most max.
+     */
+    static int nearestPowerOfTwo(final int size, final int max) {
+        int lower = Integer.highestOneBit(Math.max(size, 1));
+        int power = size - lower < lower * 2 - size ? lower : lower * 2;
+        // max is a power of two on every known implementation, but do not rely on it
+        while (power > max) {
+            power >>= 1;
+        }
+        return power;
+    }
+
     public static int loadTexture(@NonNull final IntBuffer data, @NonNull final Size size, final int usedTexId) {
+        Tracer.beginSection("loadTexture");
+        GLContextResources resources = GLContextResources.current();
+        GLBackend gl = resources.getBackend();
+        resources.recordUpload((long) size.width * size.height * 4);
         int textures[] = new int[1];
         if (usedTexId == NO_TEXTURE) {
-            GLES20.glGenTextures(1, textures, 0);
-            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[0]);
-            GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
+            gl.glGenTextures(1, textures, 0);
+            resources.getStateCache().bindTexture(textures[0]);
+            gl.glTexParameterf(GLES20.GL_TEXTURE_2D,
                                    GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
-            GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
+            gl.glTexParameterf(GLES20.GL_TEXTURE_2D,
                                    GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
-            GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
+            gl.glTexParameterf(GLES20.GL_TEXTURE_2D,
                                    GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
-            GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
+            gl.glTexParameterf(GLES20.GL_TEXTURE_2D,
                                    GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
-            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, size.width, size.height,
+            gl.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, size.width, size.height,
                                 0, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, data);
         } else {
-            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, usedTexId);
-            GLES20.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, size.width,
+            resources.getStateCache().bindTexture(usedTexId);
+            gl.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, size.width,
                                    size.height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, data);
             textures[0] = usedTexId;
         }
+        resources.trackTexture(textures[0], GPUImageMemoryManager.Kind.TEXTURE,
+                               (long) size.width * size.height * 4);
+        Tracer.endSection();
         return textures[0];
     }
 
@@ -91,13 +180,17 @@ public class OpenGlUtils {
     }
 
     public static int loadShader(@NonNull final String strSource, final int iType) {
+        GLBackend gl = GLContextResources.current().getBackend();
         int[] compiled = new int[1];
-        int iShader = GLES20.glCreateShader(iType);
-        GLES20.glShaderSource(iShader, strSource);
-        GLES20.glCompileShader(iShader);
-        GLES20.glGetShaderiv(iShader, GLES20.GL_COMPILE_STATUS, compiled, 0);
+        Tracer.beginSection("compileShader");
+        int iShader = gl.glCreateShader(iType);
+        gl.glShaderSource(iShader, strSource);
+        gl.glCompileShader(iShader);
+        gl.glGetShaderiv(iShader, GLES20.GL_COMPILE_STATUS, compiled, 0);
+        Tracer.endSection();
         if (compiled[0] == 0) {
-            Log.d("Load Shader Failed", "Compilation\n" + GLES20.glGetShaderInfoLog(iShader));
+            Log.d("Load Shader Failed", "Compilation\n" + gl.glGetShaderInfoLog(iShader));
+            gl.glDeleteShader(iShader);
             return 0;
         }
         return iShader;
@@ -108,6 +201,7 @@ public class OpenGlUtils {
         int iFShader;
         int iProgId;
         int[] link = new int[1];
+        GLBackend gl = GLContextResources.current().getBackend();
         iVShader = loadShader(strVSource, GLES20.GL_VERTEX_SHADER);
         if (iVShader == 0) {
             Log.d("Load Program", "Vertex Shader Failed");
@@ -116,23 +210,28 @@ public class OpenGlUtils {
         iFShader = loadShader(strFSource, GLES20.GL_FRAGMENT_SHADER);
         if (iFShader == 0) {
             Log.d("Load Program", "Fragment Shader Failed");
+            gl.glDeleteShader(iVShader);
             return 0;
         }
 
-        iProgId = GLES20.glCreateProgram();
+        iProgId = gl.glCreateProgram();
 
-        GLES20.glAttachShader(iProgId, iVShader);
-        GLES20.glAttachShader(iProgId, iFShader);
+        gl.glAttachShader(iProgId, iVShader);
+        gl.glAttachShader(iProgId, iFShader);
 
-        GLES20.glLinkProgram(iProgId);
+        Tracer.beginSection("linkProgram");
+        gl.glLinkProgram(iProgId);
 
-        GLES20.glGetProgramiv(iProgId, GLES20.GL_LINK_STATUS, link, 0);
+        gl.glGetProgramiv(iProgId, GLES20.GL_LINK_STATUS, link, 0);
+        Tracer.endSection();
+        // the program keeps the shaders alive while attached
+        gl.glDeleteShader(iVShader);
+        gl.glDeleteShader(iFShader);
         if (link[0] <= 0) {
             Log.d("Load Program", "Linking Failed");
+            gl.glDeleteProgram(iProgId);
             return 0;
         }
-        GLES20.glDeleteShader(iVShader);
-        GLES20.glDeleteShader(iFShader);
         return iProgId;
     }
 
@@ -22,6 +22,9 @@ import javax.microedition.khronos.egl.EGLSurface;
 import javax.microedition.khronos.opengles.GL10;
 import java.nio.IntBuffer;
 
+import jp.co.cyberagent.android.gpuimage.util.PixelUtils;
+import jp.co.cyberagent.android.gpuimage.util.Tracer;
+
 import static javax.microedition.khronos.egl.EGL10.EGL_ALPHA_SIZE;
 import static javax.microedition.khronos.egl.EGL10.EGL_BLUE_SIZE;
 import static javax.microedition.khronos.egl.EGL10.EGL_DEFAULT_DISPLAY;
@@ -53,6 +56,7 @@ public class PixelBuffer {
     GL10 mGL;
 
     String mThreadOwner;
+    private GPUImageMemoryManager.Allocation mAllocation;
 
     public PixelBuffer(final int width, final int height) {
         mWidth = width;
@@ -88,6 +92,10 @@ public class PixelBuffer {
 
         // Record thread owner of OpenGL context
         mThreadOwner = Thread.currentThread().getName();
+
+        // the pbuffer is RGBA 8888, see chooseConfig
+        mAllocation = GPUImageMemoryManager.getInstance().track(
+                GPUImageMemoryManager.Kind.PBUFFER, (long) mWidth * mHeight * 4);
     }
 
     public void setRenderer(@NonNull final GLSurfaceView.Renderer renderer) {
@@ -129,11 +137,13 @@ public class PixelBuffer {
     public void destroy() {
         mRenderer.onDrawFrame(mGL);
         mRenderer.onDrawFrame(mGL);
+        GLContextResources.releaseCurrent();
         mEGL.eglMakeCurrent(mEGLDisplay, EGL10.EGL_NO_SURFACE,
                             EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_CONTEXT);
 
         mEGL.eglDestroySurface(mEGLDisplay, mEGLSurface);
         mEGL.eglDestroyContext(mEGLDisplay, mEGLContext);
+        mAllocation.release();
         mEGL.eglTerminate(mEGLDisplay);
     }
 
@@ -192,22 +202,22 @@ public class PixelBuffer {
     }
 
     private void convertToBitmap() {
-        int[] iat = new int[mWidth * mHeight];
+        Tracer.beginSection("readPixels");
+        GPUImageMemoryManager.Allocation readback = GPUImageMemoryManager.getInstance().track(
+                GPUImageMemoryManager.Kind.READBACK, (long) mWidth * mHeight * 4);
         IntBuffer ib = IntBuffer.allocate(mWidth * mHeight);
         mGL.glReadPixels(0, 0, mWidth, mHeight, GL_RGBA, GL_UNSIGNED_BYTE, ib);
+        GLContextResources.current().recordReadback((long) mWidth * mHeight * 4);
         int[] ia = ib.array();
 
-        //Stupid !
         // Convert upside down mirror-reversed image to right-side up normal
         // image.
-        for (int i = 0; i < mHeight; i++) {
-            for (int j = 0; j < mWidth; j++) {
-                iat[(mHeight - i - 1) * mWidth + j] = ia[i * mWidth + j];
-            }
-        }
-        
+        PixelUtils.flipRows(ia, mWidth, mHeight);
 
         mBitmap = Bitmap.createBitmap(mWidth, mHeight, Bitmap.Config.ARGB_8888);
-        mBitmap.copyPixelsFromBuffer(IntBuffer.wrap(iat));
+        mBitmap.copyPixelsFromBuffer(IntBuffer.wrap(ia));
+        // the array is garbage from here on, the bitmap belongs to the caller
+        readback.release();
+        Tracer.endSection();
     }
 }
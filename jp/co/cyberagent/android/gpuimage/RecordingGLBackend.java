@@ -0,0 +1,569 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.graphics.Bitmap;
+import android.opengl.GLES20;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * {@link GLBackend} without a GPU that counts what the library asks of GL. Set it with
+ * {@link OpenGlUtils#setBackend(GLBackend)} to run the renderer and filters headless, then
+ * call {@link #takeFrameStats()} after each frame, e.g. to fail a build when a change adds
+ * draw calls or uploads to the hot path.
+ * <br>
+ * Object names are allocated sequentially, every shader compiles and every program links,
+ * readbacks return the buffer unchanged. Only use it from a single thread at a time.
+ */
+public class RecordingGLBackend implements GLBackend {
+    // attribute locations are handed out below the 8 every GLES 2.0 implementation supports
+    private static final int MAX_ATTRIBS = 8;
+
+    private int mLastName;
+    private final Map<String, Integer> mLocations = new HashMap<String, Integer>();
+    private final Map<Integer, int[]> mNextLocations = new HashMap<Integer, int[]>();
+    private int mFramebuffer;
+    private int mProgram;
+    private final int[] mViewport = new int[4];
+
+    private final Map<String, int[]> mCallCounts = new HashMap<String, int[]>();
+    private int mCalls;
+    private int mDrawCalls;
+    private long mVertices;
+    private long mUploadBytes;
+    private long mReadbackBytes;
+    private int mFramebufferSwitches;
+    private int mProgramSwitches;
+
+    /**
+     * What was recorded between two calls of {@link #takeFrameStats()}.
+     */
+    public static final class FrameStats {
+        public final int calls;
+        public final int drawCalls;
+        public final long vertices;
+        public final long uploadBytes;
+        public final long readbackBytes;
+        public final int framebufferSwitches;
+        public final int programSwitches;
+        /**
+         * Number of calls per GL method name.
+         */
+        @NonNull
+        public final Map<String, Integer> callCounts;
+
+        FrameStats(final int calls, final int drawCalls, final long vertices,
+                   final long uploadBytes, final long readbackBytes,
+                   final int framebufferSwitches, final int programSwitches,
+                   @NonNull final Map<String, Integer> callCounts) {
+            this.calls = calls;
+            this.drawCalls = drawCalls;
+            this.vertices = vertices;
+            this.uploadBytes = uploadBytes;
+            this.readbackBytes = readbackBytes;
+            this.framebufferSwitches = framebufferSwitches;
+            this.programSwitches = programSwitches;
+            this.callCounts = callCounts;
+        }
+
+        @Override
+        public String toString() {
+            return "calls=" + calls + " drawCalls=" + drawCalls + " vertices=" + vertices
+                    + " uploadBytes=" + uploadBytes + " readbackBytes=" + readbackBytes
+                    + " framebufferSwitches=" + framebufferSwitches
+                    + " programSwitches=" + programSwitches;
+        }
+    }
+
+    /**
+     * Returns the counters since the previous call and resets them.
+     *
+     * @return recorded counters
+     */
+    @NonNull
+    public FrameStats takeFrameStats() {
+        Map<String, Integer> callCounts = new HashMap<String, Integer>();
+        for (Map.Entry<String, int[]> entry : mCallCounts.entrySet()) {
+            if (entry.getValue()[0] > 0) {
+                callCounts.put(entry.getKey(), entry.getValue()[0]);
+                entry.getValue()[0] = 0;
+            }
+        }
+        FrameStats stats = new FrameStats(mCalls, mDrawCalls, mVertices, mUploadBytes,
+                                          mReadbackBytes, mFramebufferSwitches, mProgramSwitches,
+                                          callCounts);
+        mCalls = 0;
+        mDrawCalls = 0;
+        mVertices = 0;
+        mUploadBytes = 0;
+        mReadbackBytes = 0;
+        mFramebufferSwitches = 0;
+        mProgramSwitches = 0;
+        return stats;
+    }
+
+    @Override
+    @NonNull
+    public Object getCurrentContext() {
+        return this;
+    }
+
+    @Override
+    public void glActiveTexture(final int texture) {
+        count("glActiveTexture");
+    }
+
+    @Override
+    public void glAttachShader(final int program, final int shader) {
+        count("glAttachShader");
+    }
+
+    @Override
+    public void glBindBuffer(final int target, final int buffer) {
+        count("glBindBuffer");
+    }
+
+    @Override
+    public void glBindFramebuffer(final int target, final int framebuffer) {
+        count("glBindFramebuffer");
+        if (framebuffer != mFramebuffer) {
+            mFramebufferSwitches++;
+        }
+        mFramebuffer = framebuffer;
+    }
+
+    @Override
+    public void glBindTexture(final int target, final int texture) {
+        count("glBindTexture");
+    }
+
+    @Override
+    public void glBufferData(final int target, final int size, @Nullable final Buffer data,
+                             final int usage) {
+        count("glBufferData");
+        if (data != null) {
+            mUploadBytes += size;
+        }
+    }
+
+    @Override
+    public int glCheckFramebufferStatus(final int target) {
+        count("glCheckFramebufferStatus");
+        return GLES20.GL_FRAMEBUFFER_COMPLETE;
+    }
+
+    @Override
+    public void glClear(final int mask) {
+        count("glClear");
+    }
+
+    @Override
+    public void glClearColor(final float red, final float green, final float blue,
+                             final float alpha) {
+        count("glClearColor");
+    }
+
+    @Override
+    public void glCompileShader(final int shader) {
+        count("glCompileShader");
+    }
+
+    @Override
+    public int glCreateProgram() {
+        count("glCreateProgram");
+        return ++mLastName;
+    }
+
+    @Override
+    public int glCreateShader(final int type) {
+        count("glCreateShader");
+        return ++mLastName;
+    }
+
+    @Override
+    public void glDeleteBuffers(final int n, @NonNull final int[] buffers, final int offset) {
+        count("glDeleteBuffers");
+    }
+
+    @Override
+    public void glDeleteFramebuffers(final int n, @NonNull final int[] framebuffers,
+                                     final int offset) {
+        count("glDeleteFramebuffers");
+    }
+
+    @Override
+    public void glDeleteProgram(final int program) {
+        count("glDeleteProgram");
+    }
+
+    @Override
+    public void glDeleteShader(final int shader) {
+        count("glDeleteShader");
+    }
+
+    @Override
+    public void glDeleteTextures(final int n, @NonNull final int[] textures, final int offset) {
+        count("glDeleteTextures");
+    }
+
+    @Override
+    public void glDisable(final int cap) {
+        count("glDisable");
+    }
+
+    @Override
+    public void glDisableVertexAttribArray(final int index) {
+        count("glDisableVertexAttribArray");
+    }
+
+    @Override
+    public void glDrawArrays(final int mode, final int first, final int count) {
+        count("glDrawArrays");
+        mDrawCalls++;
+        mVertices += count;
+    }
+
+    @Override
+    public void glEnable(final int cap) {
+        count("glEnable");
+    }
+
+    @Override
+    public void glEnableVertexAttribArray(final int index) {
+        count("glEnableVertexAttribArray");
+    }
+
+    @Override
+    public void glFramebufferTexture2D(final int target, final int attachment, final int textarget,
+                                       final int texture, final int level) {
+        count("glFramebufferTexture2D");
+    }
+
+    @Override
+    public void glGenBuffers(final int n, @NonNull final int[] buffers, final int offset) {
+        count("glGenBuffers");
+        generate(n, buffers, offset);
+    }
+
+    @Override
+    public void glGenFramebuffers(final int n, @NonNull final int[] framebuffers,
+                                  final int offset) {
+        count("glGenFramebuffers");
+        generate(n, framebuffers, offset);
+    }
+
+    @Override
+    public void glGenerateMipmap(final int target) {
+        count("glGenerateMipmap");
+    }
+
+    @Override
+    public void glGenTextures(final int n, @NonNull final int[] textures, final int offset) {
+        count("glGenTextures");
+        generate(n, textures, offset);
+    }
+
+    @Override
+    public int glGetAttribLocation(final int program, @NonNull final String name) {
+        count("glGetAttribLocation");
+        return location(program, name, true);
+    }
+
+    @Override
+    public void glGetIntegerv(final int pname, @NonNull final int[] params, final int offset) {
+        count("glGetIntegerv");
+        switch (pname) {
+            case GLES20.GL_FRAMEBUFFER_BINDING:
+                params[offset] = mFramebuffer;
+                break;
+            case GLES20.GL_CURRENT_PROGRAM:
+                params[offset] = mProgram;
+                break;
+            case GLES20.GL_VIEWPORT:
+                System.arraycopy(mViewport, 0, params, offset, 4);
+                break;
+            default:
+                params[offset] = 0;
+                break;
+        }
+    }
+
+    @Override
+    public void glGetProgramiv(final int program, final int pname, @NonNull final int[] params,
+                               final int offset) {
+        count("glGetProgramiv");
+        // every program links
+        params[offset] = 1;
+    }
+
+    @Override
+    @Nullable
+    public String glGetShaderInfoLog(final int shader) {
+        count("glGetShaderInfoLog");
+        return "";
+    }
+
+    @Override
+    public void glGetShaderiv(final int shader, final int pname, @NonNull final int[] params,
+                              final int offset) {
+        count("glGetShaderiv");
+        // every shader compiles
+        params[offset] = 1;
+    }
+
+    @Override
+    @Nullable
+    public String glGetString(final int name) {
+        count("glGetString");
+        switch (name) {
+            case GLES20.GL_VERSION:
+                return "OpenGL ES 2.0 RecordingGLBackend";
+            case GLES20.GL_EXTENSIONS:
+                return "";
+            default:
+                return "RecordingGLBackend";
+        }
+    }
+
+    @Override
+    public int glGetUniformLocation(final int program, @NonNull final String name) {
+        count("glGetUniformLocation");
+        return location(program, name, false);
+    }
+
+    @Override
+    public void glLinkProgram(final int program) {
+        count("glLinkProgram");
+    }
+
+    @Override
+    @Nullable
+    public Buffer glMapBufferRange(final int target, final int offset, final int length,
+                                   final int access) {
+        count("glMapBufferRange");
+        return ByteBuffer.allocateDirect(length).order(ByteOrder.nativeOrder());
+    }
+
+    @Override
+    public void glReadPixels(final int x, final int y, final int width, final int height,
+                             final int format, final int type, @NonNull final Buffer pixels) {
+        count("glReadPixels");
+        mReadbackBytes += (long) width * height * bytesPerPixel(format, type);
+    }
+
+    @Override
+    public void glReadPixels(final int x, final int y, final int width, final int height,
+                             final int format, final int type, final int offset) {
+        count("glReadPixels");
+        mReadbackBytes += (long) width * height * bytesPerPixel(format, type);
+    }
+
+    @Override
+    public void glScissor(final int x, final int y, final int width, final int height) {
+        count("glScissor");
+    }
+
+    @Override
+    public void glShaderSource(final int shader, @NonNull final String source) {
+        count("glShaderSource");
+    }
+
+    @Override
+    public void glTexImage2D(final int target, final int level, final int internalformat,
+                             final int width, final int height, final int border, final int format,
+                             final int type, @Nullable final Buffer pixels) {
+        count("glTexImage2D");
+        if (pixels != null) {
+            mUploadBytes += (long) width * height * bytesPerPixel(format, type);
+        }
+    }
+
+    @Override
+    public void glTexParameterf(final int target, final int pname, final float param) {
+        count("glTexParameterf");
+    }
+
+    @Override
+    public void glTexParameteri(final int target, final int pname, final int param) {
+        count("glTexParameteri");
+    }
+
+    @Override
+    public void glTexSubImage2D(final int target, final int level, final int xoffset,
+                                final int yoffset, final int width, final int height,
+                                final int format, final int type, @NonNull final Buffer pixels) {
+        count("glTexSubImage2D");
+        mUploadBytes += (long) width * height * bytesPerPixel(format, type);
+    }
+
+    @Override
+    public boolean glUnmapBuffer(final int target) {
+        count("glUnmapBuffer");
+        return true;
+    }
+
+    @Override
+    public void glUniform1f(final int location, final float x) {
+        count("glUniform1f");
+    }
+
+    @Override
+    public void glUniform1fv(final int location, final int count, @NonNull final FloatBuffer v) {
+        count("glUniform1fv");
+    }
+
+    @Override
+    public void glUniform1i(final int location, final int x) {
+        count("glUniform1i");
+    }
+
+    @Override
+    public void glUniform2fv(final int location, final int count, @NonNull final FloatBuffer v) {
+        count("glUniform2fv");
+    }
+
+    @Override
+    public void glUniform2fv(final int location, final int count, @NonNull final float[] v,
+                             final int offset) {
+        count("glUniform2fv");
+    }
+
+    @Override
+    public void glUniform3fv(final int location, final int count, @NonNull final FloatBuffer v) {
+        count("glUniform3fv");
+    }
+
+    @Override
+    public void glUniform4fv(final int location, final int count, @NonNull final FloatBuffer v) {
+        count("glUniform4fv");
+    }
+
+    @Override
+    public void glUniformMatrix3fv(final int location, final int count, final boolean transpose,
+                                   @NonNull final float[] value, final int offset) {
+        count("glUniformMatrix3fv");
+    }
+
+    @Override
+    public void glUniformMatrix4fv(final int location, final int count, final boolean transpose,
+                                   @NonNull final float[] value, final int offset) {
+        count("glUniformMatrix4fv");
+    }
+
+    @Override
+    public void glUseProgram(final int program) {
+        count("glUseProgram");
+        if (program != mProgram) {
+            mProgramSwitches++;
+        }
+        mProgram = program;
+    }
+
+    @Override
+    public void glVertexAttribPointer(final int index, final int size, final int type,
+                                      final boolean normalized, final int stride,
+                                      @NonNull final Buffer ptr) {
+        count("glVertexAttribPointer");
+    }
+
+    @Override
+    public void glVertexAttribPointer(final int index, final int size, final int type,
+                                      final boolean normalized, final int stride,
+                                      final int offset) {
+        count("glVertexAttribPointer");
+    }
+
+    @Override
+    public void glViewport(final int x, final int y, final int width, final int height) {
+        count("glViewport");
+        mViewport[0] = x;
+        mViewport[1] = y;
+        mViewport[2] = width;
+        mViewport[3] = height;
+    }
+
+    @Override
+    public void texImage2D(final int target, final int level, @NonNull final Bitmap bitmap,
+                           final int border) {
+        count("texImage2D");
+        mUploadBytes += (long) bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    @Override
+    public void texSubImage2D(final int target, final int level, final int xoffset,
+                              final int yoffset, @NonNull final Bitmap bitmap) {
+        count("texSubImage2D");
+        mUploadBytes += (long) bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    private void count(@NonNull final String name) {
+        mCalls++;
+        int[] counter = mCallCounts.get(name);
+        if (counter == null) {
+            counter = new int[1];
+            mCallCounts.put(name, counter);
+        }
+        counter[0]++;
+    }
+
+    private void generate(final int n, @NonNull final int[] names, final int offset) {
+        for (int i = 0; i < n; i++) {
+            names[offset + i] = ++mLastName;
+        }
+    }
+
+    private int location(final int program, @NonNull final String name, final boolean attribute) {
+        String key = program + (attribute ? " attribute " : " uniform ") + name;
+        Integer location = mLocations.get(key);
+        if (location == null) {
+            int[] next = mNextLocations.get(program);
+            if (next == null) {
+                next = new int[2];
+                mNextLocations.put(program, next);
+            }
+            location = attribute ? next[0]++ % MAX_ATTRIBS : next[1]++;
+            mLocations.put(key, location);
+        }
+        return location;
+    }
+
+    static int bytesPerPixel(final int format, final int type) {
+        if (type == GLES20.GL_UNSIGNED_SHORT_5_6_5 || type == GLES20.GL_UNSIGNED_SHORT_4_4_4_4
+                || type == GLES20.GL_UNSIGNED_SHORT_5_5_5_1) {
+            return 2;
+        }
+        switch (format) {
+            case GLES20.GL_ALPHA:
+            case GLES20.GL_LUMINANCE:
+                return 1;
+            case GLES20.GL_LUMINANCE_ALPHA:
+                return 2;
+            case GLES20.GL_RGB:
+                return 3;
+            default:
+                return 4;
+        }
+    }
+}
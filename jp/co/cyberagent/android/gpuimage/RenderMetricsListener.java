@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Receives timing of rendered frames and filter passes. All callbacks run on the GL thread in
+ * the middle of a frame and must return quickly. See {@link RenderMetricsRecorder} for an
+ * implementation aggregating into histograms.
+ */
+public interface RenderMetricsListener {
+    /**
+     * Called at the end of every frame.
+     *
+     * @param frameNanos     CPU time of the whole frame
+     * @param runOnDrawNanos CPU time spent in tasks queued on the renderer
+     */
+    void onFrameTimed(long frameNanos, long runOnDrawNanos);
+
+    /**
+     * Called after every filter pass. Filter groups report each merged filter.
+     *
+     * @param index              position of the pass in the chain
+     * @param filter             filter drawn in this pass
+     * @param pendingTasksNanos  CPU time spent in the filter's queued tasks, e.g. uniform updates
+     * @param drawNanos          CPU time spent in the filter's onDraw
+     */
+    void onFilterCpuTimed(int index, @NonNull GPUImageFilter filter, long pendingTasksNanos,
+                          long drawNanos);
+
+    /**
+     * Called with the GPU time of a filter pass once the driver has it, usually a few frames
+     * after the pass was drawn. Only called where GL_EXT_disjoint_timer_query is available.
+     *
+     * @param index    position of the pass in the chain
+     * @param filter   filter drawn in this pass
+     * @param gpuNanos GPU time of the pass
+     */
+    void onFilterGpuTimed(int index, @NonNull GPUImageFilter filter, long gpuNanos);
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import jp.co.cyberagent.android.gpuimage.util.Histogram;
+
+/**
+ * Aggregates the timing reported to a {@link RenderMetricsListener} into histograms, per frame
+ * and per position in the filter chain. Can be read from any thread while rendering.
+ */
+public class RenderMetricsRecorder implements RenderMetricsListener {
+    private final Histogram mFrameNanos = new Histogram();
+    private final Histogram mRunOnDrawNanos = new Histogram();
+    private final Object mFiltersLock = new Object();
+    private volatile FilterMetrics[] mFilters = new FilterMetrics[0];
+
+    /**
+     * Timing of one position in the filter chain.
+     */
+    public static class FilterMetrics {
+        private volatile String mFilterName;
+        private final Histogram mPendingTasksNanos = new Histogram();
+        private final Histogram mCpuNanos = new Histogram();
+        private final Histogram mGpuNanos = new Histogram();
+
+        FilterMetrics(@NonNull final String filterName) {
+            mFilterName = filterName;
+        }
+
+        /**
+         * Gets the class name of the filter last drawn at this position.
+         */
+        @NonNull
+        public String getFilterName() {
+            return mFilterName;
+        }
+
+        @NonNull
+        public Histogram getPendingTasksNanos() {
+            return mPendingTasksNanos;
+        }
+
+        @NonNull
+        public Histogram getCpuNanos() {
+            return mCpuNanos;
+        }
+
+        /**
+         * Gets the GPU time, empty where timer queries are unsupported.
+         */
+        @NonNull
+        public Histogram getGpuNanos() {
+            return mGpuNanos;
+        }
+    }
+
+    @Override
+    public void onFrameTimed(final long frameNanos, final long runOnDrawNanos) {
+        mFrameNanos.record(frameNanos);
+        mRunOnDrawNanos.record(runOnDrawNanos);
+    }
+
+    @Override
+    public void onFilterCpuTimed(final int index, @NonNull final GPUImageFilter filter,
+                                 final long pendingTasksNanos, final long drawNanos) {
+        FilterMetrics metrics = obtain(index, filter);
+        metrics.mPendingTasksNanos.record(pendingTasksNanos);
+        metrics.mCpuNanos.record(drawNanos);
+    }
+
+    @Override
+    public void onFilterGpuTimed(final int index, @NonNull final GPUImageFilter filter,
+                                 final long gpuNanos) {
+        obtain(index, filter).mGpuNanos.record(gpuNanos);
+    }
+
+    @NonNull
+    public Histogram getFrameNanos() {
+        return mFrameNanos;
+    }
+
+    @NonNull
+    public Histogram getRunOnDrawNanos() {
+        return mRunOnDrawNanos;
+    }
+
+    /**
+     * Gets the timing of a position in the filter chain.
+     *
+     * @param index position in the chain
+     * @return metrics, or null if nothing was drawn at this position yet
+     */
+    @Nullable
+    public FilterMetrics getFilterMetrics(final int index) {
+        FilterMetrics[] filters = mFilters;
+        return index < filters.length ? filters[index] : null;
+    }
+
+    public int getFilterCount() {
+        return mFilters.length;
+    }
+
+    /**
+     * Clears all recorded timing.
+     */
+    public void reset() {
+        mFrameNanos.reset();
+        mRunOnDrawNanos.reset();
+        synchronized (mFiltersLock) {
+            mFilters = new FilterMetrics[0];
+        }
+    }
+
+    @NonNull
+    private FilterMetrics obtain(final int index, @NonNull final GPUImageFilter filter) {
+        FilterMetrics[] filters = mFilters;
+        FilterMetrics metrics = index < filters.length ? filters[index] : null;
+        if (metrics == null) {
+            synchronized (mFiltersLock) {
+                filters = mFilters;
+                if (index >= filters.length) {
+                    FilterMetrics[] grown = new FilterMetrics[index + 1];
+                    System.arraycopy(filters, 0, grown, 0, filters.length);
+                    filters = grown;
+                }
+                metrics = filters[index];
+                if (metrics == null) {
+                    metrics = new FilterMetrics(filter.getClass().getSimpleName());
+                    filters[index] = metrics;
+                }
+                mFilters = filters;
+            }
+        } else if (!metrics.mFilterName.equals(filter.getClass().getSimpleName())) {
+            // the chain was changed
+            metrics.mFilterName = filter.getClass().getSimpleName();
+        }
+        return metrics;
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.support.annotation.NonNull;
+import jp.co.cyberagent.android.gpuimage.util.Histogram;
+
+/**
+ * Always-on statistics of a {@link GPUImageRenderer}: frame durations, queued tasks drained per
+ * frame and bytes moved between CPU and GPU. Recording is lock-free and does not allocate, so
+ * it can stay enabled in production. Use {@link #snapshot()} to export the current state.
+ */
+public class RendererStats {
+    private final Histogram mFrameNanos = new Histogram();
+    private final Histogram mTasksPerFrame = new Histogram();
+    private final Histogram mUploadBytes = new Histogram();
+    private final Histogram mReadbackBytes = new Histogram();
+
+    void recordFrame(final long frameNanos, final int tasksDrained) {
+        mFrameNanos.record(frameNanos);
+        mTasksPerFrame.record(tasksDrained);
+    }
+
+    void recordUpload(final long bytes) {
+        mUploadBytes.record(bytes);
+    }
+
+    void recordReadback(final long bytes) {
+        mReadbackBytes.record(bytes);
+    }
+
+    /**
+     * Gets the duration of each onDrawFrame call.
+     */
+    @NonNull
+    public Histogram getFrameNanos() {
+        return mFrameNanos;
+    }
+
+    /**
+     * Gets the number of queued tasks run by each onDrawFrame call.
+     */
+    @NonNull
+    public Histogram getTasksPerFrame() {
+        return mTasksPerFrame;
+    }
+
+    /**
+     * Gets the size of each texture upload.
+     */
+    @NonNull
+    public Histogram getUploadBytes() {
+        return mUploadBytes;
+    }
+
+    /**
+     * Gets the size of each pixel readback.
+     */
+    @NonNull
+    public Histogram getReadbackBytes() {
+        return mReadbackBytes;
+    }
+
+    /**
+     * Captures a summary of all histograms, e.g. for telemetry.
+     *
+     * @return immutable snapshot
+     */
+    @NonNull
+    public Snapshot snapshot() {
+        return new Snapshot(new Summary(mFrameNanos), new Summary(mTasksPerFrame),
+                            new Summary(mUploadBytes), new Summary(mReadbackBytes));
+    }
+
+    /**
+     * Clears all statistics, e.g. after shipping a snapshot.
+     */
+    public void reset() {
+        mFrameNanos.reset();
+        mTasksPerFrame.reset();
+        mUploadBytes.reset();
+        mReadbackBytes.reset();
+    }
+
+    /**
+     * Immutable summary of one histogram.
+     */
+    public static final class Summary {
+        public final long count;
+        public final long sum;
+        public final long mean;
+        public final long p50;
+        public final long p90;
+        public final long p99;
+        public final long max;
+
+        Summary(@NonNull final Histogram histogram) {
+            count = histogram.getCount();
+            sum = histogram.getSum();
+            mean = histogram.getMean();
+            p50 = histogram.getPercentile(0.5);
+            p90 = histogram.getPercentile(0.9);
+            p99 = histogram.getPercentile(0.99);
+            max = histogram.getMax();
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + count + " mean=" + mean + " p50=" + p50 + " p90=" + p90
+                    + " p99=" + p99 + " max=" + max;
+        }
+    }
+
+    /**
+     * Immutable summary of all statistics at one point in time.
+     */
+    public static final class Snapshot {
+        public final Summary frameNanos;
+        public final Summary tasksPerFrame;
+        public final Summary uploadBytes;
+        public final Summary readbackBytes;
+
+        Snapshot(@NonNull final Summary frameNanos, @NonNull final Summary tasksPerFrame,
+                 @NonNull final Summary uploadBytes, @NonNull final Summary readbackBytes) {
+            this.frameNanos = frameNanos;
+            this.tasksPerFrame = tasksPerFrame;
+            this.uploadBytes = uploadBytes;
+            this.readbackBytes = readbackBytes;
+        }
+
+        @Override
+        public String toString() {
+            return "frameNanos{" + frameNanos + "} tasksPerFrame{" + tasksPerFrame
+                    + "} uploadBytes{" + uploadBytes + "} readbackBytes{" + readbackBytes + "}";
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.content.Context;
+import android.graphics.BitmapRegionDecoder;
+import android.net.Uri;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+
+/**
+ * The original of an image loaded from a file or uri, and where the downsampled bitmap shown
+ * by the preview lies in it, so texture coordinates of the preview can be mapped back to
+ * pixels of the original.
+ */
+final class SourceImage {
+    private final Context mContext;
+    private final File mFile;
+    private final Uri mUri;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mOrientation;
+    // the part of the rotated original the preview shows, as fractions: left, top, right, bottom
+    private final float[] mBounds;
+
+    /**
+     * @param file        original file, or null if loaded from uri
+     * @param uri         original uri, or null if loaded from file
+     * @param width       width as stored, before applying the orientation
+     * @param height      height as stored, before applying the orientation
+     * @param orientation clockwise rotation applied to the original: 0, 90, 180 or 270
+     * @param bounds      part of the rotated original the preview shows, as fractions
+     */
+    SourceImage(@NonNull final Context context, @Nullable final File file,
+                @Nullable final Uri uri, final int width, final int height,
+                final int orientation, @NonNull final float[] bounds) {
+        mContext = context.getApplicationContext();
+        mFile = file;
+        mUri = uri;
+        mWidth = width;
+        mHeight = height;
+        mOrientation = orientation;
+        mBounds = bounds.clone();
+    }
+
+    /**
+     * Width as stored, before applying the orientation.
+     */
+    int getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * Height as stored, before applying the orientation.
+     */
+    int getHeight() {
+        return mHeight;
+    }
+
+    @NonNull
+    BitmapRegionDecoder newDecoder() throws IOException {
+        if (mFile != null) {
+            return BitmapRegionDecoder.newInstance(mFile.getAbsolutePath(), false);
+        }
+        InputStream inputStream;
+        if (mUri.getScheme().startsWith("http")) {
+            inputStream = new URL(mUri.toString()).openStream();
+        } else {
+            inputStream = mContext.getContentResolver().openInputStream(mUri);
+        }
+        if (inputStream == null) {
+            throw new IOException("Cannot open " + mUri);
+        }
+        try {
+            return BitmapRegionDecoder.newInstance(inputStream, false);
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * Maps texture coordinates of the preview bitmap to pixel coordinates of the original as
+     * stored.
+     *
+     * @param out receives x and y
+     */
+    void textureToSource(final float u, final float v, @NonNull final float[] out) {
+        boolean sideways = mOrientation == 90 || mOrientation == 270;
+        int rotatedWidth = sideways ? mHeight : mWidth;
+        int rotatedHeight = sideways ? mWidth : mHeight;
+        float x = (mBounds[0] + u * (mBounds[2] - mBounds[0])) * rotatedWidth;
+        float y = (mBounds[1] + v * (mBounds[3] - mBounds[1])) * rotatedHeight;
+        // undo the clockwise rotation the preview was loaded with
+        switch (mOrientation) {
+            case 90:
+                out[0] = y;
+                out[1] = mHeight - x;
+                break;
+            case 180:
+                out[0] = mWidth - x;
+                out[1] = mHeight - y;
+                break;
+            case 270:
+                out[0] = mWidth - y;
+                out[1] = x;
+                break;
+            default:
+                out[0] = x;
+                out[1] = y;
+                break;
+        }
+    }
+}
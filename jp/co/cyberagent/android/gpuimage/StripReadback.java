@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.support.annotation.NonNull;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+import jp.co.cyberagent.android.gpuimage.util.PixelUtils;
+import jp.co.cyberagent.android.gpuimage.util.Tracer;
+
+/**
+ * Reads a region of an offscreen framebuffer back in horizontal strips, one per
+ * {@link #step()}, so a large readback does not stall the GL thread for a whole frame. With
+ * GLES 3 each strip is read into a pixel pack buffer and copied out on the next step, when
+ * the transfer has completed, instead of waiting for it.
+ * <br>
+ * Owns the framebuffer and its texture and deletes them in {@link #release()}. Must only be
+ * used on the GL thread of the context it was created in.
+ */
+class StripReadback {
+    // rows per strip are chosen so that each strip is about this large
+    private static final int STRIP_BYTES = 512 * 1024;
+
+    private final GLContextResources mResources;
+    private final GLBackend mGL;
+    private final int mFramebuffer;
+    private final int mTexture;
+    private final int mX;
+    private final int mY;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mStripRows;
+    private final int[] mPixels;
+    private final GPUImageMemoryManager.Allocation mAllocation;
+    private int mNextRow;
+
+    // synchronous reads
+    private IntBuffer mStrip;
+
+    // pixel pack buffer reads
+    private final int[] mPackBuffer = new int[1];
+    private int mPendingRow = -1;
+    private int mPendingRows;
+
+    /**
+     * @param framebuffer framebuffer to read, deleted with its texture on release
+     * @param texture     texture attached to the framebuffer
+     * @param x           left of the region in framebuffer coordinates
+     * @param y           bottom of the region in framebuffer coordinates
+     * @param width       width of the region
+     * @param height      height of the region
+     */
+    StripReadback(@NonNull final GLContextResources resources, final int framebuffer,
+                  final int texture, final int x, final int y, final int width, final int height) {
+        mResources = resources;
+        mGL = resources.getBackend();
+        mFramebuffer = framebuffer;
+        mTexture = texture;
+        mX = x;
+        mY = y;
+        mWidth = width;
+        mHeight = height;
+        mStripRows = Math.max(1, Math.min(height, STRIP_BYTES / (width * 4)));
+        long bytes = (long) width * height * 4;
+        mAllocation = GPUImageMemoryManager.getInstance().track(
+                GPUImageMemoryManager.Kind.READBACK, bytes + (long) width * mStripRows * 4);
+        mPixels = new int[width * height];
+        if (resources.supportsPixelPackBuffers()) {
+            mGL.glGenBuffers(1, mPackBuffer, 0);
+            mGL.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mPackBuffer[0]);
+            mGL.glBufferData(GLES30.GL_PIXEL_PACK_BUFFER, width * mStripRows * 4, null,
+                             GLES30.GL_STREAM_READ);
+            mGL.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        } else {
+            mStrip = IntBuffer.allocate(width * mStripRows);
+        }
+    }
+
+    /**
+     * Reads the next strip, restoring the framebuffer binding afterwards.
+     *
+     * @return true once the whole region is in {@link #getPixels()}
+     * @throws IllegalStateException if a strip read into a pixel pack buffer cannot be mapped
+     */
+    boolean step() {
+        Tracer.beginSection("readStrip");
+        if (mPackBuffer[0] != 0) {
+            copyPendingStrip();
+        }
+        if (mNextRow < mHeight) {
+            int rows = Math.min(mStripRows, mHeight - mNextRow);
+            GLStateCache state = mResources.getStateCache();
+            int previousFramebuffer = state.getFramebuffer();
+            state.bindFramebuffer(mFramebuffer);
+            if (mPackBuffer[0] != 0) {
+                mGL.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mPackBuffer[0]);
+                mGL.glReadPixels(mX, mY + mNextRow, mWidth, rows, GLES20.GL_RGBA,
+                                 GLES20.GL_UNSIGNED_BYTE, 0);
+                mGL.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+                mPendingRow = mNextRow;
+                mPendingRows = rows;
+            } else {
+                mStrip.clear();
+                mGL.glReadPixels(mX, mY + mNextRow, mWidth, rows, GLES20.GL_RGBA,
+                                 GLES20.GL_UNSIGNED_BYTE, mStrip);
+                PixelUtils.flipStrip(mStrip.array(), mPixels, mWidth, mHeight, mNextRow, rows);
+            }
+            state.bindFramebuffer(previousFramebuffer);
+            mResources.recordReadback((long) mWidth * rows * 4);
+            mNextRow += rows;
+        }
+        Tracer.endSection();
+        return mNextRow >= mHeight && mPendingRow == -1;
+    }
+
+    private void copyPendingStrip() {
+        if (mPendingRow == -1) {
+            return;
+        }
+        int length = mWidth * mPendingRows * 4;
+        mGL.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mPackBuffer[0]);
+        Buffer mapped = mGL.glMapBufferRange(GLES30.GL_PIXEL_PACK_BUFFER, 0, length,
+                                             GLES30.GL_MAP_READ_BIT);
+        if (!(mapped instanceof ByteBuffer)) {
+            mGL.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+            // skipping the strip would leave blank rows in an apparently complete readback
+            throw new IllegalStateException("Cannot map the pixel pack buffer of rows "
+                                                    + mPendingRow + " to "
+                                                    + (mPendingRow + mPendingRows));
+        }
+        try {
+            IntBuffer strip = ((ByteBuffer) mapped).order(ByteOrder.nativeOrder()).asIntBuffer();
+            PixelUtils.flipStrip(strip, mPixels, mWidth, mHeight, mPendingRow, mPendingRows);
+        } finally {
+            mGL.glUnmapBuffer(GLES30.GL_PIXEL_PACK_BUFFER);
+            mGL.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        }
+        mPendingRow = -1;
+    }
+
+    /**
+     * Gets the region read so far, top-down, in the byte order of an ARGB_8888 bitmap.
+     */
+    @NonNull
+    int[] getPixels() {
+        return mPixels;
+    }
+
+    int getWidth() {
+        return mWidth;
+    }
+
+    int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Deletes the framebuffer, its texture and the pixel pack buffer.
+     */
+    void release() {
+        GLStateCache state = mResources.getStateCache();
+        state.deleteFramebuffers(1, new int[]{mFramebuffer}, 0);
+        state.deleteTextures(1, new int[]{mTexture}, 0);
+        if (mPackBuffer[0] != 0) {
+            mGL.glDeleteBuffers(1, mPackBuffer, 0);
+            mPackBuffer[0] = 0;
+        }
+        mAllocation.release();
+    }
+
+    /**
+     * Forgets the GL objects without deleting them, because their context is gone.
+     */
+    void abandon() {
+        mPackBuffer[0] = 0;
+        mAllocation.release();
+    }
+}
@@ -0,0 +1,444 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.graphics.Bitmap;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.nio.Buffer;
+import java.nio.FloatBuffer;
+
+/**
+ * {@link GLBackend} reporting the objects created and deleted through another backend, and the
+ * storage of textures and buffers, to the {@link GLResourceRegistry}. Installed by
+ * {@link GLContextResources} for contexts created while the registry is enabled.
+ */
+class TrackingGLBackend implements GLBackend {
+    // GLES 2.0 guarantees at least 8 texture units
+    private static final int MAX_TRACKED_TEXTURE_UNITS = 8;
+
+    private final GLBackend mGL;
+    private final Object mContext;
+    private final GLResourceRegistry mRegistry;
+    private final int[] mBoundTextures = new int[MAX_TRACKED_TEXTURE_UNITS];
+    private int mActiveUnit;
+    private int mArrayBuffer;
+    private int mPixelPackBuffer;
+
+    TrackingGLBackend(@NonNull final GLBackend gl, @NonNull final Object context,
+                      @NonNull final GLResourceRegistry registry) {
+        mGL = gl;
+        mContext = context;
+        mRegistry = registry;
+    }
+
+    @Override
+    @NonNull
+    public Object getCurrentContext() {
+        return mContext;
+    }
+
+    @Override
+    public void glActiveTexture(final int texture) {
+        mGL.glActiveTexture(texture);
+        mActiveUnit = texture - GLES20.GL_TEXTURE0;
+    }
+
+    @Override
+    public void glAttachShader(final int program, final int shader) {
+        mGL.glAttachShader(program, shader);
+    }
+
+    @Override
+    public void glBindBuffer(final int target, final int buffer) {
+        mGL.glBindBuffer(target, buffer);
+        if (target == GLES20.GL_ARRAY_BUFFER) {
+            mArrayBuffer = buffer;
+        } else if (target == GLES30.GL_PIXEL_PACK_BUFFER) {
+            mPixelPackBuffer = buffer;
+        }
+    }
+
+    @Override
+    public void glBindFramebuffer(final int target, final int framebuffer) {
+        mGL.glBindFramebuffer(target, framebuffer);
+    }
+
+    @Override
+    public void glBindTexture(final int target, final int texture) {
+        mGL.glBindTexture(target, texture);
+        if (target == GLES20.GL_TEXTURE_2D && mActiveUnit >= 0
+                && mActiveUnit < MAX_TRACKED_TEXTURE_UNITS) {
+            mBoundTextures[mActiveUnit] = texture;
+        }
+    }
+
+    @Override
+    public void glBufferData(final int target, final int size, @Nullable final Buffer data,
+                             final int usage) {
+        mGL.glBufferData(target, size, data, usage);
+        int buffer = target == GLES20.GL_ARRAY_BUFFER ? mArrayBuffer
+                : target == GLES30.GL_PIXEL_PACK_BUFFER ? mPixelPackBuffer : 0;
+        if (buffer != 0) {
+            mRegistry.onStorage(mContext, GLResourceRegistry.Type.BUFFER, buffer, 0, size);
+        }
+    }
+
+    @Override
+    public int glCheckFramebufferStatus(final int target) {
+        return mGL.glCheckFramebufferStatus(target);
+    }
+
+    @Override
+    public void glClear(final int mask) {
+        mGL.glClear(mask);
+    }
+
+    @Override
+    public void glClearColor(final float red, final float green, final float blue,
+                             final float alpha) {
+        mGL.glClearColor(red, green, blue, alpha);
+    }
+
+    @Override
+    public void glCompileShader(final int shader) {
+        mGL.glCompileShader(shader);
+    }
+
+    @Override
+    public int glCreateProgram() {
+        int program = mGL.glCreateProgram();
+        if (program != 0) {
+            mRegistry.onCreated(mContext, GLResourceRegistry.Type.PROGRAM, program);
+        }
+        return program;
+    }
+
+    @Override
+    public int glCreateShader(final int type) {
+        int shader = mGL.glCreateShader(type);
+        if (shader != 0) {
+            mRegistry.onCreated(mContext, GLResourceRegistry.Type.SHADER, shader);
+        }
+        return shader;
+    }
+
+    @Override
+    public void glDeleteBuffers(final int n, @NonNull final int[] buffers, final int offset) {
+        mGL.glDeleteBuffers(n, buffers, offset);
+        for (int i = offset; i < offset + n; i++) {
+            mRegistry.onDeleted(mContext, GLResourceRegistry.Type.BUFFER, buffers[i]);
+        }
+    }
+
+    @Override
+    public void glDeleteFramebuffers(final int n, @NonNull final int[] framebuffers,
+                                     final int offset) {
+        mGL.glDeleteFramebuffers(n, framebuffers, offset);
+        for (int i = offset; i < offset + n; i++) {
+            mRegistry.onDeleted(mContext, GLResourceRegistry.Type.FRAMEBUFFER, framebuffers[i]);
+        }
+    }
+
+    @Override
+    public void glDeleteProgram(final int program) {
+        mGL.glDeleteProgram(program);
+        mRegistry.onDeleted(mContext, GLResourceRegistry.Type.PROGRAM, program);
+    }
+
+    @Override
+    public void glDeleteShader(final int shader) {
+        mGL.glDeleteShader(shader);
+        mRegistry.onDeleted(mContext, GLResourceRegistry.Type.SHADER, shader);
+    }
+
+    @Override
+    public void glDeleteTextures(final int n, @NonNull final int[] textures, final int offset) {
+        mGL.glDeleteTextures(n, textures, offset);
+        for (int i = offset; i < offset + n; i++) {
+            mRegistry.onDeleted(mContext, GLResourceRegistry.Type.TEXTURE, textures[i]);
+        }
+    }
+
+    @Override
+    public void glDisable(final int cap) {
+        mGL.glDisable(cap);
+    }
+
+    @Override
+    public void glDisableVertexAttribArray(final int index) {
+        mGL.glDisableVertexAttribArray(index);
+    }
+
+    @Override
+    public void glDrawArrays(final int mode, final int first, final int count) {
+        mGL.glDrawArrays(mode, first, count);
+    }
+
+    @Override
+    public void glEnable(final int cap) {
+        mGL.glEnable(cap);
+    }
+
+    @Override
+    public void glEnableVertexAttribArray(final int index) {
+        mGL.glEnableVertexAttribArray(index);
+    }
+
+    @Override
+    public void glFramebufferTexture2D(final int target, final int attachment, final int textarget,
+                                       final int texture, final int level) {
+        mGL.glFramebufferTexture2D(target, attachment, textarget, texture, level);
+    }
+
+    @Override
+    public void glGenBuffers(final int n, @NonNull final int[] buffers, final int offset) {
+        mGL.glGenBuffers(n, buffers, offset);
+        for (int i = offset; i < offset + n; i++) {
+            mRegistry.onCreated(mContext, GLResourceRegistry.Type.BUFFER, buffers[i]);
+        }
+    }
+
+    @Override
+    public void glGenFramebuffers(final int n, @NonNull final int[] framebuffers,
+                                  final int offset) {
+        mGL.glGenFramebuffers(n, framebuffers, offset);
+        for (int i = offset; i < offset + n; i++) {
+            mRegistry.onCreated(mContext, GLResourceRegistry.Type.FRAMEBUFFER, framebuffers[i]);
+        }
+    }
+
+    @Override
+    public void glGenerateMipmap(final int target) {
+        mGL.glGenerateMipmap(target);
+        if (target == GLES20.GL_TEXTURE_2D) {
+            mRegistry.onMipmapsGenerated(mContext, boundTexture());
+        }
+    }
+
+    @Override
+    public void glGenTextures(final int n, @NonNull final int[] textures, final int offset) {
+        mGL.glGenTextures(n, textures, offset);
+        for (int i = offset; i < offset + n; i++) {
+            mRegistry.onCreated(mContext, GLResourceRegistry.Type.TEXTURE, textures[i]);
+        }
+    }
+
+    @Override
+    public int glGetAttribLocation(final int program, @NonNull final String name) {
+        return mGL.glGetAttribLocation(program, name);
+    }
+
+    @Override
+    public void glGetIntegerv(final int pname, @NonNull final int[] params, final int offset) {
+        mGL.glGetIntegerv(pname, params, offset);
+    }
+
+    @Override
+    public void glGetProgramiv(final int program, final int pname, @NonNull final int[] params,
+                               final int offset) {
+        mGL.glGetProgramiv(program, pname, params, offset);
+    }
+
+    @Override
+    @Nullable
+    public String glGetShaderInfoLog(final int shader) {
+        return mGL.glGetShaderInfoLog(shader);
+    }
+
+    @Override
+    public void glGetShaderiv(final int shader, final int pname, @NonNull final int[] params,
+                              final int offset) {
+        mGL.glGetShaderiv(shader, pname, params, offset);
+    }
+
+    @Override
+    @Nullable
+    public String glGetString(final int name) {
+        return mGL.glGetString(name);
+    }
+
+    @Override
+    public int glGetUniformLocation(final int program, @NonNull final String name) {
+        return mGL.glGetUniformLocation(program, name);
+    }
+
+    @Override
+    public void glLinkProgram(final int program) {
+        mGL.glLinkProgram(program);
+    }
+
+    @Override
+    @Nullable
+    public Buffer glMapBufferRange(final int target, final int offset, final int length,
+                                   final int access) {
+        return mGL.glMapBufferRange(target, offset, length, access);
+    }
+
+    @Override
+    public void glReadPixels(final int x, final int y, final int width, final int height,
+                             final int format, final int type, @NonNull final Buffer pixels) {
+        mGL.glReadPixels(x, y, width, height, format, type, pixels);
+    }
+
+    @Override
+    public void glReadPixels(final int x, final int y, final int width, final int height,
+                             final int format, final int type, final int offset) {
+        mGL.glReadPixels(x, y, width, height, format, type, offset);
+    }
+
+    @Override
+    public void glScissor(final int x, final int y, final int width, final int height) {
+        mGL.glScissor(x, y, width, height);
+    }
+
+    @Override
+    public void glShaderSource(final int shader, @NonNull final String source) {
+        mGL.glShaderSource(shader, source);
+    }
+
+    @Override
+    public void glTexImage2D(final int target, final int level, final int internalformat,
+                             final int width, final int height, final int border, final int format,
+                             final int type, @Nullable final Buffer pixels) {
+        mGL.glTexImage2D(target, level, internalformat, width, height, border, format, type, pixels);
+        if (target == GLES20.GL_TEXTURE_2D) {
+            mRegistry.onStorage(mContext, GLResourceRegistry.Type.TEXTURE, boundTexture(), level,
+                    (long) width * height * RecordingGLBackend.bytesPerPixel(format, type));
+        }
+    }
+
+    @Override
+    public void glTexParameterf(final int target, final int pname, final float param) {
+        mGL.glTexParameterf(target, pname, param);
+    }
+
+    @Override
+    public void glTexParameteri(final int target, final int pname, final int param) {
+        mGL.glTexParameteri(target, pname, param);
+    }
+
+    @Override
+    public void glTexSubImage2D(final int target, final int level, final int xoffset,
+                                final int yoffset, final int width, final int height,
+                                final int format, final int type, @NonNull final Buffer pixels) {
+        mGL.glTexSubImage2D(target, level, xoffset, yoffset, width, height, format, type, pixels);
+    }
+
+    @Override
+    public boolean glUnmapBuffer(final int target) {
+        return mGL.glUnmapBuffer(target);
+    }
+
+    @Override
+    public void glUniform1f(final int location, final float x) {
+        mGL.glUniform1f(location, x);
+    }
+
+    @Override
+    public void glUniform1fv(final int location, final int count, @NonNull final FloatBuffer v) {
+        mGL.glUniform1fv(location, count, v);
+    }
+
+    @Override
+    public void glUniform1i(final int location, final int x) {
+        mGL.glUniform1i(location, x);
+    }
+
+    @Override
+    public void glUniform2fv(final int location, final int count, @NonNull final FloatBuffer v) {
+        mGL.glUniform2fv(location, count, v);
+    }
+
+    @Override
+    public void glUniform2fv(final int location, final int count, @NonNull final float[] v,
+                             final int offset) {
+        mGL.glUniform2fv(location, count, v, offset);
+    }
+
+    @Override
+    public void glUniform3fv(final int location, final int count, @NonNull final FloatBuffer v) {
+        mGL.glUniform3fv(location, count, v);
+    }
+
+    @Override
+    public void glUniform4fv(final int location, final int count, @NonNull final FloatBuffer v) {
+        mGL.glUniform4fv(location, count, v);
+    }
+
+    @Override
+    public void glUniformMatrix3fv(final int location, final int count, final boolean transpose,
+                                   @NonNull final float[] value, final int offset) {
+        mGL.glUniformMatrix3fv(location, count, transpose, value, offset);
+    }
+
+    @Override
+    public void glUniformMatrix4fv(final int location, final int count, final boolean transpose,
+                                   @NonNull final float[] value, final int offset) {
+        mGL.glUniformMatrix4fv(location, count, transpose, value, offset);
+    }
+
+    @Override
+    public void glUseProgram(final int program) {
+        mGL.glUseProgram(program);
+    }
+
+    @Override
+    public void glVertexAttribPointer(final int index, final int size, final int type,
+                                      final boolean normalized, final int stride,
+                                      @NonNull final Buffer ptr) {
+        mGL.glVertexAttribPointer(index, size, type, normalized, stride, ptr);
+    }
+
+    @Override
+    public void glVertexAttribPointer(final int index, final int size, final int type,
+                                      final boolean normalized, final int stride,
+                                      final int offset) {
+        mGL.glVertexAttribPointer(index, size, type, normalized, stride, offset);
+    }
+
+    @Override
+    public void glViewport(final int x, final int y, final int width, final int height) {
+        mGL.glViewport(x, y, width, height);
+    }
+
+    @Override
+    public void texImage2D(final int target, final int level, @NonNull final Bitmap bitmap,
+                           final int border) {
+        mGL.texImage2D(target, level, bitmap, border);
+        if (target == GLES20.GL_TEXTURE_2D) {
+            mRegistry.onStorage(mContext, GLResourceRegistry.Type.TEXTURE, boundTexture(), level,
+                    (long) bitmap.getRowBytes() * bitmap.getHeight());
+        }
+    }
+
+    @Override
+    public void texSubImage2D(final int target, final int level, final int xoffset,
+                              final int yoffset, @NonNull final Bitmap bitmap) {
+        mGL.texSubImage2D(target, level, xoffset, yoffset, bitmap);
+    }
+
+    private int boundTexture() {
+        if (mActiveUnit < 0 || mActiveUnit >= MAX_TRACKED_TEXTURE_UNITS) {
+            return 0;
+        }
+        return mBoundTextures[mActiveUnit];
+    }
+}
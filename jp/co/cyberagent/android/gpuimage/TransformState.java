@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.support.annotation.NonNull;
+
+import jp.co.cyberagent.android.gpuimage.util.TextureClipUtil;
+
+/**
+ * Immutable snapshot of the image transform, published by the thread that changes the
+ * transform and consumed by the GL thread. Instances are never modified after construction.
+ */
+final class TransformState {
+    /**
+     * Column-major 3x3 matrix mapping untransformed texture coordinates to image coordinates.
+     */
+    final float[] textureTransform;
+    /**
+     * True if the whole output samples inside the image and the static quad can be drawn.
+     */
+    final boolean coversOutput;
+    /**
+     * Number of vertices of the part of the output covered by the image, as a triangle strip.
+     */
+    final int clipVertexCount;
+    /**
+     * Vertex positions of the covered part.
+     */
+    final float[] clipPositions;
+    /**
+     * Untransformed texture coordinates of the covered part, for filters applying
+     * {@link #textureTransform} in their vertex shader.
+     */
+    final float[] clipTextureCoords;
+    /**
+     * Transformed texture coordinates of the covered part, for filters with a custom vertex
+     * shader.
+     */
+    final float[] clipTransformedCoords;
+    /**
+     * Crop region as left, top, right, bottom fractions of the output, top-left origin.
+     */
+    final float[] cropBox;
+
+    /**
+     * Snapshots the current texture transform and crop box of the given transform.
+     */
+    @NonNull
+    static TransformState of(@NonNull final ImageTransform transform) {
+        float[] textureTransform = new float[9];
+        float[] cropBox = new float[4];
+        transform.getTextureTransform(textureTransform);
+        transform.getCropBox(cropBox);
+        return new TransformState(textureTransform, cropBox);
+    }
+
+    TransformState(@NonNull final float[] textureTransform, @NonNull final float[] cropBox) {
+        this.textureTransform = textureTransform.clone();
+        this.cropBox = cropBox.clone();
+        coversOutput = TextureClipUtil.coversOutput(this.textureTransform);
+        clipTextureCoords = new float[TextureClipUtil.MAX_VERTICES * 2];
+        clipVertexCount = TextureClipUtil.clipOutput(this.textureTransform, clipTextureCoords);
+        clipPositions = new float[clipTextureCoords.length];
+        TextureClipUtil.toPositions(clipTextureCoords, clipPositions, clipVertexCount);
+        clipTransformedCoords = new float[clipTextureCoords.length];
+        TextureClipUtil.transform(this.textureTransform, clipTextureCoords, clipTransformedCoords,
+                                  clipVertexCount);
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.util;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+
+/**
+ * Writes trace events in the Chrome trace event JSON format, viewable in chrome://tracing or
+ * Perfetto. Used directly as a sink it streams events to a file; {@link #write(List, Writer)}
+ * converts events captured by a {@link TraceRingBuffer}.
+ * <br>
+ * Write errors while tracing are swallowed and stop the writer, tracing must never break
+ * rendering.
+ */
+public class ChromeTraceWriter implements Tracer.Sink, Closeable {
+    private Writer mWriter;
+    private boolean mFirst = true;
+
+    public ChromeTraceWriter(@NonNull final File file) throws IOException {
+        this(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+    }
+
+    public ChromeTraceWriter(@NonNull final Writer writer) throws IOException {
+        mWriter = new BufferedWriter(writer);
+        mWriter.write('[');
+    }
+
+    /**
+     * Writes events as a complete JSON array.
+     *
+     * @param events events, e.g. from {@link TraceRingBuffer#getEvents()}
+     * @param writer destination, not closed
+     * @throws IOException if writing fails
+     */
+    public static void write(@NonNull final List<Tracer.Event> events,
+                             @NonNull final Writer writer) throws IOException {
+        StringBuilder builder = new StringBuilder();
+        writer.write('[');
+        for (int i = 0; i < events.size(); i++) {
+            Tracer.Event event = events.get(i);
+            builder.setLength(0);
+            if (i > 0) {
+                builder.append(",\n");
+            }
+            appendEvent(builder, event.name, event.phase, event.timestampNanos, event.threadId);
+            writer.write(builder.toString());
+        }
+        writer.write("]\n");
+        writer.flush();
+    }
+
+    @Override
+    public void beginSection(@NonNull final String name, final long timestampNanos,
+                             final long threadId) {
+        append(name, Tracer.Event.BEGIN, timestampNanos, threadId);
+    }
+
+    @Override
+    public void endSection(final long timestampNanos, final long threadId) {
+        append(null, Tracer.Event.END, timestampNanos, threadId);
+    }
+
+    /**
+     * Terminates the JSON array and closes the file. Remove the writer from {@link Tracer}
+     * first, later events are dropped.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (mWriter == null) {
+            return;
+        }
+        try {
+            mWriter.write("]\n");
+        } finally {
+            mWriter.close();
+            mWriter = null;
+        }
+    }
+
+    private synchronized void append(@Nullable final String name, final char phase,
+                                     final long timestampNanos, final long threadId) {
+        if (mWriter == null) {
+            return;
+        }
+        StringBuilder builder = new StringBuilder(96);
+        if (!mFirst) {
+            builder.append(",\n");
+        }
+        appendEvent(builder, name, phase, timestampNanos, threadId);
+        try {
+            mWriter.write(builder.toString());
+            mFirst = false;
+        } catch (IOException e) {
+            try {
+                mWriter.close();
+            } catch (IOException ignored) {
+            }
+            mWriter = null;
+        }
+    }
+
+    private static void appendEvent(@NonNull final StringBuilder builder,
+                                    @Nullable final String name, final char phase,
+                                    final long timestampNanos, final long threadId) {
+        builder.append("{\"ph\":\"").append(phase).append('"');
+        if (name != null) {
+            builder.append(",\"name\":\"");
+            appendEscaped(builder, name);
+            builder.append('"');
+        }
+        // timestamps are in microseconds
+        builder.append(",\"ts\":").append(timestampNanos / 1000.0)
+               .append(",\"pid\":0,\"tid\":").append(threadId).append('}');
+    }
+
+    private static void appendEscaped(@NonNull final StringBuilder builder,
+                                      @NonNull final String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                builder.append('\\').append(c);
+            } else if (c < 0x20) {
+                builder.append(String.format("\\u%04x", (int) c));
+            } else {
+                builder.append(c);
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.util;
+
+import android.support.annotation.NonNull;
+
+import java.nio.IntBuffer;
+
+/**
+ * Plain Java helpers for pixel data read back from GL.
+ */
+public class PixelUtils {
+    private PixelUtils() {
+    }
+
+    /**
+     * Copies rows in reverse order, turning the bottom-up rows glReadPixels returns into the
+     * top-down order of a Bitmap. Whole rows are copied at once.
+     *
+     * @param src    source pixels, width * height values
+     * @param dst    destination pixels, width * height values, must not be src
+     * @param width  row length in pixels
+     * @param height number of rows
+     */
+    public static void flipRows(@NonNull final int[] src, @NonNull final int[] dst,
+                                final int width, final int height) {
+        for (int row = 0; row < height; row++) {
+            System.arraycopy(src, row * width, dst, (height - row - 1) * width, width);
+        }
+    }
+
+    /**
+     * Reverses the row order in place.
+     *
+     * @param pixels pixels, width * height values
+     * @param width  row length in pixels
+     * @param height number of rows
+     */
+    public static void flipRows(@NonNull final int[] pixels, final int width, final int height) {
+        int[] row = new int[width];
+        for (int top = 0, bottom = height - 1; top < bottom; top++, bottom--) {
+            System.arraycopy(pixels, top * width, row, 0, width);
+            System.arraycopy(pixels, bottom * width, pixels, top * width, width);
+            System.arraycopy(row, 0, pixels, bottom * width, width);
+        }
+    }
+
+    /**
+     * Copies a strip of bottom-up rows, as glReadPixels returns them, into its place in a
+     * top-down image. Whole rows are copied at once.
+     *
+     * @param src       strip pixels, rows * width values, bottom row first
+     * @param dst       image pixels, width * height values
+     * @param width     row length in pixels
+     * @param height    number of rows of the image
+     * @param bottomRow row of the image the first strip row belongs to, counted from the bottom
+     * @param rows      number of rows in the strip
+     */
+    public static void flipStrip(@NonNull final int[] src, @NonNull final int[] dst,
+                                 final int width, final int height, final int bottomRow,
+                                 final int rows) {
+        for (int row = 0; row < rows; row++) {
+            System.arraycopy(src, row * width, dst, (height - bottomRow - row - 1) * width, width);
+        }
+    }
+
+    /**
+     * Like {@link #flipStrip(int[], int[], int, int, int, int)}, reading from a buffer, e.g.
+     * a mapped pixel pack buffer. The buffer position is changed.
+     */
+    public static void flipStrip(@NonNull final IntBuffer src, @NonNull final int[] dst,
+                                 final int width, final int height, final int bottomRow,
+                                 final int rows) {
+        for (int row = 0; row < rows; row++) {
+            src.position(row * width);
+            src.get(dst, (height - bottomRow - row - 1) * width, width);
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.util;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Computes the part of the output where a texture transform samples inside the texture, so
+ * clamp-to-border can be done by clipping geometry instead of testing every fragment.
+ * <br>
+ * Coordinates are in the untransformed texture space of
+ * {@link TextureRotationUtil#TEXTURE_NO_ROTATION}, i.e. [0,1] on both axes across the output
+ * with (0,0) at the top left. Transforms are column-major 3x3 affine matrices.
+ */
+public class TextureClipUtil {
+    /**
+     * Maximum number of vertices of a clipped polygon: a quad clipped by four lines.
+     */
+    public static final int MAX_VERTICES = 8;
+
+    private static final float EPSILON = 1e-5f;
+
+    private static final float[] OUTPUT_QUAD = {
+            0.0f, 0.0f,
+            1.0f, 0.0f,
+            1.0f, 1.0f,
+            0.0f, 1.0f,
+    };
+
+    private TextureClipUtil() {
+    }
+
+    /**
+     * Checks whether the whole output samples inside the texture.
+     *
+     * @param transform column-major texture transform
+     * @return true if no clipping is needed
+     */
+    public static boolean coversOutput(@NonNull final float[] transform) {
+        for (int i = 0; i < OUTPUT_QUAD.length; i += 2) {
+            float x = transformX(transform, OUTPUT_QUAD[i], OUTPUT_QUAD[i + 1]);
+            float y = transformY(transform, OUTPUT_QUAD[i], OUTPUT_QUAD[i + 1]);
+            if (x < -EPSILON || x > 1 + EPSILON || y < -EPSILON || y > 1 + EPSILON) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Clips the output quad to the region whose transformed coordinates lie in [0,1].
+     *
+     * @param transform column-major texture transform
+     * @param out       receives the vertices as x,y pairs in triangle strip order, needs room
+     *                  for {@link #MAX_VERTICES} vertices
+     * @return number of vertices written, 0 if nothing of the texture is visible
+     */
+    public static int clipOutput(@NonNull final float[] transform, @NonNull final float[] out) {
+        float[] polygon = new float[MAX_VERTICES * 2];
+        float[] scratch = new float[MAX_VERTICES * 2];
+        System.arraycopy(OUTPUT_QUAD, 0, polygon, 0, OUTPUT_QUAD.length);
+        int count = OUTPUT_QUAD.length / 2;
+
+        // transformed x >= 0, x <= 1, y >= 0, y <= 1 as half-planes a*x + b*y + c >= 0
+        count = clip(polygon, count, scratch, transform[0], transform[3], transform[6]);
+        count = clip(scratch, count, polygon, -transform[0], -transform[3], 1 - transform[6]);
+        count = clip(polygon, count, scratch, transform[1], transform[4], transform[7]);
+        count = clip(scratch, count, polygon, -transform[1], -transform[4], 1 - transform[7]);
+
+        // a convex polygon 0..n-1 becomes the strip 0, 1, n-1, 2, n-2, ...
+        int low = 1;
+        int high = count - 1;
+        for (int i = 0; i < count; i++) {
+            int vertex = i == 0 ? 0 : i % 2 == 1 ? low++ : high--;
+            out[i * 2] = polygon[vertex * 2];
+            out[i * 2 + 1] = polygon[vertex * 2 + 1];
+        }
+        return count;
+    }
+
+    /**
+     * Applies a column-major texture transform to x,y pairs.
+     *
+     * @param transform column-major texture transform
+     * @param coords    source coordinates
+     * @param out       receives the transformed coordinates
+     * @param count     number of x,y pairs
+     */
+    public static void transform(@NonNull final float[] transform, @NonNull final float[] coords,
+                                 @NonNull final float[] out, final int count) {
+        for (int i = 0; i < count * 2; i += 2) {
+            float x = coords[i];
+            float y = coords[i + 1];
+            out[i] = transformX(transform, x, y);
+            out[i + 1] = transformY(transform, x, y);
+        }
+    }
+
+    /**
+     * Converts x,y pairs in texture space to vertex positions matching
+     * {@link TextureRotationUtil#TEXTURE_NO_ROTATION}.
+     *
+     * @param coords texture space coordinates
+     * @param out    receives the vertex positions
+     * @param count  number of x,y pairs
+     */
+    public static void toPositions(@NonNull final float[] coords, @NonNull final float[] out,
+                                   final int count) {
+        for (int i = 0; i < count * 2; i += 2) {
+            out[i] = coords[i] * 2 - 1;
+            out[i + 1] = 1 - coords[i + 1] * 2;
+        }
+    }
+
+    private static float transformX(@NonNull final float[] transform, final float x, final float y) {
+        return transform[0] * x + transform[3] * y + transform[6];
+    }
+
+    private static float transformY(@NonNull final float[] transform, final float x, final float y) {
+        return transform[1] * x + transform[4] * y + transform[7];
+    }
+
+    // Sutherland-Hodgman step against the half-plane a*x + b*y + c >= 0
+    private static int clip(@NonNull final float[] in, final int count, @NonNull final float[] out,
+                            final float a, final float b, final float c) {
+        int outCount = 0;
+        for (int i = 0; i < count; i++) {
+            int j = (i + 1) % count;
+            float x0 = in[i * 2];
+            float y0 = in[i * 2 + 1];
+            float x1 = in[j * 2];
+            float y1 = in[j * 2 + 1];
+            float d0 = a * x0 + b * y0 + c;
+            float d1 = a * x1 + b * y1 + c;
+            boolean inside0 = d0 >= -EPSILON;
+            boolean inside1 = d1 >= -EPSILON;
+            if (inside0 && outCount < MAX_VERTICES) {
+                out[outCount * 2] = x0;
+                out[outCount * 2 + 1] = y0;
+                outCount++;
+            }
+            if (inside0 != inside1 && outCount < MAX_VERTICES) {
+                float t = d0 / (d0 - d1);
+                out[outCount * 2] = x0 + (x1 - x0) * t;
+                out[outCount * 2 + 1] = y0 + (y1 - y0) * t;
+                outCount++;
+            }
+        }
+        return outCount < 3 ? 0 : outCount;
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.util;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the most recent trace events in memory. Recording does not allocate, old events are
+ * overwritten once the buffer is full.
+ */
+public class TraceRingBuffer implements Tracer.Sink {
+    private final String[] mNames;
+    private final char[] mPhases;
+    private final long[] mTimestamps;
+    private final long[] mThreadIds;
+    private int mNext;
+    private int mCount;
+
+    /**
+     * @param capacity maximum number of kept events
+     */
+    public TraceRingBuffer(final int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        mNames = new String[capacity];
+        mPhases = new char[capacity];
+        mTimestamps = new long[capacity];
+        mThreadIds = new long[capacity];
+    }
+
+    @Override
+    public void beginSection(@NonNull final String name, final long timestampNanos,
+                             final long threadId) {
+        add(name, Tracer.Event.BEGIN, timestampNanos, threadId);
+    }
+
+    @Override
+    public void endSection(final long timestampNanos, final long threadId) {
+        add(null, Tracer.Event.END, timestampNanos, threadId);
+    }
+
+    /**
+     * Copies the kept events, oldest first.
+     *
+     * @return events
+     */
+    @NonNull
+    public synchronized List<Tracer.Event> getEvents() {
+        List<Tracer.Event> events = new ArrayList<Tracer.Event>(mCount);
+        int capacity = mNames.length;
+        int first = (mNext - mCount + capacity) % capacity;
+        for (int i = 0; i < mCount; i++) {
+            int index = (first + i) % capacity;
+            events.add(new Tracer.Event(mNames[index], mPhases[index], mTimestamps[index],
+                                        mThreadIds[index]));
+        }
+        return events;
+    }
+
+    public synchronized void clear() {
+        mNext = 0;
+        mCount = 0;
+        for (int i = 0; i < mNames.length; i++) {
+            mNames[i] = null;
+        }
+    }
+
+    private synchronized void add(final String name, final char phase, final long timestampNanos,
+                                  final long threadId) {
+        mNames[mNext] = name;
+        mPhases[mNext] = phase;
+        mTimestamps[mNext] = timestampNanos;
+        mThreadIds[mNext] = threadId;
+        mNext = (mNext + 1) % mNames.length;
+        if (mCount < mNames.length) {
+            mCount++;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.util;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * Named trace sections around the expensive steps of loading, rendering and saving. Sections
+ * are passed to a pluggable {@link Sink}; without one, which is the default, tracing costs a
+ * single volatile read per section. Sections nest per thread and must be ended on the thread
+ * that began them.
+ * <br>
+ * Available sinks are {@link TraceRingBuffer} for in-memory capture and
+ * {@link ChromeTraceWriter} for Chrome trace JSON files.
+ */
+public final class Tracer {
+    private static volatile Sink sSink;
+
+    /**
+     * Receives trace events. Called on the traced threads, so implementations must be thread
+     * safe and fast. Sections begun before a sink was set may be ended on it, sinks must
+     * tolerate unmatched ends.
+     */
+    public interface Sink {
+        void beginSection(@NonNull String name, long timestampNanos, long threadId);
+
+        void endSection(long timestampNanos, long threadId);
+    }
+
+    /**
+     * One traced event, as captured by {@link TraceRingBuffer}.
+     */
+    public static final class Event {
+        public static final char BEGIN = 'B';
+        public static final char END = 'E';
+
+        /**
+         * Section name, null for {@link #END} events.
+         */
+        @Nullable
+        public final String name;
+        public final char phase;
+        public final long timestampNanos;
+        public final long threadId;
+
+        public Event(@Nullable final String name, final char phase, final long timestampNanos,
+                     final long threadId) {
+            this.name = name;
+            this.phase = phase;
+            this.timestampNanos = timestampNanos;
+            this.threadId = threadId;
+        }
+    }
+
+    private Tracer() {
+    }
+
+    /**
+     * Sets the sink receiving all trace sections.
+     *
+     * @param sink sink, or null to disable tracing
+     */
+    public static void setSink(@Nullable final Sink sink) {
+        sSink = sink;
+    }
+
+    @Nullable
+    public static Sink getSink() {
+        return sSink;
+    }
+
+    public static boolean isEnabled() {
+        return sSink != null;
+    }
+
+    public static void beginSection(@NonNull final String name) {
+        Sink sink = sSink;
+        if (sink != null) {
+            sink.beginSection(name, System.nanoTime(), Thread.currentThread().getId());
+        }
+    }
+
+    public static void endSection() {
+        Sink sink = sSink;
+        if (sink != null) {
+            sink.endSection(System.nanoTime(), Thread.currentThread().getId());
+        }
+    }
+}
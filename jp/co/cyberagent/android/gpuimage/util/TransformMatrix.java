@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.util;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Plain Java 3x3 matrix with the semantics of android.graphics.Matrix for the operations the
+ * image transform needs, so the transform logic also runs on a JVM without Android. Values are
+ * in the same row-major order as android.graphics.Matrix#getValues. No method allocates.
+ */
+public class TransformMatrix {
+    private final float[] mValues = new float[9];
+
+    public TransformMatrix() {
+        reset();
+    }
+
+    public TransformMatrix(@NonNull final TransformMatrix other) {
+        set(other);
+    }
+
+    public void reset() {
+        setValues(1, 0, 0, 0, 1, 0, 0, 0, 1);
+    }
+
+    public void set(@NonNull final TransformMatrix other) {
+        System.arraycopy(other.mValues, 0, mValues, 0, 9);
+    }
+
+    public void setValues(@NonNull final float[] values) {
+        System.arraycopy(values, 0, mValues, 0, 9);
+    }
+
+    public void getValues(@NonNull final float[] values) {
+        System.arraycopy(mValues, 0, values, 0, 9);
+    }
+
+    public void setScale(final float sx, final float sy, final float px, final float py) {
+        setValues(sx, 0, px - sx * px, 0, sy, py - sy * py, 0, 0, 1);
+    }
+
+    public void postScale(final float sx, final float sy, final float px, final float py) {
+        postConcat(sx, 0, px - sx * px, 0, sy, py - sy * py, 0, 0, 1);
+    }
+
+    public void postScale(final float sx, final float sy) {
+        postConcat(sx, 0, 0, 0, sy, 0, 0, 0, 1);
+    }
+
+    public void postTranslate(final float dx, final float dy) {
+        postConcat(1, 0, dx, 0, 1, dy, 0, 0, 1);
+    }
+
+    public void postRotate(final float degrees) {
+        postRotate(degrees, 0, 0);
+    }
+
+    public void postRotate(final float degrees, final float px, final float py) {
+        double radians = Math.toRadians(degrees);
+        float sin = (float) Math.sin(radians);
+        float cos = (float) Math.cos(radians);
+        postConcat(cos, -sin, sin * py + (1 - cos) * px,
+                   sin, cos, -sin * px + (1 - cos) * py,
+                   0, 0, 1);
+    }
+
+    /**
+     * Sets this matrix to other * this.
+     */
+    public void postConcat(@NonNull final TransformMatrix other) {
+        float[] o = other.mValues;
+        postConcat(o[0], o[1], o[2], o[3], o[4], o[5], o[6], o[7], o[8]);
+    }
+
+    /**
+     * Sets this matrix to a * b. Either may be this matrix.
+     */
+    public void setConcat(@NonNull final TransformMatrix a, @NonNull final TransformMatrix b) {
+        float[] v = a.mValues;
+        float[] w = b.mValues;
+        setValues(v[0] * w[0] + v[1] * w[3] + v[2] * w[6],
+                  v[0] * w[1] + v[1] * w[4] + v[2] * w[7],
+                  v[0] * w[2] + v[1] * w[5] + v[2] * w[8],
+                  v[3] * w[0] + v[4] * w[3] + v[5] * w[6],
+                  v[3] * w[1] + v[4] * w[4] + v[5] * w[7],
+                  v[3] * w[2] + v[4] * w[5] + v[5] * w[8],
+                  v[6] * w[0] + v[7] * w[3] + v[8] * w[6],
+                  v[6] * w[1] + v[7] * w[4] + v[8] * w[7],
+                  v[6] * w[2] + v[7] * w[5] + v[8] * w[8]);
+    }
+
+    /**
+     * Inverts this matrix into the given one, which may be this matrix.
+     *
+     * @return false if this matrix is singular, the target is then left unchanged
+     */
+    public boolean invert(@NonNull final TransformMatrix inverse) {
+        float[] v = mValues;
+        double c0 = (double) v[4] * v[8] - (double) v[5] * v[7];
+        double c1 = (double) v[5] * v[6] - (double) v[3] * v[8];
+        double c2 = (double) v[3] * v[7] - (double) v[4] * v[6];
+        double determinant = v[0] * c0 + v[1] * c1 + v[2] * c2;
+        if (determinant == 0 || Double.isNaN(determinant)) {
+            return false;
+        }
+        double scale = 1 / determinant;
+        inverse.setValues((float) (c0 * scale),
+                          (float) (((double) v[2] * v[7] - (double) v[1] * v[8]) * scale),
+                          (float) (((double) v[1] * v[5] - (double) v[2] * v[4]) * scale),
+                          (float) (c1 * scale),
+                          (float) (((double) v[0] * v[8] - (double) v[2] * v[6]) * scale),
+                          (float) (((double) v[2] * v[3] - (double) v[0] * v[5]) * scale),
+                          (float) (c2 * scale),
+                          (float) (((double) v[1] * v[6] - (double) v[0] * v[7]) * scale),
+                          (float) (((double) v[0] * v[4] - (double) v[1] * v[3]) * scale));
+        return true;
+    }
+
+    /**
+     * Maps x,y pairs, dividing by the projected w like android.graphics.Matrix. The arrays may
+     * be the same.
+     */
+    public void mapPoints(@NonNull final float[] dst, @NonNull final float[] src) {
+        float[] v = mValues;
+        for (int i = 0; i + 1 < src.length && i + 1 < dst.length; i += 2) {
+            float x = src[i];
+            float y = src[i + 1];
+            float w = v[6] * x + v[7] * y + v[8];
+            if (w == 0) {
+                w = 1;
+            }
+            dst[i] = (v[0] * x + v[1] * y + v[2]) / w;
+            dst[i + 1] = (v[3] * x + v[4] * y + v[5]) / w;
+        }
+    }
+
+    public void mapPoints(@NonNull final float[] points) {
+        mapPoints(points, points);
+    }
+
+    private void postConcat(final float a0, final float a1, final float a2,
+                            final float a3, final float a4, final float a5,
+                            final float a6, final float a7, final float a8) {
+        float[] v = mValues;
+        setValues(a0 * v[0] + a1 * v[3] + a2 * v[6],
+                  a0 * v[1] + a1 * v[4] + a2 * v[7],
+                  a0 * v[2] + a1 * v[5] + a2 * v[8],
+                  a3 * v[0] + a4 * v[3] + a5 * v[6],
+                  a3 * v[1] + a4 * v[4] + a5 * v[7],
+                  a3 * v[2] + a4 * v[5] + a5 * v[8],
+                  a6 * v[0] + a7 * v[3] + a8 * v[6],
+                  a6 * v[1] + a7 * v[4] + a8 * v[7],
+                  a6 * v[2] + a7 * v[5] + a8 * v[8]);
+    }
+
+    private void setValues(final float v0, final float v1, final float v2,
+                           final float v3, final float v4, final float v5,
+                           final float v6, final float v7, final float v8) {
+        float[] v = mValues;
+        v[0] = v0;
+        v[1] = v1;
+        v[2] = v2;
+        v[3] = v3;
+        v[4] = v4;
+        v[5] = v5;
+        v[6] = v6;
+        v[7] = v7;
+        v[8] = v8;
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jp.co.cyberagent.android.gpuimage;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+
+public class GLContextResourcesTest {
+    private static final GPUImageMemoryManager.Kind KIND = GPUImageMemoryManager.Kind.TEXTURE;
+
+    @After
+    public void tearDown() {
+        GLContextResources.releaseCurrent();
+        OpenGlUtils.setBackend(new AndroidGLBackend());
+    }
+
+    @Test
+    public void recreatedSurfaceReleasesTheLostContext() {
+        GPUImageMemoryManager memory = GPUImageMemoryManager.getInstance();
+        long usedBefore = memory.getUsedBytes(KIND);
+        GPUImageRenderer renderer = new GPUImageRenderer(new GPUImageFilter());
+
+        // each fake backend stands for its own context
+        OpenGlUtils.setBackend(new RecordingGLBackend());
+        renderer.onSurfaceCreated(null, null);
+        GLContextResources lost = GLContextResources.current();
+        lost.trackTexture(1, KIND, 4096);
+        assertEquals(usedBefore + 4096, memory.getUsedBytes(KIND));
+
+        OpenGlUtils.setBackend(new RecordingGLBackend());
+        renderer.onSurfaceCreated(null, null);
+        assertEquals(usedBefore, memory.getUsedBytes(KIND));
+        assertNotSame(lost, GLContextResources.current());
+    }
+
+    @Test
+    public void releasedRendererReleasesItsContext() {
+        GPUImageMemoryManager memory = GPUImageMemoryManager.getInstance();
+        long usedBefore = memory.getUsedBytes(KIND);
+        GPUImageRenderer renderer = new GPUImageRenderer(new GPUImageFilter());
+        OpenGlUtils.setBackend(new RecordingGLBackend());
+        renderer.onSurfaceCreated(null, null);
+        GLContextResources released = GLContextResources.current();
+        released.trackTexture(1, KIND, 4096);
+
+        // e.g. the view was detached and its GL thread stopped
+        renderer.releaseGLResources();
+
+        assertEquals(usedBefore, memory.getUsedBytes(KIND));
+        assertNotSame(released, GLContextResources.current());
+    }
+
+    @Test
+    public void forgetReleasesAllocationsOfThatContextOnly() {
+        GPUImageMemoryManager memory = GPUImageMemoryManager.getInstance();
+        long usedBefore = memory.getUsedBytes(KIND);
+        RecordingGLBackend first = new RecordingGLBackend();
+        RecordingGLBackend second = new RecordingGLBackend();
+
+        OpenGlUtils.setBackend(first);
+        GLContextResources.current().trackTexture(1, KIND, 1000);
+        OpenGlUtils.setBackend(second);
+        GLContextResources.current().trackTexture(1, KIND, 2000);
+
+        GLContextResources.forget(first);
+        assertEquals(usedBefore + 2000, memory.getUsedBytes(KIND));
+    }
+}
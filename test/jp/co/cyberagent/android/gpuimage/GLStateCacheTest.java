@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.opengl.GLES20;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class GLStateCacheTest {
+    private RecordingGLBackend mGL;
+    private GLStateCache mCache;
+
+    @Before
+    public void setUp() {
+        mGL = new RecordingGLBackend();
+        OpenGlUtils.setBackend(mGL);
+        mCache = GLContextResources.current().getStateCache();
+        mCache.beginFrame();
+        mGL.takeFrameStats();
+    }
+
+    @After
+    public void tearDown() {
+        GLContextResources.releaseCurrent();
+        OpenGlUtils.setBackend(new AndroidGLBackend());
+    }
+
+    @Test
+    public void repeatedBindsAreElided() {
+        mCache.useProgram(3);
+        mCache.useProgram(3);
+        mCache.activeTexture(GLES20.GL_TEXTURE0);
+        mCache.bindTexture(7);
+        mCache.bindTexture(7);
+        mCache.bindFramebuffer(2);
+        mCache.bindFramebuffer(2);
+        mCache.bindArrayBuffer(0);
+        mCache.bindArrayBuffer(0);
+
+        Map<String, Integer> calls = mGL.takeFrameStats().callCounts;
+        assertEquals(1, count(calls, "glUseProgram"));
+        assertEquals(1, count(calls, "glBindTexture"));
+        assertEquals(1, count(calls, "glBindFramebuffer"));
+        assertEquals(1, count(calls, "glBindBuffer"));
+        mCache.beginFrame();
+        assertEquals(5, mCache.getLastFrameIssuedCalls());
+        assertEquals(4, mCache.getLastFrameElidedCalls());
+    }
+
+    @Test
+    public void texturesAreTrackedPerUnit() {
+        mCache.activeTexture(GLES20.GL_TEXTURE0);
+        mCache.bindTexture(7);
+        mCache.activeTexture(GLES20.GL_TEXTURE3);
+        mCache.bindTexture(7);
+        mCache.activeTexture(GLES20.GL_TEXTURE0);
+        mCache.bindTexture(7);
+
+        Map<String, Integer> calls = mGL.takeFrameStats().callCounts;
+        assertEquals(3, count(calls, "glActiveTexture"));
+        assertEquals(2, count(calls, "glBindTexture"));
+    }
+
+    @Test
+    public void samplerUniformsAreTrackedPerProgram() {
+        mCache.useProgram(3);
+        mCache.uniform1i(1, 0);
+        mCache.uniform1i(1, 0);
+        mCache.useProgram(4);
+        mCache.uniform1i(1, 0);
+        mCache.useProgram(3);
+        mCache.uniform1i(1, 0);
+        mCache.uniform1i(1, 2);
+
+        assertEquals(3, count(mGL.takeFrameStats().callCounts, "glUniform1i"));
+    }
+
+    @Test
+    public void deletedObjectsAreForgotten() {
+        mCache.useProgram(3);
+        mCache.deleteProgram(3);
+        mCache.useProgram(3);
+        mCache.bindFramebuffer(2);
+        mCache.deleteFramebuffers(1, new int[]{2}, 0);
+        mCache.bindFramebuffer(2);
+
+        Map<String, Integer> calls = mGL.takeFrameStats().callCounts;
+        assertEquals(2, count(calls, "glUseProgram"));
+        assertEquals(2, count(calls, "glBindFramebuffer"));
+    }
+
+    @Test
+    public void newFrameReissuesState() {
+        mCache.useProgram(3);
+        mCache.activeTexture(GLES20.GL_TEXTURE0);
+        mCache.bindTexture(7);
+        mCache.beginFrame();
+        // e.g. the application bound other objects between frames
+        mCache.useProgram(3);
+        mCache.activeTexture(GLES20.GL_TEXTURE0);
+        mCache.bindTexture(7);
+
+        Map<String, Integer> calls = mGL.takeFrameStats().callCounts;
+        assertEquals(2, count(calls, "glUseProgram"));
+        assertEquals(2, count(calls, "glActiveTexture"));
+        assertEquals(2, count(calls, "glBindTexture"));
+    }
+
+    @Test
+    public void invalidateReissuesState() {
+        mCache.bindFramebuffer(2);
+        mCache.enableScissor(0, 0, 8, 8);
+        mCache.invalidate();
+        mCache.bindFramebuffer(2);
+        mCache.enableScissor(0, 0, 8, 8);
+
+        Map<String, Integer> calls = mGL.takeFrameStats().callCounts;
+        assertEquals(2, count(calls, "glBindFramebuffer"));
+        assertEquals(2, count(calls, "glEnable"));
+        assertEquals(2, count(calls, "glScissor"));
+    }
+
+    @Test
+    public void filterChainBindsSharedStateOnce() {
+        List<GPUImageFilter> filters = new ArrayList<GPUImageFilter>();
+        for (int i = 0; i < 4; i++) {
+            filters.add(new GPUImageFilter());
+        }
+        GPUImageFilterGroup group = new GPUImageFilterGroup(filters);
+        group.setIntermediatePolicy(IntermediateFormat.FULL);
+        group.init();
+        group.onOutputSizeChanged(64, 64);
+        FloatBuffer cube = floatBuffer(GPUImageRenderer.CUBE);
+        FloatBuffer texture = floatBuffer(new float[]{0, 1, 1, 1, 0, 0, 1, 0});
+        group.onDraw(5, cube, texture);
+        mCache.beginFrame();
+        mGL.takeFrameStats();
+
+        group.onDraw(5, cube, texture);
+        mCache.beginFrame();
+        Map<String, Integer> calls = mGL.takeFrameStats().callCounts;
+
+        assertEquals(4, count(calls, "glDrawArrays"));
+        // each filter has its own program, sampler uniform and input texture, the texture
+        // unit and attribute arrays are set up once per frame
+        assertEquals(4, count(calls, "glUseProgram"));
+        assertEquals(4, count(calls, "glUniform1i"));
+        assertEquals(4, count(calls, "glBindTexture"));
+        assertEquals(1, count(calls, "glActiveTexture"));
+        assertEquals(2, count(calls, "glEnableVertexAttribArray"));
+        // the other tracked arrays are unknown at the start of a frame
+        assertEquals(6, count(calls, "glDisableVertexAttribArray"));
+        assertTrue("elided " + mCache.getLastFrameElidedCalls(),
+                   mCache.getLastFrameElidedCalls() >= 9);
+        group.destroy();
+    }
+
+    @Test
+    public void uniformSettersGoThroughTheCache() {
+        SamplerFilter filter = new SamplerFilter();
+        filter.init();
+        mGL.takeFrameStats();
+        // the draw sets the same sampler value again
+        filter.setSampler(0);
+        filter.onDraw(5, floatBuffer(GPUImageRenderer.CUBE),
+                      floatBuffer(new float[]{0, 1, 1, 1, 0, 0, 1, 0}));
+
+        assertEquals(1, count(mGL.takeFrameStats().callCounts, "glUniform1i"));
+        filter.destroy();
+    }
+
+    private static int count(final Map<String, Integer> calls, final String name) {
+        Integer count = calls.get(name);
+        return count != null ? count : 0;
+    }
+
+    private static FloatBuffer floatBuffer(final float[] values) {
+        FloatBuffer buffer = ByteBuffer.allocateDirect(values.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        buffer.put(values).position(0);
+        return buffer;
+    }
+
+    private static class SamplerFilter extends GPUImageFilter {
+        void setSampler(final int unit) {
+            setInteger(getUniformTexture(), unit);
+        }
+    }
+}
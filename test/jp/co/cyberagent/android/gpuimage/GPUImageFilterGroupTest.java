@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class GPUImageFilterGroupTest {
+    private static final long PREVIEW_BYTES = 2L * 64 * 64 * 4;
+    private static final long CAPTURE_BYTES = 2L * 256 * 256 * 4;
+
+    private RecordingGLBackend mGL;
+    private GPUImageFilterGroup mGroup;
+
+    @Before
+    public void setUp() {
+        mGL = new RecordingGLBackend();
+        OpenGlUtils.setBackend(mGL);
+        List<GPUImageFilter> filters = new ArrayList<GPUImageFilter>();
+        for (int i = 0; i < 3; i++) {
+            filters.add(new GPUImageFilter());
+        }
+        mGroup = new GPUImageFilterGroup(filters);
+        mGroup.setIntermediatePolicy(IntermediateFormat.FULL);
+        mGroup.init();
+        mGroup.onOutputSizeChanged(64, 64);
+        mGL.takeFrameStats();
+    }
+
+    @After
+    public void tearDown() {
+        mGroup.destroy();
+        GLContextResources.releaseCurrent();
+        OpenGlUtils.setBackend(new AndroidGLBackend());
+    }
+
+    @Test
+    public void offscreenDrawKeepsTheOutputIntermediates() {
+        assertEquals(CAPTURE_BYTES, mGroup.getOffscreenIntermediateBytes(256, 256));
+
+        mGroup.beginOffscreenDraw(256, 256);
+        Map<String, Integer> calls = mGL.takeFrameStats().callCounts;
+        assertEquals(0, count(calls, "glDeleteTextures"));
+        assertEquals(2, count(calls, "glTexImage2D"));
+        assertEquals(256, mGroup.getOutputWidth());
+
+        mGroup.endOffscreenDraw();
+        calls = mGL.takeFrameStats().callCounts;
+        assertEquals(0, count(calls, "glDeleteTextures"));
+        assertEquals(0, count(calls, "glTexImage2D"));
+        assertEquals(64, mGroup.getOutputWidth());
+        assertEquals(PREVIEW_BYTES + CAPTURE_BYTES, mGroup.getIntermediateBytes());
+    }
+
+    @Test
+    public void offscreenIntermediatesAreReusedForTheSameSize() {
+        mGroup.beginOffscreenDraw(256, 256);
+        mGroup.endOffscreenDraw();
+        mGL.takeFrameStats();
+        assertEquals(0, mGroup.getOffscreenIntermediateBytes(256, 256));
+
+        mGroup.beginOffscreenDraw(256, 256);
+        mGroup.endOffscreenDraw();
+        assertEquals(0, count(mGL.takeFrameStats().callCounts, "glTexImage2D"));
+
+        // another size replaces the kept ones
+        mGroup.beginOffscreenDraw(128, 128);
+        mGroup.endOffscreenDraw();
+        Map<String, Integer> calls = mGL.takeFrameStats().callCounts;
+        assertEquals(1, count(calls, "glDeleteTextures"));
+        assertEquals(2, count(calls, "glTexImage2D"));
+        assertEquals(PREVIEW_BYTES + 2L * 128 * 128 * 4, mGroup.getIntermediateBytes());
+    }
+
+    @Test
+    public void releaseIntermediatesReleasesTheKeptOnes() {
+        mGroup.beginOffscreenDraw(256, 256);
+        mGroup.endOffscreenDraw();
+
+        mGroup.releaseIntermediates();
+
+        assertEquals(0, mGroup.getIntermediateBytes());
+        assertEquals(CAPTURE_BYTES, mGroup.getOffscreenIntermediateBytes(256, 256));
+    }
+
+    private static int count(final Map<String, Integer> calls, final String name) {
+        Integer count = calls.get(name);
+        return count != null ? count : 0;
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jp.co.cyberagent.android.gpuimage;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class GPUImageMemoryManagerTest {
+    private static final GPUImageMemoryManager.Kind KIND = GPUImageMemoryManager.Kind.TEXTURE;
+
+    private GPUImageMemoryManager mManager;
+    private Cache mCache;
+
+    @Before
+    public void setUp() {
+        mManager = new GPUImageMemoryManager();
+        mManager.setBudget(1000);
+        mCache = new Cache();
+        mManager.addEvictable(mCache, GPUImageMemoryManager.PRIORITY_CACHE);
+    }
+
+    @Test
+    public void exceedingTheBudgetEvictsAtTheEndOfTheFrame() {
+        for (int i = 0; i < 6; i++) {
+            mCache.add(100);
+        }
+        mManager.onFrameEnd();
+        mManager.track(KIND, 500);
+        // the frame that allocated still runs
+        assertEquals(0, mCache.mEvictions);
+        assertEquals(1100, mManager.getUsedBytes());
+
+        mManager.onFrameEnd();
+        assertEquals(1, mCache.mEvictions);
+    }
+
+    @Test
+    public void evictsDownToTheLowWaterMark() {
+        for (int i = 0; i < 10; i++) {
+            mCache.add(100);
+        }
+        mManager.onFrameEnd();
+        mManager.track(KIND, 100);
+        mManager.onFrameEnd();
+        assertEquals(1000 * GPUImageMemoryManager.LOW_WATER_PERCENT / 100,
+                     mManager.getUsedBytes(), 100);
+    }
+
+    @Test
+    public void allocationsBelowTheBudgetDoNotEvictAgain() {
+        for (int i = 0; i < 11; i++) {
+            mCache.add(100);
+        }
+        mManager.onFrameEnd();
+        mCache.add(100);
+        mManager.onFrameEnd();
+        assertEquals(2, mCache.mEvictions);
+        assertEquals(700, mManager.getUsedBytes());
+
+        // the memory freed below the low water mark absorbs the next allocations
+        mCache.add(100);
+        mCache.add(100);
+        mManager.onFrameEnd();
+        assertEquals(2, mCache.mEvictions);
+    }
+
+    @Test
+    public void memoryOfTheCurrentFrameIsKept() {
+        long frame = mManager.getFrame();
+        mCache.add(2000);
+        mManager.onFrameEnd();
+        // everything was allocated in the frame that just ended
+        assertEquals(1, mCache.mEvictions);
+        assertEquals(0, mCache.mReleased);
+        assertEquals(frame + 1, mManager.getFrame());
+    }
+
+    /**
+     * Releases its oldest entries, but never the ones allocated in the current frame.
+     */
+    private class Cache implements GPUImageMemoryManager.Evictable {
+        private final List<GPUImageMemoryManager.Allocation> mEntries =
+                new ArrayList<GPUImageMemoryManager.Allocation>();
+        private final List<Long> mFrames = new ArrayList<Long>();
+        int mEvictions;
+        long mReleased;
+
+        void add(final long bytes) {
+            mEntries.add(mManager.track(KIND, bytes));
+            mFrames.add(mManager.getFrame());
+        }
+
+        @Override
+        public long evict() {
+            mEvictions++;
+            long frame = mManager.getFrame();
+            long target = mManager.getBudget() * GPUImageMemoryManager.LOW_WATER_PERCENT / 100;
+            long released = 0;
+            while (!mEntries.isEmpty() && mFrames.get(0) < frame
+                    && mManager.getUsedBytes() > target) {
+                GPUImageMemoryManager.Allocation allocation = mEntries.remove(0);
+                mFrames.remove(0);
+                allocation.release();
+                released += allocation.getBytes();
+            }
+            mReleased += released;
+            return released;
+        }
+    }
+}
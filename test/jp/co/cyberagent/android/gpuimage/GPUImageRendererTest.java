@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.graphics.Bitmap;
+import android.opengl.GLES20;
+import android.support.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.Buffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class GPUImageRendererTest {
+    private RecordingGLBackend mGL;
+    private GPUImageFilter mFilter;
+    private GPUImageRenderer mRenderer;
+
+    @Before
+    public void setUp() {
+        mGL = new RecordingGLBackend();
+        OpenGlUtils.setBackend(mGL);
+        mFilter = new GPUImageFilter();
+        mRenderer = new GPUImageRenderer(mFilter);
+        mRenderer.onSurfaceCreated(null, null);
+        mRenderer.onSurfaceChanged(null, 64, 64);
+        mGL.takeFrameStats();
+    }
+
+    @After
+    public void tearDown() {
+        GLContextResources.releaseCurrent();
+        OpenGlUtils.setBackend(new AndroidGLBackend());
+    }
+
+    @Test
+    public void releasedFilterIsNotDrawn() {
+        mRenderer.onDrawFrame(null);
+        assertEquals(1, mGL.takeFrameStats().drawCalls);
+
+        final boolean[] released = new boolean[1];
+        mRenderer.releaseFilter(new Runnable() {
+            @Override
+            public void run() {
+                released[0] = true;
+            }
+        });
+        mRenderer.onDrawFrame(null);
+        assertTrue(released[0]);
+        assertFalse(mFilter.isInitialized());
+        assertEquals(0, mGL.takeFrameStats().drawCalls);
+
+        // another context may use the filter now, the preview must leave it alone
+        mRenderer.onSurfaceChanged(null, 32, 32);
+        mRenderer.trimMemory();
+        mRenderer.onDrawFrame(null);
+        assertFalse(mFilter.isInitialized());
+        assertEquals(0, mGL.takeFrameStats().drawCalls);
+    }
+
+    @Test
+    public void settingTheFilterHandsItBack() {
+        mRenderer.releaseFilter(new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+        mRenderer.onDrawFrame(null);
+        mGL.takeFrameStats();
+
+        mRenderer.setFilter(mFilter);
+        mRenderer.onDrawFrame(null);
+        assertTrue(mFilter.isInitialized());
+        assertEquals(1, mGL.takeFrameStats().drawCalls);
+    }
+
+    @Test
+    public void everyPendingCaptureIsSteppedEachFrame() {
+        List<Bitmap> first = new ArrayList<Bitmap>();
+        List<Bitmap> second = new ArrayList<Bitmap>();
+        mRenderer.captureInStrips(8, 8, 0, 0, 8, 8, NO_FRAME, collect(first));
+        mRenderer.captureInStrips(16, 16, 0, 0, 16, 16, NO_FRAME, collect(second));
+
+        // both regions fit in a single strip
+        mRenderer.onDrawFrame(null);
+
+        assertEquals(1, first.size());
+        assertEquals(1, second.size());
+        assertNotNull(first.get(0));
+        assertEquals(16, second.get(0).getWidth());
+    }
+
+    @Test
+    public void unmappableStripFailsTheCapture() {
+        GLContextResources.releaseCurrent();
+        OpenGlUtils.setBackend(new UnmappableGLBackend());
+        GPUImageRenderer renderer = new GPUImageRenderer(new GPUImageFilter());
+        renderer.onSurfaceCreated(null, null);
+        renderer.onSurfaceChanged(null, 64, 64);
+        List<Bitmap> result = new ArrayList<Bitmap>();
+        renderer.captureInStrips(8, 8, 0, 0, 8, 8, NO_FRAME, collect(result));
+
+        // the first frame reads into the pixel pack buffer, the second maps it
+        renderer.onDrawFrame(null);
+        assertTrue(result.isEmpty());
+        renderer.onDrawFrame(null);
+
+        assertEquals(1, result.size());
+        assertNull(result.get(0));
+    }
+
+    private static final Runnable NO_FRAME = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    private static GPUImage.ResponseListener<Bitmap> collect(final List<Bitmap> results) {
+        return new GPUImage.ResponseListener<Bitmap>() {
+            @Override
+            public void response(final Bitmap item) {
+                results.add(item);
+            }
+        };
+    }
+
+    /**
+     * GLES 3 context whose pixel pack buffers cannot be mapped.
+     */
+    private static final class UnmappableGLBackend extends RecordingGLBackend {
+        @Override
+        public String glGetString(final int name) {
+            return name == GLES20.GL_VERSION ? "OpenGL ES 3.0" : super.glGetString(name);
+        }
+
+        @Override
+        public Buffer glMapBufferRange(final int target, final int offset, final int length,
+                                       final int access) {
+            super.glMapBufferRange(target, offset, length, access);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.graphics.PointF;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotNull;
+
+public class GPUImageToneCurveFilterTest {
+    private static final int TABLE_SIZE = GPUImageToneCurveFilter.TONE_CURVE_TABLE_SIZE;
+
+    private UploadRecordingBackend mGL;
+    private GPUImageToneCurveFilter mFilter;
+    private byte[] mFrom;
+    private byte[] mTo;
+
+    @Before
+    public void setUp() {
+        mGL = new UploadRecordingBackend();
+        OpenGlUtils.setBackend(mGL);
+        mFilter = new GPUImageToneCurveFilter();
+        mFrom = GPUImageToneCurveFilter.createToneCurveTable(
+                new PointF[]{new PointF(0, 0.2f), new PointF(1, 1)}, null, null, null);
+        mTo = GPUImageToneCurveFilter.createToneCurveTable(
+                new PointF[]{new PointF(0, 0), new PointF(1, 0.8f)}, null, null, null);
+    }
+
+    @After
+    public void tearDown() {
+        mFilter.destroy();
+        GLContextResources.releaseCurrent();
+        OpenGlUtils.setBackend(new AndroidGLBackend());
+    }
+
+    @Test
+    public void keyframesSetBeforeInitAreUploaded() {
+        mFilter.setToneCurveKeyframes(mFrom, mTo);
+        mFilter.init();
+        draw();
+
+        assertKeyframesUploaded();
+    }
+
+    @Test
+    public void keyframesSurviveReinit() {
+        mFilter.init();
+        mFilter.setToneCurveKeyframes(mFrom, mTo);
+        draw();
+        mFilter.destroy();
+        mGL.mUploaded = null;
+
+        // e.g. the filter lent for an export or a lost context
+        mFilter.init();
+        draw();
+
+        assertKeyframesUploaded();
+    }
+
+    @Test
+    public void controlPointsReplaceBothKeyframes() {
+        mFilter.setToneCurveKeyframes(mFrom, mTo);
+        mFilter.init();
+        mFilter.setRgbCompositeControlPoints(new PointF[]{new PointF(0, 0), new PointF(1, 1)});
+        draw();
+
+        assertNotNull(mGL.mUploaded);
+        assertArrayEquals(Arrays.copyOfRange(mGL.mUploaded, 0, TABLE_SIZE),
+                          Arrays.copyOfRange(mGL.mUploaded, TABLE_SIZE, TABLE_SIZE * 2));
+    }
+
+    private void draw() {
+        mFilter.onDraw(5, floatBuffer(GPUImageRenderer.CUBE),
+                       floatBuffer(new float[]{0, 1, 1, 1, 0, 0, 1, 0}));
+    }
+
+    private void assertKeyframesUploaded() {
+        assertNotNull(mGL.mUploaded);
+        assertArrayEquals(mFrom, Arrays.copyOfRange(mGL.mUploaded, 0, TABLE_SIZE));
+        assertArrayEquals(mTo, Arrays.copyOfRange(mGL.mUploaded, TABLE_SIZE, TABLE_SIZE * 2));
+    }
+
+    private static FloatBuffer floatBuffer(final float[] values) {
+        FloatBuffer buffer = ByteBuffer.allocateDirect(values.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        buffer.put(values).position(0);
+        return buffer;
+    }
+
+    /**
+     * Keeps the contents of the last tone curve texture upload.
+     */
+    private static final class UploadRecordingBackend extends RecordingGLBackend {
+        private byte[] mUploaded;
+
+        @Override
+        public void glTexImage2D(final int target, final int level, final int internalformat,
+                                 final int width, final int height, final int border,
+                                 final int format, final int type, @Nullable final Buffer pixels) {
+            super.glTexImage2D(target, level, internalformat, width, height, border, format, type,
+                               pixels);
+            record(height, pixels);
+        }
+
+        @Override
+        public void glTexSubImage2D(final int target, final int level, final int xoffset,
+                                    final int yoffset, final int width, final int height,
+                                    final int format, final int type,
+                                    @NonNull final Buffer pixels) {
+            super.glTexSubImage2D(target, level, xoffset, yoffset, width, height, format, type,
+                                  pixels);
+            record(height, pixels);
+        }
+
+        private void record(final int height, @Nullable final Buffer pixels) {
+            if (height != 2 || pixels == null) {
+                return;
+            }
+            ByteBuffer bytes = ((ByteBuffer) pixels).duplicate();
+            mUploaded = new byte[bytes.remaining()];
+            bytes.get(mUploaded);
+        }
+    }
+}
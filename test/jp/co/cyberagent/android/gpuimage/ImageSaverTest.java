@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ImageSaverTest {
+    private static final int SAVES = 16;
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void concurrentSavesToOneTargetAllSucceed() throws Exception {
+        ImageSaver saver = new ImageSaver();
+        File file = new File(mFolder.getRoot(), "image.png");
+        ResultListener listener = new ResultListener(SAVES);
+        for (int i = 0; i < SAVES; i++) {
+            Bitmap bitmap = Bitmap.createBitmap(256, 256, Bitmap.Config.ARGB_8888);
+            saver.save(null, bitmap, file, Bitmap.CompressFormat.PNG, 100, listener);
+        }
+
+        assertTrue(listener.mDone.await(10, TimeUnit.SECONDS));
+        assertNull(listener.mError.get());
+        assertEquals(256 * 256 * 4, file.length());
+        // only the target is left behind
+        assertEquals(1, mFolder.getRoot().list().length);
+    }
+
+    @Test
+    public void encoderRuntimeExceptionIsReported() throws Exception {
+        ImageSaver saver = new ImageSaver();
+        Bitmap bitmap = Bitmap.createBitmap(8, 8, Bitmap.Config.ARGB_8888);
+        bitmap.recycle();
+        ResultListener listener = new ResultListener(1);
+        saver.save(null, bitmap, new File(mFolder.getRoot(), "image.png"),
+                   Bitmap.CompressFormat.PNG, 100, listener);
+
+        assertTrue(listener.mDone.await(10, TimeUnit.SECONDS));
+        assertTrue(listener.mError.get() instanceof IllegalStateException);
+        assertEquals(0, mFolder.getRoot().list().length);
+    }
+
+    private static final class ResultListener implements ImageSaver.Listener {
+        private final CountDownLatch mDone;
+        private final AtomicReference<Exception> mError = new AtomicReference<Exception>();
+
+        ResultListener(final int saves) {
+            mDone = new CountDownLatch(saves);
+        }
+
+        @Override
+        public void onSaved(@NonNull final File file, @Nullable final Uri uri) {
+            mDone.countDown();
+        }
+
+        @Override
+        public void onError(@NonNull final File file, @NonNull final Exception error) {
+            mError.set(error);
+            mDone.countDown();
+        }
+    }
+}
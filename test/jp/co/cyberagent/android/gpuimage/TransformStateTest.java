@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jp.co.cyberagent.android.gpuimage;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class TransformStateTest {
+    private static final float DELTA = 1e-4f;
+
+    @Test
+    public void snapshotIsNotAffectedByLaterChanges() {
+        float[] transform = {1, 0, 0, 0, 1, 0, 0, 0, 1};
+        float[] cropBox = {0, 0, 1, 1};
+        TransformState state = new TransformState(transform, cropBox);
+        transform[6] = 5;
+        cropBox[0] = 0.5f;
+        assertEquals(0, state.textureTransform[6], 0);
+        assertEquals(0, state.cropBox[0], 0);
+    }
+
+    @Test
+    public void ofSnapshotsTheCurrentTransform() {
+        ImageTransform transform = new ImageTransform();
+        transform.setOutputSize(1080, 1080);
+        transform.setImageSize(4032, 3024);
+        transform.setScaleFactor(2);
+        float[] textureTransform = new float[9];
+        float[] cropBox = new float[4];
+        transform.getTextureTransform(textureTransform);
+        transform.getCropBox(cropBox);
+
+        TransformState state = TransformState.of(transform);
+        transform.setScaleFactor(1);
+
+        assertArrayEquals(textureTransform, state.textureTransform, 0);
+        assertArrayEquals(cropBox, state.cropBox, 0);
+    }
+
+    @Test
+    public void clippedGeometryMatchesTheTransform() {
+        // the texture fills only the middle half of the output on each axis
+        TransformState state = new TransformState(
+                new float[] {2, 0, 0, 0, 2, 0, -0.5f, -0.5f, 1}, new float[] {0, 0, 1, 1});
+        assertFalse(state.coversOutput);
+        assertEquals(4, state.clipVertexCount);
+        for (int i = 0; i < state.clipVertexCount * 2; i += 2) {
+            float x = state.clipTextureCoords[i];
+            float y = state.clipTextureCoords[i + 1];
+            assertEquals(x * 2 - 1, state.clipPositions[i], DELTA);
+            assertEquals(1 - y * 2, state.clipPositions[i + 1], DELTA);
+            assertEquals(x * 2 - 0.5f, state.clipTransformedCoords[i], DELTA);
+            assertEquals(y * 2 - 0.5f, state.clipTransformedCoords[i + 1], DELTA);
+        }
+    }
+}
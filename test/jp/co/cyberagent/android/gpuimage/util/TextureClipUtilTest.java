@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jp.co.cyberagent.android.gpuimage.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TextureClipUtilTest {
+    private static final float DELTA = 1e-4f;
+
+    @Test
+    public void identityCoversOutput() {
+        float[] transform = affine(1, 0, 0, 1, 0, 0);
+        assertTrue(TextureClipUtil.coversOutput(transform));
+
+        float[] out = new float[TextureClipUtil.MAX_VERTICES * 2];
+        assertEquals(4, TextureClipUtil.clipOutput(transform, out));
+        assertEquals(1.0f, stripArea(out, 4), DELTA);
+    }
+
+    @Test
+    public void zoomedInCoversOutput() {
+        // samples only the middle half of the texture
+        assertTrue(TextureClipUtil.coversOutput(affine(0.5f, 0, 0, 0.5f, 0.25f, 0.25f)));
+    }
+
+    @Test
+    public void zoomedOutDoesNotCoverOutput() {
+        // the texture fills only the middle half of the output on each axis
+        float[] transform = affine(2, 0, 0, 2, -0.5f, -0.5f);
+        assertFalse(TextureClipUtil.coversOutput(transform));
+
+        float[] out = new float[TextureClipUtil.MAX_VERTICES * 2];
+        int count = TextureClipUtil.clipOutput(transform, out);
+        assertEquals(4, count);
+        assertEquals(0.25f, stripArea(out, count), DELTA);
+        for (int i = 0; i < count * 2; i++) {
+            assertTrue(out[i] >= 0.25f - DELTA && out[i] <= 0.75f + DELTA);
+        }
+    }
+
+    @Test
+    public void fullyOutsideClipsEverything() {
+        float[] transform = affine(1, 0, 0, 1, 2, 0);
+        assertFalse(TextureClipUtil.coversOutput(transform));
+        assertEquals(0, TextureClipUtil.clipOutput(transform,
+                new float[TextureClipUtil.MAX_VERTICES * 2]));
+    }
+
+    @Test
+    public void rotatedPartialOverlapIsAnOctagon() {
+        float[] transform = rotation((float) Math.PI / 4);
+        assertFalse(TextureClipUtil.coversOutput(transform));
+
+        float[] out = new float[TextureClipUtil.MAX_VERTICES * 2];
+        int count = TextureClipUtil.clipOutput(transform, out);
+        assertEquals(8, count);
+        // the unit square minus four corners cut at distance sqrt(2) / 2 from the center
+        assertEquals(2 * (Math.sqrt(2) - 1), stripArea(out, count), DELTA);
+
+        float[] sampled = new float[out.length];
+        TextureClipUtil.transform(transform, out, sampled, count);
+        for (int i = 0; i < count * 2; i++) {
+            assertTrue(sampled[i] >= -DELTA && sampled[i] <= 1 + DELTA);
+        }
+    }
+
+    @Test
+    public void degenerateTransformClipsEverything() {
+        // collapses the output onto a single point outside the texture
+        assertEquals(0, TextureClipUtil.clipOutput(affine(0, 0, 0, 0, 1.5f, 0.5f),
+                new float[TextureClipUtil.MAX_VERTICES * 2]));
+    }
+
+    @Test
+    public void edgeOnlyOverlapHasNoArea() {
+        // the texture touches the output along its left edge only
+        float[] out = new float[TextureClipUtil.MAX_VERTICES * 2];
+        int count = TextureClipUtil.clipOutput(affine(1, 0, 0, 1, 1, 0), out);
+        assertEquals(0.0f, stripArea(out, count), DELTA);
+    }
+
+    @Test
+    public void verticesAreInStripOrder() {
+        float[] out = new float[TextureClipUtil.MAX_VERTICES * 2];
+        int count = TextureClipUtil.clipOutput(rotation(0.3f), out);
+        assertTrue(count > 4);
+
+        // undo 0, 1, n-1, 2, n-2, ... and check the result is a convex polygon in order
+        float[] polygon = new float[count * 2];
+        int low = 1;
+        int high = count - 1;
+        for (int i = 0; i < count; i++) {
+            int vertex = i == 0 ? 0 : i % 2 == 1 ? low++ : high--;
+            polygon[vertex * 2] = out[i * 2];
+            polygon[vertex * 2 + 1] = out[i * 2 + 1];
+        }
+        float sign = 0;
+        for (int i = 0; i < count; i++) {
+            float cross = cross(polygon, i, (i + 1) % count, (i + 2) % count);
+            assertTrue(Math.abs(cross) > DELTA);
+            if (sign == 0) {
+                sign = Math.signum(cross);
+            }
+            assertEquals(sign, Math.signum(cross), 0);
+        }
+
+        // consecutive strip triangles alternate winding and never overlap
+        for (int i = 0; i + 2 < count; i++) {
+            float cross = cross(out, i, i + 1, i + 2);
+            assertEquals(i % 2 == 0 ? sign : -sign, Math.signum(cross), 0);
+        }
+    }
+
+    private static float[] affine(final float a, final float b, final float c, final float d,
+                                  final float tx, final float ty) {
+        // x' = a * x + c * y + tx, y' = b * x + d * y + ty
+        return new float[] {
+                a, b, 0,
+                c, d, 0,
+                tx, ty, 1,
+        };
+    }
+
+    private static float[] rotation(final float angle) {
+        float cos = (float) Math.cos(angle);
+        float sin = (float) Math.sin(angle);
+        // rotation about the center of the texture
+        return affine(cos, sin, -sin, cos,
+                0.5f - 0.5f * cos + 0.5f * sin, 0.5f - 0.5f * sin - 0.5f * cos);
+    }
+
+    private static float cross(final float[] points, final int i, final int j, final int k) {
+        float ax = points[j * 2] - points[i * 2];
+        float ay = points[j * 2 + 1] - points[i * 2 + 1];
+        float bx = points[k * 2] - points[i * 2];
+        float by = points[k * 2 + 1] - points[i * 2 + 1];
+        return ax * by - ay * bx;
+    }
+
+    private static float stripArea(final float[] strip, final int count) {
+        float area = 0;
+        for (int i = 0; i + 2 < count; i++) {
+            area += Math.abs(cross(strip, i, i + 1, i + 2)) / 2;
+        }
+        return area;
+    }
+}